@@ -0,0 +1,153 @@
+/**
+ * *******************************************************************
+ * File: AdaptiveEvaluationTestCases.java
+ * *********************************************************************
+ */
+
+import org.junit.AfterClass;
+import org.junit.Test;
+
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class AdaptiveEvaluationTestCases {
+
+   private static final ForkJoinPool pool = new ForkJoinPool(4);
+
+   @AfterClass
+   public static void shutdownPool() {
+      pool.shutdown();
+   }
+
+   private static GraphStatistics statistics(String[][] input) {
+      return GraphStatistics.collect(ExpressionCompiler.compile(input, false, CellStorage.HEAP));
+   }
+
+   // Evaluates the sheet adaptively on the pool and sequentially, the values must match
+   private static Spreadsheet assertSameValues(String[][] input, String strategy) {
+      Spreadsheet expected = new Spreadsheet(input);
+      expected.evaluateSpreadSheet();
+      Spreadsheet spreadsheet = new Spreadsheet(input);
+      spreadsheet.evaluateSpreadSheetAdaptively(pool);
+      assertEquals(strategy, spreadsheet.getEvaluationStrategy());
+      for(int i = 0; i < input.length; i++){
+         for(int j = 0; j < input[0].length; j++){
+            assertEquals(expected.getFormattedValue(i,j),spreadsheet.getFormattedValue(i,j));
+         }
+      }
+      return spreadsheet;
+   }
+
+   // Every cell of the rows below the first one adds one to the cell above it
+   private static String[][] columns(int rowCount, int columnCount) {
+      String[][] input = new String[rowCount][columnCount];
+      for(int i = 0; i < rowCount; i++){
+         for(int j = 0; j < columnCount; j++){
+            input[i][j] = i == 0 ? String.valueOf(j) : ExpressionCompiler.getCellName(i - 1, j) + " 2 * 1 +";
+         }
+      }
+      return input;
+   }
+
+   @Test
+   public void statistics() {
+      String input[][] = {{"A2", "4 5 *", "A1"}, {"A1 B2 / 2 +", "3", "39 B1 B2 * /"}, {"A1:B3 SUM", "B2", "C1"}};
+      GraphStatistics statistics = statistics(input);
+      assertEquals(9, statistics.getCellCount());
+      // 8 references and the 6 cells of the range
+      assertEquals(14, statistics.getEdgeCount());
+      // The longest chain B3 A1 B1 A2 turns forwards twice, the estimate is a lower bound
+      assertEquals(3, statistics.getCriticalPath());
+      assertEquals(4.0 / 9, statistics.getAliasFraction(), 1e-12);
+      assertEquals(1.0 / 9, statistics.getRangeUserFraction(), 1e-12);
+      assertEquals(6, statistics.getMaxFanIn());
+      assertEquals(3, statistics.getMaxFanOut());
+      // Fan-in: 0 for A2 B2, 1 for A1 C1 B3 C3, 2 for B1, 3 for C2 (2-3 bucket), 6 for A3 (4-7)
+      assertEquals(2, statistics.getFanInCount(0));
+      assertEquals(4, statistics.getFanInCount(1));
+      assertEquals(2, statistics.getFanInCount(2));
+      assertEquals(1, statistics.getFanInCount(3));
+      long cells = 0;
+      for(int bucket = 0; bucket < GraphStatistics.BUCKETS; bucket++){
+         cells += statistics.getFanOutCount(bucket);
+      }
+      assertEquals(9, cells);
+      assertTrue(statistics.summary().startsWith("{\"cells\":9,\"edges\":14,\"criticalPath\":3,"));
+   }
+
+   // The chains running forwards and backwards are both measured
+   @Test
+   public void criticalPath() {
+      assertEquals(50000, statistics(SpreadsheetBenchmark.generate("chain", 50000)).getCriticalPath());
+      assertEquals(200, statistics(columns(200, 5)).getCriticalPath());
+      assertEquals(1, statistics(SpreadsheetBenchmark.generate("wide", 10000)).getCriticalPath());
+   }
+
+   @Test
+   public void choices() {
+      assertEquals(StrategySelector.SEQUENTIAL, StrategySelector.choose(statistics(columns(300, 300)), 1));
+      assertEquals(StrategySelector.SEQUENTIAL, StrategySelector.choose(statistics(columns(30, 30)), 4));
+      assertEquals(StrategySelector.SEQUENTIAL,
+              StrategySelector.choose(statistics(SpreadsheetBenchmark.generate("chain", 50000)), 4));
+      assertEquals(StrategySelector.WORK_STEALING, StrategySelector.choose(statistics(columns(300, 300)), 4));
+      assertEquals(StrategySelector.LEVEL_PARALLEL,
+              StrategySelector.choose(statistics(SpreadsheetBenchmark.generate("wide", 50000)), 4));
+      // Too narrow for 16 threads
+      assertEquals(StrategySelector.SEQUENTIAL, StrategySelector.choose(statistics(columns(300, 200)), 16));
+   }
+
+   @Test
+   public void sequential() {
+      assertSameValues(SpreadsheetBenchmark.generate("chain", 50000), "sequential");
+   }
+
+   @Test
+   public void levelParallel() {
+      assertSameValues(SpreadsheetBenchmark.generate("wide", 50000), "level-parallel");
+      assertSameValues(SpreadsheetBenchmark.generate("fanin", 250000), "level-parallel");
+   }
+
+   @Test
+   public void workStealing() {
+      assertSameValues(columns(300, 300), "work-stealing");
+      assertSameValues(SpreadsheetBenchmark.generate("template", 90000), "work-stealing");
+   }
+
+   // The cells left by the work stealing evaluation report the error of the sequential DFS
+   @Test
+   public void workStealingErrors() {
+      String[][] input = columns(300, 300);
+      input[150][7] = ExpressionCompiler.getCellName(149, 7) + " 0 /";
+      // A cycle between two cells of the same column
+      input[200][9] = ExpressionCompiler.getCellName(201, 9) + " 2 * 1 +";
+      Spreadsheet expected = new Spreadsheet(input);
+      String message = null;
+      try{
+         expected.evaluateSpreadSheet();
+         fail("No exception thrown");
+      } catch(RuntimeException e){
+         message = e.getMessage();
+      }
+      Spreadsheet spreadsheet = new Spreadsheet(input);
+      try{
+         spreadsheet.evaluateSpreadSheetAdaptively(pool);
+         fail("No exception thrown");
+      } catch(RuntimeException e){
+         assertEquals(message, e.getMessage());
+      }
+      assertEquals("work-stealing", spreadsheet.getEvaluationStrategy());
+   }
+
+   @Test
+   public void metrics() {
+      Spreadsheet spreadsheet = new Spreadsheet(columns(300, 300));
+      EvaluationMetrics metrics = new EvaluationMetrics();
+      spreadsheet.setMetrics(metrics);
+      spreadsheet.evaluateSpreadSheetAdaptively(pool);
+      assertEquals(90000, metrics.getCellsEvaluated());
+      assertTrue(metrics.summary().contains("\"strategy\":\"work-stealing\",\"graph\":{\"cells\":90000,"));
+   }
+}
@@ -0,0 +1,178 @@
+
+/**
+ * ******************************************************************************
+ * File: AliasResolver.java
+ * Evaluates spreadsheets containing alias cells, i.e. cells whose expression is
+ * a single reference to another cell (like every cell of largeSpreadsheet.txt)
+ * Logic : Every alias is resolved to the first cell down its chain which is not
+ *         an alias (its root) with union-find style path compression, so a chain
+ *         of any length is walked only once. The DFS then never pushes an alias:
+ *         a reference to an alias is followed straight to its root, and once the
+ *         roots are evaluated the aliases copy their values in a single sweep
+ *         An alias loop (cycle.txt) or any exception during the evaluation makes
+ *         the resolver leave all the cells WHITE, so that the sequential DFS
+ *         reports exactly the same exception as it would without the resolver
+ * ******************************************************************************
+ */
+class AliasResolver {
+
+   /**
+    * ********************************************************
+    * Constructor is made private to prevent instantiation
+    * ********************************************************
+    */
+   private AliasResolver(){
+
+   }
+
+   /**
+    * ****************************************************************************
+    * Evaluates all the cells of the spreadsheet if it contains alias cells
+    * @param spreadsheet
+    *         Spreadsheet whose programs are compiled and whose cells are all WHITE
+    * @return true if all the cells were evaluated (BLACK), false if the cells are
+    *         left WHITE for the sequential DFS
+    * ****************************************************************************
+    */
+   static boolean evaluate(Spreadsheet spreadsheet){
+      CompiledSheet program = spreadsheet.getCompiledSheet();
+      ByteArray visitStatus = spreadsheet.getVisitStatus();
+      // The DFS of the resolver only follows REF instructions
+      if(program.getRangeCount() > 0){
+         return false;
+      }
+      IntArray root = resolveRoots(program, visitStatus);
+      if(root == null){
+         return false;
+      }
+      try{
+         evaluateRoots(spreadsheet, root);
+      } catch(RuntimeException e){
+         // Replayed by the sequential DFS which throws the same exception in order
+         visitStatus.fill(Color.WHITE);
+         return false;
+      }
+      // Copy the values out to the aliases
+      DoubleArray values = spreadsheet.getValues();
+      EvaluationMetrics metrics = spreadsheet.getMetrics();
+      for(int cell = 0; cell < root.length(); cell++){
+         if(root.get(cell) != cell){
+            values.set(cell, values.get(root.get(cell)));
+            visitStatus.set(cell, Color.BLACK);
+            if(metrics != null){
+               metrics.cellEvaluated(program, program.getProgramStart(cell), 1);
+            }
+         }
+      }
+      return true;
+   }
+
+   /**
+    * ****************************************************************************
+    * Alias target of the cell
+    * @return the referenced cell if the program of the cell is exactly a single
+    *         REF instruction, -1 otherwise
+    * ****************************************************************************
+    */
+   static int getAliasTarget(CompiledSheet program, int cell){
+      int pc = program.getProgramStart(cell);
+      if(program.opcode(pc) == Opcode.REF && program.opcode(pc + 1) == Opcode.END){
+         return program.operand(pc);
+      }
+      return -1;
+   }
+
+   /*
+    * Root of every cell: the cell itself unless it is an alias. Returns null when
+    * the sheet has no alias or an alias loop is found (cells marked GREY while
+    * their chain is being walked are all WHITE again on return)
+    */
+   private static IntArray resolveRoots(CompiledSheet program, ByteArray visitStatus){
+      int cellCount = program.getCellCount();
+      // Held by the storage of the spreadsheet, as it has one element per cell
+      IntArray root = program.getStorage().newIntArray(cellCount);
+      boolean hasAlias = false;
+      for(int cell = 0; cell < cellCount; cell++){
+         int target = getAliasTarget(program, cell);
+         if(target == cell){
+            return null;
+         }
+         hasAlias |= target >= 0;
+         root.set(cell, target >= 0 ? target : cell);
+      }
+      if(!hasAlias){
+         return null;
+      }
+      for(int cell = 0; cell < cellCount; cell++){
+         // Find the root, marking the chain GREY to detect a loop
+         int current = cell;
+         while(root.get(current) != current){
+            if(visitStatus.get(current) == Color.GREY){
+               visitStatus.fill(Color.WHITE);
+               return null;
+            }
+            visitStatus.set(current, Color.GREY);
+            current = root.get(current);
+         }
+         // Path compression
+         int next = cell;
+         while(next != current){
+            int parent = root.get(next);
+            root.set(next, current);
+            visitStatus.set(next, Color.WHITE);
+            next = parent;
+         }
+      }
+      return root;
+   }
+
+   /*
+    * DFS of CellExpressionEvaluator.calcRPN run from every cell which is not an
+    * alias, in which a reference to an alias stands for a reference to its root
+    */
+   private static void evaluateRoots(Spreadsheet spreadsheet, IntArray root){
+      DoubleArray values = spreadsheet.getValues();
+      ByteArray visitStatus = spreadsheet.getVisitStatus();
+      CompiledSheet program = spreadsheet.getCompiledSheet();
+      IntStack dfsStack = spreadsheet.getDfsStack();
+      EvaluationMetrics metrics = spreadsheet.getMetrics();
+      double[] operandStack = CellExpressionEvaluator.getOperandStack(program.getMaxStackDepth());
+
+      for(int start = 0; start < root.length(); start++){
+         if(root.get(start) != start || visitStatus.get(start) != Color.WHITE){
+            continue;
+         }
+         dfsStack.clear();
+         dfsStack.push(start);
+         stackLoop:
+         while(!dfsStack.isEmpty()){
+            int currentCell = dfsStack.peek();
+            visitStatus.set(currentCell, Color.GREY);
+            int programStart = program.getProgramStart(currentCell);
+            for(int pc = programStart; program.opcode(pc) != Opcode.END; pc++){
+               if(program.opcode(pc) == Opcode.REF){
+                  int reference = program.operand(pc);
+                  int target = root.get(reference);
+                  if(visitStatus.get(target) == Color.GREY){
+                     throw new CycleDetectedException("Cycle detected");
+                  } else if(visitStatus.get(target) != Color.BLACK){
+                     dfsStack.push(target);
+                     continue stackLoop;
+                  } else if(reference != target){
+                     // The program reads the value of the alias itself
+                     values.set(reference, values.get(target));
+                     visitStatus.set(reference, Color.BLACK);
+                  }
+               }
+            }
+            values.set(currentCell, CellExpressionEvaluator.execute(program, programStart, values, operandStack,
+                    currentCell, spreadsheet));
+            if(metrics != null){
+               metrics.cellEvaluated(program, programStart, dfsStack.size());
+            }
+            visitStatus.set(currentCell, Color.BLACK);
+            dfsStack.pop();
+         }
+      }
+   }
+}
@@ -0,0 +1,113 @@
+/**
+ * *******************************************************************
+ * File: AliasResolverTestCases.java
+ * *********************************************************************
+ */
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class AliasResolverTestCases {
+
+   // A1 -> A2 -> .. -> A(n) = 33 , B(j) = A(j) + j
+   @Test
+   public void longChain() {
+      int length = 200000;
+      String input[][] = new String[2][length];
+      for(int j = 0; j < length; j++){
+         input[0][j] = j + 1 < length ? "A" + (j + 2) : "33";
+         input[1][j] = "A" + (j + 1) + " " + j + " +";
+      }
+      Spreadsheet spreadsheet = new Spreadsheet(input);
+      spreadsheet.evaluateSpreadSheet();
+      assertEquals("33.00000",spreadsheet.getFormattedValue(0,0));
+      assertEquals("33.00000",spreadsheet.getFormattedValue(0,length - 1));
+      assertEquals("33.00000",spreadsheet.getFormattedValue(1,0));
+      assertEquals(String.valueOf(33 + length - 1) + ".00000",spreadsheet.getFormattedValue(1,length - 1));
+   }
+
+   // Aliases of formulas which reference aliases
+   @Test
+   public void aliasesOfFormulas() {
+      String input[][] = {{"B3", "B1 2 *", "7"}, {"A3", "B1 A2 +", "B2"}};
+      Spreadsheet spreadsheet = new Spreadsheet(input);
+      spreadsheet.evaluateSpreadSheet();
+      assertEquals("21.00000",spreadsheet.getFormattedValue(0,0));
+      assertEquals("14.00000",spreadsheet.getFormattedValue(0,1));
+      assertEquals("7.00000",spreadsheet.getFormattedValue(0,2));
+      assertEquals("7.00000",spreadsheet.getFormattedValue(1,0));
+      assertEquals("21.00000",spreadsheet.getFormattedValue(1,1));
+      assertEquals("21.00000",spreadsheet.getFormattedValue(1,2));
+   }
+
+   @Test
+   public void aliasLoop() {
+      String input[][] = {{"A2", "A3", "B1"}, {"A2", "3", "39 B1 B2 * /"}};
+      Spreadsheet spreadsheet = new Spreadsheet(input);
+      try{
+         spreadsheet.evaluateSpreadSheet();
+         fail("Expected cycle at cell A2");
+      } catch (CycleDetectedException e){
+         assertEquals("Cycle detected at cell A2", e.getMessage());
+      }
+      assertFalse(AliasResolver.evaluate(spreadsheet));
+   }
+
+   @Test
+   public void selfAlias() {
+      String input[][] = {{"1", "A2"}};
+      try{
+         new Spreadsheet(input).evaluateSpreadSheet();
+         fail("Expected cycle at cell A2");
+      } catch (CycleDetectedException e){
+         assertEquals("Cycle detected at cell A2", e.getMessage());
+      }
+   }
+
+   // The cycle goes through a formula, the sequential DFS reports it from A1
+   @Test
+   public void cycleThroughFormula() {
+      String input[][] = {{"A2", "A3", "A1 1 +"}};
+      try{
+         new Spreadsheet(input).evaluateSpreadSheet();
+         fail("Expected cycle at cell A1");
+      } catch (CycleDetectedException e){
+         assertEquals("Cycle detected at cell A1", e.getMessage());
+      }
+   }
+
+   @Test
+   public void divideByZeroAtTheEndOfChain() {
+      String input[][] = {{"A2", "A3", "1 B1 /"}, {"0", "A1", "A3"}};
+      try{
+         new Spreadsheet(input).evaluateSpreadSheet();
+         fail("Expected divide by zero at cell A3");
+      } catch (RPNDivideByZeroException e){
+         assertEquals("The RPN equation 1 B1 / at cell A3 attempted to divide by zero", e.getMessage());
+      }
+   }
+
+   @Test
+   public void noAlias() {
+      String input[][] = {{"1", "A1 1 +"}};
+      Spreadsheet spreadsheet = new Spreadsheet(input);
+      spreadsheet.evaluateSpreadSheet();
+      assertFalse(AliasResolver.evaluate(spreadsheet));
+      assertEquals(-1, AliasResolver.getAliasTarget(spreadsheet.getCompiledSheet(), 1));
+   }
+
+   @Test
+   public void resolvedAfterEdit() {
+      String input[][] = {{"A2", "A3", "5"}};
+      Spreadsheet spreadsheet = new Spreadsheet(input);
+      spreadsheet.evaluateSpreadSheet();
+      spreadsheet.setCell("A3", "9");
+      spreadsheet.recalculate();
+      assertEquals("9.00000",spreadsheet.getFormattedValue(0,0));
+      assertTrue(AliasResolver.getAliasTarget(spreadsheet.getCompiledSheet(), 0) == 1);
+   }
+}
@@ -0,0 +1,57 @@
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * ******************************************************************************
+ * File: BufferPool.java
+ * Pool of the large byte buffers used by SpreadsheetReader and SpreadsheetWriter,
+ * so that a long running server (see SpreadsheetServer) does not allocate and
+ * zero two fresh buffers for every request. At most MAX_POOLED buffers are kept,
+ * the others are left to the garbage collector
+ * ******************************************************************************
+ */
+final class BufferPool {
+
+   static final int BUFFER_SIZE = 1 << 20;
+
+   private static final int MAX_POOLED = 64;
+
+   private static final ConcurrentLinkedQueue<byte[]> buffers = new ConcurrentLinkedQueue<byte[]>();
+   private static final AtomicInteger pooled = new AtomicInteger();
+
+   /**
+    * ********************************************************
+    * Constructor is made private to prevent instantiation
+    * ********************************************************
+    */
+   private BufferPool(){
+
+   }
+
+   /**
+    * ****************************************************************************
+    * A buffer of BUFFER_SIZE bytes, taken from the pool when one is available
+    * ****************************************************************************
+    */
+   static byte[] take(){
+      byte[] buffer = buffers.poll();
+      if(buffer == null){
+         return new byte[BUFFER_SIZE];
+      }
+      pooled.decrementAndGet();
+      return buffer;
+   }
+
+   /**
+    * ****************************************************************************
+    * Gives back a buffer obtained from take, which must no longer be used
+    * ****************************************************************************
+    */
+   static void give(byte[] buffer){
+      if(pooled.incrementAndGet() <= MAX_POOLED){
+         buffers.offer(buffer);
+      } else {
+         pooled.decrementAndGet();
+      }
+   }
+}
@@ -0,0 +1,116 @@
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * ******************************************************************************
+ * File: ByteArray.java
+ * Array of bytes indexed by int, held on the heap or off the heap (see CellStorage)
+ * ******************************************************************************
+ */
+abstract class ByteArray {
+
+   abstract byte get(int index);
+
+   abstract void set(int index, byte value);
+
+   abstract int length();
+
+   /**
+    * ****************************************************************************
+    * Changes the length of the array, the elements below both lengths are kept
+    * and the new elements are 0
+    * ****************************************************************************
+    */
+   abstract void resize(int length);
+
+   abstract void fill(byte value);
+
+   static final class Heap extends ByteArray {
+      private byte[] elements;
+
+      Heap(int length){
+         this.elements = new byte[length];
+      }
+
+      @Override
+      byte get(int index){
+         return elements[index];
+      }
+
+      @Override
+      void set(int index, byte value){
+         elements[index] = value;
+      }
+
+      @Override
+      int length(){
+         return elements.length;
+      }
+
+      @Override
+      void resize(int length){
+         elements = Arrays.copyOf(elements, length);
+      }
+
+      @Override
+      void fill(byte value){
+         Arrays.fill(elements, value);
+      }
+   }
+
+   static final class OffHeap extends ByteArray {
+      private static final int MASK = CellStorage.PAGE_SIZE - 1;
+
+      private final CellStorage storage;
+      private ByteBuffer[] pages = new ByteBuffer[0];
+      private int length;
+
+      OffHeap(CellStorage storage, int length){
+         this.storage = storage;
+         resize(length);
+      }
+
+      // Array over the given pages, see CellStorage.mapByteArray
+      OffHeap(CellStorage storage, ByteBuffer[] pages, int length){
+         this.storage = storage;
+         this.pages = pages;
+         this.length = length;
+      }
+
+      @Override
+      byte get(int index){
+         return pages[index >>> CellStorage.PAGE_SHIFT].get(index & MASK);
+      }
+
+      @Override
+      void set(int index, byte value){
+         pages[index >>> CellStorage.PAGE_SHIFT].put(index & MASK, value);
+      }
+
+      @Override
+      int length(){
+         return length;
+      }
+
+      @Override
+      void resize(int length){
+         pages = storage.resize(pages, length);
+         this.length = length;
+      }
+
+      @Override
+      void fill(byte value){
+         // Eight bytes at a time
+         long pattern = (value & 0xFFL) * 0x0101010101010101L;
+         for(ByteBuffer page : pages){
+            int i = 0;
+            for(; i + 8 <= page.capacity(); i += 8){
+               page.putLong(i, pattern);
+            }
+            for(; i < page.capacity(); i++){
+               page.put(i, value);
+            }
+         }
+      }
+   }
+}
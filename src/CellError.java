@@ -0,0 +1,26 @@
+/**
+ * *******************************************************************
+ * File: CellError.java
+ * Error states of the cells of a spreadsheet evaluated with error values
+ * (see Spreadsheet.setErrorValues), stored as one byte per cell. A cell
+ * depending on cells in error takes the highest of their states
+ * *********************************************************************
+ */
+final class CellError {
+   static final byte NONE = 0;
+   static final byte ERROR = 1;  // Invalid expression, division by zero or depends on such a cell
+   static final byte CYCLE = 2;  // Part of a cycle or depends on a cycle
+
+   private CellError(){
+
+   }
+
+   /**
+    * ****************************************************************************
+    * Text printed in place of the value of a cell in error
+    * ****************************************************************************
+    */
+   static String text(byte error){
+      return error == CYCLE ? "#CYCLE" : "#ERR";
+   }
+}
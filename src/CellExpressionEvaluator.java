@@ -1,7 +1,3 @@
-import java.util.ArrayDeque;
-import java.util.Deque;
-import java.util.Scanner;
-
 /**
  * ******************************************************************************
  * File: CellExpressionEvaluator.java
@@ -10,12 +6,16 @@ import java.util.Scanner;
  */
 class CellExpressionEvaluator {
 
-   private static final String ADDITION = "+";
-   private static final String SUBTRACT = "-";
-   private static final String MULTIPLY = "*";
-   private static final String DIVIDE = "/";
-   private static final String INCREMENT = "++";
-   private static final String DECREMENT = "--";
+   // Result of a program which cannot be evaluated when the spreadsheet is evaluated
+   // with error values: a quiet NaN with a payload, which no arithmetic produces
+   static final double ERROR_VALUE = Double.longBitsToDouble(0x7ff8_0000_0000_0e77L);
+
+   // Ints of a DFS frame: slot of the cell, pc from which the scan of its program
+   // resumes and highest error state of the references scanned so far
+   static final int FRAME_SIZE = 3;
+
+   // Operand stack reused by every cell evaluated on the same thread
+   private static final ThreadLocal<double[]> OPERAND_STACK = ThreadLocal.withInitial(() -> new double[16]);
 
    /**
     * ********************************************************
@@ -26,243 +26,291 @@ class CellExpressionEvaluator {
 
    }
 
-   /**
-    * *****************************************************************************
-    * Checks if the input String is one of the supported operators and it requires
-    * two operands
-    * @param input
-    *         The String which needs to be tested
-    * @return true if the input String is one of the supported operators and it
-    *         requires two operands
-    * *****************************************************************************
-    */
-   private static boolean isDoubleOperandOperator(String input) {
-      return (input.equals(ADDITION) || input.equals(SUBTRACT) || input.equals(MULTIPLY) || input
-              .equals(DIVIDE));
-   }
-
-   /**
-    * **************************************************************************
-    * Checks if the input String is one of the supported operators and it requires
-    * only one operand
-    * @param input
-    *         The String which needs to be tested
-    * @return true if the input String is one of the supported operators and it
-    *         requires only one operands
-    * ***************************************************************************
-    */
-   private static boolean isSingleOperandOperator(String input) {
-      return (input.equals(INCREMENT) || input.equals(DECREMENT));
-   }
-
    /**
     * ****************************************************************************
     * Evaluates the RPN expression for a given cell ( along with all the other cells
-    * which it depends on) in the spreadsheet specified by the row and column
-    * in the pair
-    * Logic : Try to evaluate the RPN expression in the cell specified by the start pair.
-    *         If the cell references other cells, then the other cells are traversed first
+    * which it depends on) in the spreadsheet specified by its linear index
+    * Logic : Try to evaluate the compiled program of the start cell.
+    *         If the program references other cells, then the other cells are traversed first
     *         using the Depth First Search pattern. A Stack data structure is used to
     *         carry out DFS instead of recursion to avoid stack overflow issues since
-    *         the spreadsheet could be very large
-    *         If an RPN expression is empty ("") or null, then it is evaluated to be 0.00000
+    *         the spreadsheet could be very large. The stack holds the slots of
+    *         the cells (see CompiledSheet) so that no object is allocated per
+    *         visited cell
+    *         The programs are produced once by ExpressionCompiler. A cell which is
+    *         re-entered after one of its references is evaluated resumes the scan
+    *         of its program at the instruction it stopped at, which the stack keeps
+    *         along with the cell, so every program is walked once
+    *         When the spreadsheet is evaluated with error values (see
+    *         Spreadsheet.setErrorValues), a cell referencing a cell in error takes
+    *         its error state (CellError) and the value NaN without running its
+    *         program, and a program which cannot be evaluated gives CellError.ERROR.
+    *         The cycles are found beforehand by CycleFinder, so no exception is
+    *         thrown then
     * @param start
-    *         The row and column attributes in the start pair  specify the cell for which
-    *         the expression needs to be evaluated
+    *         Slot of the cell for which the expression needs to be evaluated, which
+    *         is its linear index (row * columnCount + column) in a dense sheet
     * @param spreadsheet
     *         Associated spreadsheet object which contains information about the
-    *         values/expressions for all the cells and also the associated visit
-    *         status
-    *         Two dimensional array representing the spreadsheet
-    * @throws EmptyRPNException
-    *             when the RPN equation just has spaces.
+    *         values/expressions for all the cells, their compiled programs and also
+    *         the associated visit status
     * @throws RPNDivideByZeroException
     *             when the RPN equation attempts to divide by zero.
-    * @throws RPNUnderflowException
-    *             when the RPN equation has a mathematical operator before
-    *             there are enough numerical values for it to evaluate.
-    * @throws InvalidRPNException
-    *             when the RPN equation is a String which is unable to be
-    *             manipulated.
-    * @throws RPNOverflowException
-    *             when the RPN equation has too many numerical values and not
-    *             enough mathematical operators with which to evaluate them.
+    * @throws IllegalArgumentException
+    *             when the expression of a cell is not valid (see
+    *             ExpressionCompiler.compileCell).
+    * @throws CycleDetectedException
+    *             when the cell references a cell which is still being visited.
     * ***************************************************************************
     */
-   public static void calcRPN(Pair start,Spreadsheet spreadsheet) {
+   public static void calcRPN(int start,Spreadsheet spreadsheet) {
 
-      String[][] cells = spreadsheet.getCells();
-      Color[][] visitStatus = spreadsheet.getVisitStatus();
+      DoubleArray values = spreadsheet.getValues();
+      ByteArray visitStatus = spreadsheet.getVisitStatus();
+      ByteArray errors = spreadsheet.getErrors();
+      EvaluationMetrics metrics = spreadsheet.getMetrics();
+      CompiledSheet program = spreadsheet.getCompiledSheet();
 
-      // Stack to carry on recursion iteratively
-      Deque<Pair> dfsStack = new ArrayDeque<Pair>();
-      dfsStack.push(start);
-      Pair currentPair;
-      String errorMessage;
+      // Stack of the frames of the cells being visited to carry on recursion iteratively
+      IntStack dfsStack = spreadsheet.getDfsStack();
+      dfsStack.clear();
+      pushFrame(dfsStack, start, program);
+      int currentCell;
+
+      // Operand stack shared by all the cells evaluated on this thread
+      double[] operandStack = getOperandStack(program.getMaxStackDepth());
 
       stackLoop:
       while(!dfsStack.isEmpty()){
-         currentPair = dfsStack.peek();
+         int frame = dfsStack.size() - FRAME_SIZE;
+         currentCell = dfsStack.get(frame);
          // set status to GREY (visiting)
-         visitStatus[currentPair.getRow()][currentPair.getColumn()] = Color.GREY;
-         String inputCell = cells[currentPair.getRow()][currentPair.getColumn()];
-         // Eliminate any leading or trailing whitespace from input
-         if(inputCell == null || inputCell.isEmpty()){
-            cells[currentPair.getRow()][currentPair.getColumn()] = String.format("%.5f",0.0);
-            visitStatus[currentPair.getRow()][currentPair.getColumn()] = Color.BLACK;
-            //pop the current pair which has already been evaluated
-            dfsStack.pop();
-            continue;
-         }
-
-         inputCell = inputCell.trim();
-         if(inputCell.isEmpty()){
-            throw new EmptyRPNException("Illegal Argument " + cells[currentPair.getRow()][currentPair.getColumn()] + " at cell " + getCellName(currentPair.getRow(),currentPair.getColumn()));
-         }
+         visitStatus.set(currentCell, Color.GREY);
+         int programStart = program.getProgramStart(currentCell);
+         byte error = (byte)dfsStack.get(frame + 2);
 
-         // scanner to manipulate input and stack to store double values
-         String next;
-         Deque<Double> operandStack = new ArrayDeque<Double>();
-         Scanner scan = new Scanner(inputCell);
-
-         // loop while there are tokens left in scan
-         while (scan.hasNext()) {
-            // retrieve the next token from the input
-            next = scan.next();
-
-            // check if the token is a mathematical operator
-            if (isDoubleOperandOperator(next)) {
-               // ensure there are enough operands on stack
-               if (operandStack.size() > 1) {
-                  if (next.equals(ADDITION)) {
-                     operandStack.push( operandStack.pop() + operandStack.pop());
-                  } else if (next.equals(SUBTRACT)) {
-                     operandStack.push( - operandStack.pop() +  operandStack.pop());
-                  } else if (next.equals(MULTIPLY)) {
-                     operandStack.push( operandStack.pop() *  operandStack.pop());
-                  } else if (next.equals(DIVIDE)) {
-                     double first = operandStack.pop();
-                     double second = operandStack.pop();
-
-                     if (first == 0) {
-                        errorMessage = "The RPN equation " + cells[currentPair.getRow()][currentPair.getColumn()] +" at " +
-                                "cell " +getCellName(currentPair.getRow(),currentPair.getColumn()) + " attempted to divide by zero";
-                        throw new RPNDivideByZeroException(errorMessage);
-                     } else {
-                        operandStack.push(second / first);
-                     }
-                  }
-               } else {
-                  errorMessage = "Operator " + next + " occured before there were enough numerical values for it to evaluate in " +
-                          "the expression " + cells[currentPair.getRow()][currentPair.getColumn()] + " at cell "
-                          + getCellName(currentPair.getRow(),currentPair.getColumn());
-                  throw new RPNUnderflowException(errorMessage);
-               }
-            } else if(isSingleOperandOperator(next)){
-               // ensure there are enough numbers on stack
-               if (operandStack.size() > 0) {
-                  if (next.equals(INCREMENT)) {
-                     operandStack.push( operandStack.pop() + 1);
-                  } else if (next.equals(DECREMENT)) {
-                     operandStack.push( operandStack.pop() - 1);
-                  }
-               } else {
-                  errorMessage = "Operator " + next + " occured before there were enough numerical values for it to evaluate in " +
-                          "the expression " + cells[currentPair.getRow()][currentPair.getColumn()] + " at cell "
-                          + getCellName(currentPair.getRow(),currentPair.getColumn());
-                  throw new RPNUnderflowException(errorMessage);
+         // Visit the referenced cells first, in the order in which they appear in the expression,
+         // from the instruction whose reference was pending
+         for(int pc = dfsStack.get(frame + 1); program.opcode(pc) != Opcode.END; pc++){
+            if(program.opcode(pc) == Opcode.REF){
+               int reference = program.operand(pc);
+               if(visitStatus.get(reference) == Color.GREY){
+                  throw new CycleDetectedException("Cycle detected at cell " + program.getCellName(reference));
+               } else if(visitStatus.get(reference) != Color.BLACK){
+                  dfsStack.set(frame + 1, pc);
+                  dfsStack.set(frame + 2, error);
+                  pushFrame(dfsStack, reference, program);
+                  continue stackLoop;
+               } else if(errors != null && errors.get(reference) > error){
+                  error = errors.get(reference);
                }
-            } else {
-               try {
-                  operandStack.push(Double.valueOf(next));
-               } catch (NumberFormatException c) {
-                  //Check if it references other cells
-                  Pair newPair = getPairFromCellName(next,cells.length,cells[0].length);
-                  if(newPair != null){
-                     if(visitStatus[newPair.getRow()][newPair.getColumn()] == Color.GREY){
-                        throw new CycleDetectedException("Cycle detected at cell " + getCellName(newPair.getRow(),newPair.getColumn()));
-                     } else if(visitStatus[newPair.getRow()][newPair.getColumn()] == Color.BLACK){
-                        operandStack.push(Double.valueOf(cells[newPair.getRow()][newPair.getColumn()]));
-                     } else {
-                        dfsStack.push(newPair);
-                        continue stackLoop;
-                     }
-                  } else {
-                     errorMessage = "The expression " + cells[currentPair.getRow()][currentPair.getColumn()] +
-                             " at cell " + getCellName(currentPair.getRow(),currentPair.getColumn()) +
-                             " is not valid";
-                     throw new InvalidRPNException(
-                             errorMessage);
+            } else if(program.opcode(pc) >= Opcode.SUM){
+               // A range references its cells in row major order
+               int pending = spreadsheet.getRangeIndex().firstPending(program.operand(pc), visitStatus);
+               if(pending >= 0){
+                  if(visitStatus.get(pending) == Color.GREY){
+                     throw new CycleDetectedException("Cycle detected at cell " + program.getCellName(pending));
                   }
+                  // Resumed at the range, which may have other pending cells
+                  dfsStack.set(frame + 1, pc);
+                  dfsStack.set(frame + 2, error);
+                  pushFrame(dfsStack, pending, program);
+                  continue stackLoop;
                }
             }
          }
-         if (operandStack.size() > 1) {
-            errorMessage = "Extra Operands in the expression " + cells[currentPair.getRow()][currentPair.getColumn()] +
-                    " at cell " + getCellName(currentPair.getRow(),currentPair.getColumn());
-            throw new RPNOverflowException(errorMessage);
+
+         // All the referenced cells are evaluated, run the program of the cell
+         if(error != CellError.NONE){
+            values.set(currentCell, Double.NaN);
+            errors.set(currentCell, error);
+         } else {
+            double value = execute(program, programStart, values, operandStack, currentCell, spreadsheet);
+            if(errors != null){
+               errors.set(currentCell, CellError.NONE);
+               if(Double.isNaN(value)){
+                  errors.set(currentCell, getError(value, program, programStart, spreadsheet));
+                  value = Double.NaN;
+               }
+            }
+            values.set(currentCell, value);
          }
 
-         // Set the value evaluated on the cell
-         cells[currentPair.getRow()][currentPair.getColumn()] = String.format("%.5f",operandStack.pop());
+         if(metrics != null){
+            metrics.cellEvaluated(program, programStart, dfsStack.size() / FRAME_SIZE);
+         }
 
          // Mark the cell visit status as BLACK (Visited or Evaluated)
-         visitStatus[currentPair.getRow()][currentPair.getColumn()] = Color.BLACK;
+         visitStatus.set(currentCell, Color.BLACK);
 
-         //pop the current pair which has already been evaluated
-         dfsStack.pop();
+         //pop the frame of the current cell which has already been evaluated
+         dfsStack.drop(FRAME_SIZE);
       }
    }
 
+   /*
+    * Pushes the frame of a cell whose program is to be scanned from its start
+    */
+   private static void pushFrame(IntStack dfsStack, int cell, CompiledSheet program){
+      dfsStack.push(cell);
+      dfsStack.push(program.getProgramStart(cell));
+      dfsStack.push(CellError.NONE);
+   }
+
    /**
     * ****************************************************************************
-    * Converts cell name to Pair
-    * Example A1 -> (0,0) , C5 -> (2,4)
-    * @param cellName
-    *         Name of the cell like A1,A2,B1,B2 etc
-    * @param rowCount
-    *         Number of rows in the spreadsheet
-    * @param colCount
-    *         Number of columns in the spreadsheet
-    * @return A Pair object corresponding to the cell name
-    * ***************************************************************************
+    * Runs the compiled program of a cell whose referenced cells are all evaluated
+    * The operand stack is a primitive array sized by the maximum stack depth found
+    * by the compiler, so the loop neither boxes the operands nor allocates
+    * The instructions of a shared node (Opcode.SHARED) are run once per evaluation
+    * pass, the cells using the node later on only read its result
+    * @param program
+    *         The compiled programs of the spreadsheet
+    * @param programStart
+    *         Index of the first instruction of the program of the cell
+    * @param values
+    *         Evaluated values of the cells indexed by their slot
+    * @param operandStack
+    *         Scratch operand stack of at least program.getMaxStackDepth() elements
+    * @param cell
+    *         Slot of the cell (its linear index in a dense sheet), used to report errors
+    * @param spreadsheet
+    *         Associated spreadsheet object, used to report errors
+    * @return the value of the cell
+    * @throws RPNDivideByZeroException
+    *             when the RPN equation attempts to divide by zero.
+    * @throws IllegalArgumentException
+    *             when the expression of the cell is not valid.
+    * ****************************************************************************
     */
-   private static Pair getPairFromCellName(String cellName,int rowCount, int colCount){
-      byte i;
-      int j;
-      if(cellName.length() < 2) {
-         return null;
-      }
-      char firstChar = cellName.substring(0,1).charAt(0);
-      if(firstChar < 'A' || firstChar > 'Z'){
-         return null;
+   static double execute(CompiledSheet program, int programStart, DoubleArray values, double[] operandStack,
+                         int cell, Spreadsheet spreadsheet) {
+      return execute(program, programStart, -1, values, operandStack, 0, cell, spreadsheet);
+   }
+
+   /*
+    * Runs the instructions from pc up to END or end (the instructions of a shared
+    * node) with the operand stack starting at base, returns the value left there
+    */
+   private static double execute(CompiledSheet program, int pc, int end, DoubleArray values, double[] operandStack,
+                                 int base, int cell, Spreadsheet spreadsheet) {
+      int top = base;
+      for(; pc != end; pc++){
+         switch(program.opcode(pc)){
+            case Opcode.END:
+               return operandStack[base];
+            case Opcode.SHARED: {
+               int node = program.operand(pc);
+               int length = program.getNodeLength(node);
+               double value;
+               if(program.isNodeEvaluated(node)){
+                  value = program.getNodeValue(node);
+               } else {
+                  value = execute(program, pc + 1, pc + 1 + length, values, operandStack, top, cell, spreadsheet);
+                  program.setNodeValue(node, value);
+               }
+               if(isErrorValue(value)){
+                  return ERROR_VALUE;
+               }
+               operandStack[top] = value;
+               top++;
+               pc += length;
+               break;
+            }
+            case Opcode.CONST:
+               operandStack[top++] = program.constant(program.operand(pc));
+               break;
+            case Opcode.REF:
+               operandStack[top++] = values.get(program.operand(pc));
+               break;
+            case Opcode.ADD:
+               top--;
+               operandStack[top - 1] = operandStack[top - 1] + operandStack[top];
+               break;
+            case Opcode.SUBTRACT:
+               top--;
+               operandStack[top - 1] = operandStack[top - 1] - operandStack[top];
+               break;
+            case Opcode.MULTIPLY:
+               top--;
+               operandStack[top - 1] = operandStack[top - 1] * operandStack[top];
+               break;
+            case Opcode.DIVIDE:
+               top--;
+               if (operandStack[top] == 0) {
+                  if(spreadsheet.hasErrorValues()){
+                     return ERROR_VALUE;
+                  }
+                  String errorMessage = "The RPN equation " + spreadsheet.getExpression(cell) +" at " +
+                          "cell " + program.getCellName(cell) + " attempted to divide by zero";
+                  throw new RPNDivideByZeroException(errorMessage);
+               }
+               operandStack[top - 1] = operandStack[top - 1] / operandStack[top];
+               break;
+            case Opcode.ERROR:
+               if(program.operand(pc) == 0 || spreadsheet.hasErrorValues()){
+                  return ERROR_VALUE;
+               }
+               throw ExpressionCompiler.newFailure(program.operand(pc), spreadsheet.getExpression(cell),
+                       program.getCellName(cell));
+            case Opcode.INCREMENT:
+               operandStack[top - 1] = operandStack[top - 1] + 1;
+               break;
+            case Opcode.DECREMENT:
+               operandStack[top - 1] = operandStack[top - 1] - 1;
+               break;
+            case Opcode.SUM:
+            case Opcode.AVG:
+            case Opcode.MIN:
+            case Opcode.MAX:
+               operandStack[top++] = spreadsheet.getRangeIndex().aggregate(program.opcode(pc), program.operand(pc), values);
+               break;
+         }
       }
-      i = (byte)(firstChar - 'A');
-      String colString = cellName.substring(1);
-      try{
-         j = Integer.parseInt(colString) - 1;
-      } catch(NumberFormatException e){
-         return null;
+      return operandStack[base];
+   }
+
+   /*
+    * Error state of a cell whose program gave NaN: an error if the program could not
+    * be evaluated, else the highest state of the cells of its ranges (NONE if the
+    * NaN is a genuine result, like the difference of two infinities)
+    */
+   private static byte getError(double value, CompiledSheet program, int programStart, Spreadsheet spreadsheet){
+      if(isErrorValue(value)){
+         return CellError.ERROR;
       }
-      if(i >= rowCount || j >= colCount || i < 0 || j < 0){
-         return null;
+      byte error = CellError.NONE;
+      for(int pc = programStart; program.opcode(pc) != Opcode.END; pc++){
+         if(program.opcode(pc) >= Opcode.SUM){
+            error = (byte)Math.max(error, spreadsheet.getRangeIndex().getError(program.operand(pc), spreadsheet.getErrors()));
+         }
       }
-      return new Pair(i,j);
+      return error;
    }
 
    /**
     * ****************************************************************************
-    * Converts row and column to cell name
-    * Example row = 0, column = 3  results into a cell name of A4
-    * @param row
-    *         row index of the cell starting from 0
-    * @param column
-    *         column index of the cell starting from 0
-    * @return name of the cell (like A1, A2, A3 ..)
-    * ***************************************************************************
+    * Checks if a value is the result of a program which could not be evaluated
+    * ****************************************************************************
     */
-   private static String getCellName(byte row,int column){
-      char rowName = (char)('A' + row);
-      return rowName + String.valueOf(column+1);
+   static boolean isErrorValue(double value){
+      return Double.doubleToRawLongBits(value) == Double.doubleToRawLongBits(ERROR_VALUE);
+   }
+
+   /**
+    * ****************************************************************************
+    * Operand stack of the current thread, grown when a sheet needs a deeper stack
+    * @param depth
+    *         Maximum stack depth required by the programs to be evaluated
+    * @return an operand stack of at least depth elements
+    * ****************************************************************************
+    */
+   static double[] getOperandStack(int depth){
+      double[] operandStack = OPERAND_STACK.get();
+      if(operandStack.length < depth){
+         operandStack = new double[depth];
+         OPERAND_STACK.set(operandStack);
+      }
+      return operandStack;
    }
 }
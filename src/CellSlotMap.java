@@ -0,0 +1,98 @@
+import java.util.Arrays;
+
+/**
+ * ******************************************************************************
+ * File: CellSlotMap.java
+ * Open addressing hash map from the linear index of a cell to its storage slot,
+ * used by the sparse CompiledSheet. Keys and values are kept in two int arrays
+ * (linear probing, at most half full), so no object is created per entry
+ * ******************************************************************************
+ */
+class CellSlotMap {
+
+   private static final int NO_KEY = -1;
+
+   private int[] keys;
+   private int[] slots;
+   private int size;
+   private int mask;
+
+   CellSlotMap(int expectedSize){
+      int capacity = Integer.highestOneBit(Math.max(8, expectedSize) * 2 - 1) << 1;
+      allocate(capacity);
+   }
+
+   int size(){
+      return size;
+   }
+
+   /**
+    * ****************************************************************************
+    * Slot of the cell
+    * @param cell
+    *         Linear index of the cell
+    * @return the slot of the cell or -1 if the cell has no slot
+    * ****************************************************************************
+    */
+   int get(int cell){
+      for(int index = hash(cell) & mask; ; index = (index + 1) & mask){
+         int key = keys[index];
+         if(key == cell){
+            return slots[index];
+         }
+         if(key == NO_KEY){
+            return -1;
+         }
+      }
+   }
+
+   /**
+    * ****************************************************************************
+    * Maps the cell to the slot, replacing its previous slot if any
+    * ****************************************************************************
+    */
+   void put(int cell, int slot){
+      int index = hash(cell) & mask;
+      while(keys[index] != NO_KEY && keys[index] != cell){
+         index = (index + 1) & mask;
+      }
+      if(keys[index] == NO_KEY){
+         keys[index] = cell;
+         if(++size > (mask + 1) >> 1){
+            slots[index] = slot;
+            grow();
+            return;
+         }
+      }
+      slots[index] = slot;
+   }
+
+   private void grow(){
+      int[] oldKeys = keys;
+      int[] oldSlots = slots;
+      allocate(oldKeys.length << 1);
+      for(int i = 0; i < oldKeys.length; i++){
+         if(oldKeys[i] != NO_KEY){
+            int index = hash(oldKeys[i]) & mask;
+            while(keys[index] != NO_KEY){
+               index = (index + 1) & mask;
+            }
+            keys[index] = oldKeys[i];
+            slots[index] = oldSlots[i];
+         }
+      }
+   }
+
+   private void allocate(int capacity){
+      keys = new int[capacity];
+      Arrays.fill(keys, NO_KEY);
+      slots = new int[capacity];
+      mask = capacity - 1;
+   }
+
+   // Spreads the row major indices, which are often consecutive, over the table
+   private static int hash(int cell){
+      int h = cell * 0x9E3779B9;
+      return h ^ (h >>> 16);
+   }
+}
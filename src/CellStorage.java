@@ -0,0 +1,149 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * ******************************************************************************
+ * File: CellStorage.java
+ * Backend of the arrays sized by the number of cells of a spreadsheet: the values,
+ * visit states and error states (Spreadsheet) and the instruction stream, program
+ * starts and constant pool (CompiledSheet). The backend is chosen when the
+ * spreadsheet is created:
+ *    HEAP       Java arrays, the default
+ *    OFF_HEAP   direct ByteBuffers, which the garbage collector neither scans nor
+ *               copies, so the heap only holds the per row and per range indices
+ *    mapped     regions of a memory mapped scratch file, paged in and out by the
+ *               operating system, so a sheet may exceed the physical memory too
+ * Logic : An off heap array is a list of pages of at most 1 GB, since a ByteBuffer
+ *         is indexed by int. Growing an array keeps its full pages and only copies
+ *         the last one. The buffers use the native byte order, so that an element
+ *         is read with a single load
+ *         The direct buffers count against -XX:MaxDirectMemorySize, which is the
+ *         maximum heap size by default: a small heap needs it raised (the mapped
+ *         scratch file does not). A mapped region outlives the growth of its array
+ *         and the recompilation of its spreadsheet, the scratch file is deleted
+ *         when the JVM exits
+ *         The off heap arrays may also be laid over the sections of a snapshot file
+ *         (see SpreadsheetSnapshot), mapped privately: the pages are read from the
+ *         file on first access and a write copies the page instead of changing the
+ *         file. Growing such an array allocates its new pages in direct buffers
+ * ******************************************************************************
+ */
+final class CellStorage {
+
+   static final CellStorage HEAP = new CellStorage(false, null);
+   static final CellStorage OFF_HEAP = new CellStorage(true, null);
+
+   // Size in bytes of a full page of an off heap array
+   static final int PAGE_SHIFT = 30;
+   static final int PAGE_SIZE = 1 << PAGE_SHIFT;
+
+   private final boolean offHeap;
+
+   // Scratch file of the mapped storage and its size, null otherwise
+   private final FileChannel file;
+   private long fileSize;
+
+   private CellStorage(boolean offHeap, FileChannel file){
+      this.offHeap = offHeap;
+      this.file = file;
+   }
+
+   /**
+    * ****************************************************************************
+    * Storage in regions of a memory mapped scratch file
+    * @param path
+    *         Path of the scratch file, created or truncated, deleted when the JVM exits
+    * ****************************************************************************
+    */
+   static CellStorage mapped(Path path) throws IOException {
+      FileChannel file = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+              StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.SPARSE,
+              StandardOpenOption.DELETE_ON_CLOSE);
+      return new CellStorage(true, file);
+   }
+
+   boolean isOffHeap() {
+      return offHeap;
+   }
+
+   DoubleArray newDoubleArray(int length){
+      return offHeap ? new DoubleArray.OffHeap(this, length) : new DoubleArray.Heap(length);
+   }
+
+   IntArray newIntArray(int length){
+      return offHeap ? new IntArray.OffHeap(this, length) : new IntArray.Heap(length);
+   }
+
+   ByteArray newByteArray(int length){
+      return offHeap ? new ByteArray.OffHeap(this, length) : new ByteArray.Heap(length);
+   }
+
+   DoubleArray mapDoubleArray(FileChannel file, long position, int length) throws IOException {
+      return new DoubleArray.OffHeap(this, map(file, position, (long)length << 3), length);
+   }
+
+   IntArray mapIntArray(FileChannel file, long position, int length) throws IOException {
+      return new IntArray.OffHeap(this, map(file, position, (long)length << 2), length);
+   }
+
+   ByteArray mapByteArray(FileChannel file, long position, int length) throws IOException {
+      return new ByteArray.OffHeap(this, map(file, position, length), length);
+   }
+
+   /*
+    * Pages of an off heap array laid over size bytes of the file from position,
+    * mapped privately (copy on write)
+    */
+   private static ByteBuffer[] map(FileChannel file, long position, long size) throws IOException {
+      ByteBuffer[] pages = new ByteBuffer[(int)((size + PAGE_SIZE - 1) >>> PAGE_SHIFT)];
+      for(int page = 0; page < pages.length; page++){
+         long offset = (long)page << PAGE_SHIFT;
+         pages[page] = file.map(FileChannel.MapMode.PRIVATE, position + offset, Math.min(PAGE_SIZE, size - offset))
+                 .order(ByteOrder.nativeOrder());
+      }
+      return pages;
+   }
+
+   /**
+    * ****************************************************************************
+    * Pages of an off heap array resized to newSize bytes, the bytes below both the
+    * old and the new size are kept and the new bytes are zero
+    * ****************************************************************************
+    */
+   ByteBuffer[] resize(ByteBuffer[] pages, long newSize){
+      int pageCount = (int)((newSize + PAGE_SIZE - 1) >>> PAGE_SHIFT);
+      ByteBuffer[] resized = Arrays.copyOf(pages, pageCount);
+      for(int page = 0; page < pageCount; page++){
+         int pageSize = (int)Math.min(PAGE_SIZE, newSize - ((long)page << PAGE_SHIFT));
+         ByteBuffer current = resized[page];
+         if(current == null || current.capacity() != pageSize){
+            resized[page] = allocate(pageSize);
+            if(current != null){
+               resized[page].put(0, current, 0, Math.min(current.capacity(), pageSize));
+            }
+         }
+      }
+      return resized;
+   }
+
+   private ByteBuffer allocate(int size){
+      if(file == null){
+         return ByteBuffer.allocateDirect(size).order(ByteOrder.nativeOrder());
+      }
+      synchronized(this){
+         try{
+            ByteBuffer region = file.map(FileChannel.MapMode.READ_WRITE, fileSize, size);
+            fileSize += size;
+            return region.order(ByteOrder.nativeOrder());
+         } catch(IOException e){
+            throw new UncheckedIOException("Could not map the scratch file", e);
+         }
+      }
+   }
+}
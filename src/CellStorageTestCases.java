@@ -0,0 +1,123 @@
+/**
+ * *******************************************************************
+ * File: CellStorageTestCases.java
+ * *********************************************************************
+ */
+
+import org.junit.AfterClass;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class CellStorageTestCases {
+
+   private static final ForkJoinPool pool = new ForkJoinPool(4);
+
+   @AfterClass
+   public static void shutdownPool() {
+      pool.shutdown();
+   }
+
+   private static final String input[][] = {{"A2 A3 +", "A3 2 *", "4", "A1:A3 SUM", "B1 B2 + 2 *"},
+           {"A4 2 /", "B1 B1 +", "A1:A5 MAX", "B1 B2 + 2 *", "B1 B2 + 2 * 1 +"}};
+
+   private static void assertSameValues(Spreadsheet expected, Spreadsheet actual) {
+      for(int i = 0; i < expected.getRowCount(); i++){
+         for(int j = 0; j < expected.getColumnCount(); j++){
+            assertEquals(expected.getFormattedValue(i,j),actual.getFormattedValue(i,j));
+         }
+      }
+   }
+
+   // Growing an array keeps its elements and the new ones are zero
+   @Test
+   public void offHeapArrays() {
+      DoubleArray doubles = CellStorage.OFF_HEAP.newDoubleArray(3);
+      IntArray ints = CellStorage.OFF_HEAP.newIntArray(3);
+      ByteArray bytes = CellStorage.OFF_HEAP.newByteArray(3);
+      for(int i = 0; i < 3; i++){
+         doubles.set(i, i + 0.5);
+         ints.set(i, -i);
+         bytes.set(i, (byte)i);
+      }
+      doubles.resize(1000);
+      ints.resize(1000);
+      bytes.resize(1000);
+      assertEquals(1000, doubles.length());
+      assertEquals(2.5, doubles.get(2), 0.0);
+      assertEquals(0.0, doubles.get(999), 0.0);
+      assertEquals(-2, ints.get(2));
+      assertEquals(0, ints.get(999));
+      assertEquals(2, bytes.get(2));
+      assertEquals(0, bytes.get(999));
+      bytes.fill(Color.BLACK);
+      for(int i = 0; i < 1000; i++){
+         assertEquals(Color.BLACK, bytes.get(i));
+      }
+   }
+
+   @Test
+   public void offHeapMatchesHeap() {
+      Spreadsheet heap = new Spreadsheet(input);
+      heap.evaluateSpreadSheet();
+      Spreadsheet offHeap = new Spreadsheet(input, CellStorage.OFF_HEAP);
+      offHeap.evaluateSpreadSheet();
+      assertSameValues(heap, offHeap);
+      assertEquals("24.00000",offHeap.getFormattedValue(0,3));
+      assertTrue(offHeap.getCompiledSheet().getStorage().isOffHeap());
+   }
+
+   @Test
+   public void offHeapInParallel() {
+      Spreadsheet heap = new Spreadsheet(input);
+      heap.evaluateSpreadSheet();
+      Spreadsheet offHeap = new Spreadsheet(input, CellStorage.OFF_HEAP);
+      offHeap.evaluateSpreadSheetInParallel(pool);
+      assertSameValues(heap, offHeap);
+   }
+
+   @Test
+   public void offHeapRecalculation() {
+      Spreadsheet spreadsheet = new Spreadsheet(input, CellStorage.OFF_HEAP);
+      spreadsheet.setErrorValues(true);
+      spreadsheet.evaluateSpreadSheet();
+      spreadsheet.setCell("A3", "A1");
+      spreadsheet.recalculate();
+      assertEquals("#CYCLE",spreadsheet.getFormattedValue(0,0));
+      assertEquals("#CYCLE",spreadsheet.getFormattedValue(1,3));
+      spreadsheet.setCell("A3", "1");
+      spreadsheet.recalculate();
+      assertEquals("3.00000",spreadsheet.getFormattedValue(1,0));
+      assertEquals("18.00000",spreadsheet.getFormattedValue(1,3));
+   }
+
+   // A sparse sheet read into a memory mapped scratch file, whose slots grow with the edits
+   @Test
+   public void mappedScratchFile() throws IOException {
+      Path file = Files.createTempFile("spreadsheet", ".scratch");
+      CellStorage storage = CellStorage.mapped(file);
+      SpreadsheetReader reader = new SpreadsheetReader(Channels.newChannel(
+              new ByteArrayInputStream("2 3\nC2 1 +\n\nA1 C2 *\n\n\n4\n".getBytes(StandardCharsets.UTF_8))));
+      reader.readLine();
+      Spreadsheet spreadsheet = reader.readSpreadsheet(3, 2, true, false, storage);
+      spreadsheet.evaluateSpreadSheet();
+      assertEquals("5.00000",spreadsheet.getFormattedValue(0,0));
+      assertEquals("20.00000",spreadsheet.getFormattedValue(1,0));
+      for(int i = 0; i < 50; i++){
+         spreadsheet.setCell("B2", "A1 " + i + " +");
+      }
+      spreadsheet.setCell("A2", "B2 2 *");
+      spreadsheet.recalculate();
+      assertEquals("54.00000",spreadsheet.getFormattedValue(1,1));
+      assertEquals("108.00000",spreadsheet.getFormattedValue(0,1));
+   }
+}
@@ -1,10 +1,15 @@
 /**
  * *******************************************************************
  * File: Color.java
+ * Visit states of the cells, stored as one byte per cell
  * *********************************************************************
  */
-enum Color {
-   WHITE, // Not Visited
-   GREY,  // Children or adjacent nodes are still being visted
-   BLACK  // Node and all its children or adjacent nodes are already visited
+final class Color {
+   static final byte WHITE = 0; // Not Visited
+   static final byte GREY = 1;  // Children or adjacent nodes are still being visted
+   static final byte BLACK = 2; // Node and all its children or adjacent nodes are already visited
+
+   private Color(){
+
+   }
 }
@@ -0,0 +1,661 @@
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * ******************************************************************************
+ * File: CompiledSheet.java
+ * Flat storage for the compiled programs of all the cells of a spreadsheet
+ * Each cell program is a run of instructions (opcode + int operand) terminated
+ * by Opcode.END. The operand of a CONST instruction is an index into the
+ * constant pool and the operand of a REF instruction is the slot of the
+ * referenced cell
+ * All the empty cells share the program at index 0 which pushes 0.0 and, when
+ * the spreadsheet is evaluated with error values, the cells whose expression is
+ * not valid share the program at index 2 which evaluates to #ERR. Otherwise such
+ * a cell keeps the instructions of the tokens before the error, followed by an
+ * ERROR instruction whose operand is the failure code of its compilation (see
+ * ExpressionCompiler.newFailure), so that the exception is built and thrown when
+ * the cell is evaluated, after its references are visited as before the error
+ * A cell which is recompiled (Spreadsheet.setCell) gets its new program appended
+ * at the end of the instruction stream, its previous instructions are left unused
+ * The programs, values and visit states are indexed by slot. A dense sheet has a
+ * slot per cell (slot == linear index). A sparse sheet only has slots for the
+ * cells which have an expression or are referenced, found through a CellSlotMap;
+ * the other cells are empty (0.0) and take no memory. The slots are kept in row
+ * major order of their cells (see sortSlots), so that evaluating the slots in
+ * order reports the same errors as evaluating the dense sheet
+ * The operand of a range aggregate (SUM, AVG, MIN, MAX) is the index of the range
+ * in the range table, which holds the linear indices of the top left and bottom
+ * right cells of every distinct range
+ * The instruction stream, the constant pool and the program starts are held by
+ * the CellStorage of the spreadsheet, on the heap or off the heap
+ * Identical programs and sub-expressions are shared between the cells, see
+ * SubexpressionTable. The result of a shared node is kept for the current
+ * evaluation pass (epoch) only
+ * ******************************************************************************
+ */
+class CompiledSheet {
+
+   static final int EMPTY_PROGRAM = 0;
+   static final int ERROR_PROGRAM = 2;
+
+   // Instructions of the programs shared by the empty cells and the cells in error
+   private static final int RESERVED_INSTRUCTIONS = 4;
+
+   private final int rowCount;
+   private final int columnCount;
+   private final CellStorage storage;
+
+   // Instruction stream shared by all the cell programs
+   private final ByteArray opcodes;
+   private final IntArray operands;
+   private int instructionCount;
+
+   // Constant pool of the numeric literals
+   private final DoubleArray constants;
+   private int constantCount;
+
+   // Index of the first instruction of every cell program, by slot
+   private final IntArray programStart;
+   private int slotCount;
+
+   // Slot of every stored cell and linear index of the cell of every slot,
+   // both null for a dense sheet
+   private CellSlotMap slots;
+   private int[] slotCell;
+   private boolean cellOrder = true;
+
+   // Range table, identical ranges share their index
+   private int[] rangeFirst = new int[0];
+   private int[] rangeLast = new int[0];
+   private int rangeCount;
+   private Map<Long, Integer> rangeByBounds;
+
+   // Deepest operand stack required by any of the cell programs
+   private int maxStackDepth;
+
+   // Shared nodes: number of instructions following their SHARED instruction and
+   // result, valid while nodeEpoch[node] == epoch
+   private final SubexpressionTable subexpressions = new SubexpressionTable();
+   private int[] nodeLength = new int[0];
+   private double[] nodeValue = new double[0];
+   private int[] nodeEpoch = new int[0];
+   private int nodeCount;
+   private int epoch = 1;
+   private boolean memoized = true;
+
+   // Runs of consecutive slots sharing a template (see TemplateRunEvaluator),
+   // recorded while the programs are set in slot order: first and end slot of
+   // every closed run, then the run being extended. Not recorded any more once a
+   // program is set out of order
+   private final IntStack templateRuns = new IntStack(16);
+   private int templateRunStart;
+   private int templateRunEnd;
+   private boolean templateRunsRecorded = true;
+
+   CompiledSheet(int rowCount, int columnCount){
+      this(rowCount, columnCount, false);
+   }
+
+   /**
+    * ****************************************************************************
+    * @param sparse
+    *         true to allocate slots only for the cells which are added (see addSlot)
+    *         instead of a slot per cell
+    * ****************************************************************************
+    */
+   CompiledSheet(int rowCount, int columnCount, boolean sparse){
+      this(rowCount, columnCount, sparse, CellStorage.HEAP);
+   }
+
+   /**
+    * ****************************************************************************
+    * @param storage
+    *         Backend of the instruction stream, the constant pool and the program
+    *         starts, and of the values and visit states of the spreadsheet
+    * @throws IllegalArgumentException
+    *             when the spreadsheet has more than Spreadsheet.MAX_CELL_COUNT
+    *             cells, whose linear index would overflow an int
+    * ****************************************************************************
+    */
+   CompiledSheet(int rowCount, int columnCount, boolean sparse, CellStorage storage){
+      checkCellCount(rowCount, columnCount);
+      this.rowCount = rowCount;
+      this.columnCount = columnCount;
+      this.storage = storage;
+      int cellCount = sparse ? 16 : rowCount * columnCount;
+      this.opcodes = storage.newByteArray((int)Math.min(Math.max(16, cellCount * 2L), Spreadsheet.MAX_CELL_COUNT));
+      this.operands = storage.newIntArray(opcodes.length());
+      this.constants = storage.newDoubleArray(Math.max(16, cellCount / 2));
+      this.programStart = storage.newIntArray(cellCount);
+      if(sparse){
+         this.slots = new CellSlotMap(cellCount);
+         this.slotCell = new int[cellCount];
+      } else {
+         this.slotCount = cellCount;
+      }
+      // Program shared by all empty cells
+      emit(Opcode.CONST, addConstant(0.0));
+      emit(Opcode.END, 0);
+      // Program shared by the cells whose expression is not valid
+      emit(Opcode.ERROR, 0);
+      emit(Opcode.END, 0);
+      this.maxStackDepth = 1;
+   }
+
+   /*
+    * Rejects the dimensions whose cells cannot all be addressed by an int linear
+    * index, row * columnCount + column is then never larger than MAX_CELL_COUNT
+    */
+   private static void checkCellCount(int rowCount, int columnCount){
+      if((long)rowCount * columnCount > Spreadsheet.MAX_CELL_COUNT){
+         throw new IllegalArgumentException("A spreadsheet of " + rowCount + " x " + columnCount +
+                 " has more than " + Spreadsheet.MAX_CELL_COUNT + " cells");
+      }
+   }
+
+   /**
+    * ****************************************************************************
+    * Compiled sheet restored from a snapshot (see SpreadsheetSnapshot), holding
+    * exactly the given instructions, constants and program starts. The ranges and
+    * the shared nodes are added back in the order of their indices
+    * @param slotCell
+    *         Linear index of the cell of every slot of a sparse sheet, null for a
+    *         dense sheet
+    * ****************************************************************************
+    */
+   CompiledSheet(int rowCount, int columnCount, CellStorage storage, ByteArray opcodes, IntArray operands,
+                 DoubleArray constants, IntArray programStart, int[] slotCell, int maxStackDepth){
+      checkCellCount(rowCount, columnCount);
+      this.rowCount = rowCount;
+      this.columnCount = columnCount;
+      this.storage = storage;
+      this.opcodes = opcodes;
+      this.operands = operands;
+      this.instructionCount = opcodes.length();
+      this.constants = constants;
+      this.constantCount = constants.length();
+      this.programStart = programStart;
+      this.slotCount = programStart.length();
+      if(slotCell != null){
+         this.slots = new CellSlotMap(slotCount);
+         this.slotCell = slotCell;
+         for(int slot = 0; slot < slotCount; slot++){
+            slots.put(slotCell[slot], slot);
+            if(slot > 0 && slotCell[slot] < slotCell[slot - 1]){
+               cellOrder = false;
+            }
+         }
+      }
+      this.maxStackDepth = maxStackDepth;
+      // The runs are found again by a scan, the restored programs are not in the caches
+      this.templateRunsRecorded = false;
+   }
+
+   CellStorage getStorage() {
+      return storage;
+   }
+
+   int getRowCount() {
+      return rowCount;
+   }
+
+   int getColumnCount() {
+      return columnCount;
+   }
+
+   /**
+    * ****************************************************************************
+    * Number of slots, which is the number of cells of a dense sheet
+    * ****************************************************************************
+    */
+   int getCellCount() {
+      return slotCount;
+   }
+
+   boolean isSparse() {
+      return slots != null;
+   }
+
+   /**
+    * ****************************************************************************
+    * Slot of the cell
+    * @param cell
+    *         Linear index (row * columnCount + column) of the cell
+    * @return the slot or -1 if the cell of a sparse sheet has no slot (it is empty)
+    * ****************************************************************************
+    */
+   int getSlot(int cell) {
+      return slots == null ? cell : slots.get(cell);
+   }
+
+   /**
+    * ****************************************************************************
+    * Linear index (row * columnCount + column) of the cell stored in the slot
+    * ****************************************************************************
+    */
+   int getCell(int slot) {
+      return slots == null ? slot : slotCell[slot];
+   }
+
+   /**
+    * ****************************************************************************
+    * Name of the cell stored in the slot (like A1, B7 ..)
+    * ****************************************************************************
+    */
+   String getCellName(int slot) {
+      int cell = getCell(slot);
+      return ExpressionCompiler.getCellName(cell / columnCount, cell % columnCount);
+   }
+
+   /**
+    * ****************************************************************************
+    * Slot of the cell, allocated with the empty program if the cell of a sparse
+    * sheet has none yet
+    * @param cell
+    *         Linear index (row * columnCount + column) of the cell
+    * @return the slot of the cell
+    * ****************************************************************************
+    */
+   int addSlot(int cell) {
+      if(slots == null){
+         return cell;
+      }
+      int slot = slots.get(cell);
+      if(slot < 0){
+         if(slotCount == slotCell.length){
+            int capacity = grow(slotCount);
+            slotCell = Arrays.copyOf(slotCell, capacity);
+            programStart.resize(capacity);
+         }
+         if(slotCount > 0 && cell < slotCell[slotCount - 1]){
+            cellOrder = false;
+         }
+         slot = slotCount++;
+         slotCell[slot] = cell;
+         programStart.set(slot, EMPTY_PROGRAM);
+         slots.put(cell, slot);
+      }
+      return slot;
+   }
+
+   /**
+    * ****************************************************************************
+    * Renumbers the slots of a sparse sheet in row major order of their cells
+    * A cell referenced before its own line is read (or added by an edit) gets a
+    * slot out of order. The REF operands are rewritten to the new slots, so the
+    * values and visit states indexed by the old slots are no longer valid
+    * ****************************************************************************
+    */
+   void sortSlots() {
+      if(cellOrder){
+         return;
+      }
+      int[] sortedCells = Arrays.copyOf(slotCell, slotCount);
+      Arrays.sort(sortedCells);
+      int[] newSlot = new int[slotCount];
+      int[] oldProgramStart = new int[slotCount];
+      for(int slot = 0; slot < slotCount; slot++){
+         newSlot[slot] = Arrays.binarySearch(sortedCells, slotCell[slot]);
+         oldProgramStart[slot] = programStart.get(slot);
+      }
+      for(int slot = 0; slot < slotCount; slot++){
+         programStart.set(newSlot[slot], oldProgramStart[slot]);
+      }
+      for(int pc = 0; pc < instructionCount; pc++){
+         if(opcodes.get(pc) == Opcode.REF){
+            operands.set(pc, newSlot[operands.get(pc)]);
+         }
+      }
+      for(int slot = 0; slot < slotCount; slot++){
+         slots.put(sortedCells[slot], slot);
+      }
+      System.arraycopy(sortedCells, 0, slotCell, 0, slotCount);
+      cellOrder = true;
+      subexpressions.clear();
+      templateRunsRecorded = false;
+   }
+
+   byte opcode(int pc){
+      return opcodes.get(pc);
+   }
+
+   int operand(int pc){
+      return operands.get(pc);
+   }
+
+   double constant(int index){
+      return constants.get(index);
+   }
+
+   int getProgramStart(int slot){
+      return programStart.get(slot);
+   }
+
+   /**
+    * ****************************************************************************
+    * Checks if the program of the slot can fail at run time, i.e. if it divides
+    * or ends with the failure of its compilation
+    * ****************************************************************************
+    */
+   boolean canFail(int slot){
+      for(int pc = programStart.get(slot); opcodes.get(pc) != Opcode.END; pc++){
+         byte opcode = opcodes.get(pc);
+         if(opcode == Opcode.DIVIDE || (opcode == Opcode.ERROR && operands.get(pc) != 0)){
+            return true;
+         }
+      }
+      return false;
+   }
+
+   int getMaxStackDepth() {
+      return maxStackDepth;
+   }
+
+   /**
+    * ****************************************************************************
+    * Index at which the next emitted instruction will be stored
+    * ****************************************************************************
+    */
+   int nextInstruction(){
+      return instructionCount;
+   }
+
+   int nextConstant(){
+      return constantCount;
+   }
+
+   /**
+    * ****************************************************************************
+    * Completes the program emitted from start by appending its END instruction,
+    * after sharing its sub-expressions with the programs compiled before
+    * @param start
+    *         Index of the first instruction of the program
+    * @param firstConstant
+    *         Size of the constant pool before the program was compiled
+    * @return the index of the first instruction of the program to be run for the
+    *         cell, the start of an identical program if there was one
+    * ****************************************************************************
+    */
+   int endProgram(int start, int firstConstant){
+      int programStart = instructionCount - start < SubexpressionTable.MIN_LENGTH ? start
+              : subexpressions.intern(this, start);
+      if(programStart != start){
+         instructionCount = start;
+         constantCount = firstConstant;
+      } else {
+         emit(Opcode.END, 0);
+      }
+      return programStart;
+   }
+
+   /**
+    * ****************************************************************************
+    * Drops the instructions from pc on, so that they can be emitted again
+    * ****************************************************************************
+    */
+   void truncate(int pc){
+      instructionCount = pc;
+   }
+
+   /**
+    * ****************************************************************************
+    * Drops the instructions and the constants of a program whose compilation failed
+    * ****************************************************************************
+    */
+   void discard(int start, int firstConstant){
+      instructionCount = start;
+      constantCount = firstConstant;
+   }
+
+   void setProgramStart(int slot, int pc){
+      programStart.set(slot, pc);
+      if(templateRunsRecorded){
+         recordTemplateRun(slot);
+      }
+   }
+
+   /*
+    * Extends the current template run with the slot whose program was just set,
+    * or closes it and starts a new one. The program of the previous slot is still
+    * in the caches, so that the comparison costs little next to the compilation
+    */
+   private void recordTemplateRun(int slot){
+      if(slot < templateRunEnd){
+         // Recompiled, the recorded runs may no longer share their template
+         templateRunsRecorded = false;
+         return;
+      }
+      if(slot > templateRunEnd || !TemplateRunEvaluator.sameTemplate(this, templateRunStart, slot)){
+         closeTemplateRun();
+         templateRunStart = slot;
+      }
+      templateRunEnd = slot + 1;
+   }
+
+   private void closeTemplateRun(){
+      if(TemplateRunEvaluator.isRun(this, templateRunStart, templateRunEnd)){
+         templateRuns.push(templateRunStart);
+         templateRuns.push(templateRunEnd);
+      }
+      templateRunStart = templateRunEnd;
+   }
+
+   /**
+    * ****************************************************************************
+    * Runs of consecutive slots whose programs share a template which the block
+    * kernel can evaluate, recorded as the programs were compiled
+    * @return the first and the end (exclusive) slot of every run, in slot order,
+    *         or null if some program was compiled out of slot order (an edit, a
+    *         sparse sheet whose slots were renumbered), the runs must then be
+    *         found again (see TemplateRunEvaluator.findRuns)
+    * ****************************************************************************
+    */
+   IntStack getTemplateRuns(){
+      if(!templateRunsRecorded){
+         return null;
+      }
+      closeTemplateRun();
+      return templateRuns;
+   }
+
+   /**
+    * ****************************************************************************
+    * Appends the programs of the cells firstCell .. firstCell + cellCount - 1 of a
+    * dense sheet, compiled apart into a chunk (see ParallelSpreadsheetReader)
+    * Logic : The chunk is a sparse sheet whose first cellCount slots are these
+    *         cells. Its instructions are copied after the instructions of this
+    *         sheet with their operands relocated: the constants, the shared nodes
+    *         and the ranges of the chunk are added to those of this sheet, and a
+    *         REF operand becomes the cell of the slot. The programs of the chunk
+    *         keep sharing their sub-expressions, they share none with the other
+    *         chunks
+    * ****************************************************************************
+    */
+   void appendChunk(CompiledSheet chunk, int firstCell, int cellCount){
+      int[] chunkRange = new int[chunk.rangeCount];
+      for(int range = 0; range < chunk.rangeCount; range++){
+         chunkRange[range] = addRange(chunk.rangeFirst[range], chunk.rangeLast[range]);
+      }
+      int nodeBase = nodeCount;
+      for(int node = 0; node < chunk.nodeCount; node++){
+         addNode(chunk.nodeLength[node]);
+      }
+      // The constant 0 of the chunk is only used by its empty program
+      int constantBase = constantCount - 1;
+      for(int index = 1; index < chunk.constantCount; index++){
+         addConstant(chunk.constants.get(index));
+      }
+      int instructionBase = instructionCount - RESERVED_INSTRUCTIONS;
+      for(int pc = RESERVED_INSTRUCTIONS; pc < chunk.instructionCount; pc++){
+         byte opcode = chunk.opcodes.get(pc);
+         int operand = chunk.operands.get(pc);
+         if(opcode == Opcode.CONST){
+            operand += constantBase;
+         } else if(opcode == Opcode.REF){
+            operand = chunk.slotCell[operand];
+         } else if(opcode == Opcode.SHARED){
+            operand += nodeBase;
+         } else if(opcode >= Opcode.SUM){
+            operand = chunkRange[operand];
+         }
+         emit(opcode, operand);
+      }
+      for(int slot = 0; slot < cellCount; slot++){
+         int pc = chunk.programStart.get(slot);
+         setProgramStart(firstCell + slot, pc < RESERVED_INSTRUCTIONS ? pc : instructionBase + pc);
+      }
+      updateMaxStackDepth(chunk.maxStackDepth);
+   }
+
+   void updateMaxStackDepth(int depth){
+      if(depth > maxStackDepth){
+         maxStackDepth = depth;
+      }
+   }
+
+   void emit(byte opcode, int operand){
+      if(instructionCount == opcodes.length()){
+         int capacity = grow(opcodes.length());
+         opcodes.resize(capacity);
+         operands.resize(capacity);
+      }
+      opcodes.set(instructionCount, opcode);
+      operands.set(instructionCount, operand);
+      instructionCount++;
+   }
+
+   int getRangeCount() {
+      return rangeCount;
+   }
+
+   /**
+    * ****************************************************************************
+    * Linear index of the top left cell of the range
+    * ****************************************************************************
+    */
+   int getRangeFirst(int range) {
+      return rangeFirst[range];
+   }
+
+   /**
+    * ****************************************************************************
+    * Linear index of the bottom right cell of the range
+    * ****************************************************************************
+    */
+   int getRangeLast(int range) {
+      return rangeLast[range];
+   }
+
+   /**
+    * ****************************************************************************
+    * Index of the range in the range table, added if it is not there yet
+    * @param first
+    *         Linear index of the top left cell
+    * @param last
+    *         Linear index of the bottom right cell
+    * ****************************************************************************
+    */
+   int addRange(int first, int last){
+      if(rangeByBounds == null){
+         rangeByBounds = new HashMap<Long, Integer>();
+      }
+      Long key = ((long)first << 32) | last;
+      Integer range = rangeByBounds.get(key);
+      if(range != null){
+         return range;
+      }
+      if(rangeCount == rangeFirst.length){
+         int capacity = Math.max(8, rangeCount << 1);
+         rangeFirst = Arrays.copyOf(rangeFirst, capacity);
+         rangeLast = Arrays.copyOf(rangeLast, capacity);
+      }
+      rangeFirst[rangeCount] = first;
+      rangeLast[rangeCount] = last;
+      rangeByBounds.put(key, rangeCount);
+      return rangeCount++;
+   }
+
+   int getNodeCount() {
+      return nodeCount;
+   }
+
+   /**
+    * ****************************************************************************
+    * Adds a shared node
+    * @param length
+    *         Number of instructions following each SHARED instruction of the node
+    * @return the index of the node
+    * ****************************************************************************
+    */
+   int addNode(int length){
+      if(nodeCount == nodeLength.length){
+         int capacity = Math.max(16, nodeCount << 1);
+         nodeLength = Arrays.copyOf(nodeLength, capacity);
+         nodeValue = Arrays.copyOf(nodeValue, capacity);
+         nodeEpoch = Arrays.copyOf(nodeEpoch, capacity);
+      }
+      nodeLength[nodeCount] = length;
+      return nodeCount++;
+   }
+
+   int getNodeLength(int node){
+      return nodeLength[node];
+   }
+
+   /**
+    * ****************************************************************************
+    * Checks if the result of the node was computed during the current pass
+    * ****************************************************************************
+    */
+   boolean isNodeEvaluated(int node){
+      return memoized && nodeEpoch[node] == epoch;
+   }
+
+   double getNodeValue(int node){
+      return nodeValue[node];
+   }
+
+   void setNodeValue(int node, double value){
+      if(memoized){
+         nodeValue[node] = value;
+         nodeEpoch[node] = epoch;
+      }
+   }
+
+   /**
+    * ****************************************************************************
+    * Starts an evaluation pass, discarding the results of the shared nodes computed
+    * before, which may depend on cells that changed since
+    * @param memoize
+    *         false when the cells are evaluated by several threads, in which case
+    *         every node is computed each time it is used
+    * ****************************************************************************
+    */
+   void newEpoch(boolean memoize){
+      if(++epoch == 0){
+         Arrays.fill(nodeEpoch, 0);
+         epoch = 1;
+      }
+      memoized = memoize;
+   }
+
+   int addConstant(double value){
+      if(constantCount == constants.length()){
+         constants.resize(grow(constants.length()));
+      }
+      constants.set(constantCount, value);
+      return constantCount++;
+   }
+
+   /*
+    * Capacity of a full array after it grows by half, at most MAX_CELL_COUNT
+    */
+   private static int grow(int length){
+      if(length >= Spreadsheet.MAX_CELL_COUNT){
+         throw new OutOfMemoryError("Required array size too large");
+      }
+      return (int)Math.max(16, Math.min((long)length + (length >> 1), Spreadsheet.MAX_CELL_COUNT));
+   }
+}
@@ -0,0 +1,212 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * ******************************************************************************
+ * File: CycleFinder.java
+ * Finds all the cycles of references of a compiled spreadsheet in a single pass
+ * Logic : Tarjan's strongly connected components algorithm, run iteratively with
+ *         an explicit stack of frames so that long chains of references do not
+ *         overflow the thread stack. The nodes of the graph are the cells (slots)
+ *         followed by the ranges: a cell has an edge to every cell it references
+ *         and to every range it aggregates, a range has an edge to every cell it
+ *         contains. The cells of a range are thus walked once per distinct range,
+ *         however many cells aggregate it, and the pass is linear in the size of
+ *         the graph
+ *         A cycle is a component of more than one node or a cell referencing
+ *         itself, it is reported as the cells of the component
+ *         The arrays of the search are kept between two searches and only the
+ *         nodes visited are reset, so that searching from a few cells (after an
+ *         edit) does not cost time proportional to the spreadsheet
+ * ******************************************************************************
+ */
+class CycleFinder {
+
+   // Low link of a node whose component has been found
+   private static final int DONE = Integer.MAX_VALUE;
+
+   private final CompiledSheet program;
+
+   // Visit number of every node (0 if not visited yet) and its low link
+   private int[] number = new int[0];
+   private int[] lowLink = new int[0];
+   private final IntStack visited = new IntStack(64);
+
+   // Nodes whose component is not complete yet
+   private final IntStack component = new IntStack(64);
+   // Cells of the component being collected
+   private final IntStack cells = new IntStack(64);
+
+   // Frames of the DFS: node and position of its next edge (an instruction of
+   // the program of a cell, the linear index of the next cell of a range)
+   private int[] frameNode = new int[64];
+   private int[] frameCursor = new int[64];
+   private int depth;
+
+   // Nodes considered by the current search, the others are not followed
+   private ByteArray visitStatus;
+   private int slotCount;
+   private int counter;
+
+   CycleFinder(CompiledSheet program){
+      this.program = program;
+   }
+
+   /**
+    * ****************************************************************************
+    * Finds the cycles reachable from the given cells
+    * @param roots
+    *         Slots of the cells from which the search starts, null for all the cells
+    * @param visitStatus
+    *         Visit states of the cells, only the WHITE cells are part of the graph
+    *         (the others are already evaluated), null to include every cell
+    * @return the cycles found, each as the slots of its cells in row major order,
+    *         ordered by their first cell
+    * ****************************************************************************
+    */
+   List<int[]> find(int[] roots, ByteArray visitStatus){
+      this.visitStatus = visitStatus;
+      this.slotCount = program.getCellCount();
+      int nodeCount = slotCount + program.getRangeCount();
+      if(number.length < nodeCount){
+         number = new int[nodeCount];
+         lowLink = new int[nodeCount];
+      }
+      counter = 0;
+      List<int[]> cycles = new ArrayList<int[]>();
+      int rootCount = roots == null ? slotCount : roots.length;
+      for(int i = 0; i < rootCount; i++){
+         int root = roots == null ? i : roots[i];
+         if(isNode(root) && number[root] == 0){
+            search(root, cycles);
+         }
+      }
+      while(!visited.isEmpty()){
+         int node = visited.pop();
+         number[node] = 0;
+         lowLink[node] = 0;
+      }
+      cycles.sort(Comparator.comparingInt(cycle -> cycle[0]));
+      return cycles;
+   }
+
+   private void search(int root, List<int[]> cycles){
+      enter(root);
+      while(depth > 0){
+         int node = frameNode[depth - 1];
+         int successor = nextSuccessor(depth - 1);
+         if(successor >= 0){
+            if(number[successor] == 0){
+               enter(successor);
+            } else if(lowLink[successor] != DONE){
+               // On the component stack
+               lowLink[node] = Math.min(lowLink[node], number[successor]);
+            }
+            continue;
+         }
+         depth--;
+         if(lowLink[node] == number[node]){
+            collectComponent(node, cycles);
+         }
+         if(depth > 0){
+            int parent = frameNode[depth - 1];
+            lowLink[parent] = Math.min(lowLink[parent], lowLink[node]);
+         }
+      }
+   }
+
+   private void enter(int node){
+      if(depth == frameNode.length){
+         frameNode = Arrays.copyOf(frameNode, depth << 1);
+         frameCursor = Arrays.copyOf(frameCursor, depth << 1);
+      }
+      frameNode[depth] = node;
+      frameCursor[depth] = node < slotCount ? program.getProgramStart(node)
+              : program.getRangeFirst(node - slotCount);
+      depth++;
+      number[node] = ++counter;
+      lowLink[node] = counter;
+      visited.push(node);
+      component.push(node);
+   }
+
+   /*
+    * Next successor of the node of the frame, -1 once all its edges are followed
+    */
+   private int nextSuccessor(int frame){
+      int node = frameNode[frame];
+      int cursor = frameCursor[frame];
+      if(node < slotCount){
+         for(int pc = cursor; program.opcode(pc) != Opcode.END; pc++){
+            if(program.opcode(pc) == Opcode.REF && isNode(program.operand(pc))){
+               frameCursor[frame] = pc + 1;
+               return program.operand(pc);
+            } else if(program.opcode(pc) >= Opcode.SUM){
+               frameCursor[frame] = pc + 1;
+               return slotCount + program.operand(pc);
+            }
+         }
+         frameCursor[frame] = cursor;
+         return -1;
+      }
+      int range = node - slotCount;
+      int columnCount = program.getColumnCount();
+      int first = program.getRangeFirst(range);
+      int last = program.getRangeLast(range);
+      int firstColumn = first % columnCount;
+      int lastColumn = last % columnCount;
+      for(int cell = cursor; cell <= last; ){
+         int slot = program.getSlot(cell);
+         cell = cell % columnCount == lastColumn ? cell + columnCount - (lastColumn - firstColumn) : cell + 1;
+         if(slot >= 0 && isNode(slot)){
+            frameCursor[frame] = cell;
+            return slot;
+         }
+      }
+      frameCursor[frame] = last + 1;
+      return -1;
+   }
+
+   /*
+    * Pops the component whose root is the node, recording it if it is a cycle
+    * A root alone on the top of the stack, like every cell of an acyclic sheet,
+    * is a cycle only when it references itself
+    */
+   private void collectComponent(int root, List<int[]> cycles){
+      if(component.peek() == root){
+         component.pop();
+         lowLink[root] = DONE;
+         if(root < slotCount && referencesItself(root)){
+            cycles.add(new int[]{root});
+         }
+         return;
+      }
+      cells.clear();
+      int node;
+      do{
+         node = component.pop();
+         lowLink[node] = DONE;
+         if(node < slotCount){
+            cells.push(node);
+         }
+      } while(node != root);
+      int[] cycle = cells.toArray();
+      Arrays.sort(cycle);
+      cycles.add(cycle);
+   }
+
+   private boolean referencesItself(int slot){
+      for(int pc = program.getProgramStart(slot); program.opcode(pc) != Opcode.END; pc++){
+         if(program.opcode(pc) == Opcode.REF && program.operand(pc) == slot){
+            return true;
+         }
+      }
+      return false;
+   }
+
+   private boolean isNode(int slot){
+      return visitStatus == null || visitStatus.get(slot) == Color.WHITE;
+   }
+}
@@ -0,0 +1,155 @@
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * ******************************************************************************
+ * File: DependencyGraph.java
+ * Reverse dependency index of a compiled spreadsheet in compressed sparse row
+ * form: the dependents of the cell c are dependents[dependentStart[c]] ..
+ * dependents[dependentStart[c + 1] - 1]. A cell referencing the same cell twice
+ * is listed twice, consistently with its reference count
+ * Dependents added after the index is built (when a cell is edited) are kept in
+ * a small overflow map next to the CSR arrays. Edges which an edit removes are
+ * not deleted: they only make an incremental recalculation visit a few more cells
+ * The cells are the slots of the CompiledSheet (linear indices in a dense sheet)
+ * The cells of the ranges are not indexed here, RangeIndex finds the users of
+ * the ranges which contain a cell
+ * ******************************************************************************
+ */
+class DependencyGraph {
+
+   // Number of REF instructions in the program of every cell
+   private final int[] referenceCount;
+
+   private final int[] dependentStart;
+   private final int[] dependents;
+
+   // Dependents registered by addDependents after the index was built
+   private final Map<Integer, IntStack> addedDependents = new HashMap<Integer, IntStack>();
+
+   private DependencyGraph(int[] referenceCount, int[] dependentStart, int[] dependents){
+      this.referenceCount = referenceCount;
+      this.dependentStart = dependentStart;
+      this.dependents = dependents;
+   }
+
+   /**
+    * ****************************************************************************
+    * Builds the reverse dependency index from the REF instructions of the programs
+    * @param program
+    *         The compiled programs of the spreadsheet
+    * @return the dependency graph of the spreadsheet
+    * ****************************************************************************
+    */
+   static DependencyGraph build(CompiledSheet program){
+      int cellCount = program.getCellCount();
+      int[] referenceCount = new int[cellCount];
+      int[] dependentStart = new int[cellCount + 1];
+      for(int cell = 0; cell < cellCount; cell++){
+         for(int pc = program.getProgramStart(cell); program.opcode(pc) != Opcode.END; pc++){
+            if(program.opcode(pc) == Opcode.REF){
+               referenceCount[cell]++;
+               dependentStart[program.operand(pc) + 1]++;
+            } else if(program.opcode(pc) >= Opcode.SUM){
+               // Never satisfied: the cells using ranges are left to the DFS (see RangeIndex)
+               referenceCount[cell]++;
+            }
+         }
+      }
+      for(int cell = 0; cell < cellCount; cell++){
+         dependentStart[cell + 1] += dependentStart[cell];
+      }
+      int[] dependents = new int[dependentStart[cellCount]];
+      int[] position = new int[cellCount];
+      System.arraycopy(dependentStart, 0, position, 0, cellCount);
+      for(int cell = 0; cell < cellCount; cell++){
+         for(int pc = program.getProgramStart(cell); program.opcode(pc) != Opcode.END; pc++){
+            if(program.opcode(pc) == Opcode.REF){
+               dependents[position[program.operand(pc)]++] = cell;
+            }
+         }
+      }
+      return new DependencyGraph(referenceCount, dependentStart, dependents);
+   }
+
+   /**
+    * ****************************************************************************
+    * Index restored from its CSR arrays (see SpreadsheetSnapshot)
+    * ****************************************************************************
+    */
+   static DependencyGraph restore(int[] referenceCount, int[] dependentStart, int[] dependents){
+      return new DependencyGraph(referenceCount, dependentStart, dependents);
+   }
+
+   int getCellCount(){
+      return referenceCount.length;
+   }
+
+   int getEdgeCount(){
+      return dependents.length;
+   }
+
+   int getReferenceCount(int cell){
+      return referenceCount[cell];
+   }
+
+   // A slot added to a sparse sheet after the index was built has no indexed dependents
+   int getDependentStart(int cell){
+      return cell < referenceCount.length ? dependentStart[cell] : 0;
+   }
+
+   int getDependentEnd(int cell){
+      return cell < referenceCount.length ? dependentStart[cell + 1] : 0;
+   }
+
+   int getDependent(int index){
+      return dependents[index];
+   }
+
+   /**
+    * ****************************************************************************
+    * Dependents of the cell registered after the index was built
+    * @param cell
+    *         Linear index of the cell
+    * @return the added dependents or null if there are none
+    * ****************************************************************************
+    */
+   IntStack getAddedDependents(int cell){
+      return addedDependents.isEmpty() ? null : addedDependents.get(cell);
+   }
+
+   /**
+    * ****************************************************************************
+    * Checks if dependents were registered after the index was built, which the
+    * CSR arrays do not hold
+    * ****************************************************************************
+    */
+   boolean hasAddedDependents(){
+      return !addedDependents.isEmpty();
+   }
+
+   /**
+    * ****************************************************************************
+    * Registers the cell as a dependent of every cell referenced by its current
+    * program. Called after the cell is recompiled
+    * Note : The reference counts are not updated, they are only used by a full
+    *        evaluation which rebuilds the index
+    * @param program
+    *         The compiled programs of the spreadsheet
+    * @param cell
+    *         Linear index of the recompiled cell
+    * ****************************************************************************
+    */
+   void addDependents(CompiledSheet program, int cell){
+      for(int pc = program.getProgramStart(cell); program.opcode(pc) != Opcode.END; pc++){
+         if(program.opcode(pc) == Opcode.REF){
+            IntStack added = addedDependents.get(program.operand(pc));
+            if(added == null){
+               added = new IntStack(4);
+               addedDependents.put(program.operand(pc), added);
+            }
+            added.push(cell);
+         }
+      }
+   }
+}
@@ -23,12 +23,12 @@ public class DfsTestCases {
       String input[][] = readFromfile("input.txt");
       spreadsheet = new Spreadsheet(input);
       spreadsheet.evaluateSpreadSheet();
-      assertEquals("20.00000",input[0][0]);
-      assertEquals("20.00000",input[0][1]);
-      assertEquals("20.00000",input[0][2]);
-      assertEquals("8.66667",input[1][0]);
-      assertEquals("3.00000",input[1][1]);
-      assertEquals("1.50000",input[1][2]);
+      assertEquals("20.00000",spreadsheet.getFormattedValue(0,0));
+      assertEquals("20.00000",spreadsheet.getFormattedValue(0,1));
+      assertEquals("20.00000",spreadsheet.getFormattedValue(0,2));
+      assertEquals("8.66667",spreadsheet.getFormattedValue(1,0));
+      assertEquals("3.00000",spreadsheet.getFormattedValue(1,1));
+      assertEquals("1.50000",spreadsheet.getFormattedValue(1,2));
    }
 
    //One of the lines(B2) in the input is empty which
@@ -38,12 +38,12 @@ public class DfsTestCases {
       String input[][] = readFromfile("inputEmptyLine.txt");
       spreadsheet = new Spreadsheet(input);
       spreadsheet.evaluateSpreadSheet();
-      assertEquals("20.00000",input[0][0]);
-      assertEquals("20.00000",input[0][1]);
-      assertEquals("0.00000",input[0][2]);
-      assertEquals("3.00000",input[1][0]);
-      assertEquals("0.00000",input[1][1]);
-      assertEquals("3.00000",input[1][2]);
+      assertEquals("20.00000",spreadsheet.getFormattedValue(0,0));
+      assertEquals("20.00000",spreadsheet.getFormattedValue(0,1));
+      assertEquals("0.00000",spreadsheet.getFormattedValue(0,2));
+      assertEquals("3.00000",spreadsheet.getFormattedValue(1,0));
+      assertEquals("0.00000",spreadsheet.getFormattedValue(1,1));
+      assertEquals("3.00000",spreadsheet.getFormattedValue(1,2));
    }
 
    @Test
@@ -51,12 +51,12 @@ public class DfsTestCases {
       String input[][] = readFromfile("lastCellValue.txt");
       spreadsheet = new Spreadsheet(input);
       spreadsheet.evaluateSpreadSheet();
-      assertEquals("39.00000",input[0][0]);
-      assertEquals("39.00000",input[0][1]);
-      assertEquals("39.00000",input[0][2]);
-      assertEquals("39.00000",input[1][0]);
-      assertEquals("39.00000",input[1][1]);
-      assertEquals("39.00000",input[1][2]);
+      assertEquals("39.00000",spreadsheet.getFormattedValue(0,0));
+      assertEquals("39.00000",spreadsheet.getFormattedValue(0,1));
+      assertEquals("39.00000",spreadsheet.getFormattedValue(0,2));
+      assertEquals("39.00000",spreadsheet.getFormattedValue(1,0));
+      assertEquals("39.00000",spreadsheet.getFormattedValue(1,1));
+      assertEquals("39.00000",spreadsheet.getFormattedValue(1,2));
    }
 
    @Test
@@ -64,15 +64,15 @@ public class DfsTestCases {
       String input[][] = readFromfile("centerCellValue.txt");
       spreadsheet = new Spreadsheet(input);
       spreadsheet.evaluateSpreadSheet();
-      assertEquals("39.00000",input[0][0]);
-      assertEquals("-450.00000",input[0][1]);
-      assertEquals("45.00000",input[0][2]);
-      assertEquals("40.00000",input[1][0]);
-      assertEquals("39.00000",input[1][1]);
-      assertEquals("38.00000",input[1][2]);
-      assertEquals("35.00000",input[2][0]);
-      assertEquals("3.50000",input[2][1]);
-      assertEquals("39.00000",input[2][2]);
+      assertEquals("39.00000",spreadsheet.getFormattedValue(0,0));
+      assertEquals("-450.00000",spreadsheet.getFormattedValue(0,1));
+      assertEquals("45.00000",spreadsheet.getFormattedValue(0,2));
+      assertEquals("40.00000",spreadsheet.getFormattedValue(1,0));
+      assertEquals("39.00000",spreadsheet.getFormattedValue(1,1));
+      assertEquals("38.00000",spreadsheet.getFormattedValue(1,2));
+      assertEquals("35.00000",spreadsheet.getFormattedValue(2,0));
+      assertEquals("3.50000",spreadsheet.getFormattedValue(2,1));
+      assertEquals("39.00000",spreadsheet.getFormattedValue(2,2));
    }
 
    //A3->A2->B2
@@ -86,12 +86,12 @@ public class DfsTestCases {
       String input[][] = readFromfile("nonCycleTest.txt");
       spreadsheet = new Spreadsheet(input);
       spreadsheet.evaluateSpreadSheet();
-      assertEquals("6.00000",input[0][0]);
-      assertEquals("9.00000",input[0][1]);
-      assertEquals("12.00000",input[0][2]);
-      assertEquals("3.00000",input[1][0]);
-      assertEquals("1.00000",input[1][1]);
-      assertEquals("15.00000",input[1][2]);
+      assertEquals("6.00000",spreadsheet.getFormattedValue(0,0));
+      assertEquals("9.00000",spreadsheet.getFormattedValue(0,1));
+      assertEquals("12.00000",spreadsheet.getFormattedValue(0,2));
+      assertEquals("3.00000",spreadsheet.getFormattedValue(1,0));
+      assertEquals("1.00000",spreadsheet.getFormattedValue(1,1));
+      assertEquals("15.00000",spreadsheet.getFormattedValue(1,2));
    }
 
    //A3->A2->B2
@@ -113,6 +113,84 @@ public class DfsTestCases {
       }
    }
 
+   //An invalid expression is reported when the DFS reaches its cell, so that
+   //a cycle or a division by zero met first is reported instead
+   @Test
+   public void errorPrecedence() {
+      String input[][] = {{"A2","A1"},{"foo",""}};
+      try{
+         new Spreadsheet(input).evaluateSpreadSheet();
+         fail("Expected cycle at cell A1");
+      } catch (CycleDetectedException e){
+         assertEquals("Cycle detected at cell A1", e.getMessage());
+      }
+      input = new String[][]{{"1 0 /",""},{"foo",""}};
+      try{
+         new Spreadsheet(input).evaluateSpreadSheet();
+         fail("Expected divide by zero at cell A1");
+      } catch (RPNDivideByZeroException e){
+         assertEquals("The RPN equation 1 0 / at cell A1 attempted to divide by zero", e.getMessage());
+      }
+      //The cells referenced before the invalid token are visited first
+      input = new String[][]{{"B1",""},{"A1 foo +",""}};
+      try{
+         new Spreadsheet(input).evaluateSpreadSheet();
+         fail("Expected cycle at cell A1");
+      } catch (CycleDetectedException e){
+         assertEquals("Cycle detected at cell A1", e.getMessage());
+      }
+      input = new String[][]{{"B1",""},{"2 foo A1 +",""}};
+      try{
+         new Spreadsheet(input).evaluateSpreadSheet();
+         fail("Expected invalid expression at cell B1");
+      } catch (InvalidRPNException e){
+         assertEquals("The expression 2 foo A1 + at cell B1 is not valid", e.getMessage());
+      }
+   }
+
+   //Unicode whitespace is trimmed and separates the tokens like a space
+   @Test
+   public void unicodeWhitespace() {
+      String input[][] = {{"1 2 +\u2003","\u2003A1\u20032\u2003*"}};
+      spreadsheet = new Spreadsheet(input);
+      spreadsheet.evaluateSpreadSheet();
+      assertEquals("3.00000",spreadsheet.getFormattedValue(0,0));
+      assertEquals("6.00000",spreadsheet.getFormattedValue(0,1));
+      try{
+         new Spreadsheet(new String[][]{{"\u2003 \u3000"}}).evaluateSpreadSheet();
+         fail("Expected empty expression at cell A1");
+      } catch (EmptyRPNException e){
+         assertEquals("Illegal Argument \u2003 \u3000 at cell A1", e.getMessage());
+      }
+      spreadsheet = new Spreadsheet(new String[][]{{"1 2 +\u2003","1 0 +\u2003\u2003"}});
+      spreadsheet.setErrorValues(true);
+      spreadsheet.evaluateSpreadSheet();
+      assertEquals("1.00000",spreadsheet.getFormattedValue(0,1));
+   }
+
+   @Test
+   public void numberForms() {
+      String input[][] = {{"1.5e1 .5 +","0x1p3 2d +","+3. -.5 *"}};
+      spreadsheet = new Spreadsheet(input);
+      spreadsheet.evaluateSpreadSheet();
+      assertEquals("15.50000",spreadsheet.getFormattedValue(0,0));
+      assertEquals("10.00000",spreadsheet.getFormattedValue(0,1));
+      assertEquals("-1.50000",spreadsheet.getFormattedValue(0,2));
+      try{
+         new Spreadsheet(new String[][]{{"1 1e +"}}).evaluateSpreadSheet();
+         fail("Expected invalid expression at cell A1");
+      } catch (InvalidRPNException e){
+         assertEquals("The expression 1 1e + at cell A1 is not valid", e.getMessage());
+      }
+      try{
+         new Spreadsheet(new String[][]{{"1 --"},{"++"}}).evaluateSpreadSheet();
+         fail("Expected underflow at cell B1");
+      } catch (RPNUnderflowException e){
+         assertEquals("Operator ++ occured before there were enough numerical values for it to evaluate in " +
+                 "the expression ++ at cell B1", e.getMessage());
+      }
+   }
+
    @Test
    public void invalidReference() {
       String input[][] = readFromfile("invalidReference.txt");
@@ -194,9 +272,60 @@ public class DfsTestCases {
       System.out.println("Time(in ms) to read from file and evaluate spreadsheet  = " + (endTime-startTime)/(1000*1000));
 
       for(int j = 0; j < 100 ; j++){
-         assertEquals("33.00000",input[0][j]);
+         assertEquals("33.00000",spreadsheet.getFormattedValue(0,j));
+      }
+
+   }
+
+   //Rows after Z are named AA, AB .. like the columns of common spreadsheets
+   @Test
+   public void multiLetterRowNames() {
+      String input[][] = new String[30][2];
+      for(int i = 0; i < input.length; i++){
+         input[i][0] = String.valueOf(i);
+         input[i][1] = "";
       }
+      input[0][1] = "AD1 AA1 -";
+      input[26][1] = "Z1 AB1 * A2 +";
+      spreadsheet = new Spreadsheet(input);
+      spreadsheet.evaluateSpreadSheet();
+      assertEquals("3.00000",spreadsheet.getFormattedValue(0,1));
+      assertEquals("678.00000",spreadsheet.getFormattedValue(26,1));
+      assertEquals("AD2",ExpressionCompiler.getCellName(29,1));
+      assertEquals("ZZ1",ExpressionCompiler.getCellName(701,0));
+      assertEquals("AAA1",ExpressionCompiler.getCellName(702,0));
+      assertEquals(702 * 2 + 1,ExpressionCompiler.getCellIndex("AAA2",703,2));
+      assertEquals(-1,ExpressionCompiler.getCellIndex("AE1",30,2));
+   }
 
+   //The column number is read like Integer.parseInt, a + sign is accepted
+   @Test
+   public void signedColumnNumber() {
+      String input[][] = {{"2","A+1 1 +","A+2 B+01 *"},{"3","","A1 B1 +"}};
+      spreadsheet = new Spreadsheet(input);
+      spreadsheet.evaluateSpreadSheet();
+      assertEquals("3.00000",spreadsheet.getFormattedValue(0,1));
+      assertEquals("9.00000",spreadsheet.getFormattedValue(0,2));
+      assertEquals(1,ExpressionCompiler.getCellIndex("A+2",2,3));
+      assertEquals(-1,ExpressionCompiler.getCellIndex("A+",2,3));
+      assertEquals(-1,ExpressionCompiler.getCellIndex("A-1",2,3));
+      assertEquals(-1,ExpressionCompiler.getCellIndex("A++1",2,3));
+   }
+
+   @Test
+   public void multiLetterRowCycle() {
+      String input[][] = new String[28][1];
+      for(int i = 0; i < input.length; i++){
+         input[i][0] = "1";
+      }
+      input[26][0] = "AB1 1 +";
+      input[27][0] = "AA1 1 +";
+      try{
+         new Spreadsheet(input).evaluateSpreadSheet();
+         fail("Expected cycle at cell AA1");
+      } catch (CycleDetectedException e){
+         assertEquals("Cycle detected at cell AA1", e.getMessage());
+      }
    }
 
    private String[][] readFromfile(String fileName){
@@ -0,0 +1,96 @@
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * ******************************************************************************
+ * File: DoubleArray.java
+ * Array of doubles indexed by int, held on the heap or off the heap (see CellStorage)
+ * ******************************************************************************
+ */
+abstract class DoubleArray {
+
+   abstract double get(int index);
+
+   abstract void set(int index, double value);
+
+   abstract int length();
+
+   /**
+    * ****************************************************************************
+    * Changes the length of the array, the elements below both lengths are kept
+    * and the new elements are 0.0
+    * ****************************************************************************
+    */
+   abstract void resize(int length);
+
+   static final class Heap extends DoubleArray {
+      private double[] elements;
+
+      Heap(int length){
+         this.elements = new double[length];
+      }
+
+      @Override
+      double get(int index){
+         return elements[index];
+      }
+
+      @Override
+      void set(int index, double value){
+         elements[index] = value;
+      }
+
+      @Override
+      int length(){
+         return elements.length;
+      }
+
+      @Override
+      void resize(int length){
+         elements = Arrays.copyOf(elements, length);
+      }
+   }
+
+   static final class OffHeap extends DoubleArray {
+      // Elements per page and index of an element in its page
+      private static final int SHIFT = CellStorage.PAGE_SHIFT - 3;
+      private static final int MASK = (1 << SHIFT) - 1;
+
+      private final CellStorage storage;
+      private ByteBuffer[] pages = new ByteBuffer[0];
+      private int length;
+
+      OffHeap(CellStorage storage, int length){
+         this.storage = storage;
+         resize(length);
+      }
+
+      // Array over the given pages, see CellStorage.mapDoubleArray
+      OffHeap(CellStorage storage, ByteBuffer[] pages, int length){
+         this.storage = storage;
+         this.pages = pages;
+         this.length = length;
+      }
+
+      @Override
+      double get(int index){
+         return pages[index >>> SHIFT].getDouble((index & MASK) << 3);
+      }
+
+      @Override
+      void set(int index, double value){
+         pages[index >>> SHIFT].putDouble((index & MASK) << 3, value);
+      }
+
+      @Override
+      int length(){
+         return length;
+      }
+
+      @Override
+      void resize(int length){
+         pages = storage.resize(pages, (long)length << 3);
+         this.length = length;
+      }
+   }
+}
@@ -0,0 +1,168 @@
+/**
+ * *******************************************************************
+ * File: ErrorValueTestCases.java
+ * *********************************************************************
+ */
+
+import org.junit.AfterClass;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class ErrorValueTestCases {
+
+   private static final ForkJoinPool pool = new ForkJoinPool(4);
+
+   @AfterClass
+   public static void shutdownPool() {
+      pool.shutdown();
+   }
+
+   private static Spreadsheet withErrorValues(String input[][]) {
+      Spreadsheet spreadsheet = new Spreadsheet(input);
+      spreadsheet.setErrorValues(true);
+      return spreadsheet;
+   }
+
+   // Every cycle is reported by a single search, with all its cells
+   @Test
+   public void allCyclesFound() {
+      String input[][] = {{"A2", "A3 1 +", "A1", "5"}, {"B2 2 *", "B1", "B3 B3 +", "A4 1 +"}};
+      List<String[]> cycles = new Spreadsheet(input).findCycles();
+      assertEquals(3, cycles.size());
+      assertArrayEquals(new String[]{"A1", "A2", "A3"}, cycles.get(0));
+      assertArrayEquals(new String[]{"B1", "B2"}, cycles.get(1));
+      assertArrayEquals(new String[]{"B3"}, cycles.get(2));
+   }
+
+   // A cell aggregating a range which contains it is part of a cycle
+   @Test
+   public void cycleThroughRange() {
+      String input[][] = {{"A1:B2 SUM", "1"}, {"2", "A1 1 +"}};
+      List<String[]> cycles = new Spreadsheet(input).findCycles();
+      assertEquals(1, cycles.size());
+      assertArrayEquals(new String[]{"A1", "B2"}, cycles.get(0));
+   }
+
+   @Test
+   public void noCycle() {
+      String input[][] = {{"A2 A3 +", "A3", "A4 2 *", "3"}};
+      assertEquals(0, new Spreadsheet(input).findCycles().size());
+   }
+
+   // The cycles and their dependents get #CYCLE, the rest of the sheet is evaluated
+   @Test
+   public void cyclesPropagate() {
+      String input[][] = {{"A2", "A1", "A1 1 +", "4"}, {"A4 2 *", "B1 A3 +", "B1 B2 +", "B3 A3 -"}};
+      Spreadsheet spreadsheet = withErrorValues(input);
+      spreadsheet.evaluateSpreadSheet();
+      assertEquals("#CYCLE",spreadsheet.getFormattedValue(0,0));
+      assertEquals("#CYCLE",spreadsheet.getFormattedValue(0,1));
+      assertEquals("#CYCLE",spreadsheet.getFormattedValue(0,2));
+      assertEquals("4.00000",spreadsheet.getFormattedValue(0,3));
+      assertEquals("8.00000",spreadsheet.getFormattedValue(1,0));
+      assertEquals("#CYCLE",spreadsheet.getFormattedValue(1,1));
+      assertEquals("#CYCLE",spreadsheet.getFormattedValue(1,2));
+      assertEquals("#CYCLE",spreadsheet.getFormattedValue(1,3));
+   }
+
+   // A division by zero and an invalid expression give #ERR to the cell and its dependents
+   @Test
+   public void errorsPropagate() {
+      String input[][] = {{"1 0 /", "A1 1 +", "foo", "A3 A2 *"}, {"3", "B1 ++", "A1:B2 MAX", "B2 B1 /"}};
+      Spreadsheet spreadsheet = withErrorValues(input);
+      spreadsheet.evaluateSpreadSheet();
+      assertEquals("#ERR",spreadsheet.getFormattedValue(0,0));
+      assertEquals("#ERR",spreadsheet.getFormattedValue(0,1));
+      assertEquals("#ERR",spreadsheet.getFormattedValue(0,2));
+      assertEquals("#ERR",spreadsheet.getFormattedValue(0,3));
+      assertEquals("3.00000",spreadsheet.getFormattedValue(1,0));
+      assertEquals("4.00000",spreadsheet.getFormattedValue(1,1));
+      assertEquals("#ERR",spreadsheet.getFormattedValue(1,2));
+      assertEquals("1.33333",spreadsheet.getFormattedValue(1,3));
+   }
+
+   // A cell depending on both a cycle and an error takes #CYCLE
+   // The error of a reference is kept while the following references are visited
+   @Test
+   public void errorKeptAcrossReferences() {
+      String input[][] = {{"A2 A3 + A5 +", "1 0 /", "A4 1 +", "2", "A3"}};
+      Spreadsheet spreadsheet = withErrorValues(input);
+      spreadsheet.evaluateSpreadSheet();
+      assertEquals("#ERR",spreadsheet.getFormattedValue(0,0));
+      assertEquals("3.00000",spreadsheet.getFormattedValue(0,2));
+      assertEquals("3.00000",spreadsheet.getFormattedValue(0,4));
+   }
+
+   @Test
+   public void cycleOverridesError() {
+      String input[][] = {{"A1", "1 0 /", "A1 A2 +", "A2 A1 +"}};
+      Spreadsheet spreadsheet = withErrorValues(input);
+      spreadsheet.evaluateSpreadSheet();
+      assertEquals("#CYCLE",spreadsheet.getFormattedValue(0,0));
+      assertEquals("#ERR",spreadsheet.getFormattedValue(0,1));
+      assertEquals("#CYCLE",spreadsheet.getFormattedValue(0,2));
+      assertEquals("#CYCLE",spreadsheet.getFormattedValue(0,3));
+   }
+
+   @Test
+   public void parallelMatchesSequential() {
+      String input[][] = {{"A2", "A3", "A1", "B4 0 /"}, {"A4 1 +", "7", "B2 B1 +", "B2 3 *"}};
+      Spreadsheet sequential = withErrorValues(input);
+      sequential.evaluateSpreadSheet();
+      Spreadsheet parallel = withErrorValues(input);
+      parallel.evaluateSpreadSheetInParallel(pool);
+      for(int i = 0; i < input.length; i++){
+         for(int j = 0; j < input[i].length; j++){
+            assertEquals(sequential.getFormattedValue(i,j),parallel.getFormattedValue(i,j));
+         }
+      }
+      assertEquals("#ERR",parallel.getFormattedValue(1,0));
+      assertEquals("21.00000",parallel.getFormattedValue(1,3));
+   }
+
+   @Test
+   public void recalculationCreatesAndBreaksCycles() {
+      String input[][] = {{"A2 1 +", "A3 2 *", "4"}, {"A1", "B3 0 /", "B1 2 +"}};
+      Spreadsheet spreadsheet = withErrorValues(input);
+      spreadsheet.evaluateSpreadSheet();
+      assertEquals("9.00000",spreadsheet.getFormattedValue(0,0));
+      assertEquals("#ERR",spreadsheet.getFormattedValue(1,1));
+      spreadsheet.setCell("A3", "B1");
+      spreadsheet.recalculate();
+      assertEquals("#CYCLE",spreadsheet.getFormattedValue(0,0));
+      assertEquals("#CYCLE",spreadsheet.getFormattedValue(0,2));
+      assertEquals("#CYCLE",spreadsheet.getFormattedValue(1,0));
+      assertEquals("#CYCLE",spreadsheet.getFormattedValue(1,1));
+      assertEquals(1, spreadsheet.findCycles().size());
+      spreadsheet.setCell("A3", "5");
+      spreadsheet.setCell("B3", "2");
+      spreadsheet.recalculate();
+      assertEquals("11.00000",spreadsheet.getFormattedValue(0,0));
+      assertEquals("11.00000",spreadsheet.getFormattedValue(1,0));
+      assertEquals("#ERR",spreadsheet.getFormattedValue(1,1));
+      assertEquals("2.00000",spreadsheet.getFormattedValue(1,2));
+      assertEquals(0, spreadsheet.findCycles().size());
+   }
+
+   @Test
+   public void loadedWithErrorValues() throws IOException {
+      SpreadsheetReader reader = new SpreadsheetReader(Channels.newChannel(
+              new ByteArrayInputStream("2 2\nA2\nA1\n1 +\nB1 3 +\n".getBytes(StandardCharsets.UTF_8))));
+      reader.readLine();
+      Spreadsheet spreadsheet = reader.readSpreadsheet(2, 2, true, true);
+      spreadsheet.evaluateSpreadSheet();
+      assertEquals("#CYCLE",spreadsheet.getFormattedValue(0,0));
+      assertEquals("#CYCLE",spreadsheet.getFormattedValue(0,1));
+      assertEquals("#ERR",spreadsheet.getFormattedValue(1,0));
+      assertEquals("#ERR",spreadsheet.getFormattedValue(1,1));
+   }
+}
@@ -0,0 +1,273 @@
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+import java.lang.management.ManagementFactory;
+
+/**
+ * ******************************************************************************
+ * File: EvaluationMetrics.java
+ * Counters and timings of the evaluation of a spreadsheet, collected only when a
+ * metrics object is attached to it (Spreadsheet.setMetrics, --metrics on the
+ * command line). Without one the evaluators test a single null reference per
+ * evaluated cell
+ * Every phase (parse, graph, evaluate, output) is timed and emitted as a JDK
+ * Flight Recorder event (spreadsheet.Phase) with the bytes allocated by the
+ * thread running it, and every evaluation pass as a spreadsheet.Evaluation event
+ * with its counters; the events cost nothing unless a recording is running.
+ * summary gives the totals as a single line of JSON, along with the strategy and
+ * the graph statistics of an adaptive evaluation (see StrategySelector)
+ * Logic : The counters are updated when a cell is evaluated, from its program: the
+ *         edges followed are its references (REF instructions and ranges) and the
+ *         operators are its instructions, so the interpreter loop is not touched.
+ *         The DFS depth is the size of the DFS stack when the cell is evaluated
+ *         The parallel evaluator counts in a metrics object per task, added to
+ *         the metrics of the spreadsheet when the task completes
+ * ******************************************************************************
+ */
+final class EvaluationMetrics {
+
+   // Phases
+   static final int PARSE = 0;     // Reading and compiling the expressions
+   static final int GRAPH = 1;     // Dependency graph, cycle search, cells affected by edits
+   static final int EVALUATE = 2;  // Running the programs
+   static final int OUTPUT = 3;    // Formatting and writing the values
+
+   private static final String[] PHASE_NAMES = {"parse", "graph", "evaluate", "output"};
+
+   // false when the runtime does not count the bytes allocated by a thread
+   private static final boolean ALLOCATION_COUNTED = allocationCounted();
+
+   private final long[] phaseNanos = new long[PHASE_NAMES.length];
+   private final long[] phaseBytes = new long[PHASE_NAMES.length];
+   private final long[] operatorCounts = new long[Opcode.COUNT];
+   private long cellsEvaluated;
+   private long edgesFollowed;
+   private int maxDfsDepth;
+
+   // Strategy chosen for the evaluation and the statistics it was chosen for, if any
+   private String strategy;
+   private GraphStatistics graphStatistics;
+
+   // Phase being timed
+   private int phase = -1;
+   private long phaseStart;
+   private long phaseStartBytes;
+   private long phaseStartCells;
+   private PhaseEvent phaseEvent;
+
+   /**
+    * ****************************************************************************
+    * Starts timing a phase, the phases do not nest
+    * ****************************************************************************
+    */
+   void begin(int phase){
+      this.phase = phase;
+      phaseEvent = new PhaseEvent();
+      phaseEvent.begin();
+      phaseStartBytes = allocatedBytes();
+      phaseStartCells = cellsEvaluated;
+      phaseStart = System.nanoTime();
+   }
+
+   /**
+    * ****************************************************************************
+    * Stops timing the phase started by begin and emits its event, along with the
+    * event of the evaluation pass for the evaluate phase
+    * ****************************************************************************
+    */
+   void end(){
+      if(phase < 0){
+         return;
+      }
+      long nanos = System.nanoTime() - phaseStart;
+      long bytes = allocatedBytes() - phaseStartBytes;
+      phaseNanos[phase] += nanos;
+      phaseBytes[phase] += bytes;
+      phaseEvent.end();
+      if(phaseEvent.shouldCommit()){
+         phaseEvent.phase = PHASE_NAMES[phase];
+         phaseEvent.allocatedBytes = bytes;
+         phaseEvent.commit();
+      }
+      if(phase == EVALUATE){
+         EvaluationEvent event = new EvaluationEvent();
+         if(event.shouldCommit()){
+            event.cellsEvaluated = cellsEvaluated - phaseStartCells;
+            event.cellsPerSecond = perSecond(event.cellsEvaluated, nanos);
+            event.edgesFollowed = edgesFollowed;
+            event.maxDfsDepth = maxDfsDepth;
+            event.commit();
+         }
+      }
+      phase = -1;
+      phaseEvent = null;
+   }
+
+   /**
+    * ****************************************************************************
+    * Counts a cell whose program has been run
+    * @param depth
+    *         Number of cells on the DFS stack, the cell included
+    * ****************************************************************************
+    */
+   void cellEvaluated(CompiledSheet program, int programStart, int depth){
+      cellsEvaluated++;
+      if(depth > maxDfsDepth){
+         maxDfsDepth = depth;
+      }
+      for(int pc = programStart; program.opcode(pc) != Opcode.END; pc++){
+         byte opcode = program.opcode(pc);
+         operatorCounts[opcode]++;
+         if(opcode == Opcode.REF || opcode >= Opcode.SUM){
+            edgesFollowed++;
+         }
+      }
+   }
+
+   /**
+    * ****************************************************************************
+    * Adds the counters of the metrics of a task of the parallel evaluator
+    * ****************************************************************************
+    */
+   synchronized void add(EvaluationMetrics other){
+      cellsEvaluated += other.cellsEvaluated;
+      edgesFollowed += other.edgesFollowed;
+      maxDfsDepth = Math.max(maxDfsDepth, other.maxDfsDepth);
+      for(int opcode = 0; opcode < operatorCounts.length; opcode++){
+         operatorCounts[opcode] += other.operatorCounts[opcode];
+      }
+   }
+
+   /**
+    * ****************************************************************************
+    * Records the strategy chosen by Spreadsheet.evaluateSpreadSheetAdaptively and
+    * the statistics of the reference graph, both added to the summary
+    * ****************************************************************************
+    */
+   void setStrategy(String strategy, GraphStatistics graphStatistics){
+      this.strategy = strategy;
+      this.graphStatistics = graphStatistics;
+   }
+
+   long getCellsEvaluated(){
+      return cellsEvaluated;
+   }
+
+   long getEdgesFollowed(){
+      return edgesFollowed;
+   }
+
+   int getMaxDfsDepth(){
+      return maxDfsDepth;
+   }
+
+   long getOperatorCount(byte opcode){
+      return operatorCounts[opcode];
+   }
+
+   long getPhaseNanos(int phase){
+      return phaseNanos[phase];
+   }
+
+   /**
+    * ****************************************************************************
+    * Totals as a single line of JSON: the time (ms) and the bytes allocated by
+    * every phase, the cells evaluated (and per second of evaluation), the edges
+    * followed, the maximum DFS depth and the count of every instruction run
+    * ****************************************************************************
+    */
+   String summary(){
+      StringBuilder json = new StringBuilder("{");
+      for(int p = 0; p < PHASE_NAMES.length; p++){
+         json.append('"').append(PHASE_NAMES[p]).append("Millis\":").append(phaseNanos[p] / 1_000_000.0).append(',');
+         json.append('"').append(PHASE_NAMES[p]).append("Bytes\":").append(phaseBytes[p]).append(',');
+      }
+      json.append("\"cellsEvaluated\":").append(cellsEvaluated).append(',');
+      json.append("\"cellsPerSecond\":").append(perSecond(cellsEvaluated, phaseNanos[EVALUATE])).append(',');
+      json.append("\"edgesFollowed\":").append(edgesFollowed).append(',');
+      json.append("\"maxDfsDepth\":").append(maxDfsDepth).append(',');
+      if(strategy != null){
+         json.append("\"strategy\":\"").append(strategy).append("\",");
+         json.append("\"graph\":").append(graphStatistics.summary()).append(',');
+      }
+      json.append("\"operators\":{");
+      boolean first = true;
+      for(byte opcode = Opcode.CONST; opcode < Opcode.COUNT; opcode++){
+         if(operatorCounts[opcode] > 0){
+            json.append(first ? "" : ",").append('"').append(Opcode.name(opcode)).append("\":").append(operatorCounts[opcode]);
+            first = false;
+         }
+      }
+      return json.append("}}").toString();
+   }
+
+   private static long perSecond(long count, long nanos){
+      return nanos == 0 ? 0 : (long)(count * 1e9 / nanos);
+   }
+
+   private static long allocatedBytes(){
+      return ALLOCATION_COUNTED ? AllocationCounter.allocatedBytes() : 0;
+   }
+
+   private static boolean allocationCounted(){
+      try{
+         return AllocationCounter.enable();
+      } catch(LinkageError e){
+         // jdk.management is not visible, as from some class loaders
+         return false;
+      }
+   }
+
+   /*
+    * Only loaded when jdk.management is visible
+    */
+   private static class AllocationCounter {
+
+      private static final java.lang.management.ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+      static boolean enable(){
+         if(THREADS instanceof com.sun.management.ThreadMXBean
+                 && ((com.sun.management.ThreadMXBean)THREADS).isThreadAllocatedMemorySupported()){
+            ((com.sun.management.ThreadMXBean)THREADS).setThreadAllocatedMemoryEnabled(true);
+            return true;
+         }
+         return false;
+      }
+
+      static long allocatedBytes(){
+         return ((com.sun.management.ThreadMXBean)THREADS).getThreadAllocatedBytes(Thread.currentThread().getId());
+      }
+   }
+
+   @Name("spreadsheet.Phase")
+   @Label("Spreadsheet Phase")
+   @Category("Spreadsheet")
+   static class PhaseEvent extends Event {
+      @Label("Phase")
+      String phase;
+
+      @Label("Allocated")
+      @DataAmount
+      long allocatedBytes;
+   }
+
+   @Name("spreadsheet.Evaluation")
+   @Label("Spreadsheet Evaluation")
+   @Category("Spreadsheet")
+   static class EvaluationEvent extends Event {
+      @Label("Cells Evaluated")
+      long cellsEvaluated;
+
+      @Label("Cells per Second")
+      long cellsPerSecond;
+
+      @Label("Edges Followed")
+      long edgesFollowed;
+
+      @Label("Maximum DFS Depth")
+      int maxDfsDepth;
+   }
+}
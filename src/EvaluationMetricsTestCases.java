@@ -0,0 +1,80 @@
+/**
+ * *******************************************************************
+ * File: EvaluationMetricsTestCases.java
+ * *********************************************************************
+ */
+
+import org.junit.AfterClass;
+import org.junit.Test;
+
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class EvaluationMetricsTestCases {
+
+   private static final ForkJoinPool pool = new ForkJoinPool(4);
+
+   @AfterClass
+   public static void shutdownPool() {
+      pool.shutdown();
+   }
+
+   private static final String input[][] = {{"A2 A3 +", "A3 2 *", "4", "A1:A3 SUM"}, {"A4 1 0 + /", "", "7", "B3 ++"}};
+
+   @Test
+   public void countersOfSequentialEvaluation() {
+      Spreadsheet spreadsheet = new Spreadsheet(input);
+      EvaluationMetrics metrics = new EvaluationMetrics();
+      spreadsheet.setMetrics(metrics);
+      spreadsheet.evaluateSpreadSheet();
+      assertEquals(8, metrics.getCellsEvaluated());
+      // A1 -> A2 -> A3 is the deepest DFS
+      assertEquals(3, metrics.getMaxDfsDepth());
+      // A1: 2, A2: 1, A4: 1 range, B1: 1, B4: 1
+      assertEquals(6, metrics.getEdgesFollowed());
+      assertEquals(1, metrics.getOperatorCount(Opcode.SUM));
+      assertEquals(2, metrics.getOperatorCount(Opcode.ADD));
+      assertEquals(1, metrics.getOperatorCount(Opcode.DIVIDE));
+      assertEquals(1, metrics.getOperatorCount(Opcode.INCREMENT));
+      assertTrue(metrics.getPhaseNanos(EvaluationMetrics.EVALUATE) > 0);
+   }
+
+   @Test
+   public void parallelCountsEveryCell() {
+      Spreadsheet spreadsheet = new Spreadsheet(input);
+      EvaluationMetrics metrics = new EvaluationMetrics();
+      spreadsheet.setMetrics(metrics);
+      spreadsheet.evaluateSpreadSheetInParallel(pool);
+      assertEquals(8, metrics.getCellsEvaluated());
+      assertEquals(6, metrics.getEdgesFollowed());
+      assertEquals("24.00000",spreadsheet.getFormattedValue(0,3));
+   }
+
+   // A recalculation only counts the affected cells
+   @Test
+   public void recalculationCounters() {
+      Spreadsheet spreadsheet = new Spreadsheet(input);
+      spreadsheet.evaluateSpreadSheet();
+      EvaluationMetrics metrics = new EvaluationMetrics();
+      spreadsheet.setMetrics(metrics);
+      spreadsheet.setCell("B3", "1");
+      spreadsheet.recalculate();
+      assertEquals(2, metrics.getCellsEvaluated());
+      assertEquals("2.00000",spreadsheet.getFormattedValue(1,3));
+   }
+
+   @Test
+   public void summaryIsJson() {
+      Spreadsheet spreadsheet = new Spreadsheet(input);
+      EvaluationMetrics metrics = new EvaluationMetrics();
+      spreadsheet.setMetrics(metrics);
+      spreadsheet.evaluateSpreadSheet();
+      String summary = metrics.summary();
+      assertTrue(summary.startsWith("{\"parseMillis\":"));
+      assertTrue(summary.contains("\"cellsEvaluated\":8,"));
+      assertTrue(summary.contains("\"maxDfsDepth\":3,"));
+      assertTrue(summary.endsWith("\"SUM\":1}}"));
+   }
+}
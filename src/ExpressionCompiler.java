@@ -0,0 +1,537 @@
+import java.util.regex.Pattern;
+
+/**
+ * ******************************************************************************
+ * File: ExpressionCompiler.java
+ * This class compiles the RPN expressions of the cells into the flat programs
+ * stored in a CompiledSheet. Every expression is tokenized exactly once and all
+ * the structural errors (empty, invalid, underflow and overflow) are reported
+ * here, so that the evaluation works only on opcodes, constants and cell indices
+ * Besides the operators + - * / ++ --, a range of cells given by its corners
+ * (A1:A10, B2:D7) followed by SUM, AVG, MIN or MAX pushes the aggregate of the
+ * values of the cells of the range
+ * ******************************************************************************
+ */
+class ExpressionCompiler {
+
+   /**
+    * ********************************************************
+    * Constructor is made private to prevent instantiation
+    * ********************************************************
+    */
+   private ExpressionCompiler(){
+
+   }
+
+   /**
+    * ****************************************************************************
+    * Compiles the expressions of all the cells of the spreadsheet
+    * A cell whose expression is not valid gets a program throwing the exception
+    * of its compilation when the cell is evaluated (see compileCell), so that the
+    * errors are reported in the order in which the cells are evaluated
+    * @param cells
+    *         Two dimensional array containing the expressions of the spreadsheet
+    * @return The compiled programs of all the cells
+    * ****************************************************************************
+    */
+   static CompiledSheet compile(String[][] cells){
+      return compile(cells, false);
+   }
+
+   /**
+    * ****************************************************************************
+    * Compiles the expressions of all the cells of the spreadsheet
+    * @param errorValues
+    *         true to give the cells whose expression is not valid the program
+    *         evaluating to #ERR instead of the program throwing (see compileCell)
+    * ****************************************************************************
+    */
+   static CompiledSheet compile(String[][] cells, boolean errorValues){
+      return compile(cells, errorValues, CellStorage.HEAP);
+   }
+
+   /**
+    * ****************************************************************************
+    * Compiles the expressions of all the cells of the spreadsheet
+    * @param storage
+    *         Backend of the compiled programs, see CellStorage
+    * ****************************************************************************
+    */
+   static CompiledSheet compile(String[][] cells, boolean errorValues, CellStorage storage){
+      CompiledSheet program = new CompiledSheet(cells.length, cells[0].length, false, storage);
+      for(int i = 0; i < cells.length; i++){
+         for(int j = 0; j < cells[0].length; j++){
+            compileCell(cells[i][j], i, j, program, errorValues);
+         }
+      }
+      return program;
+   }
+
+   /**
+    * ****************************************************************************
+    * Compiles the expression of a single cell, see compileCell, without throwing
+    * when the expression is not valid
+    * Logic : The cell keeps the instructions emitted for the tokens before the
+    *         error, ended by an ERROR instruction whose operand is the failure
+    *         code of the compilation. The exception is only built (see newFailure)
+    *         when the cell is evaluated. The DFS thus visits the cells referenced
+    *         before the error, and runs the instructions before it, before
+    *         reporting the error, like when the expressions were tokenized while
+    *         the cells were evaluated: a cycle or a division by zero met first is
+    *         reported instead
+    * @param errorValues
+    *         true to give the cell the program evaluating to #ERR
+    *         (CompiledSheet.ERROR_PROGRAM) when its expression is not valid, the
+    *         instructions already emitted for it are then dropped
+    * @return the slot of the cell in the compiled sheet
+    * ****************************************************************************
+    */
+   static int compileCell(CharSequence expression, int row, int column, CompiledSheet program, boolean errorValues){
+      int slot = program.addSlot(row * program.getColumnCount() + column);
+      int start = program.nextInstruction();
+      int firstConstant = program.nextConstant();
+      int failure = compileProgram(expression, slot, program);
+      if(failure != 0){
+         if(errorValues){
+            program.discard(start, firstConstant);
+            program.setProgramStart(slot, CompiledSheet.ERROR_PROGRAM);
+         } else {
+            program.emit(Opcode.ERROR, failure);
+            program.emit(Opcode.END, 0);
+            program.setProgramStart(slot, start);
+         }
+      }
+      return slot;
+   }
+
+   /**
+    * ****************************************************************************
+    * Compiles the expression of a single cell and appends its program to the
+    * compiled sheet, sharing the sub-expressions (or the whole program) already
+    * compiled for other cells (see SubexpressionTable)
+    * If an RPN expression is empty ("") or null, the cell shares the program which
+    * evaluates to 0.00000
+    * @param expression
+    *         The RPN expression of the cell as provided in the input
+    * @param row
+    *         row index of the cell starting from 0
+    * @param column
+    *         column index of the cell starting from 0
+    * @param program
+    *         The compiled sheet to which the program is appended
+    * @return the slot of the cell in the compiled sheet
+    * @throws IllegalArgumentException
+    *             when the expression is not valid, the instructions already
+    *             emitted for it are then dropped
+    * ****************************************************************************
+    */
+   static int compileCell(CharSequence expression, int row, int column, CompiledSheet program){
+      int slot = program.addSlot(row * program.getColumnCount() + column);
+      int start = program.nextInstruction();
+      int firstConstant = program.nextConstant();
+      int failure = compileProgram(expression, slot, program);
+      if(failure != 0){
+         program.discard(start, firstConstant);
+         throw newFailure(failure, expression, getCellName(row, column));
+      }
+      return slot;
+   }
+
+   /**
+    * ****************************************************************************
+    * Compiles the expression of the cell in the slot and sets the start of its
+    * program unless the expression is not valid
+    * The expression is tokenized in place: operators, cell names and plain decimal
+    * numbers are recognized without creating a String per token
+    * @return 0, or the failure code (see newFailure) when the expression is not
+    *         valid, the instructions emitted for the tokens before the error are
+    *         then left at the end of the instruction stream
+    * ****************************************************************************
+    */
+   private static int compileProgram(CharSequence expression, int slot, CompiledSheet program){
+      if(expression == null || expression.length() == 0){
+         program.setProgramStart(slot, CompiledSheet.EMPTY_PROGRAM);
+         return 0;
+      }
+      // Eliminate any leading or trailing whitespace from input
+      int position = 0;
+      int length = expression.length();
+      while(position < length && isSpace(expression.charAt(position))){
+         position++;
+      }
+      while(length > position && isSpace(expression.charAt(length - 1))){
+         length--;
+      }
+      if(position == length){
+         return EMPTY;
+      }
+
+      int start = program.nextInstruction();
+      int firstConstant = program.nextConstant();
+      int depth = 0;
+      while(position < length){
+         // skip the whitespace separating the tokens
+         while(position < length && isSpace(expression.charAt(position))){
+            position++;
+         }
+         int tokenStart = position;
+         while(position < length && !isSpace(expression.charAt(position))){
+            position++;
+         }
+         if(tokenStart == position){
+            break;
+         }
+
+         byte opcode = getOperatorOpcode(expression, tokenStart, position);
+         if(opcode != Opcode.END){
+            int operandCount = (opcode == Opcode.INCREMENT || opcode == Opcode.DECREMENT) ? 1 : 2;
+            // ensure there are enough operands on stack
+            if(depth < operandCount){
+               return UNDERFLOW | opcode << 8;
+            }
+            program.emit(opcode, 0);
+            depth = depth - operandCount + 1;
+         } else {
+            int colon = indexOf(expression, ':', tokenStart, position);
+            if(colon >= 0){
+               // A range (like A1:A10) followed by its aggregate function (SUM, AVG, MIN or MAX)
+               int first = getCellIndex(expression, tokenStart, colon, program.getRowCount(), program.getColumnCount());
+               int last = getCellIndex(expression, colon + 1, position, program.getRowCount(), program.getColumnCount());
+               while(position < length && isSpace(expression.charAt(position))){
+                  position++;
+               }
+               int functionStart = position;
+               while(position < length && !isSpace(expression.charAt(position))){
+                  position++;
+               }
+               byte function = getFunctionOpcode(expression, functionStart, position);
+               if(first < 0 || last < 0 || function == Opcode.END){
+                  return INVALID;
+               }
+               int columnCount = program.getColumnCount();
+               int firstRow = Math.min(first / columnCount, last / columnCount);
+               int lastRow = Math.max(first / columnCount, last / columnCount);
+               int firstColumn = Math.min(first % columnCount, last % columnCount);
+               int lastColumn = Math.max(first % columnCount, last % columnCount);
+               program.emit(function, program.addRange(firstRow * columnCount + firstColumn, lastRow * columnCount + lastColumn));
+               depth++;
+               program.updateMaxStackDepth(depth);
+               continue;
+            }
+            //Check if it references other cells, a cell name is never a valid number
+            int reference = getCellIndex(expression, tokenStart, position, program.getRowCount(), program.getColumnCount());
+            if(reference >= 0){
+               program.emit(Opcode.REF, program.addSlot(reference));
+            } else if(isNumber(expression, tokenStart, position)){
+               program.emit(Opcode.CONST, program.addConstant(parseNumber(expression, tokenStart, position)));
+            } else {
+               return INVALID;
+            }
+            depth++;
+            program.updateMaxStackDepth(depth);
+         }
+      }
+      if(depth > 1){
+         return OVERFLOW;
+      }
+      program.setProgramStart(slot, program.endProgram(start, firstConstant));
+      return 0;
+   }
+
+   // Failure codes of the compilation, operands of the ERROR instruction ending the
+   // program of a cell whose expression is not valid (0 is the #ERR program). The
+   // code of an underflow carries the opcode of the operator in bits 8 to 15
+   private static final int EMPTY = 1;
+   private static final int INVALID = 2;
+   private static final int OVERFLOW = 3;
+   private static final int UNDERFLOW = 4;
+
+   /**
+    * ****************************************************************************
+    * Builds the exception reporting a failure of the compilation
+    * @param failure
+    *         Failure code returned by the compilation of the expression
+    * @param expression
+    *         The RPN expression of the cell as provided in the input
+    * @param cellName
+    *         Name of the cell like A1
+    * @return the exception thrown for the cell when it is set or evaluated
+    * ****************************************************************************
+    */
+   static IllegalArgumentException newFailure(int failure, CharSequence expression, String cellName){
+      switch(failure & 0xFF){
+         case EMPTY:
+            return new EmptyRPNException("Illegal Argument " + expression + " at cell " + cellName);
+         case OVERFLOW:
+            return new RPNOverflowException("Extra Operands in the expression " + expression + " at cell " + cellName);
+         case UNDERFLOW:
+            return new RPNUnderflowException("Operator " + OPERATORS[failure >> 8] +
+                    " occured before there were enough numerical values for it to evaluate in " +
+                    "the expression " + expression + " at cell " + cellName);
+         default:
+            return new InvalidRPNException("The expression " + expression + " at cell " + cellName + " is not valid");
+      }
+   }
+
+   // Tokens of the operators, indexed by opcode
+   private static final String[] OPERATORS = {null, null, null, "+", "-", "*", "/", "++", "--"};
+
+   /*
+    * Whitespace trimmed from the expression and separating its tokens: the
+    * characters removed by String.trim and the Unicode whitespace
+    */
+   private static boolean isSpace(char ch){
+      return ch <= ' ' || Character.isWhitespace(ch);
+   }
+
+   /**
+    * *****************************************************************************
+    * Maps the token to the opcode of the supported operator
+    * @param input
+    *         The expression containing the token
+    * @param start
+    *         Index of the first character of the token
+    * @param end
+    *         Index after the last character of the token
+    * @return the opcode of the operator or Opcode.END if the token is not
+    *         one of the supported operators
+    * *****************************************************************************
+    */
+   private static byte getOperatorOpcode(CharSequence input, int start, int end) {
+      char first = input.charAt(start);
+      if(end - start == 1){
+         switch(first){
+            case '+':
+               return Opcode.ADD;
+            case '-':
+               return Opcode.SUBTRACT;
+            case '*':
+               return Opcode.MULTIPLY;
+            case '/':
+               return Opcode.DIVIDE;
+         }
+      } else if(end - start == 2 && input.charAt(start + 1) == first){
+         if(first == '+'){
+            return Opcode.INCREMENT;
+         } else if(first == '-'){
+            return Opcode.DECREMENT;
+         }
+      }
+      return Opcode.END;
+   }
+
+   /**
+    * *****************************************************************************
+    * Maps the token to the opcode of the supported range aggregate function
+    * @return the opcode of the function or Opcode.END if the token is not one of
+    *         SUM, AVG, MIN and MAX
+    * *****************************************************************************
+    */
+   private static byte getFunctionOpcode(CharSequence input, int start, int end) {
+      if(end - start != 3){
+         return Opcode.END;
+      }
+      char first = input.charAt(start);
+      char second = input.charAt(start + 1);
+      char third = input.charAt(start + 2);
+      if(first == 'S' && second == 'U' && third == 'M'){
+         return Opcode.SUM;
+      } else if(first == 'A' && second == 'V' && third == 'G'){
+         return Opcode.AVG;
+      } else if(first == 'M' && second == 'I' && third == 'N'){
+         return Opcode.MIN;
+      } else if(first == 'M' && second == 'A' && third == 'X'){
+         return Opcode.MAX;
+      }
+      return Opcode.END;
+   }
+
+   private static int indexOf(CharSequence input, char ch, int start, int end) {
+      for(int i = start; i < end; i++){
+         if(input.charAt(i) == ch){
+            return i;
+         }
+      }
+      return -1;
+   }
+
+   /**
+    * *****************************************************************************
+    * Checks if the token is a number accepted by Double.parseDouble, without
+    * throwing: plain decimals are checked by a scan, the other forms by the
+    * grammar documented by Double.valueOf
+    * *****************************************************************************
+    */
+   private static boolean isNumber(CharSequence input, int start, int end){
+      int position = start;
+      char sign = input.charAt(position);
+      if(sign == '-' || sign == '+'){
+         position++;
+      }
+      boolean hasDigit = false;
+      boolean hasPoint = false;
+      for(; position < end; position++){
+         char ch = input.charAt(position);
+         if(ch >= '0' && ch <= '9'){
+            hasDigit = true;
+         } else if(ch == '.' && !hasPoint){
+            hasPoint = true;
+         } else {
+            break;
+         }
+      }
+      if(position == end){
+         return hasDigit;
+      }
+      return NUMBER.matcher(input).region(start, end).matches();
+   }
+
+   // Numbers accepted by Double.parseDouble besides the plain decimals (see Double.valueOf)
+   private static final Pattern NUMBER = Pattern.compile("[+-]?(NaN|Infinity|(((\\d+\\.?\\d*([eE][+-]?\\d+)?)|" +
+           "(\\.\\d+([eE][+-]?\\d+)?)|((0[xX]\\p{XDigit}+\\.?|0[xX]\\p{XDigit}*\\.\\p{XDigit}+)[pP][+-]?\\d+))[fFdD]?))");
+
+   /**
+    * *****************************************************************************
+    * Parses a numeric token with the same result as Double.parseDouble
+    * Plain decimals with up to 15 significant digits and 22 fraction digits are
+    * converted exactly from a long mantissa (both the mantissa and the power of ten
+    * are exact doubles, so the single division is correctly rounded). Any other
+    * form (exponents, hexadecimal, NaN ..) falls back to Double.parseDouble
+    * The token must be a number (see isNumber)
+    * *****************************************************************************
+    */
+   private static double parseNumber(CharSequence input, int start, int end){
+      int position = start;
+      boolean negative = false;
+      char sign = input.charAt(position);
+      if(sign == '-' || sign == '+'){
+         negative = sign == '-';
+         position++;
+      }
+      long mantissa = 0;
+      int significantDigits = 0;
+      int scale = -1;
+      boolean hasDigit = false;
+      for(; position < end; position++){
+         char ch = input.charAt(position);
+         if(ch >= '0' && ch <= '9'){
+            hasDigit = true;
+            mantissa = mantissa * 10 + (ch - '0');
+            if(mantissa != 0){
+               significantDigits++;
+            }
+            if(scale >= 0){
+               scale++;
+            }
+         } else if(ch == '.' && scale < 0){
+            scale = 0;
+         } else {
+            break;
+         }
+      }
+      if(position == end && hasDigit && significantDigits <= 15 && scale <= 22){
+         double value = scale > 0 ? mantissa / POWERS_OF_TEN[scale] : mantissa;
+         return negative ? -value : value;
+      }
+      return Double.parseDouble(input.subSequence(start, end).toString());
+   }
+
+   private static final double[] POWERS_OF_TEN = {
+           1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+           1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+   };
+
+   /**
+    * ****************************************************************************
+    * Converts cell name to the linear index of the cell
+    * Example A1 -> 0 , C5 -> 2 * colCount + 4 , AA1 -> 26 * colCount
+    * @param cellName
+    *         Name of the cell like A1,A2,B1,AA7 etc
+    * @param rowCount
+    *         Number of rows in the spreadsheet
+    * @param colCount
+    *         Number of columns in the spreadsheet
+    * @return row * colCount + column of the cell or -1 if the name does not
+    *         refer to a cell of the spreadsheet
+    * ***************************************************************************
+    */
+   static int getCellIndex(String cellName,int rowCount, int colCount){
+      return getCellIndex(cellName, 0, cellName.length(), rowCount, colCount);
+   }
+
+   /**
+    * ****************************************************************************
+    * Converts the cell name found between start and end in the input to the linear
+    * index of the cell, reading the characters in place
+    * The row is named by letters like the columns of common spreadsheets
+    * (A .. Z, AA .. AZ, BA .. ZZ, AAA ..) and the column by its number, which may
+    * carry a + sign (A+1 is A1)
+    * @return row * colCount + column of the cell or -1 if the token does not
+    *         refer to a cell of the spreadsheet
+    * ***************************************************************************
+    */
+   private static int getCellIndex(CharSequence input, int start, int end, int rowCount, int colCount){
+      int position = start;
+      // Bijective base 26 row label, A = 1 .. Z = 26
+      long row = 0;
+      while(position < end){
+         char ch = input.charAt(position);
+         if(ch < 'A' || ch > 'Z'){
+            break;
+         }
+         row = row * 26 + (ch - 'A' + 1);
+         if(row > rowCount){
+            return -1;
+         }
+         position++;
+      }
+      if(row == 0 || position == end){
+         return -1;
+      }
+      // Column number as read by Integer.parseInt: an optional '+' sign (a '-' sign
+      // never gives a column of the spreadsheet) followed by decimal digits
+      if(input.charAt(position) == '+'){
+         position++;
+         if(position == end){
+            return -1;
+         }
+      }
+      long column = 0;
+      for(; position < end; position++){
+         int digit = Character.digit(input.charAt(position), 10);
+         if(digit < 0){
+            return -1;
+         }
+         column = column * 10 + digit;
+         if(column > colCount){
+            return -1;
+         }
+      }
+      if(column == 0){
+         return -1;
+      }
+      return (int)(row - 1) * colCount + (int)(column - 1);
+   }
+
+   /**
+    * ****************************************************************************
+    * Converts row and column to cell name
+    * Example row = 0, column = 3  results into a cell name of A4
+    *         row = 27, column = 0 results into a cell name of AB1
+    * @param row
+    *         row index of the cell starting from 0
+    * @param column
+    *         column index of the cell starting from 0
+    * @return name of the cell (like A1, A2, A3 .. AA1 ..)
+    * ***************************************************************************
+    */
+   static String getCellName(int row,int column){
+      // An int row needs at most 7 letters
+      char[] rowName = new char[7];
+      int position = rowName.length;
+      for(long label = row + 1L; label > 0; label = (label - 1) / 26){
+         rowName[--position] = (char)('A' + (label - 1) % 26);
+      }
+      return new String(rowName, position, rowName.length - position) + (column + 1);
+   }
+}
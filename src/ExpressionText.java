@@ -0,0 +1,116 @@
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * ******************************************************************************
+ * File: ExpressionText.java
+ * Compact store of the source text of the cells of a spreadsheet which is loaded
+ * without a String per cell (see SpreadsheetReader)
+ * The text of a cell is only needed to report an error found while evaluating it,
+ * so only the cells whose program can fail at run time (a division or an invalid
+ * expression, see CompiledSheet.canFail) are kept, as UTF-8 bytes in one array.
+ * The cells are added in increasing order and are looked up by binary search.
+ * Expressions set later by Spreadsheet.setCell are kept as is
+ * ******************************************************************************
+ */
+class ExpressionText {
+
+   // Linear indices of the stored cells in increasing order
+   private int[] cellIndex = new int[16];
+   // Offset of the text of the i-th stored cell in data, textStart[count] is the end
+   private int[] textStart = new int[17];
+   private byte[] data = new byte[256];
+   private int count;
+
+   private final Map<Integer, String> editedText = new HashMap<Integer, String>();
+
+   ExpressionText(){
+   }
+
+   /**
+    * ****************************************************************************
+    * Store restored from a snapshot (see SpreadsheetSnapshot)
+    * @param cellIndex
+    *         Linear indices of the stored cells in increasing order
+    * @param textStart
+    *         Offset of the text of every stored cell in data, followed by the end
+    * @param data
+    *         UTF-8 text of the stored cells
+    * ****************************************************************************
+    */
+   ExpressionText(int[] cellIndex, int[] textStart, byte[] data){
+      this.cellIndex = cellIndex;
+      this.textStart = textStart;
+      this.data = data;
+      this.count = cellIndex.length;
+   }
+
+   /**
+    * ****************************************************************************
+    * Stores the text of a cell. The cells must be added in increasing order
+    * @param cell
+    *         Linear index of the cell
+    * @param bytes
+    *         Buffer holding the UTF-8 text of the cell
+    * @param offset
+    *         Offset of the text in the buffer
+    * @param length
+    *         Length of the text in bytes
+    * ****************************************************************************
+    */
+   void add(int cell, byte[] bytes, int offset, int length){
+      if(count == cellIndex.length){
+         int capacity = Math.max(16, count << 1);
+         cellIndex = Arrays.copyOf(cellIndex, capacity);
+         textStart = Arrays.copyOf(textStart, capacity + 1);
+      }
+      int end = textStart[count] + length;
+      if(end > data.length){
+         data = Arrays.copyOf(data, Math.max(end, data.length << 1));
+      }
+      System.arraycopy(bytes, offset, data, textStart[count], length);
+      cellIndex[count] = cell;
+      textStart[++count] = end;
+   }
+
+   void add(int cell, String text){
+      byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+      add(cell, bytes, 0, bytes.length);
+   }
+
+   /**
+    * ****************************************************************************
+    * Stores the texts of another store, whose cells all follow the cells stored
+    * ****************************************************************************
+    */
+   void append(ExpressionText other){
+      for(int i = 0; i < other.count; i++){
+         add(other.cellIndex[i], other.data, other.textStart[i], other.textStart[i + 1] - other.textStart[i]);
+      }
+   }
+
+   void set(int cell, String text){
+      editedText.put(cell, text);
+   }
+
+   /**
+    * ****************************************************************************
+    * Source text of the cell
+    * @param cell
+    *         Linear index of the cell
+    * @return the text of the cell or null if it is not stored
+    * ****************************************************************************
+    */
+   String get(int cell){
+      if(!editedText.isEmpty() && editedText.containsKey(cell)){
+         return editedText.get(cell);
+      }
+      int i = Arrays.binarySearch(cellIndex, 0, count, cell);
+      if(i < 0){
+         return null;
+      }
+      return new String(data, textStart[i], textStart[i + 1] - textStart[i], StandardCharsets.UTF_8);
+   }
+}
@@ -0,0 +1,213 @@
+/**
+ * ******************************************************************************
+ * File: GraphStatistics.java
+ * Shape of the reference graph of a compiled spreadsheet, which StrategySelector
+ * uses to choose how the spreadsheet is evaluated
+ * Logic : The statistics are read from the programs in two linear passes, without
+ *         building the dependency graph. The first pass, in row major order,
+ *         counts the references of every cell (its fan-in, a range counting its
+ *         cells) and the references to every cell (its fan-out, ranges excluded),
+ *         and gives every cell the depth 1 + the largest depth of the cells it
+ *         references before it. The second pass, in reverse order, raises the depth
+ *         of every cell to 1 + the depth of the cells it references after it, so
+ *         the chains running forwards and the chains running backwards are both
+ *         measured exactly. The largest depth estimates the critical path, the
+ *         longest chain of cells which must be evaluated one after the other. It
+ *         is a lower bound when the chains change direction more than once, and
+ *         the cells of the ranges are not followed
+ *         The fan-in and fan-out are kept as histograms of powers of two
+ * ******************************************************************************
+ */
+final class GraphStatistics {
+
+   // Buckets of the histograms: 0, 1, 2-3, 4-7 .. 2^(BUCKETS - 2) and more
+   static final int BUCKETS = 20;
+
+   private int cellCount;
+   private long edgeCount;
+   private int aliasCount;
+   private int rangeUserCount;
+   private int criticalPath;
+   private int maxFanIn;
+   private int maxFanOut;
+   private final long[] fanIn = new long[BUCKETS];
+   private final long[] fanOut = new long[BUCKETS];
+
+   private GraphStatistics(){
+
+   }
+
+   /**
+    * ****************************************************************************
+    * Gathers the statistics of the programs of all the cells
+    * @param program
+    *         The compiled programs of the spreadsheet
+    * @return the statistics of the reference graph of the spreadsheet
+    * ****************************************************************************
+    */
+   static GraphStatistics collect(CompiledSheet program){
+      GraphStatistics statistics = new GraphStatistics();
+      int cellCount = program.getCellCount();
+      int columnCount = program.getColumnCount();
+      int[] references = new int[cellCount];
+      int[] depth = new int[cellCount];
+      statistics.cellCount = cellCount;
+      for(int cell = 0; cell < cellCount; cell++){
+         long cellFanIn = 0;
+         int cellDepth = 0;
+         boolean rangeUser = false;
+         for(int pc = program.getProgramStart(cell); program.opcode(pc) != Opcode.END; pc++){
+            if(program.opcode(pc) == Opcode.REF){
+               int reference = program.operand(pc);
+               cellFanIn++;
+               references[reference]++;
+               if(reference < cell){
+                  cellDepth = Math.max(cellDepth, depth[reference]);
+               }
+            } else if(program.opcode(pc) >= Opcode.SUM){
+               int first = program.getRangeFirst(program.operand(pc));
+               int last = program.getRangeLast(program.operand(pc));
+               cellFanIn += (long)(last / columnCount - first / columnCount + 1)
+                       * (last % columnCount - first % columnCount + 1);
+               rangeUser = true;
+            }
+         }
+         depth[cell] = cellDepth + 1;
+         statistics.edgeCount += cellFanIn;
+         statistics.maxFanIn = (int)Math.max(statistics.maxFanIn, Math.min(cellFanIn, Integer.MAX_VALUE));
+         statistics.fanIn[bucket(cellFanIn)]++;
+         if(rangeUser){
+            statistics.rangeUserCount++;
+         }
+         if(AliasResolver.getAliasTarget(program, cell) >= 0){
+            statistics.aliasCount++;
+         }
+      }
+      for(int cell = cellCount - 1; cell >= 0; cell--){
+         for(int pc = program.getProgramStart(cell); program.opcode(pc) != Opcode.END; pc++){
+            if(program.opcode(pc) == Opcode.REF && program.operand(pc) > cell){
+               depth[cell] = Math.max(depth[cell], depth[program.operand(pc)] + 1);
+            }
+         }
+         statistics.criticalPath = Math.max(statistics.criticalPath, depth[cell]);
+         statistics.maxFanOut = Math.max(statistics.maxFanOut, references[cell]);
+         statistics.fanOut[bucket(references[cell])]++;
+      }
+      return statistics;
+   }
+
+   /*
+    * Histogram bucket of a count
+    */
+   private static int bucket(long count){
+      return count == 0 ? 0 : Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(count));
+   }
+
+   int getCellCount(){
+      return cellCount;
+   }
+
+   /**
+    * ****************************************************************************
+    * Number of references of all the cells, a range counting its cells
+    * ****************************************************************************
+    */
+   long getEdgeCount(){
+      return edgeCount;
+   }
+
+   /**
+    * ****************************************************************************
+    * Estimated number of cells of the longest chain of references
+    * ****************************************************************************
+    */
+   int getCriticalPath(){
+      return criticalPath;
+   }
+
+   /**
+    * ****************************************************************************
+    * Average number of cells which can be evaluated at the same time: the number
+    * of cells divided by the critical path
+    * ****************************************************************************
+    */
+   double getAverageWidth(){
+      return criticalPath == 0 ? 0 : (double)cellCount / criticalPath;
+   }
+
+   /**
+    * ****************************************************************************
+    * Fraction of the cells which only reference another cell (see AliasResolver)
+    * ****************************************************************************
+    */
+   double getAliasFraction(){
+      return cellCount == 0 ? 0 : (double)aliasCount / cellCount;
+   }
+
+   /**
+    * ****************************************************************************
+    * Fraction of the cells using a range, which the parallel evaluators leave to
+    * the sequential DFS
+    * ****************************************************************************
+    */
+   double getRangeUserFraction(){
+      return cellCount == 0 ? 0 : (double)rangeUserCount / cellCount;
+   }
+
+   int getMaxFanIn(){
+      return maxFanIn;
+   }
+
+   int getMaxFanOut(){
+      return maxFanOut;
+   }
+
+   /**
+    * ****************************************************************************
+    * Number of cells whose fan-in (or fan-out) falls in the bucket: 0, 1, 2-3,
+    * 4-7 .. 2^(BUCKETS - 2) and more
+    * ****************************************************************************
+    */
+   long getFanInCount(int bucket){
+      return fanIn[bucket];
+   }
+
+   long getFanOutCount(int bucket){
+      return fanOut[bucket];
+   }
+
+   /**
+    * ****************************************************************************
+    * The statistics as a JSON object, the histograms up to their last non empty
+    * bucket
+    * ****************************************************************************
+    */
+   String summary(){
+      StringBuilder json = new StringBuilder("{");
+      json.append("\"cells\":").append(cellCount).append(',');
+      json.append("\"edges\":").append(edgeCount).append(',');
+      json.append("\"criticalPath\":").append(criticalPath).append(',');
+      json.append("\"averageWidth\":").append(getAverageWidth()).append(',');
+      json.append("\"aliasFraction\":").append(getAliasFraction()).append(',');
+      json.append("\"rangeUserFraction\":").append(getRangeUserFraction()).append(',');
+      json.append("\"maxFanIn\":").append(maxFanIn).append(',');
+      json.append("\"maxFanOut\":").append(maxFanOut).append(',');
+      json.append("\"fanIn\":");
+      appendHistogram(json, fanIn);
+      json.append(",\"fanOut\":");
+      appendHistogram(json, fanOut);
+      return json.append('}').toString();
+   }
+
+   private static void appendHistogram(StringBuilder json, long[] histogram){
+      int end = histogram.length;
+      while(end > 0 && histogram[end - 1] == 0){
+         end--;
+      }
+      json.append('[');
+      for(int bucket = 0; bucket < end; bucket++){
+         json.append(bucket == 0 ? "" : ",").append(histogram[bucket]);
+      }
+      json.append(']');
+   }
+}
@@ -0,0 +1,97 @@
+/**
+ * *******************************************************************
+ * File: IncrementalRecalculationTestCases.java
+ * *********************************************************************
+ */
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class IncrementalRecalculationTestCases {
+
+   private String[][] input(){
+      return new String[][]{{"A2", "4 5 *", "A1"}, {"A1 B2 / 2 +", "3", "39 B1 B2 * /"}};
+   }
+
+   @Test
+   public void editReferencedCell() {
+      Spreadsheet spreadsheet = new Spreadsheet(input());
+      spreadsheet.evaluateSpreadSheet();
+      spreadsheet.setCell("A2", "10");
+      spreadsheet.recalculate();
+      assertEquals("10.00000",spreadsheet.getFormattedValue(0,0));
+      assertEquals("10.00000",spreadsheet.getFormattedValue(0,1));
+      assertEquals("10.00000",spreadsheet.getFormattedValue(0,2));
+      assertEquals("5.33333",spreadsheet.getFormattedValue(1,0));
+      assertEquals("3.00000",spreadsheet.getFormattedValue(1,1));
+      assertEquals("2.43750",spreadsheet.getFormattedValue(1,2));
+      assertEquals("10",spreadsheet.getCells()[0][1]);
+   }
+
+   @Test
+   public void editAddsReference() {
+      Spreadsheet spreadsheet = new Spreadsheet(input());
+      spreadsheet.evaluateSpreadSheet();
+      spreadsheet.setCell("B2", "A3 2 /");
+      spreadsheet.recalculate();
+      assertEquals("10.00000",spreadsheet.getFormattedValue(1,1));
+      assertEquals("4.00000",spreadsheet.getFormattedValue(1,0));
+      assertEquals("0.97500",spreadsheet.getFormattedValue(1,2));
+      // The new edge A3 -> B2 must be followed by later edits
+      spreadsheet.setCell("A2", "2");
+      spreadsheet.recalculate();
+      assertEquals("1.00000",spreadsheet.getFormattedValue(1,1));
+      assertEquals("4.00000",spreadsheet.getFormattedValue(1,0));
+      assertEquals("9.75000",spreadsheet.getFormattedValue(1,2));
+   }
+
+   @Test
+   public void editBeforeEvaluation() {
+      Spreadsheet spreadsheet = new Spreadsheet(input());
+      spreadsheet.setCell("B2", "");
+      spreadsheet.setCell("B2", "6");
+      spreadsheet.recalculate();
+      assertEquals("5.33333",spreadsheet.getFormattedValue(1,0));
+   }
+
+   @Test
+   public void cycleIntroducedByEdit() {
+      Spreadsheet spreadsheet = new Spreadsheet(input());
+      spreadsheet.evaluateSpreadSheet();
+      spreadsheet.setCell("A2", "B1");
+      try{
+         spreadsheet.recalculate();
+         fail("Expected cycle at cell A1");
+      } catch (CycleDetectedException e){
+         assertEquals("Cycle detected at cell A1", e.getMessage());
+      }
+      // Breaking the cycle recalculates the cells left unevaluated
+      spreadsheet.setCell("A2", "1");
+      spreadsheet.recalculate();
+      assertEquals("1.00000",spreadsheet.getFormattedValue(0,0));
+      assertEquals("2.33333",spreadsheet.getFormattedValue(1,0));
+      assertEquals("5.57143",spreadsheet.getFormattedValue(1,2));
+   }
+
+   @Test
+   public void invalidEditIsRejected() {
+      Spreadsheet spreadsheet = new Spreadsheet(input());
+      spreadsheet.evaluateSpreadSheet();
+      try{
+         spreadsheet.setCell("A2", "1 +");
+         fail("Expecting RPNUnderflowException");
+      } catch (RPNUnderflowException e){
+         assertEquals("4 5 *", spreadsheet.getCells()[0][1]);
+      }
+      try{
+         spreadsheet.setCell("C1", "1");
+         fail("Expecting IllegalArgumentException");
+      } catch (IllegalArgumentException e){
+         assertEquals("Invalid cell name C1", e.getMessage());
+      }
+      spreadsheet.recalculate();
+      assertEquals("20.00000",spreadsheet.getFormattedValue(0,0));
+   }
+}
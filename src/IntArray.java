@@ -0,0 +1,96 @@
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * ******************************************************************************
+ * File: IntArray.java
+ * Array of ints indexed by int, held on the heap or off the heap (see CellStorage)
+ * ******************************************************************************
+ */
+abstract class IntArray {
+
+   abstract int get(int index);
+
+   abstract void set(int index, int value);
+
+   abstract int length();
+
+   /**
+    * ****************************************************************************
+    * Changes the length of the array, the elements below both lengths are kept
+    * and the new elements are 0
+    * ****************************************************************************
+    */
+   abstract void resize(int length);
+
+   static final class Heap extends IntArray {
+      private int[] elements;
+
+      Heap(int length){
+         this.elements = new int[length];
+      }
+
+      @Override
+      int get(int index){
+         return elements[index];
+      }
+
+      @Override
+      void set(int index, int value){
+         elements[index] = value;
+      }
+
+      @Override
+      int length(){
+         return elements.length;
+      }
+
+      @Override
+      void resize(int length){
+         elements = Arrays.copyOf(elements, length);
+      }
+   }
+
+   static final class OffHeap extends IntArray {
+      // Elements per page and index of an element in its page
+      private static final int SHIFT = CellStorage.PAGE_SHIFT - 2;
+      private static final int MASK = (1 << SHIFT) - 1;
+
+      private final CellStorage storage;
+      private ByteBuffer[] pages = new ByteBuffer[0];
+      private int length;
+
+      OffHeap(CellStorage storage, int length){
+         this.storage = storage;
+         resize(length);
+      }
+
+      // Array over the given pages, see CellStorage.mapIntArray
+      OffHeap(CellStorage storage, ByteBuffer[] pages, int length){
+         this.storage = storage;
+         this.pages = pages;
+         this.length = length;
+      }
+
+      @Override
+      int get(int index){
+         return pages[index >>> SHIFT].getInt((index & MASK) << 2);
+      }
+
+      @Override
+      void set(int index, int value){
+         pages[index >>> SHIFT].putInt((index & MASK) << 2, value);
+      }
+
+      @Override
+      int length(){
+         return length;
+      }
+
+      @Override
+      void resize(int length){
+         pages = storage.resize(pages, (long)length << 2);
+         this.length = length;
+      }
+   }
+}
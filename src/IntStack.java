@@ -0,0 +1,63 @@
+import java.util.Arrays;
+
+/**
+ * *******************************************************************
+ * File: IntStack.java
+ * Growable stack of primitive ints used for the DFS over the linear
+ * cell indices, so that pushing a cell does not allocate
+ * *********************************************************************
+ */
+class IntStack {
+   private int[] elements;
+   private int size;
+
+   IntStack(int initialCapacity){
+      this.elements = new int[Math.max(initialCapacity, 16)];
+   }
+
+   void push(int value){
+      if(size == elements.length){
+         elements = Arrays.copyOf(elements, elements.length << 1);
+      }
+      elements[size++] = value;
+   }
+
+   int pop(){
+      return elements[--size];
+   }
+
+   int peek(){
+      return elements[size - 1];
+   }
+
+   int get(int index){
+      return elements[index];
+   }
+
+   void set(int index, int value){
+      elements[index] = value;
+   }
+
+   /**
+    * Pops the count elements on top of the stack
+    */
+   void drop(int count){
+      size -= count;
+   }
+
+   int[] toArray(){
+      return Arrays.copyOf(elements, size);
+   }
+
+   boolean isEmpty(){
+      return size == 0;
+   }
+
+   int size(){
+      return size;
+   }
+
+   void clear(){
+      size = 0;
+   }
+}
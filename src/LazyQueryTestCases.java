@@ -0,0 +1,118 @@
+/**
+ * *******************************************************************
+ * File: LazyQueryTestCases.java
+ * *********************************************************************
+ */
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class LazyQueryTestCases {
+
+   // Only the cone of the requested cell is evaluated
+   @Test
+   public void evaluatesOnlyTheCone() {
+      String input[][] = {{"A2 A3 +", "A3 2 *", "4", "1 0 /"}, {"B2", "B3", "B1", "A4 1 +"}};
+      Spreadsheet spreadsheet = new Spreadsheet(input);
+      assertEquals(12.0, spreadsheet.valueOf("A1"), 0.0);
+      ByteArray visitStatus = spreadsheet.getVisitStatus();
+      assertEquals(Color.BLACK, visitStatus.get(0));
+      assertEquals(Color.BLACK, visitStatus.get(1));
+      assertEquals(Color.BLACK, visitStatus.get(2));
+      for(int cell = 3; cell < 8; cell++){
+         assertEquals(Color.WHITE, visitStatus.get(cell));
+      }
+   }
+
+   @Test
+   public void batchQuery() {
+      String input[][] = {{"A2 A3 +", "A3 2 *", "4", "A1:A3 SUM"}, {"", "B1 1 +", "A4 B2 *", "A4 A4 *"}};
+      Spreadsheet spreadsheet = new Spreadsheet(input);
+      assertArrayEquals(new double[]{24.0, 0.0, 1.0, 24.0}, spreadsheet.valuesOf("A4", "B1", "B2", "B3"), 0.0);
+      assertEquals("24.00000",spreadsheet.getFormattedValue(0,3));
+      assertEquals(Color.WHITE, spreadsheet.getVisitStatus().get(7));
+   }
+
+   // The edits invalidate the memoized cells which depend on them
+   @Test
+   public void editsInvalidateQueriedCells() {
+      String input[][] = {{"A2 1 +", "A3 2 *", "4"}, {"A1 A3 +", "5", "B2 ++"}};
+      Spreadsheet spreadsheet = new Spreadsheet(input);
+      assertEquals(13.0, spreadsheet.valueOf("B1"), 0.0);
+      spreadsheet.setCell("A3", "10");
+      assertEquals(21.0, spreadsheet.valueOf("A1"), 0.0);
+      assertEquals(31.0, spreadsheet.valueOf("B1"), 0.0);
+      spreadsheet.setCell("A2", "B2");
+      spreadsheet.recalculate();
+      assertEquals("6.00000",spreadsheet.getFormattedValue(0,0));
+      assertEquals("16.00000",spreadsheet.getFormattedValue(1,0));
+      assertEquals("6.00000",spreadsheet.getFormattedValue(1,2));
+   }
+
+   // After a full evaluation the queries only re-evaluate the cones of the edits
+   @Test
+   public void queriesAfterEvaluation() {
+      String input[][] = {{"A2 1 +", "3", "A2 A1 *"}, {"A3 2 /", "B1 A1 -", "7"}};
+      Spreadsheet spreadsheet = new Spreadsheet(input);
+      spreadsheet.evaluateSpreadSheet();
+      spreadsheet.setCell("A2", "5");
+      assertEquals(6.0, spreadsheet.valueOf("A1"), 0.0);
+      assertEquals(Color.WHITE, spreadsheet.getVisitStatus().get(3));
+      spreadsheet.recalculate();
+      assertEquals("15.00000",spreadsheet.getFormattedValue(1,0));
+      assertEquals("9.00000",spreadsheet.getFormattedValue(1,1));
+   }
+
+   // A failing cone does not prevent the other queries
+   @Test
+   public void errorInOneCone() {
+      String input[][] = {{"A2", "A1", "5"}, {"A3 0 /", "A3 1 +", "B2 A1 +"}};
+      Spreadsheet spreadsheet = new Spreadsheet(input);
+      try{
+         spreadsheet.valueOf("B3");
+         fail("Expected cycle at cell A1");
+      } catch (CycleDetectedException e){
+         assertEquals("Cycle detected at cell A1", e.getMessage());
+      }
+      assertEquals(6.0, spreadsheet.valueOf("B2"), 0.0);
+      try{
+         spreadsheet.valueOf("B1");
+         fail("Expected divide by zero at cell B1");
+      } catch (RPNDivideByZeroException e){
+         assertTrue(e.getMessage().endsWith("at cell B1 attempted to divide by zero"));
+      }
+      try{
+         spreadsheet.valueOf("B3");
+         fail("Expected cycle at cell A1");
+      } catch (CycleDetectedException e){
+         assertEquals("Cycle detected at cell A1", e.getMessage());
+      }
+   }
+
+   @Test
+   public void queriesWithErrorValues() {
+      String input[][] = {{"A2", "A1", "5"}, {"A3 0 /", "A3 1 +", "B2 A1 +"}};
+      Spreadsheet spreadsheet = new Spreadsheet(input);
+      spreadsheet.setErrorValues(true);
+      assertTrue(Double.isNaN(spreadsheet.valueOf("B3")));
+      assertEquals("#CYCLE",spreadsheet.getFormattedValue(1,2));
+      assertEquals("6.00000",spreadsheet.getFormattedValue(1,1));
+      assertTrue(Double.isNaN(spreadsheet.valueOf("B1")));
+      assertEquals("#ERR",spreadsheet.getFormattedValue(1,0));
+   }
+
+   @Test
+   public void invalidCellName() {
+      String input[][] = {{"1", "2"}};
+      try{
+         new Spreadsheet(input).valueOf("C1");
+         fail("Expected an invalid cell name");
+      } catch (IllegalArgumentException e){
+         assertEquals("Invalid cell name C1", e.getMessage());
+      }
+   }
+}
@@ -0,0 +1,43 @@
+/**
+ * *******************************************************************
+ * File: Opcode.java
+ * Instruction set of the compiled cell programs (see CompiledSheet)
+ * Every instruction is one opcode byte plus one int operand
+ * *********************************************************************
+ */
+final class Opcode {
+   static final byte END = 0;       // End of the cell program
+   static final byte CONST = 1;     // Push constants[operand]
+   static final byte REF = 2;       // Push the value of the cell in slot operand
+   static final byte ADD = 3;
+   static final byte SUBTRACT = 4;
+   static final byte MULTIPLY = 5;
+   static final byte DIVIDE = 6;
+   static final byte INCREMENT = 7;
+   static final byte DECREMENT = 8;
+   // Ends the program of a cell whose expression is not valid, evaluates to #ERR (see
+   // CellError) when operand is 0 or the spreadsheet is evaluated with error values,
+   // else throws the exception of the failure code operand (see ExpressionCompiler.newFailure)
+   static final byte ERROR = 9;
+   // Push the result of shared node operand, whose instructions follow (see SubexpressionTable)
+   static final byte SHARED = 10;
+   // Range aggregates, push the aggregate of the cells of range operand (see RangeIndex)
+   static final byte SUM = 11;
+   static final byte AVG = 12;
+   static final byte MIN = 13;
+   static final byte MAX = 14;
+
+   // Number of opcodes
+   static final int COUNT = 15;
+
+   private static final String[] NAMES = {"END", "CONST", "REF", "ADD", "SUBTRACT", "MULTIPLY", "DIVIDE",
+           "INCREMENT", "DECREMENT", "ERROR", "SHARED", "SUM", "AVG", "MIN", "MAX"};
+
+   private Opcode(){
+
+   }
+
+   static String name(byte opcode){
+      return NAMES[opcode];
+   }
+}
@@ -0,0 +1,86 @@
+/**
+ * *******************************************************************
+ * File: ParallelEvaluationTestCases.java
+ * *********************************************************************
+ */
+
+import org.junit.AfterClass;
+import org.junit.Test;
+
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class ParallelEvaluationTestCases {
+
+   private static final ForkJoinPool pool = new ForkJoinPool(4);
+
+   @AfterClass
+   public static void shutdownPool() {
+      pool.shutdown();
+   }
+
+   @Test
+   public void valueCheck() {
+      String input[][] = {{"A2", "4 5 *", "A1"}, {"A1 B2 / 2 +", "3", "39 B1 B2 * /"}};
+      Spreadsheet spreadsheet = new Spreadsheet(input);
+      spreadsheet.evaluateSpreadSheetInParallel(pool);
+      assertEquals("20.00000",spreadsheet.getFormattedValue(0,0));
+      assertEquals("20.00000",spreadsheet.getFormattedValue(0,1));
+      assertEquals("20.00000",spreadsheet.getFormattedValue(0,2));
+      assertEquals("8.66667",spreadsheet.getFormattedValue(1,0));
+      assertEquals("3.00000",spreadsheet.getFormattedValue(1,1));
+      assertEquals("1.50000",spreadsheet.getFormattedValue(1,2));
+   }
+
+   // Rows B-Z only reference the row above, so every row is one level
+   @Test
+   public void wideSpreadsheet() {
+      Random random = new Random(7);
+      String input[][] = new String[26][5000];
+      for(int j = 0; j < input[0].length; j++){
+         input[0][j] = String.valueOf(random.nextInt(100));
+      }
+      for(int i = 1; i < input.length; i++){
+         char above = (char)('A' + i - 1);
+         for(int j = 0; j < input[0].length; j++){
+            int other = random.nextInt(input[0].length) + 1;
+            input[i][j] = above + String.valueOf(j + 1) + " " + above + other + " + 2 /";
+         }
+      }
+      Spreadsheet sequential = new Spreadsheet(input);
+      sequential.evaluateSpreadSheet();
+      Spreadsheet parallel = new Spreadsheet(input);
+      parallel.evaluateSpreadSheetInParallel(pool);
+      for(int i = 0; i < input.length; i++){
+         for(int j = 0; j < input[0].length; j++){
+            assertEquals(sequential.getValue(i,j),parallel.getValue(i,j),0.0);
+         }
+      }
+   }
+
+   @Test
+   public void cycleTest() {
+      String input[][] = {{"B2 1 + B1 ++ +", "1 B2 + A1 + ++", "A2 B1 +"},
+              {"1 ++ B2 + A2 +", "1 1 + --", "A3 2 + 2 + --"}};
+      try{
+         new Spreadsheet(input).evaluateSpreadSheetInParallel(pool);
+         fail("Expected cycle at cell A1");
+      } catch (CycleDetectedException e){
+         assertEquals("Cycle detected at cell A1", e.getMessage());
+      }
+   }
+
+   @Test
+   public void divideByZeroInDependency() {
+      String input[][] = {{"A2 1 +", "A3 A4 /", "7", "B1 B1 -"}, {"2", "A1", "A1 A2 *", "3"}};
+      try{
+         new Spreadsheet(input).evaluateSpreadSheetInParallel(pool);
+         fail("Expecting RPNDivideByZeroException");
+      } catch (RPNDivideByZeroException e){
+         assertEquals("The RPN equation A3 A4 / at cell A2 attempted to divide by zero", e.getMessage());
+      }
+   }
+}
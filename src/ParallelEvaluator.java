@@ -0,0 +1,157 @@
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * ******************************************************************************
+ * File: ParallelEvaluator.java
+ * Evaluates a compiled spreadsheet level by level (Kahn's topological sort) on
+ * a ForkJoinPool
+ * Logic : The cells which do not reference any cell form the first level. All the
+ *         cells of a level are independent of each other and are evaluated in
+ *         parallel batches. Evaluating a cell decrements the outstanding reference
+ *         count of its dependents and a dependent whose count drops to zero is
+ *         appended to the next level. The levels are appended one after the other
+ *         to a single array, which therefore ends up holding a topological order
+ *         Cells which are part of a cycle, depend on a cycle or fail to evaluate
+ *         are left WHITE, so that the sequential DFS run afterwards on the remaining
+ *         cells reports exactly the same exception as a fully sequential evaluation
+ * ******************************************************************************
+ */
+class ParallelEvaluator {
+
+   // Number of cells evaluated by one task before it stops splitting
+   private static final int BATCH_SIZE = 1024;
+
+   /**
+    * ********************************************************
+    * Constructor is made private to prevent instantiation
+    * ********************************************************
+    */
+   private ParallelEvaluator(){
+
+   }
+
+   /**
+    * ****************************************************************************
+    * Evaluates all the cells of the spreadsheet whose dependency cone is free of
+    * cycles and errors, marking them BLACK
+    * @param spreadsheet
+    *         Spreadsheet whose programs are compiled and whose cells are all WHITE
+    * @param pool
+    *         The pool on which the levels are evaluated
+    * ****************************************************************************
+    */
+   static void evaluate(Spreadsheet spreadsheet, ForkJoinPool pool){
+      CompiledSheet program = spreadsheet.getCompiledSheet();
+      DependencyGraph graph = spreadsheet.getDependencyGraph();
+      int cellCount = graph.getCellCount();
+
+      AtomicIntegerArray remaining = new AtomicIntegerArray(cellCount);
+      int[] order = new int[cellCount];
+      int levelEnd = 0;
+      for(int cell = 0; cell < cellCount; cell++){
+         int count = graph.getReferenceCount(cell);
+         if(count == 0){
+            order[levelEnd++] = cell;
+         } else {
+            remaining.set(cell, count);
+         }
+      }
+
+      // The results of the shared nodes are not published safely between threads
+      program.newEpoch(false);
+      AtomicInteger orderSize = new AtomicInteger(levelEnd);
+      int levelStart = 0;
+      while(levelStart < levelEnd){
+         pool.invoke(new LevelTask(spreadsheet, graph, remaining, order, orderSize, levelStart, levelEnd));
+         levelStart = levelEnd;
+         levelEnd = orderSize.get();
+      }
+      program.newEpoch(true);
+   }
+
+   /**
+    * ****************************************************************************
+    * Evaluates the cells order[from] .. order[to - 1] of the current level and
+    * appends the dependents which become ready to the end of the order
+    * ****************************************************************************
+    */
+   private static class LevelTask extends RecursiveAction {
+      private static final long serialVersionUID = 1L;
+
+      private final Spreadsheet spreadsheet;
+      private final DependencyGraph graph;
+      private final AtomicIntegerArray remaining;
+      private final int[] order;
+      private final AtomicInteger orderSize;
+      private final int from;
+      private final int to;
+
+      LevelTask(Spreadsheet spreadsheet, DependencyGraph graph, AtomicIntegerArray remaining,
+                int[] order, AtomicInteger orderSize, int from, int to){
+         this.spreadsheet = spreadsheet;
+         this.graph = graph;
+         this.remaining = remaining;
+         this.order = order;
+         this.orderSize = orderSize;
+         this.from = from;
+         this.to = to;
+      }
+
+      @Override
+      protected void compute(){
+         if(to - from > BATCH_SIZE){
+            int middle = (from + to) >>> 1;
+            invokeAll(new LevelTask(spreadsheet, graph, remaining, order, orderSize, from, middle),
+                    new LevelTask(spreadsheet, graph, remaining, order, orderSize, middle, to));
+            return;
+         }
+         CompiledSheet program = spreadsheet.getCompiledSheet();
+         DoubleArray values = spreadsheet.getValues();
+         ByteArray visitStatus = spreadsheet.getVisitStatus();
+         double[] operandStack = CellExpressionEvaluator.getOperandStack(program.getMaxStackDepth());
+         IntStack ready = new IntStack(16);
+         // Counted apart and added once, the tasks run concurrently
+         EvaluationMetrics metrics = spreadsheet.getMetrics() == null ? null : new EvaluationMetrics();
+
+         for(int i = from; i < to; i++){
+            int cell = order[i];
+            double value;
+            try{
+               value = CellExpressionEvaluator.execute(program, program.getProgramStart(cell), values,
+                       operandStack, cell, spreadsheet);
+            } catch(IllegalArgumentException e){
+               // Left WHITE, the sequential pass reports the error
+               continue;
+            }
+            if(CellExpressionEvaluator.isErrorValue(value)){
+               // Left WHITE, the sequential pass records the error state
+               continue;
+            }
+            values.set(cell, value);
+            visitStatus.set(cell, Color.BLACK);
+            if(metrics != null){
+               metrics.cellEvaluated(program, program.getProgramStart(cell), 1);
+            }
+            for(int d = graph.getDependentStart(cell); d < graph.getDependentEnd(cell); d++){
+               int dependent = graph.getDependent(d);
+               if(remaining.decrementAndGet(dependent) == 0){
+                  ready.push(dependent);
+               }
+            }
+         }
+
+         if(metrics != null){
+            spreadsheet.getMetrics().add(metrics);
+         }
+         if(!ready.isEmpty()){
+            int position = orderSize.getAndAdd(ready.size());
+            while(!ready.isEmpty()){
+               order[position++] = ready.pop();
+            }
+         }
+      }
+   }
+}
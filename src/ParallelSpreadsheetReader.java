@@ -0,0 +1,271 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * ******************************************************************************
+ * File: ParallelSpreadsheetReader.java
+ * Loads the cells of a dense spreadsheet from a file on a ForkJoinPool
+ * Logic : The bytes of the cells are split into chunks of about CHUNK_SIZE bytes,
+ *         each starting at the beginning of a line (a \r\n is never split). The
+ *         lines of the chunks are counted in parallel, which gives the first cell
+ *         of every chunk. The chunks are then compiled in parallel, a wave at a
+ *         time, each one by its own SpreadsheetReader into its own CompiledSheet
+ *         and ExpressionText, and the chunks of a wave are appended in order to
+ *         the spreadsheet (see CompiledSheet.appendChunk). Only the chunks of one
+ *         wave are held at a time, so the extra memory stays bounded
+ *         The lines are read as by SpreadsheetReader.readSpreadsheet, so the
+ *         values of the cells, the texts and the errors thrown once evaluated are
+ *         those of the sequential load
+ * ******************************************************************************
+ */
+class ParallelSpreadsheetReader {
+
+   // Nominal size of a chunk, large enough for its first line to be found quickly
+   static final int CHUNK_SIZE = 1 << 24;
+
+   // Buffer of the reader of a chunk, grown for longer lines
+   private static final int BUFFER_SIZE = 1 << 20;
+
+   // Bytes read at a time while looking for the end of a line
+   private static final int SCAN_SIZE = 1 << 12;
+
+   /**
+    * ********************************************************
+    * Constructor is made private to prevent instantiation
+    * ********************************************************
+    */
+   private ParallelSpreadsheetReader(){
+
+   }
+
+   /**
+    * ****************************************************************************
+    * Compiles the lines of the file from start into the cells of the sheet, in
+    * row major order up to the last cell or the end of the file
+    * @param program
+    *         Dense compiled sheet without any cell program yet
+    * @param text
+    *         Empty store receiving the text of the cells which can fail
+    * @param chunkSize
+    *         Nominal size of a chunk, CHUNK_SIZE outside of the tests
+    * ****************************************************************************
+    */
+   static void compile(FileChannel file, long start, long end, CompiledSheet program, ExpressionText text,
+                       boolean errorValues, ForkJoinPool pool, int chunkSize) throws IOException {
+      long[] bounds = split(file, start, end, chunkSize);
+      Chunk[] chunks = new Chunk[bounds.length - 1];
+      for(int i = 0; i < chunks.length; i++){
+         chunks[i] = new Chunk(file, bounds[i], bounds[i + 1]);
+      }
+      run(pool, new ChunkTask(chunks, 0, chunks.length, null, errorValues));
+
+      int cellCount = program.getRowCount() * program.getColumnCount();
+      long firstCell = 0;
+      for(Chunk chunk : chunks){
+         chunk.firstCell = (int)Math.min(firstCell, cellCount);
+         chunk.cellCount = (int)Math.min(chunk.lineCount, cellCount - chunk.firstCell);
+         firstCell += chunk.lineCount;
+      }
+
+      int waveSize = pool.getParallelism() * 2;
+      for(int wave = 0; wave < chunks.length && chunks[wave].cellCount > 0; wave += waveSize){
+         int waveEnd = Math.min(chunks.length, wave + waveSize);
+         run(pool, new ChunkTask(chunks, wave, waveEnd, program, errorValues));
+         for(int i = wave; i < waveEnd; i++){
+            Chunk chunk = chunks[i];
+            if(chunk.program != null){
+               program.appendChunk(chunk.program, chunk.firstCell, chunk.cellCount);
+               text.append(chunk.text);
+            }
+            chunks[i] = null;
+         }
+      }
+   }
+
+   private static void run(ForkJoinPool pool, ChunkTask task) throws IOException {
+      try{
+         pool.invoke(task);
+      } catch(UncheckedIOException e){
+         throw e.getCause();
+      }
+   }
+
+   /*
+    * Bounds of the chunks of the bytes from start to end: start, the beginning of
+    * the first line following every multiple of chunkSize, then end
+    */
+   private static long[] split(FileChannel file, long start, long end, int chunkSize) throws IOException {
+      long[] bounds = new long[16];
+      int count = 0;
+      bounds[count++] = start;
+      long bound = start;
+      while(true){
+         bound = nextLineStart(file, bound + chunkSize, end);
+         if(bound >= end){
+            break;
+         }
+         if(count + 1 == bounds.length){
+            bounds = Arrays.copyOf(bounds, count << 1);
+         }
+         bounds[count++] = bound;
+      }
+      bounds[count++] = end;
+      return Arrays.copyOf(bounds, count);
+   }
+
+   /*
+    * Position following the first line terminator (\n, \r or \r\n) at or after
+    * position, end if there is none
+    */
+   private static long nextLineStart(FileChannel file, long position, long end) throws IOException {
+      ByteBuffer scan = ByteBuffer.allocate(SCAN_SIZE + 1);
+      boolean carriageReturn = false;
+      while(position < end){
+         scan.clear();
+         scan.limit((int)Math.min(scan.capacity(), end - position));
+         int read = file.read(scan, position);
+         if(read <= 0){
+            return end;
+         }
+         for(int i = 0; i < read; i++){
+            byte b = scan.get(i);
+            if(carriageReturn){
+               return b == '\n' ? position + i + 1 : position + i;
+            }
+            if(b == '\n'){
+               return position + i + 1;
+            }
+            carriageReturn = b == '\r';
+         }
+         position += read;
+      }
+      return end;
+   }
+
+   /*
+    * Bytes of a chunk and, once compiled, its programs and texts
+    */
+   private static final class Chunk {
+      private final FileChannel file;
+      private final long start;
+      private final long end;
+      private long lineCount;
+      private int firstCell;
+      private int cellCount;
+      private CompiledSheet program;
+      private ExpressionText text;
+
+      Chunk(FileChannel file, long start, long end){
+         this.file = file;
+         this.start = start;
+         this.end = end;
+      }
+
+      SpreadsheetReader newReader(){
+         return new SpreadsheetReader(new Region(file, start, end), new byte[BUFFER_SIZE]);
+      }
+   }
+
+   /**
+    * ****************************************************************************
+    * Counts the lines (count pass) or compiles the cells (compile pass) of the
+    * chunks from .. to - 1, one chunk per task
+    * ****************************************************************************
+    */
+   private static class ChunkTask extends RecursiveAction {
+      private static final long serialVersionUID = 1L;
+
+      private final Chunk[] chunks;
+      private final int from;
+      private final int to;
+      // The sheet being loaded when compiling, null when counting
+      private final CompiledSheet sheet;
+      private final boolean errorValues;
+
+      ChunkTask(Chunk[] chunks, int from, int to, CompiledSheet sheet, boolean errorValues){
+         this.chunks = chunks;
+         this.from = from;
+         this.to = to;
+         this.sheet = sheet;
+         this.errorValues = errorValues;
+      }
+
+      @Override
+      protected void compute(){
+         if(to - from > 1){
+            int middle = (from + to) >>> 1;
+            invokeAll(new ChunkTask(chunks, from, middle, sheet, errorValues),
+                    new ChunkTask(chunks, middle, to, sheet, errorValues));
+            return;
+         }
+         Chunk chunk = chunks[from];
+         try{
+            SpreadsheetReader reader = chunk.newReader();
+            if(sheet == null){
+               reader.skipLines(Long.MAX_VALUE);
+               chunk.lineCount = reader.getLineCount();
+            } else if(chunk.cellCount > 0){
+               // The cells of the chunk take its first slots, see CompiledSheet.appendChunk
+               CompiledSheet program = new CompiledSheet(sheet.getRowCount(), sheet.getColumnCount(), true);
+               for(int cell = chunk.firstCell; cell < chunk.firstCell + chunk.cellCount; cell++){
+                  program.addSlot(cell);
+               }
+               ExpressionText text = new ExpressionText();
+               reader.compileLines(program, text, chunk.firstCell, chunk.firstCell + chunk.cellCount, false,
+                       errorValues);
+               chunk.program = program;
+               chunk.text = text;
+            }
+         } catch(IOException e){
+            throw new UncheckedIOException(e);
+         }
+      }
+   }
+
+   /*
+    * Channel reading the bytes of the file from start to end
+    */
+   private static final class Region implements ReadableByteChannel {
+      private final FileChannel file;
+      private final long end;
+      private long position;
+
+      Region(FileChannel file, long start, long end){
+         this.file = file;
+         this.position = start;
+         this.end = end;
+      }
+
+      @Override
+      public int read(ByteBuffer destination) throws IOException {
+         if(position >= end){
+            return -1;
+         }
+         int limit = destination.limit();
+         if(destination.remaining() > end - position){
+            destination.limit(destination.position() + (int)(end - position));
+         }
+         int read = file.read(destination, position);
+         destination.limit(limit);
+         if(read > 0){
+            position += read;
+         }
+         return read;
+      }
+
+      @Override
+      public boolean isOpen(){
+         return true;
+      }
+
+      @Override
+      public void close(){
+      }
+   }
+}
@@ -0,0 +1,120 @@
+/**
+ * *******************************************************************
+ * File: ParallelSpreadsheetReaderTestCases.java
+ * *********************************************************************
+ */
+
+import org.junit.AfterClass;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class ParallelSpreadsheetReaderTestCases {
+
+   private static final ForkJoinPool pool = new ForkJoinPool(4);
+
+   // Chunks of a few lines, so that every input is split
+   private static final int CHUNK_SIZE = 8;
+
+   @AfterClass
+   public static void shutdownPool(){
+      pool.shutdown();
+   }
+
+   private static Spreadsheet load(String input, boolean inParallel, boolean errorValues) throws IOException {
+      Path file = Files.createTempFile("spreadsheet", ".txt");
+      try{
+         Files.write(file, input.getBytes(StandardCharsets.UTF_8));
+         SpreadsheetReader reader = SpreadsheetReader.open(file.toString());
+         try{
+            String[] dimensions = reader.readLine().trim().split(" ");
+            int rowCount = Integer.parseInt(dimensions[1]);
+            int columnCount = Integer.parseInt(dimensions[0]);
+            return inParallel
+                    ? reader.readSpreadsheetInParallel(rowCount, columnCount, errorValues, CellStorage.HEAP, pool,
+                    CHUNK_SIZE)
+                    : reader.readSpreadsheet(rowCount, columnCount, false, errorValues, CellStorage.HEAP);
+         } finally {
+            reader.close();
+         }
+      } finally {
+         Files.delete(file);
+      }
+   }
+
+   // The parallel load evaluates to the values of the sequential one
+   private static Spreadsheet assertSameLoad(String input, boolean errorValues) throws IOException {
+      Spreadsheet expected = load(input, false, errorValues);
+      Spreadsheet actual = load(input, true, errorValues);
+      expected.evaluateSpreadSheet();
+      actual.evaluateSpreadSheet();
+      for(int i = 0; i < expected.getRowCount(); i++){
+         for(int j = 0; j < expected.getColumnCount(); j++){
+            assertEquals(expected.getFormattedValue(i,j),actual.getFormattedValue(i,j));
+         }
+      }
+      return actual;
+   }
+
+   @Test
+   public void valueCheck() throws IOException {
+      Spreadsheet spreadsheet = assertSameLoad("3 2\nA2\n4 5 *\nA1\nA1 B2 / 2 +\n3\n39 B1 B2 * /\n", false);
+      assertEquals("20.00000",spreadsheet.getFormattedValue(0,0));
+      assertEquals("1.50000",spreadsheet.getFormattedValue(1,2));
+   }
+
+   // \r\n and \r terminators, empty lines and input ending before the last cells
+   @Test
+   public void lineTerminators() throws IOException {
+      Spreadsheet spreadsheet = assertSameLoad("3 3\r\n1 2 +\r\n\r\rA1 ++\r\n2.5\r\rA1:B2 SUM\r\nC1 1 +", false);
+      assertEquals("9.50000",spreadsheet.getFormattedValue(2,0));
+      assertEquals("0.00000",spreadsheet.getFormattedValue(2,2));
+   }
+
+   // More lines than cells, the last ones are not read
+   @Test
+   public void extraLines() throws IOException {
+      assertSameLoad("2 1\n1\nA1 1 +\nnot a cell\n\nnot a cell either\n", false);
+   }
+
+   // Repeated subexpressions, ranges and constants in every chunk
+   @Test
+   public void repeatedExpressions() throws IOException {
+      StringBuilder input = new StringBuilder("50 4\n");
+      for(int cell = 0; cell < 200; cell++){
+         char row = (char)('A' + cell / 50 - 1);
+         int column = cell % 50 + 1;
+         input.append(row < 'A' ? Integer.toString(column) : row + "1 " + row + column + " + 2 * " + row + "1:"
+                 + row + "50 MAX /");
+         input.append('\n');
+      }
+      assertSameLoad(input.toString(), false);
+   }
+
+   // The error reported is the one of the first cell in error, once evaluated
+   @Test
+   public void firstError() throws IOException {
+      Spreadsheet spreadsheet = load("2 4\n1\n2\n3\n4\n5\n6 +\n7\n8 -\n", true, false);
+      try{
+         spreadsheet.evaluateSpreadSheet();
+         fail("Invalid expression accepted");
+      } catch(RPNUnderflowException e){
+         assertEquals("Operator + occured before there were enough numerical values for it to evaluate in "
+                 + "the expression 6 + at cell C2", e.getMessage());
+      }
+   }
+
+   @Test
+   public void errorValues() throws IOException {
+      Spreadsheet spreadsheet = assertSameLoad("2 3\n1 +\nA1 1 +\nC2\n4\n5 0 /\nB1\n", true);
+      assertEquals("#ERR",spreadsheet.getFormattedValue(0,0));
+      assertEquals("#CYCLE",spreadsheet.getFormattedValue(1,0));
+   }
+}
@@ -0,0 +1,351 @@
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * ******************************************************************************
+ * File: PipelinedEvaluator.java
+ * Reads, evaluates and prints a dense spreadsheet at the same time instead of in
+ * three phases
+ * Logic : A thread reads the input ahead and a thread writes the output behind,
+ *         each through a queue of at most QUEUED_BUFFERS buffers, so the I/O
+ *         overlaps the compilation and the evaluation without buffering more
+ *         than a few megabytes. The cells are compiled by batches of BATCH_SIZE
+ *         cells in row major order. The cells 0 .. n - 1 form a closed prefix
+ *         when none of them references a cell past n - 1 (directly or through a
+ *         range), their cones are then compiled, so after every batch the cells
+ *         of the longest closed prefix which are not printed yet are evaluated by
+ *         the DFS (see CellExpressionEvaluator) and printed right away. The cells
+ *         compiled past the closed prefix wait for the prefix to close, which
+ *         happens at every cell of a sheet referencing only the cells above and
+ *         to the left, so only a batch of cells waits for its evaluation then.
+ *         The values are the ones of Spreadsheet.evaluateSpreadSheet
+ *         The cells are evaluated in the order of evaluateSpreadSheet, so the
+ *         first cell which fails to evaluate (or whose expression is not valid)
+ *         is reported as by evaluateSpreadSheet, without reading the rest of the
+ *         input. The cells before it are printed already
+ * ******************************************************************************
+ */
+final class PipelinedEvaluator {
+
+   // Cells compiled, or evaluated and printed, at a time
+   static final int BATCH_SIZE = 1 << 14;
+
+   // Buffers (see BufferPool) queued between the reading or writing thread and the pipeline
+   private static final int QUEUED_BUFFERS = 4;
+
+   // Marks the end of the input or of the output in a queue
+   private static final ByteBuffer END = ByteBuffer.allocate(0);
+
+   /**
+    * ********************************************************
+    * Constructor is made private to prevent instantiation
+    * ********************************************************
+    */
+   private PipelinedEvaluator(){
+
+   }
+
+   /**
+    * ****************************************************************************
+    * Reader of the file at path (standard input when null) read ahead by a thread
+    * ****************************************************************************
+    */
+   static SpreadsheetReader openReader(String path) throws IOException {
+      ReadableByteChannel channel = path == null ? new FileInputStream(FileDescriptor.in).getChannel()
+              : FileChannel.open(Paths.get(path), StandardOpenOption.READ);
+      return new SpreadsheetReader(new ReadAhead(channel));
+   }
+
+   /**
+    * ****************************************************************************
+    * Writer creating (or truncating) the file at path (the standard output, which
+    * is not closed, when null) written behind by a thread. The output is only
+    * complete once the writer is closed
+    * ****************************************************************************
+    */
+   static SpreadsheetWriter openWriter(String path) throws IOException {
+      if(path == null){
+         return new SpreadsheetWriter(new WriteBehind(new FileOutputStream(FileDescriptor.out).getChannel(), false));
+      }
+      return new SpreadsheetWriter(new WriteBehind(FileChannel.open(Paths.get(path), StandardOpenOption.WRITE,
+              StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING), true));
+   }
+
+   /**
+    * ****************************************************************************
+    * Compiles the cells read by the reader, from the line following the dimensions,
+    * while evaluating and writing the cells whose cones are compiled
+    * @param dimensions
+    *         The dimensions line as read from the input, written first
+    * @param metrics
+    *         Metrics collecting the evaluation as a single evaluate phase, or null
+    * @return the evaluated spreadsheet
+    * @throws IllegalArgumentException
+    *             when a cell cannot be evaluated or its expression is not a valid
+    *             RPN expression, unless errorValues (see calcRPN)
+    * ****************************************************************************
+    */
+   static Spreadsheet evaluate(SpreadsheetReader reader, String dimensions, int rowCount, int columnCount,
+                               boolean errorValues, CellStorage storage, SpreadsheetWriter writer,
+                               EvaluationMetrics metrics) throws IOException {
+      CompiledSheet program = new CompiledSheet(rowCount, columnCount, false, storage);
+      ExpressionText text = new ExpressionText();
+      Spreadsheet spreadsheet = new Spreadsheet(program, text);
+      spreadsheet.setErrorValues(errorValues);
+      spreadsheet.setMetrics(metrics);
+      if(metrics != null){
+         metrics.begin(EvaluationMetrics.EVALUATE);
+      }
+      try{
+         spreadsheet.beginPipeline();
+         writer.writeLine(dimensions);
+         int cellCount = rowCount * columnCount;
+         int compiled = 0;
+         // Largest cell referenced by the cells compiled so far, or the last of them
+         int reach = -1;
+         int closed = 0;
+         int printed = 0;
+         while(compiled < cellCount){
+            int end = compiled + Math.min(BATCH_SIZE, cellCount - compiled);
+            int read = reader.compileLines(program, text, compiled, end, false, errorValues);
+            spreadsheet.cellsCompiled(compiled, read);
+            for(int cell = compiled; cell < read; cell++){
+               reach = Math.max(reach, lastReference(program, cell));
+               if(reach <= cell){
+                  closed = cell + 1;
+               }
+            }
+            // The cells past the end of the input are empty
+            compiled = read < end ? cellCount : end;
+            if(compiled == cellCount){
+               closed = cellCount;
+            }
+            while(printed < closed){
+               int to = printed + Math.min(BATCH_SIZE, closed - printed);
+               spreadsheet.evaluateCells(printed, to);
+               writeCells(spreadsheet, printed, to, writer);
+               printed = to;
+            }
+         }
+      } finally {
+         if(metrics != null){
+            metrics.end();
+         }
+      }
+      spreadsheet.endPipeline();
+      return spreadsheet;
+   }
+
+   /*
+    * Largest cell referenced by the program of the cell, or the cell itself
+    */
+   private static int lastReference(CompiledSheet program, int cell){
+      int last = cell;
+      for(int pc = program.getProgramStart(cell); program.opcode(pc) != Opcode.END; pc++){
+         if(program.opcode(pc) == Opcode.REF){
+            last = Math.max(last, program.operand(pc));
+         } else if(program.opcode(pc) >= Opcode.SUM){
+            last = Math.max(last, program.getRangeLast(program.operand(pc)));
+         }
+      }
+      return last;
+   }
+
+   /*
+    * Writes the values of the evaluated cells from .. to - 1 of the dense sheet
+    */
+   private static void writeCells(Spreadsheet spreadsheet, int from, int to, SpreadsheetWriter writer)
+           throws IOException {
+      DoubleArray values = spreadsheet.getValues();
+      ByteArray errors = spreadsheet.getErrors();
+      for(int cell = from; cell < to; cell++){
+         if(errors != null && errors.get(cell) != CellError.NONE){
+            writer.writeLine(CellError.text(errors.get(cell)));
+         } else {
+            writer.writeValue(values.get(cell));
+         }
+      }
+   }
+
+   /*
+    * Channel handing the bytes read by a thread from the underlying channel
+    */
+   private static final class ReadAhead implements ReadableByteChannel {
+      private final ReadableByteChannel channel;
+      private final BlockingQueue<ByteBuffer> filled = new ArrayBlockingQueue<ByteBuffer>(QUEUED_BUFFERS);
+      private final Thread thread;
+      private volatile IOException failure;
+      private ByteBuffer current;
+      private boolean open = true;
+
+      ReadAhead(ReadableByteChannel channel){
+         this.channel = channel;
+         this.thread = new Thread(this::readAhead, "spreadsheet-read-ahead");
+         thread.setDaemon(true);
+         thread.start();
+      }
+
+      private void readAhead(){
+         try{
+            try{
+               while(true){
+                  ByteBuffer buffer = ByteBuffer.wrap(BufferPool.take());
+                  if(channel.read(buffer) < 0){
+                     BufferPool.give(buffer.array());
+                     break;
+                  }
+                  buffer.flip();
+                  filled.put(buffer);
+               }
+            } catch(IOException e){
+               failure = e;
+            }
+            filled.put(END);
+         } catch(InterruptedException e){
+            // Closed
+         }
+      }
+
+      @Override
+      public int read(ByteBuffer destination) throws IOException {
+         if(current == END){
+            return -1;
+         }
+         if(current == null || !current.hasRemaining()){
+            if(current != null){
+               BufferPool.give(current.array());
+            }
+            try{
+               current = filled.take();
+            } catch(InterruptedException e){
+               throw new InterruptedIOException();
+            }
+            if(current == END){
+               if(failure != null){
+                  throw failure;
+               }
+               return -1;
+            }
+         }
+         int length = Math.min(current.remaining(), destination.remaining());
+         int limit = current.limit();
+         current.limit(current.position() + length);
+         destination.put(current);
+         current.limit(limit);
+         return length;
+      }
+
+      @Override
+      public boolean isOpen(){
+         return open;
+      }
+
+      @Override
+      public void close() throws IOException {
+         open = false;
+         thread.interrupt();
+         channel.close();
+      }
+   }
+
+   /*
+    * Channel handing the bytes written to a thread writing them to the underlying
+    * channel, close waits until they are all written
+    */
+   private static final class WriteBehind implements WritableByteChannel {
+      private final WritableByteChannel channel;
+      private final boolean closeChannel;
+      private final BlockingQueue<ByteBuffer> queued = new ArrayBlockingQueue<ByteBuffer>(QUEUED_BUFFERS);
+      private final Thread thread;
+      private volatile IOException failure;
+      private boolean open = true;
+
+      WriteBehind(WritableByteChannel channel, boolean closeChannel){
+         this.channel = channel;
+         this.closeChannel = closeChannel;
+         this.thread = new Thread(this::writeBehind, "spreadsheet-write-behind");
+         thread.setDaemon(true);
+         thread.start();
+      }
+
+      private void writeBehind(){
+         try{
+            while(true){
+               ByteBuffer buffer = queued.take();
+               if(buffer == END){
+                  return;
+               }
+               // After a failure the buffers are only given back, so that write never blocks
+               if(failure == null){
+                  try{
+                     while(buffer.hasRemaining()){
+                        channel.write(buffer);
+                     }
+                  } catch(IOException e){
+                     failure = e;
+                  }
+               }
+               BufferPool.give(buffer.array());
+            }
+         } catch(InterruptedException e){
+            // Closed
+         }
+      }
+
+      @Override
+      public int write(ByteBuffer source) throws IOException {
+         if(failure != null){
+            throw failure;
+         }
+         int length = source.remaining();
+         try{
+            while(source.hasRemaining()){
+               byte[] buffer = BufferPool.take();
+               int count = Math.min(buffer.length, source.remaining());
+               source.get(buffer, 0, count);
+               queued.put(ByteBuffer.wrap(buffer, 0, count));
+            }
+         } catch(InterruptedException e){
+            throw new InterruptedIOException();
+         }
+         return length;
+      }
+
+      @Override
+      public boolean isOpen(){
+         return open;
+      }
+
+      @Override
+      public void close() throws IOException {
+         if(!open){
+            return;
+         }
+         open = false;
+         try{
+            queued.put(END);
+            thread.join();
+         } catch(InterruptedException e){
+            throw new InterruptedIOException();
+         } finally {
+            if(closeChannel){
+               channel.close();
+            }
+         }
+         if(failure != null){
+            throw failure;
+         }
+      }
+   }
+}
@@ -0,0 +1,176 @@
+/**
+ * *******************************************************************
+ * File: PipelinedEvaluatorTestCases.java
+ * *********************************************************************
+ */
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class PipelinedEvaluatorTestCases {
+
+   private static SpreadsheetReader reader(String input) {
+      return new SpreadsheetReader(Channels.newChannel(
+              new ByteArrayInputStream(input.getBytes(StandardCharsets.UTF_8))));
+   }
+
+   // Output of the phases read, evaluate and print
+   private static String evaluateInPhases(String input, boolean errorValues) throws IOException {
+      SpreadsheetReader reader = reader(input);
+      String dimensions = reader.readLine();
+      String[] counts = dimensions.split(" ");
+      Spreadsheet spreadsheet = reader.readSpreadsheet(Integer.parseInt(counts[1]), Integer.parseInt(counts[0]),
+              false, errorValues);
+      spreadsheet.evaluateSpreadSheet();
+      ByteArrayOutputStream output = new ByteArrayOutputStream();
+      SpreadsheetWriter writer = new SpreadsheetWriter(Channels.newChannel(output));
+      spreadsheet.write(writer, dimensions);
+      writer.flush();
+      return output.toString("UTF-8");
+   }
+
+   private static String evaluatePipelined(String input, boolean errorValues) throws IOException {
+      SpreadsheetReader reader = reader(input);
+      String dimensions = reader.readLine();
+      String[] counts = dimensions.split(" ");
+      ByteArrayOutputStream output = new ByteArrayOutputStream();
+      SpreadsheetWriter writer = new SpreadsheetWriter(Channels.newChannel(output));
+      PipelinedEvaluator.evaluate(reader, dimensions, Integer.parseInt(counts[1]), Integer.parseInt(counts[0]),
+              errorValues, CellStorage.HEAP, writer, null);
+      writer.flush();
+      return output.toString("UTF-8");
+   }
+
+   private static void assertSameOutput(String input, boolean errorValues) throws IOException {
+      assertEquals(evaluateInPhases(input, errorValues), evaluatePipelined(input, errorValues));
+   }
+
+   // Message of the exception thrown by the evaluation
+   private static String failure(String input, boolean pipelined) throws IOException {
+      try{
+         if(pipelined){
+            evaluatePipelined(input, false);
+         } else {
+            evaluateInPhases(input, false);
+         }
+      } catch(RuntimeException e){
+         return e.getMessage();
+      }
+      fail("No exception thrown");
+      return null;
+   }
+
+   // Column of cells each adding one to a cell above, every forwardEvery cells one
+   // references a cell further down instead (and is not referenced)
+   private static String column(int rowCount, int forwardEvery, int forwardDistance){
+      StringBuilder input = new StringBuilder("1 ").append(rowCount).append('\n');
+      input.append("1\n");
+      for(int row = 1; row < rowCount; row++){
+         int reference = row % forwardEvery == 0 ? Math.min(rowCount - 1, row + forwardDistance)
+                 : (row - 1) % forwardEvery == 0 && row > 1 ? row - 2 : row - 1;
+         input.append(ExpressionCompiler.getCellName(reference, 0)).append(" 1 +\n");
+      }
+      return input.toString();
+   }
+
+   @Test
+   public void smallSheet() throws IOException {
+      assertSameOutput("3 2\nA2\n4 5 *\nA1\nA1 B2 / 2 +\n3\n39 B1 B2 * /\n", false);
+   }
+
+   // Several batches of cells referencing the cells above
+   @Test
+   public void backwardReferences() throws IOException {
+      assertSameOutput(column(3 * PipelinedEvaluator.BATCH_SIZE + 5, Integer.MAX_VALUE, 0), false);
+   }
+
+   // Forward references delay the evaluation of the cells up to the cell referenced
+   @Test
+   public void forwardReferences() throws IOException {
+      assertSameOutput(column(3 * PipelinedEvaluator.BATCH_SIZE, 1000, PipelinedEvaluator.BATCH_SIZE + 7), false);
+   }
+
+   @Test
+   public void rangesAndSharedSubexpressions() throws IOException {
+      StringBuilder input = new StringBuilder("4 6000\n");
+      for(int row = 0; row < 6000; row++){
+         for(int column = 0; column < 4; column++){
+            if(row == 0){
+               input.append(column + 1);
+            } else if(column == 3 && row % 500 == 0){
+               // A range ending below the current row
+               input.append(ExpressionCompiler.getCellName(row - 1, 0)).append(':')
+                       .append(ExpressionCompiler.getCellName(row + 1, 2)).append(" MAX");
+            } else {
+               String above = ExpressionCompiler.getCellName(row - 1, column);
+               input.append(above).append(' ').append(above).append(" 2 * + ")
+                       .append(ExpressionCompiler.getCellName(row - 1, 0)).append(':')
+                       .append(ExpressionCompiler.getCellName(row - 1, 2)).append(" SUM 1 + /");
+            }
+            input.append('\n');
+         }
+      }
+      assertSameOutput(input.toString(), false);
+   }
+
+   // Empty lines and input ending before the last cells
+   @Test
+   public void shortInput() throws IOException {
+      assertSameOutput("3 3\n1 2 +\n\nA1 ++\r\nA2\r\n", false);
+   }
+
+   @Test
+   public void errorValues() throws IOException {
+      assertSameOutput("3 3\n1 +\nA1 1 +\nC2\n4\n5 0 /\nB1 1 +\nC3\nB3 B1 +\nC3 1 +\n", true);
+   }
+
+   // The first cell in error is reported
+   @Test
+   public void failures() throws IOException {
+      String cycle = "2 2\nB1\n1\nA1\n2\n";
+      assertEquals(failure(cycle, false), failure(cycle, true));
+      String divisionByZero = "2 2\n1\nA1 0 /\nA2 1 +\n2\n";
+      assertEquals(failure(divisionByZero, false), failure(divisionByZero, true));
+      // A cycle in the first batch wins over an invalid expression in the second one
+      StringBuilder invalidAfterCycle = new StringBuilder("1 ").append(PipelinedEvaluator.BATCH_SIZE + 3)
+              .append("\nB1\nA1\n");
+      for(int row = 2; row < PipelinedEvaluator.BATCH_SIZE + 2; row++){
+         invalidAfterCycle.append("1\n");
+      }
+      invalidAfterCycle.append("3 *\n");
+      assertEquals(failure(invalidAfterCycle.toString(), false), failure(invalidAfterCycle.toString(), true));
+      assertEquals("Cycle detected at cell A1", failure(invalidAfterCycle.toString(), true));
+   }
+
+   // Read ahead and written behind by the threads of the pipeline
+   @Test
+   public void files() throws IOException {
+      String input = column(PipelinedEvaluator.BATCH_SIZE + 3, 100, 10);
+      Path inputFile = Files.createTempFile("spreadsheet", ".txt");
+      Path outputFile = Files.createTempFile("spreadsheet", ".out");
+      try{
+         Files.write(inputFile, input.getBytes(StandardCharsets.UTF_8));
+         SpreadsheetReader reader = PipelinedEvaluator.openReader(inputFile.toString());
+         SpreadsheetWriter writer = PipelinedEvaluator.openWriter(outputFile.toString());
+         String dimensions = reader.readLine();
+         PipelinedEvaluator.evaluate(reader, dimensions, PipelinedEvaluator.BATCH_SIZE + 3, 1, false,
+                 CellStorage.HEAP, writer, null);
+         reader.close();
+         writer.close();
+         assertEquals(evaluateInPhases(input, false), new String(Files.readAllBytes(outputFile), StandardCharsets.UTF_8));
+      } finally {
+         Files.deleteIfExists(inputFile);
+         Files.deleteIfExists(outputFile);
+      }
+   }
+}
@@ -19,7 +19,7 @@ public class RPNEvaluationIncDecrTestCases {
       input[0][0] = "23.3 5 16.2 + -8 * - ++";
       Spreadsheet spreadsheet = new Spreadsheet(input);
       spreadsheet.evaluateSpreadSheet();
-      assertEquals(String.format("%.5f", 193.9),input[0][0]);
+      assertEquals(String.format("%.5f", 193.9),spreadsheet.getFormattedValue(0,0));
    }
 
    @Test
@@ -28,7 +28,7 @@ public class RPNEvaluationIncDecrTestCases {
       input[0][0] = "23.3 5 16.2 + -8 * - --";
       Spreadsheet spreadsheet = new Spreadsheet(input);
       spreadsheet.evaluateSpreadSheet();
-      assertEquals(String.format("%.5f", 191.9),input[0][0]);
+      assertEquals(String.format("%.5f", 191.9),spreadsheet.getFormattedValue(0,0));
    }
 
    @Test
@@ -37,7 +37,7 @@ public class RPNEvaluationIncDecrTestCases {
       input[0][0] = "2 3 ++ / 3 -- -2 / *";
       Spreadsheet spreadsheet = new Spreadsheet(input);
       spreadsheet.evaluateSpreadSheet();
-      assertEquals(String.format("%.5f",-0.5),input[0][0]);
+      assertEquals(String.format("%.5f",-0.5),spreadsheet.getFormattedValue(0,0));
    }
 
    @Test
@@ -46,7 +46,7 @@ public class RPNEvaluationIncDecrTestCases {
       input[0][0] = "3 ++";
       Spreadsheet spreadsheet = new Spreadsheet(input);
       spreadsheet.evaluateSpreadSheet();
-      assertEquals(String.format("%.5f",4.0),input[0][0]);
+      assertEquals(String.format("%.5f",4.0),spreadsheet.getFormattedValue(0,0));
    }
 
    @Test
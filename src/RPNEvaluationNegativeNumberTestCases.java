@@ -19,7 +19,7 @@ public class RPNEvaluationNegativeNumberTestCases {
       input[0][0] = "23.3 5 16.2 + -8 * -";
       Spreadsheet spreadsheet = new Spreadsheet(input);
       spreadsheet.evaluateSpreadSheet();
-      assertEquals(String.format("%.5f", 192.9),input[0][0]);
+      assertEquals(String.format("%.5f", 192.9),spreadsheet.getFormattedValue(0,0));
    }
 
    @Test
@@ -28,7 +28,7 @@ public class RPNEvaluationNegativeNumberTestCases {
       input[0][0] = "2 3 / 3 -2 / *";
       Spreadsheet spreadsheet = new Spreadsheet(input);
       spreadsheet.evaluateSpreadSheet();
-      assertEquals(String.format("%.5f",-1.0),input[0][0]);
+      assertEquals(String.format("%.5f",-1.0),spreadsheet.getFormattedValue(0,0));
    }
 
    @Test
@@ -19,7 +19,7 @@ public class RPNEvaluationTestCases {
       input[0][0] = "23.3 5 16.2 + 8 * -";
       Spreadsheet spreadsheet = new Spreadsheet(input);
       spreadsheet.evaluateSpreadSheet();
-      assertEquals(String.format("%.5f", -146.3),input[0][0]);
+      assertEquals(String.format("%.5f", -146.3),spreadsheet.getFormattedValue(0,0));
    }
 
    @Test
@@ -28,7 +28,7 @@ public class RPNEvaluationTestCases {
       input[0][0] = "2 3 / 3 2 / *";
       Spreadsheet spreadsheet = new Spreadsheet(input);
       spreadsheet.evaluateSpreadSheet();
-      assertEquals(String.format("%.5f",1.0),input[0][0]);
+      assertEquals(String.format("%.5f",1.0),spreadsheet.getFormattedValue(0,0));
    }
 
    @Test
@@ -37,7 +37,7 @@ public class RPNEvaluationTestCases {
       input[0][0] = null;
       Spreadsheet spreadsheet = new Spreadsheet(input);
       spreadsheet.evaluateSpreadSheet();
-      assertEquals("0.00000",input[0][0]);
+      assertEquals("0.00000",spreadsheet.getFormattedValue(0,0));
    }
 
    @Test
@@ -46,7 +46,7 @@ public class RPNEvaluationTestCases {
       input[0][0] = "";
       Spreadsheet spreadsheet = new Spreadsheet(input);
       spreadsheet.evaluateSpreadSheet();
-      assertEquals("0.00000",input[0][0]);
+      assertEquals("0.00000",spreadsheet.getFormattedValue(0,0));
    }
 
    @Test
@@ -0,0 +1,93 @@
+/**
+ * *******************************************************************
+ * File: RangeAggregateTestCases.java
+ * *********************************************************************
+ */
+
+import org.junit.AfterClass;
+import org.junit.Test;
+
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class RangeAggregateTestCases {
+
+   private static final ForkJoinPool pool = new ForkJoinPool(4);
+
+   @AfterClass
+   public static void shutdownPool() {
+      pool.shutdown();
+   }
+
+   @Test
+   public void aggregateCheck() {
+      String input[][] = {{"1", "2", "3", "4"}, {"A1:A4 SUM", "A1:A4 AVG", "A2:A3 MIN 10 *", "A4:A1 MAX"}};
+      Spreadsheet spreadsheet = new Spreadsheet(input);
+      spreadsheet.evaluateSpreadSheet();
+      assertEquals("10.00000",spreadsheet.getFormattedValue(1,0));
+      assertEquals("2.50000",spreadsheet.getFormattedValue(1,1));
+      assertEquals("20.00000",spreadsheet.getFormattedValue(1,2));
+      assertEquals("4.00000",spreadsheet.getFormattedValue(1,3));
+   }
+
+   // The range covers the rectangle between its two corner cells, in any order
+   @Test
+   public void rectangleCheck() {
+      String input[][] = {{"1", "B1 2 *", "3"}, {"4", "5", "6"}, {"B3:A1 SUM", "B2:A1 AVG", "A2:B3 MIN"}};
+      Spreadsheet spreadsheet = new Spreadsheet(input);
+      spreadsheet.evaluateSpreadSheet();
+      assertEquals("27.00000",spreadsheet.getFormattedValue(2,0));
+      assertEquals("4.50000",spreadsheet.getFormattedValue(2,1));
+      assertEquals("3.00000",spreadsheet.getFormattedValue(2,2));
+   }
+
+   @Test
+   public void rangeCycle() {
+      String input[][] = {{"1", "A1:B2 SUM"}, {"3", "4"}};
+      try{
+         new Spreadsheet(input).evaluateSpreadSheet();
+         fail("Expected cycle at cell A2");
+      } catch (CycleDetectedException e){
+         assertEquals("Cycle detected at cell A2", e.getMessage());
+      }
+   }
+
+   @Test
+   public void invalidFunction() {
+      String input[][] = {{"1", "A1:A1 COUNT"}};
+      try{
+         new Spreadsheet(input).evaluateSpreadSheet();
+         fail("Expected invalid expression at cell A2");
+      } catch (InvalidRPNException e){
+         assertEquals("The expression A1:A1 COUNT at cell A2 is not valid", e.getMessage());
+      }
+   }
+
+   @Test
+   public void incrementalRecalculation() {
+      String input[][] = {{"1", "2", "3"}, {"A1:A3 SUM", "A1 B1 +", "A1:A2 MAX"}};
+      Spreadsheet spreadsheet = new Spreadsheet(input);
+      spreadsheet.evaluateSpreadSheet();
+      spreadsheet.setCell("A2", "10");
+      spreadsheet.recalculate();
+      assertEquals("14.00000",spreadsheet.getFormattedValue(1,0));
+      assertEquals("15.00000",spreadsheet.getFormattedValue(1,1));
+      assertEquals("10.00000",spreadsheet.getFormattedValue(1,2));
+   }
+
+   @Test
+   public void parallelMatchesSequential() {
+      String input[][] = {{"B1:B3 SUM", "A1 2 *", "C1:C3 AVG"}, {"1", "2", "C1:C3 MAX"}, {"B2 3 +", "B1:B2 MIN", "4"}};
+      Spreadsheet sequential = new Spreadsheet(input);
+      sequential.evaluateSpreadSheet();
+      Spreadsheet parallel = new Spreadsheet(input);
+      parallel.evaluateSpreadSheetInParallel(pool);
+      for(int i = 0; i < input.length; i++){
+         for(int j = 0; j < input[i].length; j++){
+            assertEquals(sequential.getValue(i,j),parallel.getValue(i,j),0.0);
+         }
+      }
+   }
+}
@@ -0,0 +1,376 @@
+import java.util.Arrays;
+
+/**
+ * ******************************************************************************
+ * File: RangeIndex.java
+ * Serves the range aggregates (SUM, AVG, MIN, MAX) of a compiled spreadsheet
+ * Every row covered by a range gets, on first use, a segment tree over the values
+ * of its cells, so an aggregate costs O(log n) per row of the range instead of
+ * O(n). A node of the tree is computed on demand once all its cells are evaluated
+ * and stays valid until one of them is marked WHITE again (invalidate)
+ * Logic : A range stands for references to all its cells in row major order, so
+ *         before the cell is evaluated the DFS visits the first cell of the range
+ *         which is not BLACK yet (firstPending), exactly as it would for a list
+ *         of REF instructions. Finding that cell uses a next-pending pointer per
+ *         column with path compression (cells only turn BLACK while evaluating),
+ *         so the readiness checks of overlapping ranges cost nearly O(1) each
+ *         The sums are computed pairwise along the tree, they may differ in the
+ *         last bits from the left to right sum of the same cells
+ * ******************************************************************************
+ */
+class RangeIndex {
+
+   private final CompiledSheet program;
+   private final int columnCount;
+
+   // Slots of the cells whose programs use every range
+   private IntStack[] users;
+
+   // Segment trees of the rows firstRow .. firstRow + rows.length - 1
+   private RowIndex[] rows = new RowIndex[0];
+   private int firstRow;
+
+   // Ranges covering each of the same rows which have users, null for none
+   private IntStack[] rowRanges = new IntStack[0];
+
+   RangeIndex(CompiledSheet program){
+      this.program = program;
+      this.columnCount = program.getColumnCount();
+      this.users = new IntStack[program.getRangeCount()];
+      for(int slot = 0; slot < program.getCellCount(); slot++){
+         addUsers(slot);
+      }
+   }
+
+   /**
+    * ****************************************************************************
+    * Registers the cell as a user of the ranges of its current program. Called
+    * for every cell on creation and after a cell is recompiled
+    * A range is indexed under every row it covers when it gets its first user
+    * @param slot
+    *         Slot of the cell
+    * ****************************************************************************
+    */
+   void addUsers(int slot){
+      for(int pc = program.getProgramStart(slot); program.opcode(pc) != Opcode.END; pc++){
+         if(program.opcode(pc) >= Opcode.SUM){
+            int range = program.operand(pc);
+            if(range >= users.length){
+               users = Arrays.copyOf(users, program.getRangeCount());
+            }
+            if(users[range] == null){
+               users[range] = new IntStack(4);
+               int fromRow = program.getRangeFirst(range) / columnCount;
+               int toRow = program.getRangeLast(range) / columnCount;
+               coverRows(fromRow, toRow);
+               for(int row = fromRow; row <= toRow; row++){
+                  if(rowRanges[row - firstRow] == null){
+                     rowRanges[row - firstRow] = new IntStack(2);
+                  }
+                  rowRanges[row - firstRow].push(range);
+               }
+            }
+            users[range].push(slot);
+         }
+      }
+   }
+
+   /**
+    * ****************************************************************************
+    * First cell of the range, in row major order, which is not evaluated (BLACK)
+    * @param range
+    *         Index of the range in the range table of the compiled sheet
+    * @param visitStatus
+    *         Visit status of the cells indexed by slot
+    * @return the slot of the cell or -1 if all the cells of the range are evaluated
+    * ****************************************************************************
+    */
+   int firstPending(int range, ByteArray visitStatus){
+      int first = program.getRangeFirst(range);
+      int last = program.getRangeLast(range);
+      int firstColumn = first % columnCount;
+      int lastColumn = last % columnCount;
+      for(int row = first / columnCount; row <= last / columnCount; row++){
+         int column = getRow(row).firstPending(firstColumn, visitStatus);
+         if(column <= lastColumn){
+            return program.getSlot(row * columnCount + column);
+         }
+      }
+      return -1;
+   }
+
+   /**
+    * ****************************************************************************
+    * Aggregate of the values of the cells of a range whose cells are all evaluated
+    * @param function
+    *         Opcode.SUM, Opcode.AVG, Opcode.MIN or Opcode.MAX
+    * @param range
+    *         Index of the range in the range table of the compiled sheet
+    * @param values
+    *         Evaluated values of the cells indexed by slot
+    * ****************************************************************************
+    */
+   double aggregate(byte function, int range, DoubleArray values){
+      int first = program.getRangeFirst(range);
+      int last = program.getRangeLast(range);
+      int firstColumn = first % columnCount;
+      int lastColumn = last % columnCount;
+      byte rowFunction = function == Opcode.AVG ? Opcode.SUM : function;
+      double result = identity(rowFunction);
+      for(int row = first / columnCount; row <= last / columnCount; row++){
+         result = combine(rowFunction, result, getRow(row).query(rowFunction, firstColumn, lastColumn, values));
+      }
+      if(function == Opcode.AVG){
+         long cellCount = (long)(last / columnCount - first / columnCount + 1) * (lastColumn - firstColumn + 1);
+         return result / cellCount;
+      }
+      return result;
+   }
+
+   /**
+    * ****************************************************************************
+    * Highest error state of the cells of a range (see CellError), only looked up
+    * when the aggregate of the range is not a number
+    * @param errors
+    *         Error states of the cells indexed by slot
+    * ****************************************************************************
+    */
+   byte getError(int range, ByteArray errors){
+      int first = program.getRangeFirst(range);
+      int last = program.getRangeLast(range);
+      int firstColumn = first % columnCount;
+      int lastColumn = last % columnCount;
+      byte error = CellError.NONE;
+      for(int row = first / columnCount; row <= last / columnCount; row++){
+         for(int column = firstColumn; column <= lastColumn; column++){
+            int slot = program.getSlot(row * columnCount + column);
+            if(slot >= 0 && errors.get(slot) > error){
+               error = errors.get(slot);
+            }
+         }
+      }
+      return error;
+   }
+
+   /**
+    * ****************************************************************************
+    * Discards the state derived from the cell, which is about to be re-evaluated
+    * @param cell
+    *         Linear index (row * columnCount + column) of the cell
+    * ****************************************************************************
+    */
+   void invalidate(int cell){
+      int index = cell / columnCount - firstRow;
+      if(index >= 0 && index < rows.length && rows[index] != null){
+         rows[index].invalidate(cell % columnCount);
+      }
+   }
+
+   /**
+    * ****************************************************************************
+    * Collects the users of the ranges which contain the cell
+    * Only the ranges covering the row of the cell are checked (see addUsers)
+    * @param cell
+    *         Linear index (row * columnCount + column) of the cell
+    * @param collected
+    *         Ranges whose users are already collected, indexed by range, null to
+    *         collect the users of every range containing the cell
+    * @param dependents
+    *         Stack to which the slots of the users are pushed
+    * ****************************************************************************
+    */
+   void collectUsers(int cell, boolean[] collected, IntStack dependents){
+      int index = cell / columnCount - firstRow;
+      if(index < 0 || index >= rowRanges.length || rowRanges[index] == null){
+         return;
+      }
+      int column = cell % columnCount;
+      IntStack ranges = rowRanges[index];
+      for(int r = 0; r < ranges.size(); r++){
+         int range = ranges.get(r);
+         if(collected != null && collected[range]){
+            continue;
+         }
+         if(column >= program.getRangeFirst(range) % columnCount && column <= program.getRangeLast(range) % columnCount){
+            if(collected != null){
+               collected[range] = true;
+            }
+            for(int i = 0; i < users[range].size(); i++){
+               dependents.push(users[range].get(i));
+            }
+         }
+      }
+   }
+
+   private RowIndex getRow(int row){
+      RowIndex index = rows[row - firstRow];
+      if(index == null){
+         index = new RowIndex(row);
+         rows[row - firstRow] = index;
+      }
+      return index;
+   }
+
+   /*
+    * Extends the rows which can be indexed to include from .. to
+    */
+   private void coverRows(int from, int to){
+      if(rows.length == 0){
+         firstRow = from;
+         rows = new RowIndex[to - from + 1];
+         rowRanges = new IntStack[to - from + 1];
+         return;
+      }
+      int newFirst = Math.min(firstRow, from);
+      int newLast = Math.max(firstRow + rows.length - 1, to);
+      if(newFirst != firstRow || newLast != firstRow + rows.length - 1){
+         RowIndex[] covered = new RowIndex[newLast - newFirst + 1];
+         System.arraycopy(rows, 0, covered, firstRow - newFirst, rows.length);
+         rows = covered;
+         IntStack[] coveredRanges = new IntStack[covered.length];
+         System.arraycopy(rowRanges, 0, coveredRanges, firstRow - newFirst, rowRanges.length);
+         rowRanges = coveredRanges;
+         firstRow = newFirst;
+      }
+   }
+
+   private static double identity(byte function){
+      switch(function){
+         case Opcode.MIN:
+            return Double.POSITIVE_INFINITY;
+         case Opcode.MAX:
+            return Double.NEGATIVE_INFINITY;
+         default:
+            // -0.0 keeps the sign of a range holding only -0.0
+            return -0.0;
+      }
+   }
+
+   private static double combine(byte function, double a, double b){
+      switch(function){
+         case Opcode.MIN:
+            return Math.min(a, b);
+         case Opcode.MAX:
+            return Math.max(a, b);
+         default:
+            return a + b;
+      }
+   }
+
+   /**
+    * ****************************************************************************
+    * Segment tree over the values of the cells of one row (leaves size .. size +
+    * columnCount - 1, the children of node i are 2i and 2i + 1) along with the
+    * next-pending pointers of its columns
+    * ****************************************************************************
+    */
+   private class RowIndex {
+      private final int rowStart;
+      private final int size;
+      private final double[] sum;
+      private final double[] min;
+      private final double[] max;
+      private final boolean[] valid;
+
+      // All the columns from c to next[c] - 1 are BLACK when next[c] != c
+      private final int[] next;
+      private boolean nextValid;
+
+      RowIndex(int row){
+         this.rowStart = row * columnCount;
+         this.size = Integer.highestOneBit(Math.max(1, columnCount - 1)) << 1;
+         this.sum = new double[size << 1];
+         this.min = new double[size << 1];
+         this.max = new double[size << 1];
+         this.valid = new boolean[size << 1];
+         this.next = new int[columnCount];
+      }
+
+      int firstPending(int column, ByteArray visitStatus){
+         if(!nextValid){
+            for(int i = 0; i < columnCount; i++){
+               next[i] = i;
+            }
+            nextValid = true;
+         }
+         int pending = column;
+         while(pending < columnCount && isBlack(pending, visitStatus)){
+            pending = next[pending] == pending ? pending + 1 : next[pending];
+         }
+         // Path compression
+         while(column < pending){
+            int following = next[column] == column ? column + 1 : next[column];
+            next[column] = pending;
+            column = following;
+         }
+         return pending;
+      }
+
+      double query(byte function, int from, int to, DoubleArray values){
+         double result = identity(function);
+         int left = from + size;
+         int right = to + size + 1;
+         while(left < right){
+            if((left & 1) == 1){
+               result = combine(function, result, node(function, left++, values));
+            }
+            if((right & 1) == 1){
+               result = combine(function, result, node(function, --right, values));
+            }
+            left >>= 1;
+            right >>= 1;
+         }
+         return result;
+      }
+
+      void invalidate(int column){
+         nextValid = false;
+         for(int node = column + size; node > 0 && valid[node]; node >>= 1){
+            valid[node] = false;
+         }
+      }
+
+      private boolean isBlack(int column, ByteArray visitStatus){
+         int slot = program.getSlot(rowStart + column);
+         return slot < 0 || visitStatus.get(slot) == Color.BLACK;
+      }
+
+      private double node(byte function, int node, DoubleArray values){
+         if(!valid[node]){
+            compute(node, values);
+         }
+         switch(function){
+            case Opcode.MIN:
+               return min[node];
+            case Opcode.MAX:
+               return max[node];
+            default:
+               return sum[node];
+         }
+      }
+
+      // The cells under the node are all evaluated
+      private void compute(int node, DoubleArray values){
+         if(node >= size){
+            int slot = program.getSlot(rowStart + node - size);
+            double value = slot < 0 ? 0.0 : values.get(slot);
+            sum[node] = value;
+            min[node] = value;
+            max[node] = value;
+         } else {
+            int left = node << 1;
+            int right = left + 1;
+            if(!valid[left]){
+               compute(left, values);
+            }
+            if(!valid[right]){
+               compute(right, values);
+            }
+            sum[node] = sum[left] + sum[right];
+            min[node] = Math.min(min[left], min[right]);
+            max[node] = Math.max(max[left], max[right]);
+         }
+         valid[node] = true;
+      }
+   }
+}
@@ -0,0 +1,417 @@
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+/**
+ * ******************************************************************************
+ * File: ScenarioEvaluator.java
+ * Evaluates many what-if scenarios of an evaluated spreadsheet in one pass (see
+ * Spreadsheet.scenarios). A scenario gives new values to a fixed set of input
+ * cells, as if their expressions were replaced by these numbers, and reads the
+ * values of a fixed set of output cells
+ * Logic : The plan is made once: the cells which depend on the inputs (through
+ *         references or ranges, see DependencyGraph and RangeIndex) are put in
+ *         topological order, the other cells keep the values of the spreadsheet
+ *         Every planned cell then gets one lane, a double[S] holding its value in
+ *         each of the S scenarios, and every instruction of its program runs once
+ *         over the lanes of its operands (structure of arrays) instead of once
+ *         per scenario. A lane is given back to a pool once the last cell reading
+ *         it is evaluated, so only the lanes still to be read are kept
+ *         The range aggregates are computed one scenario at a time, with a private
+ *         RangeIndex over a copy of the values in which the cells of the range
+ *         take the values of that scenario, so that they are summed exactly as by
+ *         the spreadsheet
+ *         The values are bit for bit those of a spreadsheet whose input cells are
+ *         set to the values of the scenario. A division by zero throws the
+ *         exception of the DFS, naming the scenario, unless the spreadsheet is
+ *         evaluated with error values: the cells in error are then NaN, as for
+ *         Spreadsheet.valuesOf. A cell of a cycle which no input breaks keeps its
+ *         NaN value, like the cells depending on it
+ *         The plan reflects the spreadsheet when it was made, it must be made
+ *         again after the spreadsheet is edited
+ * ******************************************************************************
+ */
+public final class ScenarioEvaluator {
+
+   private final Spreadsheet spreadsheet;
+   private final CompiledSheet program;
+   private final DoubleArray values;
+
+   // Slots of the input cells, an empty input of a sparse sheet is given one
+   private final int[] inputs;
+
+   // Slot of every output cell (-1 if it has none), or -2 - i when it is the input i
+   private final int[] outputs;
+
+   // Index of the lane of every slot, -1 for the cells which keep their value. The
+   // inputs come first (the lane of the input i is i), then the planned cells in
+   // topological order
+   private final int[] laneIndex;
+   private final int[] order;
+
+   // Lanes to give back once the planned cell order[p] is evaluated:
+   // release[releaseStart[p]] .. release[releaseStart[p + 1] - 1], and the lanes
+   // of the inputs which no planned cell reads. The lanes of the outputs are kept
+   private final int[] releaseStart;
+   private final int[] release;
+   private final int[] unreadInputs;
+
+   // Range aggregates: planned cells of every range used by a planned cell, a
+   // private index and the copy of the values it aggregates, null without ranges
+   private final int[][] rangeCells;
+   private final RangeIndex ranges;
+   private final DoubleArray rangeValues;
+
+   /*
+    * Plans the evaluation of the cells depending on the inputs, see Spreadsheet.scenarios
+    */
+   ScenarioEvaluator(Spreadsheet spreadsheet, int[] inputCells, int[] outputCells){
+      this.spreadsheet = spreadsheet;
+      this.program = spreadsheet.getCompiledSheet();
+      this.values = spreadsheet.getValues();
+      int slotCount = program.getCellCount();
+      this.inputs = new int[inputCells.length];
+      this.laneIndex = new int[slotCount];
+      Arrays.fill(laneIndex, -1);
+      IntStack affected = new IntStack(16);
+      for(int i = 0; i < inputCells.length; i++){
+         for(int j = 0; j < i; j++){
+            if(inputCells[j] == inputCells[i]){
+               throw new IllegalArgumentException("Cell " + ExpressionCompiler.getCellName(
+                       inputCells[i] / program.getColumnCount(), inputCells[i] % program.getColumnCount())
+                       + " is overridden twice");
+            }
+         }
+         inputs[i] = program.getSlot(inputCells[i]);
+         laneIndex[inputs[i]] = i;
+         affected.push(inputs[i]);
+      }
+      this.outputs = new int[outputCells.length];
+      for(int o = 0; o < outputCells.length; o++){
+         outputs[o] = program.getSlot(outputCells[o]);
+         for(int i = 0; i < inputCells.length; i++){
+            if(inputCells[i] == outputCells[o]){
+               outputs[o] = -2 - i;
+            }
+         }
+      }
+
+      this.ranges = program.getRangeCount() > 0 ? new RangeIndex(program) : null;
+      DependencyGraph graph = spreadsheet.getDependencyGraph();
+      IntStack dependents = new IntStack(16);
+
+      // Cells depending on the inputs, with the number of their references to them
+      int[] pending = new int[slotCount];
+      for(int i = 0; i < affected.size(); i++){
+         collectDependents(affected.get(i), graph, dependents);
+         for(int d = 0; d < dependents.size(); d++){
+            int dependent = dependents.get(d);
+            if(laneIndex[dependent] < 0){
+               laneIndex[dependent] = affected.size();
+               affected.push(dependent);
+            }
+            if(laneIndex[dependent] >= inputs.length){
+               pending[dependent]++;
+            }
+         }
+      }
+
+      // Topological order (Kahn), the cells left waiting are on a cycle or depend on one
+      int[] planned = new int[affected.size()];
+      int plannedCount = 0;
+      for(int i = 0; i < inputs.length; i++){
+         planned[plannedCount++] = affected.get(i);
+      }
+      for(int next = 0; next < plannedCount; next++){
+         collectDependents(planned[next], graph, dependents);
+         for(int d = 0; d < dependents.size(); d++){
+            int dependent = dependents.get(d);
+            if(laneIndex[dependent] >= inputs.length && --pending[dependent] == 0){
+               planned[plannedCount++] = dependent;
+            }
+         }
+      }
+      for(int i = 0; i < affected.size(); i++){
+         laneIndex[affected.get(i)] = -1;
+      }
+      for(int i = 0; i < plannedCount; i++){
+         laneIndex[planned[i]] = i;
+      }
+      this.order = Arrays.copyOfRange(planned, inputs.length, plannedCount);
+
+      // Last planned cell reading every lane, -1 for the lanes which are kept
+      int[] lastUse = new int[plannedCount];
+      for(int i = 0; i < plannedCount; i++){
+         lastUse[i] = i < inputs.length ? -2 : i - inputs.length;
+         collectDependents(planned[i], graph, dependents);
+         for(int d = 0; d < dependents.size(); d++){
+            int lane = laneIndex[dependents.get(d)];
+            if(lane >= inputs.length){
+               lastUse[i] = Math.max(lastUse[i], lane - inputs.length);
+            }
+         }
+      }
+      for(int slot : outputs){
+         if(slot >= 0 && laneIndex[slot] >= 0){
+            lastUse[laneIndex[slot]] = -1;
+         }
+      }
+      this.releaseStart = new int[order.length + 1];
+      IntStack unread = new IntStack(4);
+      for(int i = 0; i < plannedCount; i++){
+         if(lastUse[i] >= 0){
+            releaseStart[lastUse[i] + 1]++;
+         } else if(lastUse[i] == -2){
+            unread.push(i);
+         }
+      }
+      this.unreadInputs = unread.toArray();
+      for(int p = 0; p < order.length; p++){
+         releaseStart[p + 1] += releaseStart[p];
+      }
+      this.release = new int[releaseStart[order.length]];
+      int[] next = Arrays.copyOf(releaseStart, order.length);
+      for(int i = 0; i < plannedCount; i++){
+         if(lastUse[i] >= 0){
+            release[next[lastUse[i]]++] = i;
+         }
+      }
+
+      if(ranges != null){
+         this.rangeCells = planRanges(planned, plannedCount);
+         this.rangeValues = CellStorage.HEAP.newDoubleArray(slotCount);
+         for(int slot = 0; slot < slotCount; slot++){
+            rangeValues.set(slot, values.get(slot));
+         }
+      } else {
+         this.rangeCells = null;
+         this.rangeValues = null;
+      }
+   }
+
+   /*
+    * Collects the cells whose programs reference the cell or a range containing it
+    */
+   private void collectDependents(int slot, DependencyGraph graph, IntStack dependents){
+      dependents.clear();
+      for(int d = graph.getDependentStart(slot); d < graph.getDependentEnd(slot); d++){
+         dependents.push(graph.getDependent(d));
+      }
+      IntStack added = graph.getAddedDependents(slot);
+      if(added != null){
+         for(int d = 0; d < added.size(); d++){
+            dependents.push(added.get(d));
+         }
+      }
+      if(ranges != null){
+         ranges.collectUsers(program.getCell(slot), null, dependents);
+      }
+   }
+
+   /*
+    * Planned cells of every range used by a planned cell, null for the other ranges
+    */
+   private int[][] planRanges(int[] planned, int plannedCount){
+      int[][] cells = new int[program.getRangeCount()][];
+      int columnCount = program.getColumnCount();
+      for(int slot : order){
+         for(int pc = program.getProgramStart(slot); program.opcode(pc) != Opcode.END; pc++){
+            int range = program.operand(pc);
+            if(program.opcode(pc) < Opcode.SUM || cells[range] != null){
+               continue;
+            }
+            int first = program.getRangeFirst(range);
+            int last = program.getRangeLast(range);
+            IntStack contained = new IntStack(4);
+            for(int i = 0; i < plannedCount; i++){
+               int cell = program.getCell(planned[i]);
+               if(cell / columnCount >= first / columnCount && cell / columnCount <= last / columnCount
+                       && cell % columnCount >= first % columnCount && cell % columnCount <= last % columnCount){
+                  contained.push(planned[i]);
+               }
+            }
+            cells[range] = contained.toArray();
+         }
+      }
+      return cells;
+   }
+
+   /**
+    * ****************************************************************************
+    * Number of cells evaluated for every scenario, the inputs excluded
+    * ****************************************************************************
+    */
+   public int getPlannedCellCount() {
+      return order.length;
+   }
+
+   /**
+    * ****************************************************************************
+    * Evaluates the scenarios
+    * @param overrides
+    *         Values of the input cells in every scenario: overrides[s][i] is the
+    *         value of the input i in the scenario s
+    * @return the values of the output cells in every scenario: result[s][o] is the
+    *         value of the output o in the scenario s
+    * @throws IllegalArgumentException
+    *             when a scenario does not give a value to every input
+    * @throws RPNDivideByZeroException
+    *             when a cell divides by zero in a scenario (unless the spreadsheet
+    *             is evaluated with error values)
+    * ****************************************************************************
+    */
+   public double[][] evaluate(double[][] overrides) {
+      int scenarioCount = overrides.length;
+      for(int s = 0; s < scenarioCount; s++){
+         if(overrides[s].length != inputs.length){
+            throw new IllegalArgumentException("Scenario " + s + " has " + overrides[s].length + " values for "
+                    + inputs.length + " input cells");
+         }
+      }
+      ArrayDeque<double[]> pool = new ArrayDeque<double[]>();
+      double[][] lanes = new double[inputs.length + order.length][];
+      for(int i = 0; i < inputs.length; i++){
+         double[] lane = new double[scenarioCount];
+         for(int s = 0; s < scenarioCount; s++){
+            lane[s] = overrides[s][i];
+         }
+         lanes[i] = lane;
+      }
+      for(int lane : unreadInputs){
+         pool.push(lanes[lane]);
+         lanes[lane] = null;
+      }
+
+      double[][] stack = new double[program.getMaxStackDepth()][scenarioCount];
+      for(int p = 0; p < order.length; p++){
+         run(order[p], lanes, stack, scenarioCount);
+         // The result is left in stack[0], which becomes the lane of the cell
+         lanes[inputs.length + p] = stack[0];
+         stack[0] = pool.isEmpty() ? new double[scenarioCount] : pool.pop();
+         for(int r = releaseStart[p]; r < releaseStart[p + 1]; r++){
+            pool.push(lanes[release[r]]);
+            lanes[release[r]] = null;
+         }
+      }
+
+      double[][] result = new double[scenarioCount][outputs.length];
+      for(int o = 0; o < outputs.length; o++){
+         int slot = outputs[o];
+         for(int s = 0; s < scenarioCount; s++){
+            if(slot <= -2){
+               result[s][o] = overrides[s][-2 - slot];
+            } else if(slot >= 0){
+               result[s][o] = laneIndex[slot] >= 0 ? lanes[laneIndex[slot]][s] : values.get(slot);
+            }
+         }
+      }
+      return result;
+   }
+
+   /*
+    * Runs the program of the cell over the lanes of the scenarios, leaves the
+    * values of the cell in stack[0]
+    */
+   private void run(int slot, double[][] lanes, double[][] stack, int scenarioCount){
+      int top = 0;
+      for(int pc = program.getProgramStart(slot); program.opcode(pc) != Opcode.END; pc++){
+         switch(program.opcode(pc)){
+            case Opcode.SHARED:
+               // The instructions of the node follow, the node is not memoized per scenario
+               break;
+            case Opcode.CONST:
+               Arrays.fill(stack[top++], 0, scenarioCount, program.constant(program.operand(pc)));
+               break;
+            case Opcode.REF: {
+               int reference = program.operand(pc);
+               if(laneIndex[reference] >= 0){
+                  System.arraycopy(lanes[laneIndex[reference]], 0, stack[top++], 0, scenarioCount);
+               } else {
+                  Arrays.fill(stack[top++], 0, scenarioCount, values.get(reference));
+               }
+               break;
+            }
+            case Opcode.ADD: {
+               top--;
+               double[] left = stack[top - 1];
+               double[] right = stack[top];
+               for(int s = 0; s < scenarioCount; s++){
+                  left[s] = left[s] + right[s];
+               }
+               break;
+            }
+            case Opcode.SUBTRACT: {
+               top--;
+               double[] left = stack[top - 1];
+               double[] right = stack[top];
+               for(int s = 0; s < scenarioCount; s++){
+                  left[s] = left[s] - right[s];
+               }
+               break;
+            }
+            case Opcode.MULTIPLY: {
+               top--;
+               double[] left = stack[top - 1];
+               double[] right = stack[top];
+               for(int s = 0; s < scenarioCount; s++){
+                  left[s] = left[s] * right[s];
+               }
+               break;
+            }
+            case Opcode.DIVIDE: {
+               top--;
+               double[] left = stack[top - 1];
+               double[] right = stack[top];
+               for(int s = 0; s < scenarioCount; s++){
+                  left[s] = right[s] == 0 ? divideByZero(slot, s) : left[s] / right[s];
+               }
+               break;
+            }
+            case Opcode.ERROR:
+               if(program.operand(pc) != 0 && !spreadsheet.hasErrorValues()){
+                  throw ExpressionCompiler.newFailure(program.operand(pc), spreadsheet.getExpression(slot),
+                          program.getCellName(slot));
+               }
+               Arrays.fill(stack[0], 0, scenarioCount, Double.NaN);
+               return;
+            case Opcode.INCREMENT: {
+               double[] operand = stack[top - 1];
+               for(int s = 0; s < scenarioCount; s++){
+                  operand[s] = operand[s] + 1;
+               }
+               break;
+            }
+            case Opcode.DECREMENT: {
+               double[] operand = stack[top - 1];
+               for(int s = 0; s < scenarioCount; s++){
+                  operand[s] = operand[s] - 1;
+               }
+               break;
+            }
+            default:
+               aggregate(program.opcode(pc), program.operand(pc), lanes, stack[top++], scenarioCount);
+         }
+      }
+   }
+
+   /*
+    * Aggregates the range in every scenario, see RangeIndex.aggregate
+    */
+   private void aggregate(byte function, int range, double[][] lanes, double[] result, int scenarioCount){
+      int[] cells = rangeCells[range];
+      for(int s = 0; s < scenarioCount; s++){
+         for(int cell : cells){
+            rangeValues.set(cell, lanes[laneIndex[cell]][s]);
+            ranges.invalidate(program.getCell(cell));
+         }
+         result[s] = ranges.aggregate(function, range, rangeValues);
+      }
+   }
+
+   private double divideByZero(int slot, int scenario){
+      if(spreadsheet.hasErrorValues()){
+         return Double.NaN;
+      }
+      throw new RPNDivideByZeroException("The RPN equation " + spreadsheet.getExpression(slot) + " at cell "
+              + program.getCellName(slot) + " attempted to divide by zero in scenario " + scenario);
+   }
+}
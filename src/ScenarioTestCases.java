@@ -0,0 +1,151 @@
+/**
+ * *******************************************************************
+ * File: ScenarioTestCases.java
+ * *********************************************************************
+ */
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ScenarioTestCases {
+
+   private static final String input[][] = {{"A2 A3 *", "B1 1 +", "2", "A1:B3 SUM"}, {"0.5", "B1 A3 /", "7", "B3 --"}};
+
+   private static final String[] CELLS = {"A1", "A2", "A3", "A4", "B1", "B2", "B3", "B4"};
+
+   // Values of the cells with the inputs set to the values of the scenario, setCell
+   // edits the expressions of a copy of the input
+   private static double[] edited(String[] inputCells, double[] scenario, boolean errorValues) {
+      String copy[][] = {input[0].clone(), input[1].clone()};
+      Spreadsheet spreadsheet = new Spreadsheet(copy);
+      spreadsheet.setErrorValues(errorValues);
+      spreadsheet.evaluateSpreadSheet();
+      for(int i = 0; i < inputCells.length; i++){
+         spreadsheet.setCell(inputCells[i], Double.toString(scenario[i]));
+      }
+      spreadsheet.recalculate();
+      return spreadsheet.valuesOf(CELLS);
+   }
+
+   private static void assertSameValues(double[] expected, double[] actual) {
+      assertEquals(expected.length, actual.length);
+      for(int i = 0; i < expected.length; i++){
+         assertEquals(CELLS[i], Double.doubleToLongBits(expected[i]), Double.doubleToLongBits(actual[i]));
+      }
+   }
+
+   @Test
+   public void scenariosMatchEdits() {
+      String[] inputs = {"A3", "B1"};
+      double[][] overrides = {{2, 0.5}, {-1.5, 4}, {3.25, -2}, {0.1, 0.2}};
+      double[][] result = new Spreadsheet(input).scenarios(inputs, CELLS).evaluate(overrides);
+      assertEquals(overrides.length, result.length);
+      for(int s = 0; s < overrides.length; s++){
+         assertSameValues(edited(inputs, overrides[s], false), result[s]);
+      }
+   }
+
+   // Only the cells depending on the inputs are evaluated per scenario
+   @Test
+   public void dependentsPlanned() {
+      Spreadsheet spreadsheet = new Spreadsheet(input);
+      assertEquals(2, spreadsheet.scenarios(new String[]{"B3"}, CELLS).getPlannedCellCount());
+      assertEquals(3, spreadsheet.scenarios(new String[]{"A3"}, CELLS).getPlannedCellCount());
+      double[][] result = spreadsheet.scenarios(new String[]{"B3"}, new String[]{"A3", "B3", "B4"})
+              .evaluate(new double[][]{{10}, {20}});
+      assertEquals(2.0, result[0][0], 0.0);
+      assertEquals(10.0, result[0][1], 0.0);
+      assertEquals(19.0, result[1][2], 0.0);
+   }
+
+   @Test
+   public void divisionByZeroNamesScenario() {
+      ScenarioEvaluator scenarios = new Spreadsheet(input).scenarios(new String[]{"A3"}, CELLS);
+      try{
+         scenarios.evaluate(new double[][]{{1}, {0}});
+         fail("Division by zero not reported");
+      } catch(RPNDivideByZeroException e){
+         assertEquals("The RPN equation B1 A3 / at cell B2 attempted to divide by zero in scenario 1", e.getMessage());
+      }
+   }
+
+   @Test
+   public void errorValuesGiveNaN() {
+      Spreadsheet spreadsheet = new Spreadsheet(input);
+      spreadsheet.setErrorValues(true);
+      double[][] result = spreadsheet.scenarios(new String[]{"A3"}, CELLS).evaluate(new double[][]{{0}, {4}});
+      assertSameValues(edited(new String[]{"A3"}, new double[]{0}, true), result[0]);
+      assertSameValues(edited(new String[]{"A3"}, new double[]{4}, true), result[1]);
+      assertTrue(Double.isNaN(result[0][5]));
+      assertEquals(0.125, result[1][5], 0.0);
+   }
+
+   // An input of a cycle breaks it, the other cycles keep their NaN value
+   @Test
+   public void cycleBrokenByInput() {
+      String cycles[][] = {{"A2 1 +", "A1 2 *", "A4", "A3"}};
+      Spreadsheet spreadsheet = new Spreadsheet(cycles);
+      spreadsheet.setErrorValues(true);
+      double[][] result = spreadsheet.scenarios(new String[]{"A2"}, new String[]{"A1", "A2", "A3"})
+              .evaluate(new double[][]{{5}});
+      assertEquals(6.0, result[0][0], 0.0);
+      assertEquals(5.0, result[0][1], 0.0);
+      assertTrue(Double.isNaN(result[0][2]));
+   }
+
+   @Test
+   public void invalidScenarios() {
+      Spreadsheet spreadsheet = new Spreadsheet(input);
+      try{
+         spreadsheet.scenarios(new String[]{"C1"}, CELLS);
+         fail("Invalid cell name accepted");
+      } catch(IllegalArgumentException e){
+         assertEquals("Invalid cell name C1", e.getMessage());
+      }
+      try{
+         spreadsheet.scenarios(new String[]{"A3", "A3"}, CELLS);
+         fail("Input named twice accepted");
+      } catch(IllegalArgumentException e){
+         assertEquals("Cell A3 is overridden twice", e.getMessage());
+      }
+      try{
+         spreadsheet.scenarios(new String[]{"A3", "B1"}, CELLS).evaluate(new double[][]{{1, 2}, {3}});
+         fail("Missing input value accepted");
+      } catch(IllegalArgumentException e){
+         assertEquals("Scenario 1 has 1 values for 2 input cells", e.getMessage());
+      }
+   }
+
+   @Test
+   public void offHeapScenarios() {
+      String[] inputs = {"A3", "B3"};
+      double[][] overrides = {{1.5, 2}, {-3, 0.25}};
+      double[][] result = new Spreadsheet(input, CellStorage.OFF_HEAP).scenarios(inputs, CELLS).evaluate(overrides);
+      for(int s = 0; s < overrides.length; s++){
+         assertSameValues(edited(inputs, overrides[s], false), result[s]);
+      }
+   }
+
+   // An empty input of a sparse spreadsheet is aggregated by the ranges containing it
+   @Test
+   public void emptyInputOfSparseSheet() throws IOException {
+      SpreadsheetReader reader = new SpreadsheetReader(Channels.newChannel(
+              new ByteArrayInputStream("2 2\n1\n\nA1:A2 SUM\n\n".getBytes(StandardCharsets.UTF_8))));
+      reader.readLine();
+      Spreadsheet spreadsheet = reader.readSpreadsheet(2, 2, true, false);
+      double[][] result = spreadsheet.scenarios(new String[]{"A2"}, new String[]{"B1", "B2"})
+              .evaluate(new double[][]{{5}, {-1}});
+      assertEquals(6.0, result[0][0], 0.0);
+      assertEquals(0.0, result[1][0], 0.0);
+      assertEquals(0.0, result[1][1], 0.0);
+      assertEquals(1.0, spreadsheet.valueOf("B1"), 0.0);
+   }
+}
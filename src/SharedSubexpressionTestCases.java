@@ -0,0 +1,96 @@
+/**
+ * *******************************************************************
+ * File: SharedSubexpressionTestCases.java
+ * *********************************************************************
+ */
+
+import org.junit.AfterClass;
+import org.junit.Test;
+
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class SharedSubexpressionTestCases {
+
+   private static final ForkJoinPool pool = new ForkJoinPool(4);
+
+   @AfterClass
+   public static void shutdownPool() {
+      pool.shutdown();
+   }
+
+   // From the third cell on, the identical programs are stored only once
+   @Test
+   public void identicalProgramsShareInstructions() {
+      String input[][] = {{"B1 B2 + 2 *", "B1 B2 + 2 *", "B1 B2 + 2 *", "B1 B2 + 2 *"}, {"1", "2", "3", "4"}};
+      Spreadsheet spreadsheet = new Spreadsheet(input);
+      spreadsheet.evaluateSpreadSheet();
+      CompiledSheet program = spreadsheet.getCompiledSheet();
+      assertEquals(program.getProgramStart(1), program.getProgramStart(2));
+      assertEquals(program.getProgramStart(1), program.getProgramStart(3));
+      for(int j = 0; j < 4; j++){
+         assertEquals("6.00000",spreadsheet.getFormattedValue(0,j));
+      }
+   }
+
+   @Test
+   public void sharedSubexpressionCheck() {
+      String input[][] = {{"B1 B2 + 2 *", "B1 B2 + 2 * 1 +", "3 B1 B2 + 2 * -", "B1 B2 + 2 * B1 B2 + 2 * /"},
+              {"1", "2", "3", "4"}};
+      Spreadsheet spreadsheet = new Spreadsheet(input);
+      spreadsheet.evaluateSpreadSheet();
+      assertEquals(1, spreadsheet.getCompiledSheet().getNodeCount());
+      assertEquals("6.00000",spreadsheet.getFormattedValue(0,0));
+      assertEquals("7.00000",spreadsheet.getFormattedValue(0,1));
+      assertEquals("-3.00000",spreadsheet.getFormattedValue(0,2));
+      assertEquals("1.00000",spreadsheet.getFormattedValue(0,3));
+   }
+
+   // The error is reported for the cell using the shared node, with its own expression
+   @Test
+   public void divideByZeroInSharedSubexpression() {
+      String input[][] = {{"B1 B2 - 5 *", "1 B1 B2 - 5 * /"}, {"3", "3"}};
+      try{
+         new Spreadsheet(input).evaluateSpreadSheet();
+         fail("Expected divide by zero at cell A2");
+      } catch (RPNDivideByZeroException e){
+         assertEquals("The RPN equation 1 B1 B2 - 5 * / at cell A2 attempted to divide by zero", e.getMessage());
+      }
+   }
+
+   // The results of the shared nodes are computed again on every evaluation pass
+   @Test
+   public void recalculationRefreshesSharedResults() {
+      String input[][] = {{"B1 B2 * 2 +", "B1 B2 * 2 + 1 +", "B1 B2 * 2 + 2 *"}, {"2", "3", ""}};
+      Spreadsheet spreadsheet = new Spreadsheet(input);
+      spreadsheet.evaluateSpreadSheet();
+      assertEquals("9.00000",spreadsheet.getFormattedValue(0,1));
+      spreadsheet.setCell("B2", "5");
+      spreadsheet.recalculate();
+      assertEquals("12.00000",spreadsheet.getFormattedValue(0,0));
+      assertEquals("13.00000",spreadsheet.getFormattedValue(0,1));
+      assertEquals("24.00000",spreadsheet.getFormattedValue(0,2));
+      spreadsheet.setCell("B3", "B1 B2 * 2 + 3 -");
+      spreadsheet.recalculate();
+      assertEquals("9.00000",spreadsheet.getFormattedValue(1,2));
+      assertTrue(spreadsheet.getCompiledSheet().getNodeCount() >= 1);
+   }
+
+   @Test
+   public void parallelMatchesSequential() {
+      String input[][] = {{"C1 C2 + 2 *", "C1 C2 + 2 * B3 -", "C1 C2 + 2 * 7 /"},
+              {"A1 A2 + C3 *", "A1 A2 + C3 * 2 /", "C1 C2 + 2 *"}, {"1.5", "2", "3"}};
+      Spreadsheet sequential = new Spreadsheet(input);
+      sequential.evaluateSpreadSheet();
+      Spreadsheet parallel = new Spreadsheet(input);
+      parallel.evaluateSpreadSheetInParallel(pool);
+      for(int i = 0; i < input.length; i++){
+         for(int j = 0; j < input[i].length; j++){
+            assertEquals(sequential.getValue(i,j),parallel.getValue(i,j),0.0);
+         }
+      }
+   }
+}
@@ -0,0 +1,94 @@
+/**
+ * *******************************************************************
+ * File: SparseSpreadsheetTestCases.java
+ * *********************************************************************
+ */
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class SparseSpreadsheetTestCases {
+
+   private static Spreadsheet load(String input, boolean sparse) throws IOException {
+      SpreadsheetReader reader = new SpreadsheetReader(Channels.newChannel(
+              new ByteArrayInputStream(input.getBytes(StandardCharsets.UTF_8))));
+      String[] dimensions = reader.readLine().trim().split(" ");
+      return reader.readSpreadsheet(Integer.parseInt(dimensions[1]), Integer.parseInt(dimensions[0]), sparse);
+   }
+
+   // Only the cells with an expression and the referenced cells get a slot
+   @Test
+   public void slotsOfPopulatedAndReferencedCells() throws IOException {
+      Spreadsheet spreadsheet = load("4 3\n\nC4 2 +\n\n\n\n\n5\n\n\n\nB3 A2 *\n", true);
+      spreadsheet.evaluateSpreadSheet();
+      assertEquals(4, spreadsheet.getCompiledSheet().getCellCount());
+      assertEquals("0.00000",spreadsheet.getFormattedValue(0,0));
+      assertEquals("2.00000",spreadsheet.getFormattedValue(0,1));
+      assertEquals("5.00000",spreadsheet.getFormattedValue(1,2));
+      assertEquals("0.00000",spreadsheet.getFormattedValue(2,0));
+      assertEquals("10.00000",spreadsheet.getFormattedValue(2,2));
+      assertEquals("0.00000",spreadsheet.getFormattedValue(2,3));
+   }
+
+   // C2 is referenced by A1 before its own line is read, the DFS still starts from
+   // the cells in row major order and reports the same cycle as the dense sheet
+   @Test
+   public void forwardReferenceCycle() throws IOException {
+      String input = "2 3\nC2\n\nB2 1 +\nA1\n\nB1\n";
+      for(boolean sparse : new boolean[]{false, true}){
+         try{
+            load(input, sparse).evaluateSpreadSheet();
+            fail("Expected cycle at cell A1");
+         } catch (CycleDetectedException e){
+            assertEquals("Cycle detected at cell A1", e.getMessage());
+         }
+      }
+   }
+
+   @Test
+   public void divideByZero() throws IOException {
+      try{
+         load("3 1\n\n1 A3 /\n", true).evaluateSpreadSheet();
+         fail("Expected divide by zero at cell A2");
+      } catch (RPNDivideByZeroException e){
+         assertEquals("The RPN equation 1 A3 / at cell A2 attempted to divide by zero", e.getMessage());
+      }
+   }
+
+   // Edits add slots for the edited cell and the cells it references
+   @Test
+   public void editAddsSlots() throws IOException {
+      Spreadsheet spreadsheet = load("3 2\n1\n\nA1 ++\n", true);
+      spreadsheet.evaluateSpreadSheet();
+      spreadsheet.setCell("B2", "B3 A3 +");
+      spreadsheet.setCell("B3", "4");
+      spreadsheet.recalculate();
+      assertEquals("6.00000",spreadsheet.getFormattedValue(1,1));
+      assertEquals("4.00000",spreadsheet.getFormattedValue(1,2));
+      spreadsheet.setCell("A1", "2");
+      spreadsheet.recalculate();
+      assertEquals("7.00000",spreadsheet.getFormattedValue(1,1));
+      spreadsheet.evaluateSpreadSheet();
+      assertEquals("7.00000",spreadsheet.getFormattedValue(1,1));
+      assertEquals("0.00000",spreadsheet.getFormattedValue(1,0));
+   }
+
+   // The linear index of every cell must fit an int, even when only a few cells have slots
+   @Test
+   public void tooManyCells() {
+      try{
+         new CompiledSheet(100000, 100000, true);
+         fail("Expected too many cells");
+      } catch (IllegalArgumentException e){
+         assertEquals("A spreadsheet of 100000 x 100000 has more than " + Spreadsheet.MAX_CELL_COUNT + " cells",
+                 e.getMessage());
+      }
+   }
+}
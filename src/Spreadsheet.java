@@ -1,34 +1,160 @@
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.UnixDomainSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
 import java.util.Scanner;
 
 /**
  * *******************************************************************
  * File: Spreadsheet.java
- * Rows A-Z and Columns 1 - N
+ * Rows A, B .. Z, AA, AB .. ZZ, AAA .. labelled in bijective base 26 (row
+ * index r is the letters of r + 1 with digits A = 1 .. Z = 26, no zero digit)
+ * and Columns 1 - N
  * Empty lines and the cells for which the input has not been provided
  * are considered as zeroes (just like spreadsheet)
  */
 public class Spreadsheet {
 
-   //Two dimensional array representing the spreadsheet
+   // Largest number of cells, the cells are addressed by an int linear index
+   static final int MAX_CELL_COUNT = Integer.MAX_VALUE - 8;
+
+   //Two dimensional array containing the expressions of the spreadsheet
+   //(null when the spreadsheet is loaded by SpreadsheetReader)
    private String[][] cells;
 
+   //Source text of the cells of a spreadsheet loaded by SpreadsheetReader
+   private ExpressionText expressionText;
+
+   private final int rowCount;
+   private final int columnCount;
+
+   //Backend of the per cell arrays, on the heap or off the heap (see CellStorage)
+   private final CellStorage storage;
+
+   //Evaluated value of every cell, indexed by row * columnCount + column
+   //(by slot in a sparse spreadsheet, see CompiledSheet)
+   private final DoubleArray values;
+
    /*
-   *         Two dimensional array containing the visit status for each cell of
-   *         the spreadsheet
+   *         Visit status for each cell of the spreadsheet, one byte per cell
+   *         indexed by row * columnCount + column (by slot when sparse)
    *         WHITE - The cell has not been visited yet
    *         GREY -  The cell is being visited i.e the adjacent unvisited nodes of the
    *                 current cell are about to be visited or are being visited
    *         BLACK - The cell has already been visited i.e. the expression at the
    *                 current cell has already been evaluated
    */
-   private Color[][] visitStatus;
+   private final ByteArray visitStatus;
+
+   //Stack of linear cell indices reused by every DFS started on this spreadsheet
+   private IntStack dfsStack;
+
+   //Compiled programs of the cells, produced at the start of the evaluation
+   private CompiledSheet compiledSheet;
+
+   //Reverse dependency index, built on first use after the compilation
+   private DependencyGraph dependencyGraph;
+
+   //Segment trees serving the range aggregates, built on first use after the compilation
+   private RangeIndex rangeIndex;
+
+   //Cells edited by setCell since the last successful recalculation
+   private final IntStack changedCells = new IntStack(16);
+
+   //Cells marked WHITE by the edits (see invalidate) which recalculate is to evaluate,
+   //some of them may have been evaluated again by valueOf in the meantime
+   private final IntStack staleCells = new IntStack(16);
+
+   //true once every cell has been evaluated from the current compiled programs
+   private boolean evaluated;
+
+   //true while the compiled programs and the visit states are consistent, so that
+   //valueOf can evaluate the cells one cone at a time
+   private boolean queryable;
+
+   //true to give the cells in error a #CYCLE or #ERR value instead of throwing
+   private boolean errorValues;
+
+   //Error state of every cell indexed by slot (see CellError), null unless the
+   //spreadsheet is evaluated with error values
+   private ByteArray errors;
+
+   //Strongly connected components search, created on first use after the compilation
+   private CycleFinder cycleFinder;
+
+   //Cycles found by findCycles, until the next edit
+   private List<String[]> cycles;
+
+   //Counters and timings of the evaluation, null unless requested (setMetrics)
+   private EvaluationMetrics metrics;
+
+   //Strategy of the last evaluateSpreadSheetAdaptively (see StrategySelector), -1 before
+   private int strategy = -1;
+
+   //Statistics of the reference graph the strategy was chosen for, null before
+   private GraphStatistics graphStatistics;
 
    public Spreadsheet(String[][] cells){
+      this(cells, CellStorage.HEAP);
+   }
+
+   /**
+    * ****************************************************************************
+    * @param storage
+    *         Backend of the values, the visit states and the compiled programs of
+    *         the cells: CellStorage.HEAP, CellStorage.OFF_HEAP or a memory mapped
+    *         scratch file (CellStorage.mapped)
+    * ****************************************************************************
+    */
+   public Spreadsheet(String[][] cells, CellStorage storage){
       this.cells = cells;
-      this.visitStatus = new Color[cells.length][cells[0].length];
+      this.storage = storage;
+      this.rowCount = cells.length;
+      this.columnCount = cells[0].length;
+      this.values = storage.newDoubleArray(rowCount * columnCount);
+      this.visitStatus = storage.newByteArray(values.length());
+   }
+
+   /*
+    * Spreadsheet loaded and compiled by SpreadsheetReader, without a String per cell
+    */
+   Spreadsheet(CompiledSheet compiledSheet, ExpressionText expressionText){
+      this.compiledSheet = compiledSheet;
+      this.expressionText = expressionText;
+      this.rowCount = compiledSheet.getRowCount();
+      this.columnCount = compiledSheet.getColumnCount();
+      this.storage = compiledSheet.getStorage();
+      this.values = storage.newDoubleArray(compiledSheet.getCellCount());
+      this.visitStatus = storage.newByteArray(values.length());
+   }
+
+   /*
+    * Evaluated spreadsheet restored from a snapshot (see SpreadsheetSnapshot), all
+    * its cells are BLACK. It is evaluated with error values when errors is not null
+    */
+   Spreadsheet(CompiledSheet compiledSheet, ExpressionText expressionText, DoubleArray values, ByteArray errors,
+               DependencyGraph dependencyGraph){
+      this.compiledSheet = compiledSheet;
+      this.expressionText = expressionText;
+      this.rowCount = compiledSheet.getRowCount();
+      this.columnCount = compiledSheet.getColumnCount();
+      this.storage = compiledSheet.getStorage();
+      this.values = values;
+      this.visitStatus = storage.newByteArray(values.length());
+      visitStatus.fill(Color.BLACK);
+      this.errors = errors;
+      this.errorValues = errors != null;
+      this.dependencyGraph = dependencyGraph;
+      this.evaluated = true;
    }
 
    /*
@@ -36,13 +162,127 @@ public class Spreadsheet {
     * Reads the input from standard input, creates a spreadsheet object, calls the
     * evaluate method on the spreadsheet and finally prints the evaluated spreadsheet
     * back on to standard output
+    * Pass --parallel to evaluate the spreadsheet on all the available processors, a
+    * dense spreadsheet read from a file is then also compiled in parallel (see
+    * ParallelSpreadsheetReader)
+    * Pass --adaptive to evaluate the spreadsheet sequentially or on all the available
+    * processors depending on the shape of its reference graph (see
+    * StrategySelector), the strategy and the statistics are part of the metrics
+    * Pass --pipelined to evaluate and print the cells of a dense spreadsheet while
+    * the input is still being read (see PipelinedEvaluator)
+    * Pass --input <path> to read the spreadsheet from a file instead
+    * Pass --output <path> to write the evaluated spreadsheet to a file instead
+    * Pass --sparse to store only the cells which have an expression or are referenced
+    * Pass --error-values to print #CYCLE or #ERR for the cells in error instead of
+    * stopping at the first error, every cycle is then reported on standard error
+    * Pass --server <port> to serve spreadsheets on a TCP port of the loopback
+    * interface instead, or --server-socket <path> on a Unix domain socket, until the
+    * process is stopped (see SpreadsheetServer), and --server-max-cells <count> to
+    * change the largest number of cells of a spreadsheet sent to the server
+    * Pass --metrics to print the timings and the counters of the evaluation on
+    * standard error as a line of JSON (see EvaluationMetrics)
+    * Pass --off-heap to keep the values and the compiled programs in direct buffers
+    * instead of the heap, or --off-heap-file <path> in a memory mapped scratch file
+    * (see CellStorage)
+    * Pass --snapshot <path> to print the spreadsheet from the snapshot at path when
+    * it was taken of the same input file with the same options, without reading the
+    * input, otherwise the snapshot is written after the spreadsheet is evaluated
+    * (see SpreadsheetSnapshot). The spreadsheets read from the console are only
+    * written to the snapshot. A file at path which is the input file or is not a
+    * snapshot is never replaced
     *******************************************************************************
     */
    public static void main(String[] args){
-      BufferedReader br = new BufferedReader(new InputStreamReader(System.in));
+      boolean parallel = false;
+      boolean pipelined = false;
+      boolean adaptive = false;
+      boolean sparse = false;
+      boolean errorValues = false;
+      EvaluationMetrics metrics = null;
+      CellStorage storage = CellStorage.HEAP;
+      String inputPath = null;
+      String outputPath = null;
+      SocketAddress serverAddress = null;
+      int serverMaxCells = SpreadsheetServer.MAX_REQUEST_CELLS;
+      Path snapshotPath = null;
+      for(int a = 0; a < args.length; a++){
+         if(args[a].equals("--parallel")){
+            parallel = true;
+         } else if(args[a].equals("--pipelined")){
+            pipelined = true;
+         } else if(args[a].equals("--adaptive")){
+            adaptive = true;
+         } else if(args[a].equals("--sparse")){
+            sparse = true;
+         } else if(args[a].equals("--error-values")){
+            errorValues = true;
+         } else if(args[a].equals("--metrics")){
+            metrics = new EvaluationMetrics();
+         } else if(args[a].equals("--off-heap")){
+            storage = CellStorage.OFF_HEAP;
+         } else if(args[a].equals("--off-heap-file") && a + 1 < args.length){
+            try{
+               storage = CellStorage.mapped(Paths.get(args[++a]));
+            } catch(IOException e){
+               System.out.println("IO Exception while creating file " + args[a] + " due to " + e.getMessage());
+               System.exit(1);
+            }
+         } else if(args[a].equals("--input") && a + 1 < args.length){
+            inputPath = args[++a];
+         } else if(args[a].equals("--output") && a + 1 < args.length){
+            outputPath = args[++a];
+         } else if(args[a].equals("--server") && a + 1 < args.length){
+            try{
+               serverAddress = new InetSocketAddress(InetAddress.getLoopbackAddress(), Integer.parseInt(args[++a]));
+            } catch(IllegalArgumentException e){
+               System.out.println("Please provide a valid port number");
+               System.exit(1);
+            }
+         } else if(args[a].equals("--server-socket") && a + 1 < args.length){
+            serverAddress = UnixDomainSocketAddress.of(args[++a]);
+         } else if(args[a].equals("--server-max-cells") && a + 1 < args.length){
+            try{
+               serverMaxCells = Integer.parseInt(args[++a]);
+            } catch(NumberFormatException e){
+               serverMaxCells = 0;
+            }
+            if(serverMaxCells < 1){
+               System.out.println("Please provide a positive number of cells");
+               System.exit(1);
+            }
+         } else if(args[a].equals("--snapshot") && a + 1 < args.length){
+            snapshotPath = Paths.get(args[++a]);
+         }
+      }
+      if(serverAddress != null){
+         try(SpreadsheetServer server = SpreadsheetServer.open(serverAddress, parallel, sparse, errorValues,
+                 metrics != null, serverMaxCells)){
+            System.err.println("Serving spreadsheets on " + server.getAddress());
+            server.serve();
+         } catch (IOException e){
+            System.out.println("IO Exception while serving on " + serverAddress + " due to " + e.getMessage());
+            System.exit(1);
+         }
+         return;
+      }
+      if(snapshotPath != null){
+         try{
+            SpreadsheetSnapshot.checkReplaceable(snapshotPath, inputPath == null ? null : Paths.get(inputPath));
+         } catch (IOException e){
+            System.out.println("IO Exception while checking the snapshot " + snapshotPath + " due to " + e.getMessage());
+            System.exit(1);
+         }
+      }
+      if(snapshotPath != null && inputPath != null
+              && printSnapshot(snapshotPath, Paths.get(inputPath), sparse, errorValues, metrics, outputPath)){
+         return;
+      }
+      String source = inputPath == null ? "console" : "file " + inputPath;
       // Read the first line and get spreadsheet/array dimensions
       try{
-         String dimensions = br.readLine();
+         SpreadsheetReader reader = pipelined ? PipelinedEvaluator.openReader(inputPath)
+                 : inputPath == null ? SpreadsheetReader.standardInput() : SpreadsheetReader.open(inputPath);
+         String dimensions = reader.readLine();
          if(dimensions != null){
             dimensions = dimensions.trim();
             Scanner scan = new Scanner(dimensions);
@@ -61,29 +301,66 @@ public class Spreadsheet {
                   System.out.println("Please provide at least 2 dimensions");
                   System.exit(2);
                }
-               if(M < 1 || M > 26){
-                  System.out.println("Please enter a valid row count : 1 - 26");
+               if(M < 1){
+                  System.out.println("Please enter a positive non-zero value for row count");
                   System.exit(1);
                }
                if(N < 1){
                   System.out.println("Please enter a positive non-zero value for column count");
                   System.exit(1);
                }
-               String[][] input = new String[M][N];
-               for(byte i = 0; i < M; i++){
-                  for(int j = 0; j < N ; j++){
-                     input[i][j] = br.readLine();
-                  }
+               if((long)M * N > MAX_CELL_COUNT){
+                  System.out.println("Please enter dimensions with at most " + MAX_CELL_COUNT + " cells");
+                  System.exit(1);
                }
                try{
-                  Spreadsheet spreadsheet = new Spreadsheet(input);
-                  spreadsheet.evaluateSpreadSheet();
-                  printArray(dimensions,spreadsheet.getCells());
+                  if(pipelined && !sparse){
+                     Spreadsheet spreadsheet = printPipelined(reader, dimensions, M, N, errorValues, storage, metrics,
+                             outputPath);
+                     printMetrics(metrics);
+                     if(snapshotPath != null){
+                        writeSnapshot(spreadsheet, dimensions, inputPath, snapshotPath);
+                     }
+                     return;
+                  }
+                  if(metrics != null){
+                     metrics.begin(EvaluationMetrics.PARSE);
+                  }
+                  Spreadsheet spreadsheet = parallel && !sparse
+                          ? reader.readSpreadsheetInParallel(M, N, errorValues, storage, ForkJoinPool.commonPool())
+                          : reader.readSpreadsheet(M, N, sparse, errorValues, storage);
+                  reader.close();
+                  if(metrics != null){
+                     metrics.end();
+                     spreadsheet.setMetrics(metrics);
+                  }
+                  if(errorValues){
+                     for(String[] cycle : spreadsheet.findCycles()){
+                        System.err.println("Cycle detected at cells " + String.join(" ", cycle));
+                     }
+                  }
+                  if(adaptive){
+                     spreadsheet.evaluateSpreadSheetAdaptively();
+                  } else if(parallel){
+                     spreadsheet.evaluateSpreadSheetInParallel();
+                  } else {
+                     spreadsheet.evaluateSpreadSheet();
+                  }
+                  if(metrics != null){
+                     metrics.begin(EvaluationMetrics.OUTPUT);
+                  }
+                  printArray(dimensions,spreadsheet,outputPath);
+                  printMetrics(metrics);
+                  if(snapshotPath != null){
+                     writeSnapshot(spreadsheet, dimensions, inputPath, snapshotPath);
+                  }
                }catch(CycleDetectedException e){
                   System.out.println(e.getMessage());
+                  printMetrics(metrics);
                   System.exit(5);
                }catch(IllegalArgumentException e){
                   System.out.println(e.getMessage());
+                  printMetrics(metrics);
                   System.exit(4);
                }
             } catch (NumberFormatException e){
@@ -95,56 +372,923 @@ public class Spreadsheet {
             System.exit(2);
          }
       } catch (IOException e){
-         System.out.println("IO Exception while reading from console due to " + e.getMessage());
+         System.out.println("IO Exception while reading from " + source + " due to " + e.getMessage());
+         System.exit(1);
+      }
+   }
+
+   /*
+    * Prints the spreadsheet restored from the snapshot if it was taken of the input
+    * with the same options, false if there is no such snapshot (a snapshot which
+    * cannot be loaded is reported on standard error)
+    */
+   private static boolean printSnapshot(Path snapshotPath, Path input, boolean sparse, boolean errorValues,
+                                        EvaluationMetrics metrics, String outputPath){
+      if(!Files.exists(snapshotPath)){
+         return false;
+      }
+      SpreadsheetSnapshot snapshot;
+      Spreadsheet spreadsheet;
+      try{
+         snapshot = SpreadsheetSnapshot.open(snapshotPath);
+         if(!snapshot.isTakenOf(input, sparse, errorValues)){
+            return false;
+         }
+         if(metrics != null){
+            metrics.begin(EvaluationMetrics.PARSE);
+         }
+         spreadsheet = snapshot.load();
+         if(metrics != null){
+            metrics.end();
+         }
+      } catch (IOException e){
+         System.err.println("Snapshot " + snapshotPath + " not loaded due to " + e.getMessage());
+         return false;
+      }
+      if(errorValues){
+         for(String[] cycle : spreadsheet.findCycles()){
+            System.err.println("Cycle detected at cells " + String.join(" ", cycle));
+         }
+      }
+      if(metrics != null){
+         metrics.begin(EvaluationMetrics.OUTPUT);
+      }
+      printArray(snapshot.getDimensions(), spreadsheet, outputPath);
+      printMetrics(metrics);
+      return true;
+   }
+
+   /*
+    * Reads, evaluates and prints the cells of the dense spreadsheet at the same time
+    * (see PipelinedEvaluator), the cycles found with error values are reported
+    * on standard error once the spreadsheet is printed
+    */
+   private static Spreadsheet printPipelined(SpreadsheetReader reader, String dimensions, int rowCount,
+                                             int columnCount, boolean errorValues, CellStorage storage,
+                                             EvaluationMetrics metrics, String outputPath) throws IOException {
+      SpreadsheetWriter writer;
+      try{
+         writer = PipelinedEvaluator.openWriter(outputPath);
+      } catch (IOException e){
+         System.out.println("IO Exception while writing to file " + outputPath + " due to " + e.getMessage());
+         System.exit(1);
+         return null;
+      }
+      Spreadsheet spreadsheet = PipelinedEvaluator.evaluate(reader, dimensions, rowCount, columnCount, errorValues,
+              storage, writer, metrics);
+      reader.close();
+      try{
+         writer.close();
+      } catch (IOException e){
+         System.out.println("IO Exception while writing to " + (outputPath == null ? "console" : "file " + outputPath) +
+                 " due to " + e.getMessage());
+         System.exit(1);
+      }
+      if(errorValues){
+         for(String[] cycle : spreadsheet.findCycles()){
+            System.err.println("Cycle detected at cells " + String.join(" ", cycle));
+         }
+      }
+      return spreadsheet;
+   }
+
+   private static void writeSnapshot(Spreadsheet spreadsheet, String dimensions, String inputPath, Path snapshotPath){
+      try{
+         SpreadsheetSnapshot.write(spreadsheet, dimensions, inputPath == null ? null : Paths.get(inputPath), snapshotPath);
+      } catch (IOException e){
+         System.out.println("IO Exception while writing to file " + snapshotPath + " due to " + e.getMessage());
          System.exit(1);
       }
    }
 
+   /*
+    * Ends the output phase and prints the summary of the metrics on standard error
+    */
+   private static void printMetrics(EvaluationMetrics metrics){
+      if(metrics != null){
+         metrics.end();
+         System.err.println(metrics.summary());
+      }
+   }
+
  /*
   ********************************************************************************
   * Evaluates the current spreadsheet
   * Logic :
-  * 1)Mark all the cells in the spreadsheet as WHITE (Unvisited)
-  * 2)Loop around the all the cells in the spreadsheet and if it is unvisited(WHITE),
-  *   create a Pair object specifying this particular cell and call the calculate
-  *   RPN logic for this cell
+  * 1)Compile the expressions of all the cells into programs
+  * 2)Mark all the cells in the spreadsheet as WHITE (Unvisited)
+  * 3)If the spreadsheet contains cells which only reference another cell, resolve
+  *   them to the end of their chains and evaluate them, see AliasResolver
+  *   Otherwise evaluate the runs of cells sharing an expression template by
+  *   blocks, see TemplateRunEvaluator
+  * 4)Loop around the all the cells in the spreadsheet and if it is unvisited(WHITE),
+  *   call the calculate RPN logic for the linear index of this cell
+  * With error values, the cells of all the cycles are marked #CYCLE up front
+  * instead of step 3 (see markCycles) and the DFS gives their dependents and the
+  * cells which fail to evaluate an error state, the other cells are evaluated
  *******************************************************************************
  */
    public void evaluateSpreadSheet(){
-      for(int i = 0; i < visitStatus.length; i++){
-         for(int j = 0; j < visitStatus[0].length; j++){
-            visitStatus[i][j] = Color.WHITE;
+      beginPhase(EvaluationMetrics.PARSE);
+      compile();
+      endPhase();
+      evaluateCompiled();
+   }
+
+   /*
+    * Evaluates the compiled cells, all WHITE (steps 3 and 4 of evaluateSpreadSheet)
+    */
+   private void evaluateCompiled(){
+      if(errorValues){
+         beginPhase(EvaluationMetrics.GRAPH);
+         markCycles(null);
+         endPhase();
+      }
+      beginPhase(EvaluationMetrics.EVALUATE);
+      try{
+         if(!errorValues && !AliasResolver.evaluate(this)){
+            evaluateTemplateRuns();
          }
+         evaluateRemainingCells();
+      } finally {
+         endPhase();
+      }
+      evaluated = true;
+   }
+
+ /*
+  ********************************************************************************
+  * Evaluates the current spreadsheet using all the available processors
+  * Logic :
+  * 1)Compile the expressions of all the cells into programs and mark them WHITE
+  * 2)Evaluate the cells level by level on the common ForkJoinPool, see
+  *   ParallelEvaluator
+  * 3)Run the sequential DFS on the cells left WHITE (cycles and errors) so that
+  *   the same exception as evaluateSpreadSheet is thrown, or with error values
+  *   mark the cycles among them and give the others their error state
+ *******************************************************************************
+ */
+   public void evaluateSpreadSheetInParallel(){
+      evaluateSpreadSheetInParallel(ForkJoinPool.commonPool());
+   }
+
+   void evaluateSpreadSheetInParallel(ForkJoinPool pool){
+      beginPhase(EvaluationMetrics.PARSE);
+      compile();
+      endPhase();
+      evaluateCompiledInParallel(pool, false);
+   }
+
+ /*
+  ********************************************************************************
+  * Evaluates the current spreadsheet with the strategy which suits the shape of
+  * its reference graph, on the common ForkJoinPool when it is evaluated in parallel
+  * Logic :
+  * 1)Compile the expressions of all the cells into programs and mark them WHITE
+  * 2)Gather the statistics of the reference graph (see GraphStatistics) and choose
+  *   the sequential DFS, the level by level evaluation or the work stealing
+  *   evaluation for them and the parallelism of the pool (see StrategySelector)
+  * 3)Evaluate the cells as evaluateSpreadSheet does, or as
+  *   evaluateSpreadSheetInParallel does with ParallelEvaluator or
+  *   WorkStealingEvaluator
+  * The strategy and the statistics are kept for diagnostics (getEvaluationStrategy,
+  * getGraphStatistics) and added to the metrics (see EvaluationMetrics)
+ *******************************************************************************
+ */
+   public void evaluateSpreadSheetAdaptively(){
+      evaluateSpreadSheetAdaptively(ForkJoinPool.commonPool());
+   }
+
+   void evaluateSpreadSheetAdaptively(ForkJoinPool pool){
+      beginPhase(EvaluationMetrics.PARSE);
+      compile();
+      endPhase();
+      beginPhase(EvaluationMetrics.GRAPH);
+      graphStatistics = GraphStatistics.collect(compiledSheet);
+      strategy = StrategySelector.choose(graphStatistics, pool.getParallelism());
+      if(metrics != null){
+         metrics.setStrategy(StrategySelector.name(strategy), graphStatistics);
       }
-      for(byte i = 0; i < cells.length; i++){
-         for(int j = 0; j < cells[0].length; j++){
-            if(visitStatus[i][j] == Color.WHITE){
-               Pair pair = new Pair(i,j);
-               CellExpressionEvaluator.calcRPN(pair,this);
+      endPhase();
+      if(strategy == StrategySelector.SEQUENTIAL){
+         evaluateCompiled();
+      } else {
+         evaluateCompiledInParallel(pool, strategy == StrategySelector.WORK_STEALING);
+      }
+   }
+
+   /*
+    * Evaluates the compiled cells, all WHITE, on the pool (steps 2 and 3 of
+    * evaluateSpreadSheetInParallel), level by level or by work stealing
+    */
+   private void evaluateCompiledInParallel(ForkJoinPool pool, boolean workStealing){
+      beginPhase(EvaluationMetrics.GRAPH);
+      getDependencyGraph();
+      endPhase();
+      beginPhase(EvaluationMetrics.EVALUATE);
+      try{
+         if(workStealing){
+            WorkStealingEvaluator.evaluate(this, pool);
+         } else {
+            ParallelEvaluator.evaluate(this, pool);
+         }
+         if(errorValues){
+            markCycles(null);
+         }
+         evaluateRemainingCells();
+      } finally {
+         endPhase();
+      }
+      evaluated = true;
+   }
+
+   /*
+    * Steps of PipelinedEvaluator, which compiles the cells of a spreadsheet loaded
+    * empty while it evaluates the cells whose cones are already compiled
+    * beginPipeline marks all the cells WHITE, cellsCompiled registers the cells
+    * from .. to - 1 once compiled, evaluateCells evaluates the cells from .. to - 1
+    * (whose cones must be compiled) in row major order and endPipeline is called
+    * once every cell is evaluated
+    */
+   void beginPipeline(){
+      compile();
+   }
+
+   void cellsCompiled(int from, int to){
+      if(rangeIndex != null){
+         for(int slot = from; slot < to; slot++){
+            rangeIndex.addUsers(slot);
+         }
+      }
+   }
+
+   void evaluateCells(int from, int to){
+      if(errorValues){
+         int[] roots = new int[to - from];
+         for(int cell = from; cell < to; cell++){
+            roots[cell - from] = cell;
+         }
+         markCycles(roots);
+      }
+      for(int cell = from; cell < to; cell++){
+         if(visitStatus.get(cell) == Color.WHITE){
+            CellExpressionEvaluator.calcRPN(cell,this);
+         }
+      }
+   }
+
+   void endPipeline(){
+      evaluated = true;
+   }
+
+   /**
+    * ****************************************************************************
+    * Replaces the expression of a cell. The other cells are not re-evaluated until
+    * recalculate is called
+    * @param cellName
+    *         Name of the cell like A1,A2,B1,B2 etc
+    * @param expression
+    *         The new RPN expression of the cell, empty or null for 0.00000
+    * @throws IllegalArgumentException
+    *             when the cell name does not refer to a cell of the spreadsheet
+    *             or the expression is not a valid RPN expression, in which case
+    *             the cell keeps its previous expression
+    * ****************************************************************************
+    */
+   public void setCell(String cellName, String expression){
+      int cell = ExpressionCompiler.getCellIndex(cellName, rowCount, columnCount);
+      if(cell < 0){
+         throw new IllegalArgumentException("Invalid cell name " + cellName);
+      }
+      if(compiledSheet != null){
+         try{
+            int slot = ExpressionCompiler.compileCell(expression, cell / columnCount, cell % columnCount, compiledSheet);
+            if(dependencyGraph != null){
+               dependencyGraph.addDependents(compiledSheet, slot);
+            }
+            if(rangeIndex != null){
+               rangeIndex.addUsers(slot);
             }
+            changedCells.push(slot);
+            cycles = null;
+         } finally {
+            // A sparse spreadsheet gets slots for a new cell and the cells it references
+            growSlots();
+         }
+      }
+      if(cells != null){
+         cells[cell / columnCount][cell % columnCount] = expression;
+      } else {
+         expressionText.set(cell, expression);
+      }
+   }
+
+ /*
+  ********************************************************************************
+  * Re-evaluates the cells edited by setCell along with all their transitive
+  * dependents. The time taken is proportional to the affected cells and not to
+  * the size of the spreadsheet
+  * Logic :
+  * 1)Mark the edited cells WHITE and walk the reverse dependency index marking
+  *   every BLACK dependent WHITE. A cell which is not BLACK already has no BLACK
+  *   dependent, so the walk stops there. The users of the ranges containing a
+  *   marked cell are marked as well (see RangeIndex)
+  * 2)Run the DFS from the marked cells in row major order
+  * With error values, the cycles through the marked cells are marked #CYCLE before
+  * the DFS, so that creating or breaking a cycle only costs the affected cells
+  * If the spreadsheet has not been evaluated yet, it is evaluated completely
+  * If the evaluation fails, the marked cells are recalculated again on the next call
+ *******************************************************************************
+ */
+   public void recalculate(){
+      if(!evaluated){
+         evaluateSpreadSheet();
+         return;
+      }
+      beginPhase(EvaluationMetrics.GRAPH);
+      invalidate();
+      int[] roots = staleCells.toArray();
+      Arrays.sort(roots);
+      if(errorValues){
+         markCycles(roots);
+      }
+      endPhase();
+      beginPhase(EvaluationMetrics.EVALUATE);
+      try{
+         for(int cell : roots){
+            if(visitStatus.get(cell) == Color.WHITE){
+               CellExpressionEvaluator.calcRPN(cell,this);
+            }
+         }
+      } catch(RuntimeException e){
+         // Keep the affected cells as the roots of the next recalculation
+         changedCells.clear();
+         for(int cell : roots){
+            if(visitStatus.get(cell) != Color.BLACK){
+               visitStatus.set(cell, Color.WHITE);
+               changedCells.push(cell);
+            }
+         }
+         staleCells.clear();
+         throw e;
+      } finally {
+         endPhase();
+      }
+      staleCells.clear();
+   }
+
+   /*
+    * Marks the cells edited since the last call WHITE along with their transitive
+    * dependents (step 1 of recalculate) and records them as stale
+    */
+   private void invalidate(){
+      DependencyGraph graph = getDependencyGraph();
+      RangeIndex ranges = compiledSheet.getRangeCount() > 0 ? getRangeIndex() : null;
+      boolean[] collectedRanges = ranges == null ? null : new boolean[compiledSheet.getRangeCount()];
+      IntStack rangeUsers = new IntStack(16);
+      IntStack affected = new IntStack(changedCells.size());
+      for(int i = 0; i < changedCells.size(); i++){
+         int cell = changedCells.get(i);
+         visitStatus.set(cell, Color.WHITE);
+         affected.push(cell);
+      }
+      for(int i = 0; i < affected.size(); i++){
+         int cell = affected.get(i);
+         for(int d = graph.getDependentStart(cell); d < graph.getDependentEnd(cell); d++){
+            markDependent(graph.getDependent(d), affected);
+         }
+         IntStack added = graph.getAddedDependents(cell);
+         if(added != null){
+            for(int d = 0; d < added.size(); d++){
+               markDependent(added.get(d), affected);
+            }
+         }
+         if(ranges != null){
+            ranges.invalidate(compiledSheet.getCell(cell));
+            rangeUsers.clear();
+            ranges.collectUsers(compiledSheet.getCell(cell), collectedRanges, rangeUsers);
+            for(int d = 0; d < rangeUsers.size(); d++){
+               markDependent(rangeUsers.get(d), affected);
+            }
+         }
+      }
+
+      for(int i = 0; i < affected.size(); i++){
+         staleCells.push(affected.get(i));
+      }
+      changedCells.clear();
+      compiledSheet.newEpoch(true);
+   }
+
+   /*
+    * Marks a BLACK dependent WHITE and queues it so that its own dependents are marked
+    */
+   private void markDependent(int dependent, IntStack affected){
+      if(visitStatus.get(dependent) == Color.BLACK){
+         visitStatus.set(dependent, Color.WHITE);
+         affected.push(dependent);
+      }
+   }
+
+   /*
+    * Sizes the values and the visit states for the slots added by setCell
+    */
+   private void growSlots(){
+      int slotCount = compiledSheet.getCellCount();
+      if(slotCount > values.length()){
+         int capacity = Math.max(slotCount, values.length() + (values.length() >> 1));
+         values.resize(capacity);
+         visitStatus.resize(capacity);
+         if(errors != null){
+            errors.resize(capacity);
+         }
+      }
+   }
+
+   /*
+    * Compiles the expressions of all the cells and marks all the cells WHITE (Unvisited)
+    * A spreadsheet loaded by SpreadsheetReader is already compiled, its slots are
+    * only put back in row major order
+    */
+   private void compile(){
+      evaluated = false;
+      if(cells != null){
+         compiledSheet = ExpressionCompiler.compile(cells, errorValues, storage);
+      } else {
+         compiledSheet.sortSlots();
+      }
+      dependencyGraph = null;
+      rangeIndex = null;
+      cycleFinder = null;
+      cycles = null;
+      queryable = false;
+      changedCells.clear();
+      staleCells.clear();
+      visitStatus.fill(Color.WHITE);
+      if(!errorValues){
+         errors = null;
+      } else if(errors == null){
+         errors = storage.newByteArray(values.length());
+      } else {
+         errors.fill(CellError.NONE);
+      }
+      compiledSheet.newEpoch(true);
+   }
+
+   private void beginPhase(int phase){
+      if(metrics != null){
+         metrics.begin(phase);
+      }
+   }
+
+   private void endPhase(){
+      if(metrics != null){
+         metrics.end();
+      }
+   }
+
+   /*
+    * Compiles the spreadsheet without evaluating it, unless it is already evaluated
+    * or compiled for queries
+    */
+   private void prepareQueries(){
+      if(!evaluated && !queryable){
+         compile();
+         queryable = true;
+      }
+   }
+
+   /*
+    * Evaluates the cone of the cell, a cell left GREY by an error is put back to
+    * WHITE so that the other queries do not take it for a cycle
+    */
+   private void evaluateCone(int slot){
+      if(errorValues){
+         markCycles(new int[]{slot});
+         if(visitStatus.get(slot) == Color.BLACK){
+            return;
+         }
+      }
+      try{
+         CellExpressionEvaluator.calcRPN(slot,this);
+      } catch(RuntimeException e){
+         // The stack holds the frames of the DFS, the first int of a frame is its cell
+         IntStack stack = getDfsStack();
+         for(int i = 0; i < stack.size(); i += CellExpressionEvaluator.FRAME_SIZE){
+            if(visitStatus.get(stack.get(i)) == Color.GREY){
+               visitStatus.set(stack.get(i), Color.WHITE);
+            }
+         }
+         throw e;
+      }
+   }
+
+   /*
+    * Marks the cells of the cycles reachable from the roots (all the cells when null)
+    * through WHITE cells as evaluated, with the value NaN and the state CYCLE, so
+    * that the DFS never meets a cell which is being visited
+    */
+   private void markCycles(int[] roots){
+      for(int[] cycle : getCycleFinder().find(roots, visitStatus)){
+         for(int cell : cycle){
+            values.set(cell, Double.NaN);
+            errors.set(cell, CellError.CYCLE);
+            visitStatus.set(cell, Color.BLACK);
+         }
+      }
+   }
+
+   /*
+    * Evaluates the template runs (step 3 of evaluateSpreadSheet), an exception leaves
+    * all the cells WHITE so that evaluateRemainingCells throws it in order
+    */
+   private void evaluateTemplateRuns(){
+      try{
+         TemplateRunEvaluator.evaluate(this);
+      } catch(RuntimeException e){
+         visitStatus.fill(Color.WHITE);
+         // The next-pending pointers of the ranges assume that cells only turn BLACK
+         rangeIndex = null;
+      }
+   }
+
+   /*
+    * Runs the DFS from every cell which is still unvisited(WHITE), in row major order
+    */
+   private void evaluateRemainingCells(){
+      int slotCount = compiledSheet.getCellCount();
+      for(int cell = 0; cell < slotCount; cell++){
+         if(visitStatus.get(cell) == Color.WHITE){
+            CellExpressionEvaluator.calcRPN(cell,this);
          }
       }
    }
 
  /*
  ********************************************************************************
- * Print the spreadsheet along with the dimensions on to standard input
+ * Print the evaluated spreadsheet along with the dimensions on to standard output
+ * (or to the file at outputPath when it is not null) through a SpreadsheetWriter
+ * The values are formatted to 5 decimal places only here
  *******************************************************************************
  */
-   private static void printArray(String dimensions, String[][] input){
-      System.out.println(dimensions);
-      for(int i = 0 ; i < input.length ; i++){
-         for(int j = 0; j < input[0].length ; j++){
-            System.out.println(input[i][j]);
+   private static void printArray(String dimensions, Spreadsheet spreadsheet, String outputPath){
+      try{
+         SpreadsheetWriter writer = outputPath == null ? SpreadsheetWriter.standardOutput() : SpreadsheetWriter.open(outputPath);
+         spreadsheet.write(writer, dimensions);
+         if(outputPath == null){
+            writer.flush();
+         } else {
+            writer.close();
+         }
+      } catch (IOException e){
+         System.out.println("IO Exception while writing to " + (outputPath == null ? "console" : "file " + outputPath) +
+                 " due to " + e.getMessage());
+         System.exit(1);
+      }
+   }
+
+   /**
+    * ****************************************************************************
+    * Writes the dimensions line followed by the value of every cell in row major
+    * order, #CYCLE or #ERR for the cells in error
+    * @param writer
+    *         The writer, which is not flushed
+    * @param dimensions
+    *         The dimensions line as read from the input
+    * ****************************************************************************
+    */
+   void write(SpreadsheetWriter writer, String dimensions) throws IOException {
+      writer.writeLine(dimensions);
+      // The slots are in row major order, the cells without a slot are empty
+      CompiledSheet program = compiledSheet;
+      int slotCount = program.getCellCount();
+      int slot = 0;
+      for(int cell = 0; cell < rowCount * columnCount; cell++){
+         if(slot < slotCount && program.getCell(slot) == cell){
+            if(errors != null && errors.get(slot) != CellError.NONE){
+               writer.writeLine(CellError.text(errors.get(slot)));
+            } else {
+               writer.writeValue(values.get(slot));
+            }
+            slot++;
+         } else {
+            writer.writeZero();
          }
       }
    }
 
+   /**
+    * ****************************************************************************
+    * Expressions of the cells
+    * @return the array the spreadsheet was created with, null when the spreadsheet
+    *         was loaded by SpreadsheetReader
+    * ****************************************************************************
+    */
    public String[][] getCells() {
       return cells;
    }
 
-   public Color[][] getVisitStatus() {
+   public int getRowCount() {
+      return rowCount;
+   }
+
+   public int getColumnCount() {
+      return columnCount;
+   }
+
+   /**
+    * ****************************************************************************
+    * Source text of a cell, used to report the errors found while evaluating it
+    * @param slot
+    *         Slot of the cell, which is its linear index in a dense spreadsheet
+    * ****************************************************************************
+    */
+   String getExpression(int slot) {
+      if(cells != null){
+         return cells[slot / columnCount][slot % columnCount];
+      }
+      return expressionText.get(compiledSheet.getCell(slot));
+   }
+
+   /**
+    * ****************************************************************************
+    * Evaluated value of the cell
+    * @param row
+    *         row index of the cell starting from 0
+    * @param column
+    *         column index of the cell starting from 0
+    * @return the value of the cell, 0.0 for a cell without a slot in a sparse
+    *         spreadsheet
+    * ****************************************************************************
+    */
+   public double getValue(int row, int column) {
+      int slot = compiledSheet == null ? row * columnCount + column : compiledSheet.getSlot(row * columnCount + column);
+      return slot < 0 ? 0.0 : values.get(slot);
+   }
+
+   /**
+    * ****************************************************************************
+    * Evaluated value of the cell formatted to 5 decimal places
+    * @param row
+    *         row index of the cell starting from 0
+    * @param column
+    *         column index of the cell starting from 0
+    * @return the value of the cell as printed on the standard output
+    * ****************************************************************************
+    */
+   public String getFormattedValue(int row, int column) {
+      byte error = getError(row, column);
+      if(error != CellError.NONE){
+         return CellError.text(error);
+      }
+      return SpreadsheetWriter.format(getValue(row, column));
+   }
+
+   /**
+    * ****************************************************************************
+    * Evaluates a single cell on demand, see valuesOf
+    * @param cellName
+    *         Name of the cell like A1,A2,B1,B2 etc
+    * @return the value of the cell
+    * ****************************************************************************
+    */
+   public double valueOf(String cellName) {
+      return valuesOf(cellName)[0];
+   }
+
+   /**
+    * ****************************************************************************
+    * Evaluates the given cells on demand, without evaluating the whole spreadsheet
+    * Logic : The first query compiles the spreadsheet (if evaluateSpreadSheet has
+    *         not been called) and leaves all the cells WHITE. Every query then runs
+    *         the DFS of calcRPN from the requested cells which are still WHITE, so
+    *         only their transitive dependency cone is evaluated and the cells
+    *         turned BLACK are memoized for the later queries. The cells edited by
+    *         setCell since the last query are marked WHITE along with their
+    *         dependents first (as recalculate does), so the time taken is
+    *         proportional to the cones and to the edits, not to the spreadsheet
+    * @param cellNames
+    *         Names of the cells like A1,A2,B1,B2 etc
+    * @return the values of the cells, in the order of the names (NaN for a cell in
+    *         error when the spreadsheet is evaluated with error values)
+    * @throws IllegalArgumentException
+    *             when a cell name does not refer to a cell of the spreadsheet, or
+    *             a cone contains an expression which is not valid
+    * @throws CycleDetectedException
+    *             when a cone contains a cycle (unless evaluated with error values)
+    * ****************************************************************************
+    */
+   public double[] valuesOf(String... cellNames) {
+      int[] cells = getCellIndices(cellNames);
+      prepareQueries();
+      if(!changedCells.isEmpty()){
+         invalidate();
+      }
+      double[] result = new double[cells.length];
+      for(int i = 0; i < cells.length; i++){
+         int slot = compiledSheet.getSlot(cells[i]);
+         if(slot >= 0){
+            if(visitStatus.get(slot) == Color.WHITE){
+               evaluateCone(slot);
+            }
+            result[i] = values.get(slot);
+         }
+      }
+      return result;
+   }
+
+   /**
+    * ****************************************************************************
+    * Plans the evaluation of what-if scenarios, in which the input cells take
+    * other values, see ScenarioEvaluator. The spreadsheet is evaluated first (or
+    * recalculated after its edits), the plan must be made again after an edit
+    * @param inputCells
+    *         Names of the cells whose values the scenarios override
+    * @param outputCells
+    *         Names of the cells whose values the scenarios return
+    * @return the evaluator of the scenarios
+    * @throws IllegalArgumentException
+    *             when a cell name does not refer to a cell of the spreadsheet or an
+    *             input cell is named twice
+    * ****************************************************************************
+    */
+   public ScenarioEvaluator scenarios(String[] inputCells, String[] outputCells) {
+      int[] inputs = getCellIndices(inputCells);
+      int[] outputs = getCellIndices(outputCells);
+      if(compiledSheet != null){
+         // An empty input of a sparse spreadsheet gets a slot, its value may be aggregated
+         for(int cell : inputs){
+            if(compiledSheet.getSlot(cell) < 0){
+               changedCells.push(compiledSheet.addSlot(cell));
+            }
+         }
+         growSlots();
+      }
+      recalculate();
+      return new ScenarioEvaluator(this, inputs, outputs);
+   }
+
+   /*
+    * Linear indices of the named cells
+    */
+   private int[] getCellIndices(String[] cellNames){
+      int[] cells = new int[cellNames.length];
+      for(int i = 0; i < cellNames.length; i++){
+         cells[i] = ExpressionCompiler.getCellIndex(cellNames[i], rowCount, columnCount);
+         if(cells[i] < 0){
+            throw new IllegalArgumentException("Invalid cell name " + cellNames[i]);
+         }
+      }
+      return cells;
+   }
+
+   /**
+    * ****************************************************************************
+    * Error state of the cell, see CellError
+    * @return CellError.NONE unless the spreadsheet is evaluated with error values
+    *         and the cell is part of a cycle (CellError.CYCLE), could not be
+    *         evaluated (CellError.ERROR) or depends on such a cell
+    * ****************************************************************************
+    */
+   byte getError(int row, int column) {
+      if(errors == null){
+         return CellError.NONE;
+      }
+      int slot = compiledSheet.getSlot(row * columnCount + column);
+      return slot < 0 ? CellError.NONE : errors.get(slot);
+   }
+
+   /**
+    * ****************************************************************************
+    * Chooses how the cells which cannot be evaluated are reported by the next
+    * evaluation: an exception for the first such cell (the default), or a #CYCLE
+    * value for the cells of every cycle and their dependents and a #ERR value for
+    * the cells whose expression is not valid or divides by zero and their
+    * dependents, the other cells being evaluated normally
+    * setCell still rejects an expression which is not valid. A spreadsheet loaded
+    * by SpreadsheetReader is compiled while it is read, so its error values are
+    * chosen when it is read
+    * ****************************************************************************
+    */
+   public void setErrorValues(boolean errorValues) {
+      if(this.errorValues != errorValues){
+         this.errorValues = errorValues;
+         evaluated = false;
+      }
+   }
+
+   public boolean hasErrorValues() {
+      return errorValues;
+   }
+
+   /**
+    * ****************************************************************************
+    * Attaches the metrics collecting the counters and the timings of the next
+    * evaluations (see EvaluationMetrics), null to stop collecting them
+    * ****************************************************************************
+    */
+   void setMetrics(EvaluationMetrics metrics) {
+      this.metrics = metrics;
+   }
+
+   EvaluationMetrics getMetrics() {
+      return metrics;
+   }
+
+   /**
+    * ****************************************************************************
+    * Finds all the cycles of references of the spreadsheet in a single pass, see
+    * CycleFinder. The spreadsheet is compiled first if it is not evaluated
+    * @return the names of the cells of every cycle in row major order, the cycles
+    *         being ordered by their first cell
+    * ****************************************************************************
+    */
+   public List<String[]> findCycles() {
+      prepareQueries();
+      if(cycles == null){
+         // The slots added by setCell to a sparse spreadsheet are not in row major order
+         List<int[]> found = getCycleFinder().find(null, null);
+         for(int[] cycle : found){
+            for(int i = 0; i < cycle.length; i++){
+               cycle[i] = compiledSheet.getCell(cycle[i]);
+            }
+            Arrays.sort(cycle);
+         }
+         found.sort(Comparator.comparingInt(cycle -> cycle[0]));
+         cycles = new ArrayList<String[]>();
+         for(int[] cycle : found){
+            String[] names = new String[cycle.length];
+            for(int i = 0; i < cycle.length; i++){
+               names[i] = ExpressionCompiler.getCellName(cycle[i] / columnCount, cycle[i] % columnCount);
+            }
+            cycles.add(names);
+         }
+      }
+      return cycles;
+   }
+
+   /**
+    * ****************************************************************************
+    * Strategy chosen by the last evaluateSpreadSheetAdaptively
+    * @return "sequential", "level-parallel" or "work-stealing", null if the
+    *         spreadsheet was never evaluated adaptively
+    * ****************************************************************************
+    */
+   public String getEvaluationStrategy() {
+      return strategy < 0 ? null : StrategySelector.name(strategy);
+   }
+
+   /**
+    * ****************************************************************************
+    * Statistics of the reference graph gathered by the last
+    * evaluateSpreadSheetAdaptively, null if there was none
+    * ****************************************************************************
+    */
+   GraphStatistics getGraphStatistics() {
+      return graphStatistics;
+   }
+
+   DoubleArray getValues() {
+      return values;
+   }
+
+   public ByteArray getVisitStatus() {
       return visitStatus;
    }
+
+   ByteArray getErrors() {
+      return errors;
+   }
+
+   private CycleFinder getCycleFinder() {
+      if(cycleFinder == null){
+         cycleFinder = new CycleFinder(compiledSheet);
+      }
+      return cycleFinder;
+   }
+
+   IntStack getDfsStack() {
+      if(dfsStack == null){
+         dfsStack = new IntStack(64);
+      }
+      return dfsStack;
+   }
+
+   CompiledSheet getCompiledSheet() {
+      return compiledSheet;
+   }
+
+   RangeIndex getRangeIndex() {
+      if(rangeIndex == null){
+         rangeIndex = new RangeIndex(compiledSheet);
+      }
+      return rangeIndex;
+   }
+
+   DependencyGraph getDependencyGraph() {
+      if(dependencyGraph == null){
+         dependencyGraph = DependencyGraph.build(compiledSheet);
+      }
+      return dependencyGraph;
+   }
 }
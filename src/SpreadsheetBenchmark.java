@@ -0,0 +1,312 @@
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * ******************************************************************************
+ * File: SpreadsheetBenchmark.java
+ * Reproducible benchmark of the parse, evaluate and print phases
+ * Every benchmark is run on generated workloads for a number of warm up
+ * iterations followed by measured iterations, and reports the throughput along
+ * with the bytes allocated per operation (the figure the gc profiler of JMH
+ * reports as gc.alloc.rate.norm). The bytes are summed over all the live threads,
+ * so the workers of the parallel evaluations (adaptive, evaluate on a large
+ * sheet) are counted, except those which terminate during the measurement
+ * Workloads :
+ *   chain    - every cell references the next one, the last cell is a number
+ *              (largeSpreadsheet.txt scaled up), a single DFS through the sheet
+ *   wide     - independent formulas of constants only
+ *   fanin    - binary tree, every cell adds the two cells below it
+ *   operator - long expressions mixing all the operators with two references
+ *   template - every row below the first one applies the same formula to the
+ *              cells above it, see TemplateRunEvaluator
+ * Benchmarks :
+ *   calcRPN  - CellExpressionEvaluator.calcRPN over all the cells of a compiled sheet
+ *   evaluate - Spreadsheet.evaluateSpreadSheet, compilation included
+ *   adaptive - Spreadsheet.evaluateSpreadSheetAdaptively, compilation included
+ *   parse    - SpreadsheetReader loading the sheet text from memory
+ *   print    - SpreadsheetWriter formatting all the values into a discarding channel
+ *   scenarios - ScenarioEvaluator evaluating a batch of 64 scenarios which override
+ *               the last cell of the sheet and read the first one
+ * Storage : heap (the default) or off-heap, the backend of the per cell arrays of
+ *           the spreadsheets (see CellStorage)
+ * Usage : java SpreadsheetBenchmark [--cells N] [--warmup N] [--iterations N]
+ *                                   [--workload name] [--benchmark name]
+ *                                   [--storage name]
+ * ******************************************************************************
+ */
+public class SpreadsheetBenchmark {
+
+   private static final String[] WORKLOADS = {"chain", "wide", "fanin", "operator", "template"};
+   private static final String[] BENCHMARKS = {"calcRPN", "evaluate", "adaptive", "parse", "print", "scenarios"};
+
+   // Number of scenarios of a batch of the scenarios benchmark
+   private static final int SCENARIO_COUNT = 64;
+
+   private static final com.sun.management.ThreadMXBean THREADS = threadBean();
+
+   public static void main(String[] args) throws IOException {
+      int cells = 1000000;
+      int warmup = 5;
+      int iterations = 10;
+      String workloadFilter = null;
+      String benchmarkFilter = null;
+      CellStorage storage = CellStorage.HEAP;
+      for(int a = 0; a + 1 < args.length; a += 2){
+         switch(args[a]){
+            case "--cells":
+               cells = Integer.parseInt(args[a + 1]);
+               break;
+            case "--warmup":
+               warmup = Integer.parseInt(args[a + 1]);
+               break;
+            case "--iterations":
+               iterations = Integer.parseInt(args[a + 1]);
+               break;
+            case "--workload":
+               workloadFilter = args[a + 1];
+               break;
+            case "--benchmark":
+               benchmarkFilter = args[a + 1];
+               break;
+            case "--storage":
+               storage = args[a + 1].equals("off-heap") ? CellStorage.OFF_HEAP : CellStorage.HEAP;
+               break;
+            default:
+               System.out.println("Unknown option " + args[a]);
+               System.exit(1);
+         }
+      }
+
+      System.out.println("Cells : " + cells + ", warm up iterations : " + warmup + ", iterations : " + iterations);
+      System.out.println("bytes/op : allocated by all the live threads, n/a if the JVM does not count them");
+      // Bytes allocated by the measurement itself, subtracted from every measurement
+      long overhead = Long.MAX_VALUE;
+      for(int i = 0; i < 10; i++){
+         overhead = Math.min(overhead, allocatedSince(allocatedBytes()));
+      }
+      System.out.println(String.format("%-10s %-10s %14s %14s %16s", "Workload", "Benchmark", "ops/s", "ms/op", "bytes/op"));
+      for(String workload : WORKLOADS){
+         if(workloadFilter != null && !workloadFilter.equals(workload)){
+            continue;
+         }
+         String[][] input = generate(workload, cells);
+         for(String benchmark : BENCHMARKS){
+            if(benchmarkFilter != null && !benchmarkFilter.equals(benchmark)){
+               continue;
+            }
+            Operation operation = prepare(benchmark, input, storage);
+            for(int i = 0; i < warmup; i++){
+               operation.run();
+            }
+            Map<Long, Long> allocated = allocatedBytes();
+            long start = System.nanoTime();
+            for(int i = 0; i < iterations; i++){
+               operation.run();
+            }
+            long elapsed = System.nanoTime() - start;
+            long allocatedPerOp = Math.max(0, allocatedSince(allocated) - overhead) / iterations;
+            double millisPerOp = elapsed / 1e6 / iterations;
+            System.out.println(String.format("%-10s %-10s %14.3f %14.3f %16s", workload, benchmark,
+                    1000 / millisPerOp, millisPerOp, THREADS == null ? "n/a" : String.valueOf(allocatedPerOp)));
+         }
+      }
+   }
+
+   /*
+    * A single operation of a benchmark, repeated for every iteration
+    */
+   private interface Operation {
+      void run() throws IOException;
+   }
+
+   private static Operation prepare(String benchmark, String[][] input, CellStorage storage) throws IOException {
+      switch(benchmark){
+         case "calcRPN": {
+            Spreadsheet spreadsheet = new Spreadsheet(input, storage);
+            spreadsheet.evaluateSpreadSheet();
+            ByteArray visitStatus = spreadsheet.getVisitStatus();
+            return () -> {
+               visitStatus.fill(Color.WHITE);
+               for(int cell = 0; cell < visitStatus.length(); cell++){
+                  if(visitStatus.get(cell) == Color.WHITE){
+                     CellExpressionEvaluator.calcRPN(cell, spreadsheet);
+                  }
+               }
+            };
+         }
+         case "evaluate":
+            return () -> new Spreadsheet(input, storage).evaluateSpreadSheet();
+         case "adaptive":
+            return () -> new Spreadsheet(input, storage).evaluateSpreadSheetAdaptively();
+         case "parse": {
+            byte[] text = toText(input);
+            return () -> {
+               SpreadsheetReader reader = new SpreadsheetReader(Channels.newChannel(new ByteArrayInputStream(text)));
+               reader.readLine();
+               reader.readSpreadsheet(input.length, input[0].length, false, false, storage);
+            };
+         }
+         case "print": {
+            Spreadsheet spreadsheet = new Spreadsheet(input, storage);
+            spreadsheet.evaluateSpreadSheet();
+            DoubleArray values = spreadsheet.getValues();
+            SpreadsheetWriter writer = new SpreadsheetWriter(new DiscardingChannel());
+            return () -> {
+               for(int cell = 0; cell < values.length(); cell++){
+                  writer.writeValue(values.get(cell));
+               }
+               writer.flush();
+            };
+         }
+         case "scenarios": {
+            int columnCount = input[0].length;
+            ScenarioEvaluator scenarios = new Spreadsheet(input, storage).scenarios(
+                    new String[]{name(input.length * columnCount - 1, columnCount)}, new String[]{"A1"});
+            double[][] overrides = new double[SCENARIO_COUNT][1];
+            for(int s = 0; s < SCENARIO_COUNT; s++){
+               overrides[s][0] = s + 1;
+            }
+            return () -> scenarios.evaluate(overrides);
+         }
+         default:
+            throw new IllegalArgumentException("Unknown benchmark " + benchmark);
+      }
+   }
+
+   /**
+    * ****************************************************************************
+    * Generates the expressions of a workload with about the given number of cells
+    * laid out on a square sheet (a single row for the chain)
+    * ****************************************************************************
+    */
+   static String[][] generate(String workload, int cellCount){
+      int rowCount = workload.equals("chain") ? 1 : (int)Math.max(1, Math.sqrt(cellCount));
+      int columnCount = Math.max(1, cellCount / rowCount);
+      String[][] input = new String[rowCount][columnCount];
+      int total = rowCount * columnCount;
+      for(int cell = 0; cell < total; cell++){
+         String expression;
+         switch(workload){
+            case "chain":
+               expression = cell + 1 < total ? name(cell + 1, columnCount) : "33";
+               break;
+            case "wide":
+               expression = (cell % 97) + " " + (cell % 13 + 1) + " + 2 *";
+               break;
+            case "fanin":
+               if(2 * cell + 2 < total){
+                  expression = name(2 * cell + 1, columnCount) + " " + name(2 * cell + 2, columnCount) + " + 2 /";
+               } else {
+                  expression = String.valueOf(cell % 10);
+               }
+               break;
+            case "operator":
+               expression = "3 4 + 2 * 7 - 5 / ++ 1.5 * -- 8 + 3 - 2 * 6 / 4 + 9 * 1 - 3 /";
+               if(cell + 2 < total){
+                  expression = expression + " " + name(cell + 1, columnCount) + " + " + name(cell + 2, columnCount) + " -";
+               }
+               break;
+            case "template":
+               if(cell >= columnCount){
+                  String above = name(cell - columnCount, columnCount);
+                  expression = above + " 1.5 * " + above + " 0.5 + /";
+               } else {
+                  expression = String.valueOf(cell % 10);
+               }
+               break;
+            default:
+               throw new IllegalArgumentException("Unknown workload " + workload);
+         }
+         input[cell / columnCount][cell % columnCount] = expression;
+      }
+      return input;
+   }
+
+   private static String name(int cell, int columnCount){
+      return ExpressionCompiler.getCellName(cell / columnCount, cell % columnCount);
+   }
+
+   /*
+    * The sheet in the input format read by Spreadsheet.main
+    */
+   private static byte[] toText(String[][] input){
+      StringBuilder text = new StringBuilder();
+      text.append(input[0].length).append(' ').append(input.length).append('\n');
+      for(String[] row : input){
+         for(String expression : row){
+            text.append(expression).append('\n');
+         }
+      }
+      return text.toString().getBytes(StandardCharsets.US_ASCII);
+   }
+
+   /*
+    * Bytes allocated so far by every live thread, by thread id (empty when the
+    * JVM does not count them)
+    */
+   private static Map<Long, Long> allocatedBytes(){
+      Map<Long, Long> allocated = new HashMap<Long, Long>();
+      if(THREADS != null){
+         long[] ids = THREADS.getAllThreadIds();
+         long[] bytes = THREADS.getThreadAllocatedBytes(ids);
+         for(int i = 0; i < ids.length; i++){
+            // -1 for a thread which terminated since getAllThreadIds
+            if(bytes[i] >= 0){
+               allocated.put(ids[i], bytes[i]);
+            }
+         }
+      }
+      return allocated;
+   }
+
+   /*
+    * Bytes allocated by the live threads since the given allocatedBytes, a thread
+    * started since then counts from 0
+    */
+   private static long allocatedSince(Map<Long, Long> start){
+      long total = 0;
+      for(Map.Entry<Long, Long> thread : allocatedBytes().entrySet()){
+         Long before = start.get(thread.getKey());
+         total += thread.getValue() - (before == null ? 0 : before);
+      }
+      return total;
+   }
+
+   private static com.sun.management.ThreadMXBean threadBean(){
+      java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+      if(bean instanceof com.sun.management.ThreadMXBean
+              && ((com.sun.management.ThreadMXBean)bean).isThreadAllocatedMemorySupported()){
+         ((com.sun.management.ThreadMXBean)bean).setThreadAllocatedMemoryEnabled(true);
+         return (com.sun.management.ThreadMXBean)bean;
+      }
+      return null;
+   }
+
+   /*
+    * Channel dropping everything written to it
+    */
+   private static class DiscardingChannel implements WritableByteChannel {
+      @Override
+      public int write(ByteBuffer source){
+         int length = source.remaining();
+         source.position(source.limit());
+         return length;
+      }
+
+      @Override
+      public boolean isOpen(){
+         return true;
+      }
+
+      @Override
+      public void close(){
+      }
+   }
+}
@@ -0,0 +1,352 @@
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * ******************************************************************************
+ * File: SpreadsheetReader.java
+ * Streaming loader for the spreadsheet text format
+ * The input is read as bytes through a large buffer and every line is compiled
+ * straight from the buffer into the CompiledSheet, so no String is created per
+ * cell. Lines are terminated by \n, \r or \r\n like BufferedReader.readLine.
+ * Lines containing non ASCII bytes are decoded as UTF-8 before compiling them
+ * ******************************************************************************
+ */
+class SpreadsheetReader {
+
+   private static final int BUFFER_SIZE = 1 << 20;
+
+   private final ReadableByteChannel channel;
+   private byte[] buffer;
+   private int position;
+   private int limit;
+   private boolean endOfInput;
+
+   // Bounds of the last line returned by nextLine
+   private int lineStart;
+   private int lineEnd;
+   private boolean lineIsAscii;
+   private final LineSequence line = new LineSequence();
+
+   // Number of lines returned so far
+   private long lineCount;
+
+   SpreadsheetReader(ReadableByteChannel channel){
+      this(channel, new byte[BUFFER_SIZE]);
+   }
+
+   /**
+    * ****************************************************************************
+    * Reader using the given buffer (of any size, see BufferPool), which is replaced
+    * by a larger one when a line does not fit in it
+    * ****************************************************************************
+    */
+   SpreadsheetReader(ReadableByteChannel channel, byte[] buffer){
+      this.channel = channel;
+      this.buffer = buffer;
+   }
+
+   /**
+    * ****************************************************************************
+    * Reader of the file at the given path
+    * ****************************************************************************
+    */
+   static SpreadsheetReader open(String path) throws IOException {
+      return new SpreadsheetReader(FileChannel.open(Paths.get(path), StandardOpenOption.READ));
+   }
+
+   /**
+    * ****************************************************************************
+    * Reader of the standard input
+    * ****************************************************************************
+    */
+   static SpreadsheetReader standardInput(){
+      return new SpreadsheetReader(new FileInputStream(FileDescriptor.in).getChannel());
+   }
+
+   /**
+    * ****************************************************************************
+    * Reads the next line as a String
+    * @return the line without its terminator or null at the end of the input
+    * ****************************************************************************
+    */
+   String readLine() throws IOException {
+      if(!nextLine()){
+         return null;
+      }
+      return new String(buffer, lineStart, lineEnd - lineStart, StandardCharsets.UTF_8);
+   }
+
+   /**
+    * ****************************************************************************
+    * Reads and compiles the expressions of the cells in row major order, one line
+    * per cell. The cells for which the input ends early are empty
+    * @param rowCount
+    *         Number of rows in the spreadsheet
+    * @param columnCount
+    *         Number of columns in the spreadsheet
+    * @return the spreadsheet, compiled and ready to be evaluated. An expression
+    *         which is not valid is reported when its cell is evaluated (see
+    *         ExpressionCompiler.compile)
+    * ****************************************************************************
+    */
+   Spreadsheet readSpreadsheet(int rowCount, int columnCount) throws IOException {
+      return readSpreadsheet(rowCount, columnCount, false);
+   }
+
+   /**
+    * ****************************************************************************
+    * Reads and compiles the expressions of the cells in row major order
+    * @param sparse
+    *         true to store only the cells which have an expression or are
+    *         referenced (see CompiledSheet), the empty lines are then skipped
+    *         without taking any memory
+    * ****************************************************************************
+    */
+   Spreadsheet readSpreadsheet(int rowCount, int columnCount, boolean sparse) throws IOException {
+      return readSpreadsheet(rowCount, columnCount, sparse, false);
+   }
+
+   /**
+    * ****************************************************************************
+    * Reads and compiles the expressions of the cells in row major order
+    * @param errorValues
+    *         true to load a spreadsheet evaluated with error values, whose cells
+    *         with an expression which is not valid evaluate to #ERR instead of
+    *         throwing (see Spreadsheet.setErrorValues)
+    * ****************************************************************************
+    */
+   Spreadsheet readSpreadsheet(int rowCount, int columnCount, boolean sparse, boolean errorValues) throws IOException {
+      return readSpreadsheet(rowCount, columnCount, sparse, errorValues, CellStorage.HEAP);
+   }
+
+   /**
+    * ****************************************************************************
+    * Reads and compiles the expressions of the cells in row major order
+    * @param storage
+    *         Backend of the compiled programs and of the values of the spreadsheet,
+    *         see CellStorage
+    * ****************************************************************************
+    */
+   Spreadsheet readSpreadsheet(int rowCount, int columnCount, boolean sparse, boolean errorValues,
+                               CellStorage storage) throws IOException {
+      CompiledSheet program = new CompiledSheet(rowCount, columnCount, sparse, storage);
+      ExpressionText text = new ExpressionText();
+      compileLines(program, text, 0, rowCount * columnCount, sparse, errorValues);
+      return newSpreadsheet(program, text, errorValues);
+   }
+
+   /**
+    * ****************************************************************************
+    * Reads and compiles the expressions of the cells of a dense spreadsheet on
+    * the pool when the input is a file, see ParallelSpreadsheetReader. The result
+    * is the one of readSpreadsheet, which reads any other input
+    * ****************************************************************************
+    */
+   Spreadsheet readSpreadsheetInParallel(int rowCount, int columnCount, boolean errorValues, CellStorage storage,
+                                         ForkJoinPool pool) throws IOException {
+      return readSpreadsheetInParallel(rowCount, columnCount, errorValues, storage, pool,
+              ParallelSpreadsheetReader.CHUNK_SIZE);
+   }
+
+   Spreadsheet readSpreadsheetInParallel(int rowCount, int columnCount, boolean errorValues, CellStorage storage,
+                                         ForkJoinPool pool, int chunkSize) throws IOException {
+      if(!(channel instanceof FileChannel)){
+         return readSpreadsheet(rowCount, columnCount, false, errorValues, storage);
+      }
+      FileChannel file = (FileChannel)channel;
+      // The bytes read ahead in the buffer are read again from the file
+      long start = file.position() - (limit - position);
+      position = limit;
+      endOfInput = true;
+      CompiledSheet program = new CompiledSheet(rowCount, columnCount, false, storage);
+      ExpressionText text = new ExpressionText();
+      ParallelSpreadsheetReader.compile(file, start, file.size(), program, text, errorValues, pool, chunkSize);
+      return newSpreadsheet(program, text, errorValues);
+   }
+
+   /**
+    * ****************************************************************************
+    * Compiles the next lines into the cells firstCell, firstCell + 1 .. (in row
+    * major order) up to endCell or the end of the input
+    * @param sparse
+    *         true to skip the empty lines, whose cells get no slot
+    * @return the cell following the last line read, endCell unless the input ended
+    * ****************************************************************************
+    */
+   int compileLines(CompiledSheet program, ExpressionText text, int firstCell, int endCell, boolean sparse,
+                    boolean errorValues) throws IOException {
+      int columnCount = program.getColumnCount();
+      for(int cell = firstCell; cell < endCell; cell++){
+         // Cells past the end of the input keep the empty program
+         if(!nextLine()){
+            return cell;
+         }
+         if(sparse && lineStart == lineEnd){
+            continue;
+         }
+         int i = cell / columnCount;
+         int j = cell % columnCount;
+         int slot;
+         if(lineIsAscii){
+            line.set(buffer, lineStart, lineEnd - lineStart);
+            slot = ExpressionCompiler.compileCell(line, i, j, program, errorValues);
+            if(program.canFail(slot)){
+               text.add(cell, buffer, lineStart, lineEnd - lineStart);
+            }
+         } else {
+            String expression = new String(buffer, lineStart, lineEnd - lineStart, StandardCharsets.UTF_8);
+            slot = ExpressionCompiler.compileCell(expression, i, j, program, errorValues);
+            if(program.canFail(slot)){
+               text.add(cell, expression);
+            }
+         }
+      }
+      return endCell;
+   }
+
+   private static Spreadsheet newSpreadsheet(CompiledSheet program, ExpressionText text, boolean errorValues){
+      Spreadsheet spreadsheet = new Spreadsheet(program, text);
+      spreadsheet.setErrorValues(errorValues);
+      return spreadsheet;
+   }
+
+   /**
+    * ****************************************************************************
+    * Number of lines read so far, including the dimensions line
+    * ****************************************************************************
+    */
+   long getLineCount(){
+      return lineCount;
+   }
+
+   /**
+    * ****************************************************************************
+    * Skips lines without compiling them, like the rest of a spreadsheet whose
+    * loading failed
+    * @return false if the end of the input is reached first
+    * ****************************************************************************
+    */
+   boolean skipLines(long count) throws IOException {
+      for(long i = 0; i < count; i++){
+         if(!nextLine()){
+            return false;
+         }
+      }
+      return true;
+   }
+
+   void close() throws IOException {
+      channel.close();
+   }
+
+   /**
+    * ****************************************************************************
+    * Finds the next line in the buffer, reading more input when the line is not
+    * complete
+    * @return false at the end of the input
+    * ****************************************************************************
+    */
+   private boolean nextLine() throws IOException {
+      int scan = position;
+      boolean ascii = true;
+      while(true){
+         while(scan < limit){
+            byte b = buffer[scan];
+            if(b == '\n' || b == '\r'){
+               // A \r at the end of the buffer may be followed by \n
+               if(b == '\r' && scan + 1 == limit && !endOfInput){
+                  break;
+               }
+               lineStart = position;
+               lineEnd = scan;
+               lineIsAscii = ascii;
+               position = (b == '\r' && scan + 1 < limit && buffer[scan + 1] == '\n') ? scan + 2 : scan + 1;
+               lineCount++;
+               return true;
+            }
+            ascii &= b >= 0;
+            scan++;
+         }
+         if(endOfInput){
+            if(position == limit){
+               return false;
+            }
+            lineStart = position;
+            lineEnd = limit;
+            lineIsAscii = ascii;
+            position = limit;
+            lineCount++;
+            return true;
+         }
+         scan -= position;
+         fill();
+      }
+   }
+
+   /*
+    * Moves the unread bytes to the start of the buffer (growing it for very long
+    * lines) and reads more input after them
+    */
+   private void fill() throws IOException {
+      int remaining = limit - position;
+      if(remaining == buffer.length){
+         buffer = Arrays.copyOf(buffer, buffer.length << 1);
+      } else {
+         System.arraycopy(buffer, position, buffer, 0, remaining);
+      }
+      position = 0;
+      limit = remaining;
+      int read = channel.read(ByteBuffer.wrap(buffer, limit, buffer.length - limit));
+      if(read < 0){
+         endOfInput = true;
+      } else {
+         limit += read;
+      }
+   }
+
+   /**
+    * ****************************************************************************
+    * ASCII line of the buffer seen as a CharSequence, reused for every line
+    * ****************************************************************************
+    */
+   private static final class LineSequence implements CharSequence {
+      private byte[] bytes;
+      private int offset;
+      private int length;
+
+      void set(byte[] bytes, int offset, int length){
+         this.bytes = bytes;
+         this.offset = offset;
+         this.length = length;
+      }
+
+      @Override
+      public int length(){
+         return length;
+      }
+
+      @Override
+      public char charAt(int index){
+         return (char)bytes[offset + index];
+      }
+
+      @Override
+      public CharSequence subSequence(int start, int end){
+         return new String(bytes, offset + start, end - start, StandardCharsets.US_ASCII);
+      }
+
+      @Override
+      public String toString(){
+         return new String(bytes, offset, length, StandardCharsets.US_ASCII);
+      }
+   }
+}
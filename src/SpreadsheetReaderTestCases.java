@@ -0,0 +1,99 @@
+/**
+ * *******************************************************************
+ * File: SpreadsheetReaderTestCases.java
+ * *********************************************************************
+ */
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+public class SpreadsheetReaderTestCases {
+
+   private static SpreadsheetReader reader(String input) {
+      return new SpreadsheetReader(Channels.newChannel(
+              new ByteArrayInputStream(input.getBytes(StandardCharsets.UTF_8))));
+   }
+
+   private static Spreadsheet load(String input) throws IOException {
+      SpreadsheetReader reader = reader(input);
+      String[] dimensions = reader.readLine().trim().split(" ");
+      return reader.readSpreadsheet(Integer.parseInt(dimensions[1]), Integer.parseInt(dimensions[0]));
+   }
+
+   @Test
+   public void valueCheck() throws IOException {
+      Spreadsheet spreadsheet = load("3 2\nA2\n4 5 *\nA1\nA1 B2 / 2 +\n3\n39 B1 B2 * /\n");
+      spreadsheet.evaluateSpreadSheet();
+      assertEquals("20.00000",spreadsheet.getFormattedValue(0,0));
+      assertEquals("20.00000",spreadsheet.getFormattedValue(0,1));
+      assertEquals("20.00000",spreadsheet.getFormattedValue(0,2));
+      assertEquals("8.66667",spreadsheet.getFormattedValue(1,0));
+      assertEquals("3.00000",spreadsheet.getFormattedValue(1,1));
+      assertEquals("1.50000",spreadsheet.getFormattedValue(1,2));
+   }
+
+   // \r\n and \r terminators, an empty line and input ending before the last cells
+   @Test
+   public void lineTerminators() throws IOException {
+      Spreadsheet spreadsheet = load("2 2\r\n1 2 +\r\n\rA1 ++");
+      spreadsheet.evaluateSpreadSheet();
+      assertEquals("3.00000",spreadsheet.getFormattedValue(0,0));
+      assertEquals("0.00000",spreadsheet.getFormattedValue(0,1));
+      assertEquals("4.00000",spreadsheet.getFormattedValue(1,0));
+      assertEquals("0.00000",spreadsheet.getFormattedValue(1,1));
+   }
+
+   // Lines longer than the read buffer
+   @Test
+   public void longLine() throws IOException {
+      StringBuilder expression = new StringBuilder("0");
+      for(int i = 0; i < 300000; i++){
+         expression.append(" 1 +");
+      }
+      SpreadsheetReader reader = reader("1 1\n" + expression + "\n");
+      reader.readLine();
+      Spreadsheet spreadsheet = reader.readSpreadsheet(1, 1);
+      spreadsheet.evaluateSpreadSheet();
+      assertEquals("300000.00000",spreadsheet.getFormattedValue(0,0));
+      assertNull(reader.readLine());
+   }
+
+   // The error message quotes the expression as it was read
+   @Test
+   public void divideByZero() throws IOException {
+      Spreadsheet spreadsheet = load("2 1\n 2 A2 / \n0\n");
+      try{
+         spreadsheet.evaluateSpreadSheet();
+         fail("Expected divide by zero at cell A1");
+      } catch (RPNDivideByZeroException e){
+         assertEquals("The RPN equation  2 A2 /  at cell A1 attempted to divide by zero", e.getMessage());
+      }
+   }
+
+   // Reported when the cell is evaluated, a cycle met first wins
+   @Test
+   public void invalidExpression() throws IOException {
+      Spreadsheet spreadsheet = load("1 2\n1\n2 x +\n");
+      try{
+         spreadsheet.evaluateSpreadSheet();
+         fail("Expected invalid expression at cell B1");
+      } catch (InvalidRPNException e){
+         assertEquals("The expression 2 x + at cell B1 is not valid", e.getMessage());
+      }
+      spreadsheet = load("1 2\nB1\nA1 x +\n");
+      try{
+         spreadsheet.evaluateSpreadSheet();
+         fail("Expected cycle at cell A1");
+      } catch (CycleDetectedException e){
+         assertEquals("Cycle detected at cell A1", e.getMessage());
+      }
+   }
+}
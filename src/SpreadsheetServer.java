@@ -0,0 +1,265 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.util.Scanner;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * ******************************************************************************
+ * File: SpreadsheetServer.java
+ * Long running evaluation server, so that the JVM start up and the JIT warm up are
+ * paid once instead of once per spreadsheet (see Spreadsheet.main --server)
+ * The server listens on a TCP port or on a Unix domain socket. A client sends
+ * spreadsheets in the input format of Spreadsheet.main, one after the other on
+ * the same connection: a dimensions line followed by one line per cell. Every
+ * spreadsheet is answered by a status line followed by its output:
+ *    OK                    then the output of Spreadsheet.main (dimensions line
+ *                          and one value per cell)
+ *    ERROR <code> <text>   where code and text are the exit status and the message
+ *                          of Spreadsheet.main for the same input
+ * The connection is closed after an error in the dimensions line, since the
+ * number of lines of the spreadsheet is then unknown, and after a failure other
+ * than those of Spreadsheet.main (such as running out of memory), answered by
+ * ERROR 1. A spreadsheet may have at most maxCells cells (MAX_REQUEST_CELLS by
+ * default), far less than Spreadsheet.main accepts, so that a single request
+ * cannot take the memory of the whole server
+ * Logic : Every connection is served by its own thread, a virtual thread when the
+ *         runtime provides them (looked up by reflection, so that the server
+ *         still runs on a runtime without them) or else a thread of a cached
+ *         pool. The 1 MB read and write buffers come from BufferPool. The compiler
+ *         has no per request state and the operand stacks are thread local, so
+ *         nothing else is allocated per connection
+ * ******************************************************************************
+ */
+class SpreadsheetServer implements Closeable {
+
+   // Default largest number of cells of a spreadsheet sent to the server
+   static final int MAX_REQUEST_CELLS = 1 << 22;
+
+   private final ServerSocketChannel serverChannel;
+   private final ExecutorService executor;
+   private final boolean parallel;
+   private final boolean sparse;
+   private final boolean errorValues;
+   private final boolean metrics;
+   private final int maxCells;
+
+   private SpreadsheetServer(ServerSocketChannel serverChannel, boolean parallel, boolean sparse, boolean errorValues,
+                             boolean metrics, int maxCells){
+      this.serverChannel = serverChannel;
+      this.executor = newExecutor();
+      this.parallel = parallel;
+      this.sparse = sparse;
+      this.errorValues = errorValues;
+      this.metrics = metrics;
+      this.maxCells = maxCells;
+   }
+
+   /**
+    * ****************************************************************************
+    * Binds a server to the address, which is not served until serve is called
+    * @param address
+    *         An InetSocketAddress for a TCP server or a UnixDomainSocketAddress
+    *         (whose file must not exist) for a Unix domain socket server
+    * @param parallel
+    *         true to evaluate the spreadsheets as with --parallel
+    * @param sparse
+    *         true to load the spreadsheets as with --sparse
+    * @param errorValues
+    *         true to evaluate the spreadsheets as with --error-values
+    * @param metrics
+    *         true to collect the metrics of every spreadsheet (see EvaluationMetrics)
+    *         and print their summary on standard error as with --metrics
+    * ****************************************************************************
+    */
+   static SpreadsheetServer open(SocketAddress address, boolean parallel, boolean sparse, boolean errorValues,
+                                 boolean metrics) throws IOException {
+      return open(address, parallel, sparse, errorValues, metrics, MAX_REQUEST_CELLS);
+   }
+
+   /**
+    * ****************************************************************************
+    * Binds a server to the address, which is not served until serve is called
+    * @param maxCells
+    *         Largest number of cells of a spreadsheet, a larger one is answered by
+    *         ERROR 1 and its connection closed
+    * ****************************************************************************
+    */
+   static SpreadsheetServer open(SocketAddress address, boolean parallel, boolean sparse, boolean errorValues,
+                                 boolean metrics, int maxCells) throws IOException {
+      ServerSocketChannel serverChannel = address instanceof UnixDomainSocketAddress
+              ? ServerSocketChannel.open(StandardProtocolFamily.UNIX) : ServerSocketChannel.open();
+      try{
+         serverChannel.bind(address);
+      } catch(IOException e){
+         serverChannel.close();
+         throw e;
+      }
+      return new SpreadsheetServer(serverChannel, parallel, sparse, errorValues, metrics, maxCells);
+   }
+
+   SocketAddress getAddress() throws IOException {
+      return serverChannel.getLocalAddress();
+   }
+
+   /**
+    * ****************************************************************************
+    * Accepts the connections until the server is closed
+    * ****************************************************************************
+    */
+   void serve() throws IOException {
+      while(true){
+         SocketChannel channel;
+         try{
+            channel = serverChannel.accept();
+         } catch(ClosedChannelException e){
+            return;
+         }
+         executor.execute(() -> handle(channel));
+      }
+   }
+
+   /**
+    * ****************************************************************************
+    * Stops accepting connections, the requests being served are completed
+    * ****************************************************************************
+    */
+   @Override
+   public void close() throws IOException {
+      SocketAddress address = serverChannel.getLocalAddress();
+      serverChannel.close();
+      executor.shutdown();
+      if(address instanceof UnixDomainSocketAddress){
+         // The socket file is created by bind
+         Files.deleteIfExists(((UnixDomainSocketAddress)address).getPath());
+      }
+   }
+
+   /*
+    * Answers the spreadsheets sent on the connection until the client closes it
+    */
+   private void handle(SocketChannel channel){
+      byte[] inputBuffer = BufferPool.take();
+      byte[] outputBuffer = BufferPool.take();
+      try(SocketChannel connection = channel){
+         SpreadsheetReader reader = new SpreadsheetReader(connection, inputBuffer);
+         SpreadsheetWriter writer = new SpreadsheetWriter(connection, outputBuffer);
+         String dimensions;
+         boolean open = true;
+         while(open && (dimensions = reader.readLine()) != null){
+            open = respond(reader, writer, dimensions.trim());
+            writer.flush();
+         }
+      } catch(IOException e){
+         // The client is gone, there is nobody to answer
+      } finally {
+         BufferPool.give(inputBuffer);
+         BufferPool.give(outputBuffer);
+      }
+   }
+
+   /*
+    * Reads, evaluates and answers one spreadsheet, returns false if the connection
+    * is to be closed
+    */
+   private boolean respond(SpreadsheetReader reader, SpreadsheetWriter writer, String dimensions) throws IOException {
+      int N;
+      int M;
+      try{
+         Scanner scan = new Scanner(dimensions);
+         if(!scan.hasNext()){
+            error(writer, 1, "Please provide at least 2 dimensions");
+            return false;
+         }
+         N = Integer.parseInt(scan.next());
+         if(!scan.hasNext()){
+            error(writer, 2, "Please provide at least 2 dimensions");
+            return false;
+         }
+         M = Integer.parseInt(scan.next());
+      } catch(NumberFormatException e){
+         error(writer, 3, "Please provide valid numerical dimensions");
+         return false;
+      }
+      if(M < 1){
+         error(writer, 1, "Please enter a positive non-zero value for row count");
+         return false;
+      }
+      if(N < 1){
+         error(writer, 1, "Please enter a positive non-zero value for column count");
+         return false;
+      }
+      if((long)M * N > maxCells){
+         error(writer, 1, "Please enter dimensions with at most " + maxCells + " cells");
+         return false;
+      }
+
+      long end = reader.getLineCount() + (long)M * N;
+      EvaluationMetrics requestMetrics = metrics ? new EvaluationMetrics() : null;
+      try{
+         if(requestMetrics != null){
+            requestMetrics.begin(EvaluationMetrics.PARSE);
+         }
+         Spreadsheet spreadsheet = reader.readSpreadsheet(M, N, sparse, errorValues);
+         if(requestMetrics != null){
+            requestMetrics.end();
+            spreadsheet.setMetrics(requestMetrics);
+         }
+         if(parallel){
+            spreadsheet.evaluateSpreadSheetInParallel();
+         } else {
+            spreadsheet.evaluateSpreadSheet();
+         }
+         if(requestMetrics != null){
+            requestMetrics.begin(EvaluationMetrics.OUTPUT);
+         }
+         writer.writeLine("OK");
+         spreadsheet.write(writer, dimensions);
+         return true;
+      } catch(CycleDetectedException e){
+         error(writer, 5, e.getMessage());
+      } catch(IllegalArgumentException e){
+         // The loading may have stopped in the middle of the spreadsheet
+         reader.skipLines(end - reader.getLineCount());
+         error(writer, 4, e.getMessage());
+      } catch(RuntimeException | OutOfMemoryError e){
+         // The spreadsheet is unreachable once here, so its memory can be reclaimed.
+         // Where the next request starts is unknown
+         error(writer, 1, e instanceof OutOfMemoryError ? "Not enough memory to evaluate the spreadsheet"
+                 : "Spreadsheet not evaluated due to " + e);
+         return false;
+      } finally {
+         if(requestMetrics != null){
+            requestMetrics.end();
+            System.err.println(requestMetrics.summary());
+         }
+      }
+      return true;
+   }
+
+   private static void error(SpreadsheetWriter writer, int code, String message) throws IOException {
+      writer.writeLine("ERROR " + code + " " + message);
+   }
+
+   /*
+    * Executor starting a virtual thread per task when the runtime has them
+    */
+   private static ExecutorService newExecutor(){
+      try{
+         return (ExecutorService)Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+      } catch(ReflectiveOperationException e){
+         return Executors.newCachedThreadPool(task -> {
+            Thread thread = new Thread(task, "spreadsheet-server");
+            thread.setDaemon(true);
+            return thread;
+         });
+      }
+   }
+}
@@ -0,0 +1,144 @@
+/**
+ * *******************************************************************
+ * File: SpreadsheetServerTestCases.java
+ * *********************************************************************
+ */
+
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+public class SpreadsheetServerTestCases {
+
+   private static SpreadsheetServer start(SocketAddress address, boolean errorValues) throws IOException {
+      return start(address, errorValues, SpreadsheetServer.MAX_REQUEST_CELLS);
+   }
+
+   private static SpreadsheetServer start(SocketAddress address, boolean errorValues, int maxCells)
+           throws IOException {
+      SpreadsheetServer server = SpreadsheetServer.open(address, false, false, errorValues, false, maxCells);
+      Thread thread = new Thread(() -> {
+         try{
+            server.serve();
+         } catch (IOException e){
+            throw new RuntimeException(e);
+         }
+      });
+      thread.setDaemon(true);
+      thread.start();
+      return server;
+   }
+
+   private static SpreadsheetServer startTcp(boolean errorValues) throws IOException {
+      return start(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), errorValues);
+   }
+
+   private static void send(SocketChannel channel, String request) throws IOException {
+      ByteBuffer bytes = ByteBuffer.wrap(request.getBytes(StandardCharsets.UTF_8));
+      while(bytes.hasRemaining()){
+         channel.write(bytes);
+      }
+   }
+
+   // Several spreadsheets on the same connection, errors answered without closing it
+   @Test
+   public void requestsOnOneConnection() throws IOException {
+      try(SpreadsheetServer server = startTcp(false);
+          SocketChannel channel = SocketChannel.open(server.getAddress())){
+         BufferedReader reader = new BufferedReader(Channels.newReader(channel, StandardCharsets.UTF_8));
+         send(channel, "2 1\nA2 2 *\n3\n");
+         assertEquals("OK", reader.readLine());
+         assertEquals("2 1", reader.readLine());
+         assertEquals("6.00000", reader.readLine());
+         assertEquals("3.00000", reader.readLine());
+         send(channel, "2 1\nA2\nA1\n");
+         assertEquals("ERROR 5 Cycle detected at cell A1", reader.readLine());
+         send(channel, "1 3\n4 +\n1\n2\n");
+         assertEquals("ERROR 4 Operator + occured before there were enough numerical values for it to evaluate " +
+                 "in the expression 4 + at cell A1", reader.readLine());
+         send(channel, "1 2\n\nA1 ++\n");
+         assertEquals("OK", reader.readLine());
+         assertEquals("1 2", reader.readLine());
+         assertEquals("0.00000", reader.readLine());
+         assertEquals("1.00000", reader.readLine());
+      }
+   }
+
+   // The number of lines of the spreadsheet is unknown, so the connection is closed
+   @Test
+   public void invalidDimensionsCloseConnection() throws IOException {
+      try(SpreadsheetServer server = startTcp(false);
+          SocketChannel channel = SocketChannel.open(server.getAddress())){
+         BufferedReader reader = new BufferedReader(Channels.newReader(channel, StandardCharsets.UTF_8));
+         send(channel, "2 x\n1\n2\n");
+         assertEquals("ERROR 3 Please provide valid numerical dimensions", reader.readLine());
+         assertNull(reader.readLine());
+      }
+   }
+
+   // A spreadsheet larger than the limit of the server is refused before it is read
+   @Test
+   public void tooManyCellsCloseConnection() throws IOException {
+      try(SpreadsheetServer server = start(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), false, 4);
+          SocketChannel channel = SocketChannel.open(server.getAddress())){
+         BufferedReader reader = new BufferedReader(Channels.newReader(channel, StandardCharsets.UTF_8));
+         send(channel, "2 2\n1\n2\n3\n4\n");
+         assertEquals("OK", reader.readLine());
+         for(int line = 0; line < 5; line++){
+            reader.readLine();
+         }
+         send(channel, "40000 40000\n1\n");
+         assertEquals("ERROR 1 Please enter dimensions with at most 4 cells", reader.readLine());
+         assertNull(reader.readLine());
+      }
+   }
+
+   @Test
+   public void errorValues() throws IOException {
+      try(SpreadsheetServer server = startTcp(true);
+          SocketChannel channel = SocketChannel.open(server.getAddress())){
+         BufferedReader reader = new BufferedReader(Channels.newReader(channel, StandardCharsets.UTF_8));
+         send(channel, "3 1\nA2\nA1\n1 0 /\n");
+         assertEquals("OK", reader.readLine());
+         assertEquals("3 1", reader.readLine());
+         assertEquals("#CYCLE", reader.readLine());
+         assertEquals("#CYCLE", reader.readLine());
+         assertEquals("#ERR", reader.readLine());
+      }
+   }
+
+   @Test
+   public void unixDomainSocket() throws IOException {
+      Path directory = Files.createTempDirectory("spreadsheet");
+      Path path = directory.resolve("server.socket");
+      try{
+         try(SpreadsheetServer server = start(UnixDomainSocketAddress.of(path), false);
+             SocketChannel channel = SocketChannel.open(server.getAddress())){
+            BufferedReader reader = new BufferedReader(Channels.newReader(channel, StandardCharsets.UTF_8));
+            send(channel, "1 1\n1 2 +\n");
+            assertEquals("OK", reader.readLine());
+            assertEquals("1 1", reader.readLine());
+            assertEquals("3.00000", reader.readLine());
+         }
+         assertFalse(Files.exists(path));
+      } finally {
+         Files.deleteIfExists(path);
+         Files.delete(directory);
+      }
+   }
+}
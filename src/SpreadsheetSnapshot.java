@@ -0,0 +1,550 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.zip.CRC32C;
+
+/**
+ * ******************************************************************************
+ * File: SpreadsheetSnapshot.java
+ * Binary snapshot of an evaluated spreadsheet, from which a restarted process
+ * prints the spreadsheet and answers queries without reading the input text or
+ * evaluating any cell (see Spreadsheet.main --snapshot)
+ * Layout : A header in big endian order, followed by the sections of the body in
+ *          the native byte order of the writer, each one starting at a multiple
+ *          of 8 bytes
+ *   header        magic, format version, flags (sparse, error values, byte order),
+ *                 dimensions and counts, size and modification time of the input
+ *                 file, length and CRC32C of the body, CRC32C of the header, then
+ *                 the dimensions line
+ *   values        double per slot, then a byte per slot with the error states
+ *                 (error values only)
+ *   programs      program start per slot, opcodes, operands and constant pool
+ *                 (see CompiledSheet), then the cell of every slot (sparse only)
+ *   tables        first and last cell of every range, length of every shared node
+ *   dependencies  reference count per slot and the CSR arrays of DependencyGraph
+ *   text          source text of the cells which can fail (see ExpressionText)
+ * Logic : The snapshot is written in one sequential pass through a buffer into a
+ *         temporary file, then its header is completed and it is renamed over the
+ *         previous snapshot, so that a crash never leaves a partial snapshot. Only
+ *         a snapshot is replaced, never the input file or any other file (see
+ *         checkReplaceable)
+ *         Loading checks the header, then the CRC32C of the body in one sequential
+ *         read (which also brings the file into the page cache), and maps the per
+ *         cell sections privately as the off heap arrays of the spreadsheet (see
+ *         CellStorage): the values and the programs are used in place and only
+ *         the tables, the dependencies and the text are copied to the heap. All
+ *         the cells are BLACK, so the spreadsheet is printed or queried at once
+ *         and setCell + recalculate only evaluate the dependents of the edits
+ *         A snapshot of another format version or byte order, which is corrupt,
+ *         or was taken of another input (see isTakenOf) is rejected
+ * ******************************************************************************
+ */
+final class SpreadsheetSnapshot {
+
+   private static final int MAGIC = 0x53534E50;
+
+   // To be increased whenever the layout or the meaning of the programs (Opcode) changes
+   static final int VERSION = 1;
+
+   private static final int SPARSE = 1;
+   private static final int ERROR_VALUES = 2;
+   private static final int LITTLE_ENDIAN = 4;
+
+   // Size of the fixed part of the header, the header checksum is its last field
+   private static final int HEADER_SIZE = 92;
+
+   private static final int BUFFER_SIZE = 1 << 20;
+
+   private final Path path;
+   private final int flags;
+   private final int rowCount;
+   private final int columnCount;
+   private final int slotCount;
+   private final int instructionCount;
+   private final int constantCount;
+   private final int rangeCount;
+   private final int nodeCount;
+   private final int edgeCount;
+   private final int maxStackDepth;
+   private final int textCount;
+   private final int textLength;
+   private final long inputSize;
+   private final long inputModified;
+   private final long bodyStart;
+   private final long bodyLength;
+   private final int bodyChecksum;
+   private final String dimensions;
+
+   private SpreadsheetSnapshot(Path path, ByteBuffer header, String dimensions){
+      this.path = path;
+      header.getInt();
+      header.getInt();
+      this.flags = header.getInt();
+      this.rowCount = header.getInt();
+      this.columnCount = header.getInt();
+      this.slotCount = header.getInt();
+      this.instructionCount = header.getInt();
+      this.constantCount = header.getInt();
+      this.rangeCount = header.getInt();
+      this.nodeCount = header.getInt();
+      this.edgeCount = header.getInt();
+      this.maxStackDepth = header.getInt();
+      this.textCount = header.getInt();
+      this.textLength = header.getInt();
+      header.getInt();
+      this.inputSize = header.getLong();
+      this.inputModified = header.getLong();
+      this.bodyLength = header.getLong();
+      this.bodyChecksum = header.getInt();
+      this.dimensions = dimensions;
+      this.bodyStart = align(HEADER_SIZE + dimensions.getBytes(StandardCharsets.UTF_8).length);
+   }
+
+   /**
+    * ****************************************************************************
+    * Writes the snapshot of the spreadsheet, which is evaluated first (or
+    * recalculated after its edits)
+    * @param spreadsheet
+    *         The spreadsheet
+    * @param dimensions
+    *         The dimensions line as read from the input
+    * @param input
+    *         The input file the spreadsheet was read from, recorded so that the
+    *         snapshot is not taken for the snapshot of a later version of the file,
+    *         null if it was not read from a file
+    * @param path
+    *         Path of the snapshot, replaced if it is a snapshot
+    * @throws IOException
+    *             when the file at path is not a snapshot (see checkReplaceable)
+    *             or cannot be written
+    * @throws CycleDetectedException
+    *             when the spreadsheet cannot be evaluated (see evaluateSpreadSheet)
+    * ****************************************************************************
+    */
+   static void write(Spreadsheet spreadsheet, String dimensions, Path input, Path path) throws IOException {
+      checkReplaceable(path, input);
+      spreadsheet.recalculate();
+      CompiledSheet program = spreadsheet.getCompiledSheet();
+      int slotCount = program.getCellCount();
+      DependencyGraph graph = spreadsheet.getDependencyGraph();
+      if(graph.hasAddedDependents() || graph.getCellCount() != slotCount){
+         // The edits are not in the CSR arrays
+         graph = DependencyGraph.build(program);
+      }
+      ByteArray errors = spreadsheet.getErrors();
+
+      // Source text of the cells which can fail, in increasing cell order
+      IntStack failing = new IntStack(16);
+      for(int slot = 0; slot < slotCount; slot++){
+         if(program.canFail(slot) && spreadsheet.getExpression(slot) != null){
+            failing.push(program.getCell(slot));
+         }
+      }
+      int[] textCells = failing.toArray();
+      Arrays.sort(textCells);
+      byte[][] texts = new byte[textCells.length][];
+      int textLength = 0;
+      for(int i = 0; i < textCells.length; i++){
+         texts[i] = spreadsheet.getExpression(program.getSlot(textCells[i])).getBytes(StandardCharsets.UTF_8);
+         textLength += texts[i].length;
+      }
+
+      byte[] dimensionBytes = dimensions.getBytes(StandardCharsets.UTF_8);
+      Path temporary = path.resolveSibling(path.getFileName() + ".tmp");
+      try(FileChannel file = FileChannel.open(temporary, StandardOpenOption.CREATE,
+              StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)){
+         SectionWriter body = new SectionWriter(file, align(HEADER_SIZE + dimensionBytes.length));
+         DoubleArray values = spreadsheet.getValues();
+         for(int slot = 0; slot < slotCount; slot++){
+            body.putDouble(values.get(slot));
+         }
+         body.align();
+         if(errors != null){
+            for(int slot = 0; slot < slotCount; slot++){
+               body.put(errors.get(slot));
+            }
+            body.align();
+         }
+         for(int slot = 0; slot < slotCount; slot++){
+            body.putInt(program.getProgramStart(slot));
+         }
+         body.align();
+         int instructionCount = program.nextInstruction();
+         for(int pc = 0; pc < instructionCount; pc++){
+            body.put(program.opcode(pc));
+         }
+         body.align();
+         for(int pc = 0; pc < instructionCount; pc++){
+            body.putInt(program.operand(pc));
+         }
+         body.align();
+         for(int i = 0; i < program.nextConstant(); i++){
+            body.putDouble(program.constant(i));
+         }
+         body.align();
+         if(program.isSparse()){
+            for(int slot = 0; slot < slotCount; slot++){
+               body.putInt(program.getCell(slot));
+            }
+            body.align();
+         }
+         for(int range = 0; range < program.getRangeCount(); range++){
+            body.putInt(program.getRangeFirst(range));
+         }
+         body.align();
+         for(int range = 0; range < program.getRangeCount(); range++){
+            body.putInt(program.getRangeLast(range));
+         }
+         body.align();
+         for(int node = 0; node < program.getNodeCount(); node++){
+            body.putInt(program.getNodeLength(node));
+         }
+         body.align();
+         for(int slot = 0; slot < slotCount; slot++){
+            body.putInt(graph.getReferenceCount(slot));
+         }
+         body.align();
+         for(int slot = 0; slot <= slotCount; slot++){
+            body.putInt(slot < slotCount ? graph.getDependentStart(slot) : graph.getEdgeCount());
+         }
+         body.align();
+         for(int d = 0; d < graph.getEdgeCount(); d++){
+            body.putInt(graph.getDependent(d));
+         }
+         body.align();
+         for(int cell : textCells){
+            body.putInt(cell);
+         }
+         body.align();
+         int textStart = 0;
+         for(int i = 0; i <= texts.length; i++){
+            body.putInt(textStart);
+            textStart += i < texts.length ? texts[i].length : 0;
+         }
+         body.align();
+         for(byte[] text : texts){
+            for(byte b : text){
+               body.put(b);
+            }
+         }
+         body.align();
+         body.flush();
+
+         ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE + dimensionBytes.length);
+         header.putInt(MAGIC);
+         header.putInt(VERSION);
+         header.putInt((program.isSparse() ? SPARSE : 0) | (errors != null ? ERROR_VALUES : 0)
+                 | (ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN ? LITTLE_ENDIAN : 0));
+         header.putInt(program.getRowCount());
+         header.putInt(program.getColumnCount());
+         header.putInt(slotCount);
+         header.putInt(instructionCount);
+         header.putInt(program.nextConstant());
+         header.putInt(program.getRangeCount());
+         header.putInt(program.getNodeCount());
+         header.putInt(graph.getEdgeCount());
+         header.putInt(program.getMaxStackDepth());
+         header.putInt(textCells.length);
+         header.putInt(textLength);
+         header.putInt(dimensionBytes.length);
+         header.putLong(input == null ? -1 : Files.size(input));
+         header.putLong(input == null ? -1 : Files.getLastModifiedTime(input).toMillis());
+         header.putLong(body.getLength());
+         header.putInt(body.getChecksum());
+         header.putInt(headerChecksum(header, dimensionBytes));
+         header.put(dimensionBytes);
+         header.flip();
+         while(header.hasRemaining()){
+            file.write(header, header.position());
+         }
+         file.force(true);
+      }
+      Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+   }
+
+   /**
+    * ****************************************************************************
+    * Checks that a snapshot may be written at path: no file exists there, or a
+    * snapshot of this format version (even if it is stale or corrupt), which is
+    * then replaced
+    * @param input
+    *         The input file of the spreadsheet, or null
+    * @throws IOException
+    *             when the file at path is the input file or is not a snapshot,
+    *             the file is then left unchanged
+    * ****************************************************************************
+    */
+   static void checkReplaceable(Path path, Path input) throws IOException {
+      if(!Files.exists(path)){
+         return;
+      }
+      if(input != null && Files.exists(input) && Files.isSameFile(path, input)){
+         throw new IOException(path + " is the input file");
+      }
+      try(FileChannel file = FileChannel.open(path, StandardOpenOption.READ)){
+         ByteBuffer header = ByteBuffer.allocate(8);
+         while(header.hasRemaining() && file.read(header, header.position()) >= 0){
+            // Until the magic and the format version are read or the file ends
+         }
+         if(header.hasRemaining() || header.getInt(0) != MAGIC || header.getInt(4) != VERSION){
+            throw new IOException(path + " exists and is not a spreadsheet snapshot");
+         }
+      }
+   }
+
+   /**
+    * ****************************************************************************
+    * Reads and checks the header of a snapshot, see load
+    * @throws IOException
+    *             when the file cannot be read, is not a snapshot, is of another
+    *             format version or byte order, or its header is corrupt
+    * ****************************************************************************
+    */
+   static SpreadsheetSnapshot open(Path path) throws IOException {
+      try(FileChannel file = FileChannel.open(path, StandardOpenOption.READ)){
+         ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+         readFully(file, header, 0, path);
+         header.flip();
+         if(header.getInt(0) != MAGIC){
+            throw new IOException(path + " is not a spreadsheet snapshot");
+         }
+         if(header.getInt(4) != VERSION){
+            throw new IOException("Snapshot " + path + " has the format version " + header.getInt(4)
+                    + " instead of " + VERSION);
+         }
+         int dimensionsLength = header.getInt(56);
+         if(dimensionsLength < 0 || dimensionsLength > file.size()){
+            throw new IOException("Snapshot " + path + " is corrupt");
+         }
+         ByteBuffer dimensions = ByteBuffer.allocate(dimensionsLength);
+         readFully(file, dimensions, HEADER_SIZE, path);
+         if(header.getInt(HEADER_SIZE - 4) != headerChecksum(header, dimensions.array())){
+            throw new IOException("Snapshot " + path + " is corrupt");
+         }
+         boolean littleEndian = (header.getInt(8) & LITTLE_ENDIAN) != 0;
+         if(littleEndian != (ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN)){
+            throw new IOException("Snapshot " + path + " was written with another byte order");
+         }
+         SpreadsheetSnapshot snapshot = new SpreadsheetSnapshot(path, header,
+                 new String(dimensions.array(), StandardCharsets.UTF_8));
+         if(file.size() != snapshot.bodyStart + snapshot.bodyLength){
+            throw new IOException("Snapshot " + path + " is truncated");
+         }
+         return snapshot;
+      }
+   }
+
+   /**
+    * ****************************************************************************
+    * Checks if the snapshot was taken of the current version of the input file
+    * (same size and modification time) and with the same options
+    * ****************************************************************************
+    */
+   boolean isTakenOf(Path input, boolean sparse, boolean errorValues) throws IOException {
+      return ((flags & SPARSE) != 0) == sparse && ((flags & ERROR_VALUES) != 0) == errorValues
+              && inputSize == Files.size(input) && inputModified == Files.getLastModifiedTime(input).toMillis();
+   }
+
+   /**
+    * ****************************************************************************
+    * The dimensions line of the input of the spreadsheet
+    * ****************************************************************************
+    */
+   String getDimensions() {
+      return dimensions;
+   }
+
+   /**
+    * ****************************************************************************
+    * Restores the evaluated spreadsheet, stored off the heap over the mapped file
+    * @throws IOException
+    *             when the file cannot be opened for writing and mapped, or its
+    *             body is corrupt
+    * ****************************************************************************
+    */
+   Spreadsheet load() throws IOException {
+      // A private mapping needs a writable channel, the file itself is never written
+      try(FileChannel file = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)){
+         if(file.size() != bodyStart + bodyLength || checksum(file, bodyStart, bodyLength) != bodyChecksum){
+            throw new IOException("Snapshot " + path + " is corrupt");
+         }
+         // The mappings stay valid once the file is closed
+         SectionReader body = new SectionReader(file, bodyStart);
+         CellStorage storage = CellStorage.OFF_HEAP;
+         DoubleArray values = storage.mapDoubleArray(file, body.next((long)slotCount << 3), slotCount);
+         ByteArray errors = (flags & ERROR_VALUES) == 0 ? null
+                 : storage.mapByteArray(file, body.next(slotCount), slotCount);
+         IntArray programStart = storage.mapIntArray(file, body.next((long)slotCount << 2), slotCount);
+         ByteArray opcodes = storage.mapByteArray(file, body.next(instructionCount), instructionCount);
+         IntArray operands = storage.mapIntArray(file, body.next((long)instructionCount << 2), instructionCount);
+         DoubleArray constants = storage.mapDoubleArray(file, body.next((long)constantCount << 3), constantCount);
+         int[] slotCell = (flags & SPARSE) == 0 ? null : body.ints(slotCount);
+         int[] rangeFirst = body.ints(rangeCount);
+         int[] rangeLast = body.ints(rangeCount);
+         int[] nodeLength = body.ints(nodeCount);
+         int[] referenceCount = body.ints(slotCount);
+         int[] dependentStart = body.ints(slotCount + 1);
+         int[] dependents = body.ints(edgeCount);
+         int[] textCells = body.ints(textCount);
+         int[] textStart = body.ints(textCount + 1);
+         byte[] text = body.bytes(textLength);
+
+         CompiledSheet program = new CompiledSheet(rowCount, columnCount, storage, opcodes, operands, constants,
+                 programStart, slotCell, maxStackDepth);
+         for(int range = 0; range < rangeCount; range++){
+            program.addRange(rangeFirst[range], rangeLast[range]);
+         }
+         for(int node = 0; node < nodeCount; node++){
+            program.addNode(nodeLength[node]);
+         }
+         return new Spreadsheet(program, new ExpressionText(textCells, textStart, text), values, errors,
+                 DependencyGraph.restore(referenceCount, dependentStart, dependents));
+      }
+   }
+
+   private static long align(long position){
+      return (position + 7) & ~7L;
+   }
+
+   private static int headerChecksum(ByteBuffer header, byte[] dimensions){
+      CRC32C checksum = new CRC32C();
+      checksum.update(header.array(), 0, HEADER_SIZE - 4);
+      checksum.update(dimensions);
+      return (int)checksum.getValue();
+   }
+
+   /*
+    * CRC32C of length bytes of the file from position, read through mappings of at
+    * most a page of CellStorage
+    */
+   private static int checksum(FileChannel file, long position, long length) throws IOException {
+      CRC32C checksum = new CRC32C();
+      for(long offset = 0; offset < length; offset += CellStorage.PAGE_SIZE){
+         checksum.update(file.map(FileChannel.MapMode.READ_ONLY, position + offset,
+                 Math.min(CellStorage.PAGE_SIZE, length - offset)));
+      }
+      return (int)checksum.getValue();
+   }
+
+   private static void readFully(FileChannel file, ByteBuffer buffer, long position, Path path) throws IOException {
+      while(buffer.hasRemaining()){
+         if(file.read(buffer, position + buffer.position()) < 0){
+            throw new IOException("Snapshot " + path + " is truncated");
+         }
+      }
+   }
+
+   /*
+    * Sequential writer of the body, in the native byte order, computing its checksum
+    */
+   private static final class SectionWriter {
+      private final FileChannel file;
+      private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.nativeOrder());
+      private final CRC32C checksum = new CRC32C();
+      private long position;
+      private long length;
+
+      SectionWriter(FileChannel file, long position){
+         this.file = file;
+         this.position = position;
+      }
+
+      void putDouble(double value) throws IOException {
+         if(buffer.remaining() < 8){
+            flush();
+         }
+         buffer.putDouble(value);
+      }
+
+      void putInt(int value) throws IOException {
+         if(buffer.remaining() < 4){
+            flush();
+         }
+         buffer.putInt(value);
+      }
+
+      void put(byte value) throws IOException {
+         if(!buffer.hasRemaining()){
+            flush();
+         }
+         buffer.put(value);
+      }
+
+      // Pads the section to a multiple of 8 bytes, the buffer size is one too
+      void align() throws IOException {
+         while((buffer.position() & 7) != 0){
+            put((byte)0);
+         }
+      }
+
+      void flush() throws IOException {
+         buffer.flip();
+         checksum.update(buffer);
+         buffer.rewind();
+         while(buffer.hasRemaining()){
+            position += file.write(buffer, position);
+         }
+         length += buffer.limit();
+         buffer.clear();
+      }
+
+      long getLength(){
+         return length;
+      }
+
+      int getChecksum(){
+         return (int)checksum.getValue();
+      }
+   }
+
+   /*
+    * Sections of the body in the order they were written
+    */
+   private static final class SectionReader {
+      private final FileChannel file;
+      private long position;
+
+      SectionReader(FileChannel file, long position){
+         this.file = file;
+         this.position = position;
+      }
+
+      // Position of the next section of size bytes
+      long next(long size){
+         long start = position;
+         position = align(position + size);
+         return start;
+      }
+
+      int[] ints(int length) throws IOException {
+         int[] elements = new int[length];
+         long start = next((long)length << 2);
+         // A page of CellStorage holds a whole number of ints
+         for(int i = 0; i < length; i += CellStorage.PAGE_SIZE >> 2){
+            int count = Math.min(CellStorage.PAGE_SIZE >> 2, length - i);
+            file.map(FileChannel.MapMode.READ_ONLY, start + ((long)i << 2), (long)count << 2)
+                    .order(ByteOrder.nativeOrder()).asIntBuffer().get(elements, i, count);
+         }
+         return elements;
+      }
+
+      byte[] bytes(int length) throws IOException {
+         byte[] elements = new byte[length];
+         ByteBuffer buffer = ByteBuffer.wrap(elements);
+         long start = next(length);
+         while(buffer.hasRemaining()){
+            if(file.read(buffer, start + buffer.position()) < 0){
+               throw new IOException("Snapshot is truncated");
+            }
+         }
+         return elements;
+      }
+   }
+}
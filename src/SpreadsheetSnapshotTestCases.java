@@ -0,0 +1,221 @@
+/**
+ * *******************************************************************
+ * File: SpreadsheetSnapshotTestCases.java
+ * *********************************************************************
+ */
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class SpreadsheetSnapshotTestCases {
+
+   private static final String input[][] = {{"A2 A3 +", "A3 2 *", "4", "A1:A3 SUM", "B1 B2 + 2 *"},
+           {"A4 2 /", "B1 B1 +", "A1:A5 MAX", "B1 B2 + 2 *", "B1 B2 + 2 * 1 +"}};
+
+   private Path snapshot;
+
+   @Before
+   public void createFile() throws IOException {
+      snapshot = Files.createTempFile("spreadsheet", ".snapshot");
+      // Only a snapshot is replaced
+      Files.delete(snapshot);
+   }
+
+   @After
+   public void deleteFile() throws IOException {
+      Files.deleteIfExists(snapshot);
+   }
+
+   private static void assertSameValues(Spreadsheet expected, Spreadsheet actual) {
+      assertEquals(expected.getRowCount(), actual.getRowCount());
+      assertEquals(expected.getColumnCount(), actual.getColumnCount());
+      for(int i = 0; i < expected.getRowCount(); i++){
+         for(int j = 0; j < expected.getColumnCount(); j++){
+            assertEquals(expected.getFormattedValue(i,j),actual.getFormattedValue(i,j));
+         }
+      }
+   }
+
+   private static Spreadsheet read(String text, boolean sparse, boolean errorValues) throws IOException {
+      SpreadsheetReader reader = new SpreadsheetReader(Channels.newChannel(
+              new ByteArrayInputStream(text.getBytes(StandardCharsets.UTF_8))));
+      String[] dimensions = reader.readLine().split(" ");
+      return reader.readSpreadsheet(Integer.parseInt(dimensions[1]), Integer.parseInt(dimensions[0]), sparse,
+              errorValues);
+   }
+
+   // The restored spreadsheet is evaluated, its values are read from the snapshot
+   @Test
+   public void restoredValues() throws IOException {
+      Spreadsheet spreadsheet = new Spreadsheet(input);
+      SpreadsheetSnapshot.write(spreadsheet, "5 2", null, snapshot);
+      SpreadsheetSnapshot opened = SpreadsheetSnapshot.open(snapshot);
+      assertEquals("5 2", opened.getDimensions());
+      Spreadsheet restored = opened.load();
+      assertSameValues(spreadsheet, restored);
+      assertEquals(24.0, restored.valueOf("A4"), 0.0);
+      assertEquals(Color.BLACK, restored.getVisitStatus().get(9));
+      assertTrue(restored.getCompiledSheet().getStorage().isOffHeap());
+   }
+
+   // The restored programs, ranges, shared nodes and dependencies recalculate the edits
+   @Test
+   public void restoredRecalculation() throws IOException {
+      SpreadsheetSnapshot.write(new Spreadsheet(input), "5 2", null, snapshot);
+      Spreadsheet restored = SpreadsheetSnapshot.open(snapshot).load();
+      String edited[][] = {input[0].clone(), input[1].clone()};
+      edited[0][2] = "10";
+      edited[1][1] = "B1 3 *";
+      Spreadsheet expected = new Spreadsheet(edited);
+      expected.evaluateSpreadSheet();
+      restored.setCell("A3", "10");
+      restored.setCell("B2", "B1 3 *");
+      restored.recalculate();
+      assertSameValues(expected, restored);
+   }
+
+   // The errors found after an edit name the restored expressions
+   @Test
+   public void restoredExpressionText() throws IOException {
+      SpreadsheetSnapshot.write(new Spreadsheet(new String[][]{{"6", "A1 A3 /", "2"}}), "3 1", null, snapshot);
+      Spreadsheet restored = SpreadsheetSnapshot.open(snapshot).load();
+      restored.setCell("A3", "0");
+      try{
+         restored.recalculate();
+         fail("Division by zero not reported");
+      } catch(RPNDivideByZeroException e){
+         assertEquals("The RPN equation A1 A3 / at cell A2 attempted to divide by zero", e.getMessage());
+      }
+   }
+
+   // The snapshot of an edited spreadsheet holds the edits
+   @Test
+   public void editedSpreadsheet() throws IOException {
+      Spreadsheet spreadsheet = new Spreadsheet(new String[][]{input[0].clone(), input[1].clone()});
+      spreadsheet.evaluateSpreadSheet();
+      spreadsheet.setCell("A3", "1");
+      SpreadsheetSnapshot.write(spreadsheet, "5 2", null, snapshot);
+      Spreadsheet restored = SpreadsheetSnapshot.open(snapshot).load();
+      assertSameValues(spreadsheet, restored);
+      restored.setCell("A3", "2");
+      spreadsheet.setCell("A3", "2");
+      restored.recalculate();
+      spreadsheet.recalculate();
+      assertSameValues(spreadsheet, restored);
+   }
+
+   @Test
+   public void sparseErrorValues() throws IOException {
+      String text = "2 4\n2\n\nB2 1 +\nB1 1 +\n\n1 +\nA1:B2 SUM\nD1 1 +\n";
+      Spreadsheet spreadsheet = read(text, true, true);
+      SpreadsheetSnapshot.write(spreadsheet, "2 4", null, snapshot);
+      Spreadsheet restored = SpreadsheetSnapshot.open(snapshot).load();
+      assertTrue(restored.hasErrorValues());
+      assertTrue(restored.getCompiledSheet().isSparse());
+      assertSameValues(spreadsheet, restored);
+      assertEquals("#CYCLE", restored.getFormattedValue(1, 0));
+      assertEquals("#ERR", restored.getFormattedValue(2, 1));
+      assertEquals(1, restored.findCycles().size());
+      restored.setCell("B2", "3");
+      restored.recalculate();
+      assertEquals("4.00000", restored.getFormattedValue(1, 0));
+      assertEquals("10.00000", restored.getFormattedValue(3, 1));
+   }
+
+   // A snapshot is only taken for the one of the same version of the input and options
+   @Test
+   public void staleSnapshot() throws IOException {
+      Path inputFile = Files.createTempFile("spreadsheet", ".txt");
+      try{
+         Files.write(inputFile, "1 1\n2\n".getBytes(StandardCharsets.US_ASCII));
+         SpreadsheetSnapshot.write(read("1 1\n2\n", false, false), "1 1", inputFile, snapshot);
+         SpreadsheetSnapshot opened = SpreadsheetSnapshot.open(snapshot);
+         assertTrue(opened.isTakenOf(inputFile, false, false));
+         assertFalse(opened.isTakenOf(inputFile, true, false));
+         assertFalse(opened.isTakenOf(inputFile, false, true));
+         Files.setLastModifiedTime(inputFile, FileTime.fromMillis(Files.getLastModifiedTime(inputFile).toMillis() + 1000));
+         assertFalse(opened.isTakenOf(inputFile, false, false));
+      } finally {
+         Files.deleteIfExists(inputFile);
+      }
+   }
+
+   // The input file or any other file which is not a snapshot is left unchanged
+   @Test
+   public void replacedFiles() throws IOException {
+      Files.write(snapshot, "1 1\n2\n".getBytes(StandardCharsets.US_ASCII));
+      try{
+         SpreadsheetSnapshot.write(read("1 1\n2\n", false, false), "1 1", snapshot, snapshot);
+         fail("Input file replaced");
+      } catch(IOException e){
+         assertEquals(snapshot + " is the input file", e.getMessage());
+      }
+      try{
+         SpreadsheetSnapshot.write(read("1 1\n2\n", false, false), "1 1", null, snapshot);
+         fail("Other file replaced");
+      } catch(IOException e){
+         assertEquals(snapshot + " exists and is not a spreadsheet snapshot", e.getMessage());
+      }
+      assertEquals("1 1\n2\n", new String(Files.readAllBytes(snapshot), StandardCharsets.US_ASCII));
+      // A stale or corrupt snapshot is replaced
+      Files.delete(snapshot);
+      SpreadsheetSnapshot.write(new Spreadsheet(input), "5 2", null, snapshot);
+      try(FileChannel file = FileChannel.open(snapshot, StandardOpenOption.WRITE)){
+         file.truncate(40);
+      }
+      SpreadsheetSnapshot.write(read("1 1\n2\n", false, false), "1 1", null, snapshot);
+      assertEquals("2.00000", SpreadsheetSnapshot.open(snapshot).load().getFormattedValue(0,0));
+   }
+
+   @Test
+   public void rejectedSnapshots() throws IOException {
+      SpreadsheetSnapshot.write(new Spreadsheet(input), "5 2", null, snapshot);
+      long size = Files.size(snapshot);
+      try(FileChannel file = FileChannel.open(snapshot, StandardOpenOption.WRITE)){
+         // The last bytes of the body
+         file.write(ByteBuffer.wrap(new byte[]{1}), size - 8);
+      }
+      try{
+         SpreadsheetSnapshot.open(snapshot).load();
+         fail("Corrupt body accepted");
+      } catch(IOException e){
+         assertEquals("Snapshot " + snapshot + " is corrupt", e.getMessage());
+      }
+      try(FileChannel file = FileChannel.open(snapshot, StandardOpenOption.WRITE)){
+         file.write(ByteBuffer.allocate(4).putInt(0, SpreadsheetSnapshot.VERSION + 1), 4);
+      }
+      try{
+         SpreadsheetSnapshot.open(snapshot);
+         fail("Other format version accepted");
+      } catch(IOException e){
+         assertEquals("Snapshot " + snapshot + " has the format version " + (SpreadsheetSnapshot.VERSION + 1)
+                 + " instead of " + SpreadsheetSnapshot.VERSION, e.getMessage());
+      }
+      try(FileChannel file = FileChannel.open(snapshot, StandardOpenOption.WRITE)){
+         file.truncate(40);
+      }
+      try{
+         SpreadsheetSnapshot.open(snapshot);
+         fail("Truncated snapshot accepted");
+      } catch(IOException e){
+         assertEquals("Snapshot " + snapshot + " is truncated", e.getMessage());
+      }
+   }
+}
@@ -0,0 +1,216 @@
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Locale;
+
+/**
+ * ******************************************************************************
+ * File: SpreadsheetWriter.java
+ * Buffered writer for the evaluated spreadsheet
+ * The lines are collected in a large byte buffer which is written to a channel
+ * only when it is full, so printing a cell neither synchronizes nor flushes.
+ * The values are formatted straight into the buffer with exactly 5 fractional
+ * digits, producing the same bytes as String.format("%.5f") (with the '.'
+ * decimal separator of Locale.ROOT) without creating any object
+ * ******************************************************************************
+ */
+class SpreadsheetWriter {
+
+   private static final int BUFFER_SIZE = 1 << 20;
+
+   // Longest line produced by the fast path: sign, 10 integer digits, '.', 5 digits, '\n'
+   private static final int MAX_VALUE_LENGTH = 18;
+
+   // Values at or above this magnitude are formatted by String.format
+   private static final double FAST_PATH_LIMIT = 1e9;
+
+   private static final long SCALE = 100000;
+
+   private static final byte[] ZERO_LINE = "0.00000\n".getBytes(StandardCharsets.US_ASCII);
+
+   private final WritableByteChannel channel;
+   private final byte[] buffer;
+   private final ByteBuffer output;
+   private int position;
+
+   SpreadsheetWriter(WritableByteChannel channel){
+      this(channel, new byte[BUFFER_SIZE]);
+   }
+
+   /**
+    * ****************************************************************************
+    * Writer collecting the lines in the given buffer (see BufferPool), which must
+    * hold at least a formatted value
+    * ****************************************************************************
+    */
+   SpreadsheetWriter(WritableByteChannel channel, byte[] buffer){
+      this.channel = channel;
+      this.buffer = buffer;
+      this.output = ByteBuffer.wrap(buffer);
+   }
+
+   /**
+    * ****************************************************************************
+    * Writer creating (or truncating) the file at the given path
+    * ****************************************************************************
+    */
+   static SpreadsheetWriter open(String path) throws IOException {
+      return new SpreadsheetWriter(FileChannel.open(Paths.get(path), StandardOpenOption.WRITE,
+              StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING));
+   }
+
+   /**
+    * ****************************************************************************
+    * Writer of the standard output
+    * ****************************************************************************
+    */
+   static SpreadsheetWriter standardOutput(){
+      return new SpreadsheetWriter(new FileOutputStream(FileDescriptor.out).getChannel());
+   }
+
+   /**
+    * ****************************************************************************
+    * Writes the text followed by a line terminator
+    * ****************************************************************************
+    */
+   void writeLine(String text) throws IOException {
+      byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+      int offset = 0;
+      while(offset < bytes.length){
+         if(position == buffer.length){
+            flush();
+         }
+         int length = Math.min(bytes.length - offset, buffer.length - position);
+         System.arraycopy(bytes, offset, buffer, position, length);
+         position += length;
+         offset += length;
+      }
+      if(position == buffer.length){
+         flush();
+      }
+      buffer[position++] = '\n';
+   }
+
+   /**
+    * ****************************************************************************
+    * Writes the value with 5 fractional digits followed by a line terminator
+    * ****************************************************************************
+    */
+   void writeValue(double value) throws IOException {
+      if(buffer.length - position < MAX_VALUE_LENGTH){
+         flush();
+      }
+      int end = formatValue(value, buffer, position);
+      if(end < 0){
+         writeLine(String.format(Locale.ROOT, "%.5f", value));
+      } else {
+         buffer[end] = '\n';
+         position = end + 1;
+      }
+   }
+
+   /**
+    * ****************************************************************************
+    * Writes the line of an empty cell (0.00000)
+    * ****************************************************************************
+    */
+   void writeZero() throws IOException {
+      if(buffer.length - position < ZERO_LINE.length){
+         flush();
+      }
+      System.arraycopy(ZERO_LINE, 0, buffer, position, ZERO_LINE.length);
+      position += ZERO_LINE.length;
+   }
+
+   /**
+    * ****************************************************************************
+    * Writes the buffered bytes to the channel
+    * ****************************************************************************
+    */
+   void flush() throws IOException {
+      output.clear().limit(position);
+      while(output.hasRemaining()){
+         channel.write(output);
+      }
+      position = 0;
+   }
+
+   void close() throws IOException {
+      flush();
+      channel.close();
+   }
+
+   /**
+    * ****************************************************************************
+    * Formats the value like String.format(Locale.ROOT, "%.5f", value)
+    * @param value
+    *         The value to be formatted
+    * @return the formatted value
+    * ****************************************************************************
+    */
+   static String format(double value){
+      byte[] digits = new byte[MAX_VALUE_LENGTH];
+      int end = formatValue(value, digits, 0);
+      if(end < 0){
+         return String.format(Locale.ROOT, "%.5f", value);
+      }
+      return new String(digits, 0, end, StandardCharsets.US_ASCII);
+   }
+
+   /**
+    * *****************************************************************************
+    * Formats the value with 5 fractional digits into the array
+    * Logic : Formatter rounds half up the shortest decimal digits which identify
+    *         the double (not its exact binary value). Both agree unless the value
+    *         lies within a few ulps of a tie (a 5 in the 6th fractional digit),
+    *         so the value is scaled by 10^5 and rounded directly when it is clearly
+    *         away from a tie. Ties, NaN, infinities and large magnitudes are left to
+    *         String.format
+    * @return the index after the last byte written or -1 if the value has to be
+    *         formatted by String.format
+    * *****************************************************************************
+    */
+   static int formatValue(double value, byte[] bytes, int offset){
+      double magnitude = Math.abs(value);
+      if(!(magnitude < FAST_PATH_LIMIT)){
+         return -1;
+      }
+      double scaled = magnitude * SCALE;
+      double whole = Math.floor(scaled);
+      double fraction = scaled - whole;
+      // Rounding error of the scaling plus the distance to the shortest decimal digits
+      if(Math.abs(fraction - 0.5) <= 4 * Math.ulp(scaled)){
+         return -1;
+      }
+      long units = (long)whole + (fraction > 0.5 ? 1 : 0);
+
+      int position = offset;
+      // Formatter prints the sign of negative values even if they round to zero
+      if(Double.doubleToRawLongBits(value) < 0){
+         bytes[position++] = '-';
+      }
+      long integerPart = units / SCALE;
+      int fractionPart = (int)(units - integerPart * SCALE);
+      int integerDigits = 1;
+      for(long bound = 10; bound <= integerPart; bound *= 10){
+         integerDigits++;
+      }
+      for(int i = position + integerDigits - 1; i >= position; i--){
+         bytes[i] = (byte)('0' + integerPart % 10);
+         integerPart /= 10;
+      }
+      position += integerDigits;
+      bytes[position] = '.';
+      for(int i = position + 5; i > position; i--){
+         bytes[i] = (byte)('0' + fractionPart % 10);
+         fractionPart /= 10;
+      }
+      return position + 6;
+   }
+}
@@ -0,0 +1,50 @@
+/**
+ * *******************************************************************
+ * File: SpreadsheetWriterTestCases.java
+ * *********************************************************************
+ */
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.util.Locale;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+public class SpreadsheetWriterTestCases {
+
+   // Ties of the 6th fractional digit, signed zeros and values out of the fast path
+   private static final double[] SPECIAL_VALUES = {0.0, -0.0, -1e-6, 0.000005, 2.5e-6, 1.234565, 123.456785,
+           999999999.999995, 1e9, 1e20, Double.MIN_VALUE, Double.NaN, Double.NEGATIVE_INFINITY};
+
+   @Test
+   public void specialValues() {
+      for(double value : SPECIAL_VALUES){
+         assertEquals(String.format(Locale.ROOT, "%.5f", value), SpreadsheetWriter.format(value));
+      }
+   }
+
+   @Test
+   public void randomValues() {
+      Random random = new Random(11);
+      for(int i = 0; i < 200000; i++){
+         double value = (random.nextDouble() - 0.5) * Math.pow(10, random.nextInt(16) - 6);
+         assertEquals(String.format(Locale.ROOT, "%.5f", value), SpreadsheetWriter.format(value));
+      }
+   }
+
+   @Test
+   public void writeLines() throws IOException {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      SpreadsheetWriter writer = new SpreadsheetWriter(Channels.newChannel(bytes));
+      writer.writeLine("3 1");
+      writer.writeValue(20);
+      writer.writeValue(-8.666666);
+      writer.writeValue(Double.POSITIVE_INFINITY);
+      writer.flush();
+      assertEquals("3 1\n20.00000\n-8.66667\nInfinity\n", bytes.toString("US-ASCII"));
+   }
+}
@@ -0,0 +1,79 @@
+/**
+ * ******************************************************************************
+ * File: StrategySelector.java
+ * Chooses how a spreadsheet is evaluated from the shape of its reference graph
+ * (see GraphStatistics) and the number of threads available
+ * Logic : The sequential DFS (Spreadsheet.evaluateSpreadSheet) wins when the
+ *         threads would not be kept busy: a single thread, a small sheet (the
+ *         parallel evaluators first build the dependency graph), a sheet made of
+ *         alias chains (which AliasResolver collapses in one sweep), a sheet whose
+ *         cells mostly use ranges (the parallel evaluators leave them to the DFS)
+ *         or a graph too narrow for the threads, such as a long chain
+ *         Otherwise the cells are evaluated in dependency order on the pool. The
+ *         level by level evaluation (ParallelEvaluator) suits the wide and shallow
+ *         graphs, whose few levels each give every thread whole batches of cells.
+ *         The deeper graphs, whose many levels would each cost a barrier, are left
+ *         to the work stealing evaluation (WorkStealingEvaluator), which has none
+ * ******************************************************************************
+ */
+final class StrategySelector {
+
+   // Strategies
+   static final int SEQUENTIAL = 0;
+   static final int LEVEL_PARALLEL = 1;
+   static final int WORK_STEALING = 2;
+
+   private static final String[] NAMES = {"sequential", "level-parallel", "work-stealing"};
+
+   // Smallest sheet evaluated in parallel
+   static final int MIN_PARALLEL_CELLS = 1 << 15;
+
+   // Smallest average width per thread of a graph evaluated in parallel
+   static final int MIN_WIDTH_PER_THREAD = 16;
+
+   // Smallest average width per thread of a graph evaluated level by level, a
+   // level then gives every thread a batch of ParallelEvaluator
+   static final int LEVEL_WIDTH_PER_THREAD = 1024;
+
+   // Largest fraction of alias cells, or of cells using a range, evaluated in parallel
+   private static final double MAX_SEQUENTIAL_FRACTION = 0.5;
+
+   /**
+    * ********************************************************
+    * Constructor is made private to prevent instantiation
+    * ********************************************************
+    */
+   private StrategySelector(){
+
+   }
+
+   /**
+    * ****************************************************************************
+    * Strategy for a spreadsheet
+    * @param statistics
+    *         Statistics of the reference graph of the spreadsheet
+    * @param parallelism
+    *         Number of threads of the pool the spreadsheet would be evaluated on
+    * @return SEQUENTIAL, LEVEL_PARALLEL or WORK_STEALING
+    * ****************************************************************************
+    */
+   static int choose(GraphStatistics statistics, int parallelism){
+      if(parallelism < 2 || statistics.getCellCount() < MIN_PARALLEL_CELLS
+              || statistics.getAliasFraction() > MAX_SEQUENTIAL_FRACTION
+              || statistics.getRangeUserFraction() > MAX_SEQUENTIAL_FRACTION){
+         return SEQUENTIAL;
+      }
+      double width = statistics.getAverageWidth();
+      if(width < (double)MIN_WIDTH_PER_THREAD * parallelism){
+         return SEQUENTIAL;
+      }
+      if(width >= (double)LEVEL_WIDTH_PER_THREAD * parallelism){
+         return LEVEL_PARALLEL;
+      }
+      return WORK_STEALING;
+   }
+
+   static String name(int strategy){
+      return NAMES[strategy];
+   }
+}
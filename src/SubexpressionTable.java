@@ -0,0 +1,319 @@
+import java.util.Arrays;
+
+/**
+ * ******************************************************************************
+ * File: SubexpressionTable.java
+ * Hash consing of the compiled programs of a CompiledSheet
+ * Every operator of a freshly compiled program closes a sub-tree of the expression,
+ * which is a contiguous run of instructions in RPN. The runs of at least
+ * MIN_LENGTH instructions are looked up among the runs compiled before, compared
+ * by content (a CONST by the value of its constant, as the constant pools of two
+ * cells are distinct), and a run seen before becomes a shared node:
+ * Opcode.SHARED node is inserted in front of it and the result of the node is
+ * computed once per evaluation pass (see CompiledSheet.newEpoch). The run itself
+ * stays inline after the SHARED instruction, so the DFS, the dependency graph and
+ * the other readers of the programs still find all the references of the cell
+ * A program identical to a program compiled before is not stored at all, the cell
+ * shares the instructions of the first one
+ * Logic : Only the largest shared runs of a program are replaced (top down). The
+ *         table is a cache: a run whose entry is taken by another run is simply
+ *         no longer found, so its memory stays bounded on sheets whose programs
+ *         are all distinct
+ * ******************************************************************************
+ */
+class SubexpressionTable {
+
+   // Shortest run worth sharing, like A1 B1 +
+   static final int MIN_LENGTH = 3;
+
+   // Entries of the cache, 1 MB at most
+   private static final int MAX_CAPACITY = 1 << 16;
+
+   private static final int COVERED = -2;
+
+   // Cached runs, ENTRY_SIZE ints each: hash, first instruction, length (0 for
+   // a free entry) and node of the run (-1 while it was compiled only once). The
+   // fields of an entry are adjacent so that a lookup touches a single cache line
+   private static final int ENTRY_SIZE = 4;
+   private static final int HASH = 0;
+   private static final int START = 1;
+   private static final int LENGTH = 2;
+   private static final int NODE = 3;
+   private int[] entries;
+   private int capacity;
+   private int size;
+
+   // Sub-trees of the program being interned, in the order in which they close
+   private int[] spanStarts = new int[16];
+   private int[] spanEnds = new int[16];
+   private int[] spanHashes = new int[16];
+   // Cache entry of the run of every span, -1 if none, COVERED inside a shared run
+   private int[] spanEntries = new int[16];
+   // Spans replaced by shared nodes, from the last one back
+   private int[] matches = new int[16];
+
+   // Compiler operand stack rebuilt by collectSpans: start and hash of every sub-tree
+   private int[] treeStarts = new int[16];
+   private int[] treeHashes = new int[16];
+
+   // Copy of the program rewritten by insertSharedInstructions
+   private byte[] copiedOpcodes = new byte[16];
+   private int[] copiedOperands = new int[16];
+
+   SubexpressionTable(){
+      allocate(1024);
+   }
+
+   /**
+    * ****************************************************************************
+    * Discards all the cached runs, whose instructions are about to be rewritten
+    * ****************************************************************************
+    */
+   void clear(){
+      Arrays.fill(entries, 0);
+      size = 0;
+   }
+
+   /**
+    * ****************************************************************************
+    * Shares the runs of the program being compiled with the programs compiled
+    * before, inserting a SHARED instruction in front of every run seen before
+    * @param program
+    *         The compiled sheet whose last instructions, from start, are the program
+    *         of a cell without its END instruction
+    * @param start
+    *         Index of the first instruction of the program
+    * @return the start of an identical program compiled before, which the cell is
+    *         to share, or start if the program is kept
+    * ****************************************************************************
+    */
+   int intern(CompiledSheet program, int start){
+      int end = program.nextInstruction();
+      int spanCount = collectSpans(program, start, end);
+
+      // Largest runs first: the spans are visited from the root down (the order
+      // in which they close, reversed) and the spans inside a shared run skipped
+      int matchCount = 0;
+      int coveredFrom = end;
+      for(int span = spanCount - 1; span >= 0; span--){
+         if(spanStarts[span] >= coveredFrom){
+            spanEntries[span] = COVERED;
+            continue;
+         }
+         int entry = find(program, spanHashes[span], spanStarts[span], spanEnds[span]);
+         spanEntries[span] = entry;
+         if(entry >= 0){
+            if(spanStarts[span] == start && spanEnds[span] == end && isProgram(program, entry)){
+               // The whole program is a program compiled before
+               return entries[entry + START];
+            }
+            if(matchCount == matches.length){
+               matches = Arrays.copyOf(matches, matchCount << 1);
+            }
+            matches[matchCount++] = span;
+            coveredFrom = spanStarts[span];
+         }
+      }
+      if(matchCount > 0){
+         insertSharedInstructions(program, start, end, matchCount);
+      }
+
+      // Cache the runs seen for the first time at their place in the rewritten program
+      for(int span = 0; span < spanCount; span++){
+         if(spanEntries[span] == -1){
+            int newStart = spanStarts[span] + sharedBefore(spanStarts[span], matchCount);
+            int newEnd = spanEnds[span] + sharedBefore(spanEnds[span], matchCount);
+            put(spanHashes[span], newStart, newEnd - newStart, -1);
+         }
+      }
+      return start;
+   }
+
+   /*
+    * Records the sub-trees closed by the operators of the program, their start,
+    * end and structural hash. Returns the number of spans recorded
+    */
+   private int collectSpans(CompiledSheet program, int start, int end){
+      int spanCount = 0;
+      int top = 0;
+      for(int pc = start; pc < end; pc++){
+         byte opcode = program.opcode(pc);
+         int treeStart;
+         int hash;
+         switch(opcode){
+            case Opcode.ADD:
+            case Opcode.SUBTRACT:
+            case Opcode.MULTIPLY:
+            case Opcode.DIVIDE:
+               top -= 2;
+               treeStart = treeStarts[top];
+               hash = mix(opcode, treeHashes[top] * 31 + treeHashes[top + 1]);
+               break;
+            case Opcode.INCREMENT:
+            case Opcode.DECREMENT:
+               top--;
+               treeStart = treeStarts[top];
+               hash = mix(opcode, treeHashes[top]);
+               break;
+            default:
+               treeStart = pc;
+               hash = mix(opcode, operandKey(program, pc));
+         }
+         if(top == treeStarts.length){
+            treeStarts = Arrays.copyOf(treeStarts, top << 1);
+            treeHashes = Arrays.copyOf(treeHashes, top << 1);
+         }
+         treeStarts[top] = treeStart;
+         treeHashes[top] = hash;
+         top++;
+         if(treeStart != pc && pc + 1 - treeStart >= MIN_LENGTH){
+            if(spanCount == spanStarts.length){
+               spanStarts = Arrays.copyOf(spanStarts, spanCount << 1);
+               spanEnds = Arrays.copyOf(spanEnds, spanCount << 1);
+               spanHashes = Arrays.copyOf(spanHashes, spanCount << 1);
+               spanEntries = Arrays.copyOf(spanEntries, spanCount << 1);
+            }
+            spanStarts[spanCount] = treeStart;
+            spanEnds[spanCount] = pc + 1;
+            spanHashes[spanCount] = hash;
+            spanCount++;
+         }
+      }
+      return spanCount;
+   }
+
+   /*
+    * Rewrites the program with Opcode.SHARED in front of the matched spans and
+    * points the cache entries of the matched runs to the new SHARED instructions
+    */
+   private void insertSharedInstructions(CompiledSheet program, int start, int end, int matchCount){
+      if(copiedOpcodes.length < end - start){
+         copiedOpcodes = new byte[end - start];
+         copiedOperands = new int[end - start];
+      }
+      for(int pc = start; pc < end; pc++){
+         copiedOpcodes[pc - start] = program.opcode(pc);
+         copiedOperands[pc - start] = program.operand(pc);
+      }
+      program.truncate(start);
+      // The matches were found from the last span back, so they are in reverse order
+      int match = matchCount - 1;
+      for(int pc = start; pc < end; pc++){
+         if(match >= 0 && spanStarts[matches[match]] == pc){
+            int span = matches[match--];
+            int entry = spanEntries[span];
+            int length = spanEnds[span] - spanStarts[span];
+            int node = entries[entry + NODE];
+            if(node < 0){
+               node = program.addNode(length);
+               entries[entry + NODE] = node;
+               entries[entry + START] = program.nextInstruction();
+               entries[entry + LENGTH] = length + 1;
+            } else if(spanStarts[span] == start && spanEnds[span] == end){
+               // Later cells with the same program share this one
+               entries[entry + START] = program.nextInstruction();
+               entries[entry + LENGTH] = length + 1;
+            }
+            program.emit(Opcode.SHARED, node);
+         }
+         program.emit(copiedOpcodes[pc - start], copiedOperands[pc - start]);
+      }
+   }
+
+   // Number of SHARED instructions inserted before the instruction at pc
+   private int sharedBefore(int pc, int matchCount){
+      int count = 0;
+      for(int i = 0; i < matchCount; i++){
+         if(spanStarts[matches[i]] < pc){
+            count++;
+         }
+      }
+      return count;
+   }
+
+   /*
+    * Checks if the cached run is followed by END, so that it can serve as the
+    * whole program of a cell
+    */
+   private boolean isProgram(CompiledSheet program, int entry){
+      int start = entries[entry + START];
+      return entries[entry + NODE] >= 0 && program.opcode(start) == Opcode.SHARED
+              && program.operand(start) == entries[entry + NODE]
+              && program.opcode(start + entries[entry + LENGTH]) == Opcode.END;
+   }
+
+   /*
+    * Entry of the cached run with the same content as the span, -1 if none
+    */
+   private int find(CompiledSheet program, int hash, int start, int end){
+      int entry = (hash & (capacity - 1)) * ENTRY_SIZE;
+      if(entries[entry + LENGTH] == 0 || entries[entry + HASH] != hash){
+         return -1;
+      }
+      // Compare the instructions, skipping the SHARED instructions of the cached run
+      int pc = entries[entry + START];
+      int cachedEnd = pc + entries[entry + LENGTH];
+      for(int i = start; i < end; i++, pc++){
+         while(pc < cachedEnd && program.opcode(pc) == Opcode.SHARED){
+            pc++;
+         }
+         if(pc == cachedEnd || program.opcode(pc) != program.opcode(i)){
+            return -1;
+         }
+         if(program.opcode(i) == Opcode.CONST){
+            if(Double.doubleToLongBits(program.constant(program.operand(i)))
+                    != Double.doubleToLongBits(program.constant(program.operand(pc)))){
+               return -1;
+            }
+         } else if(program.operand(pc) != program.operand(i)){
+            return -1;
+         }
+      }
+      return pc == cachedEnd ? entry : -1;
+   }
+
+   /*
+    * Caches the run, taking the entry of any other run with a colliding hash
+    */
+   private void put(int hash, int start, int length, int node){
+      if(size >= capacity >> 1 && capacity < MAX_CAPACITY){
+         grow();
+      }
+      int entry = (hash & (capacity - 1)) * ENTRY_SIZE;
+      if(entries[entry + LENGTH] == 0){
+         size++;
+      }
+      entries[entry + HASH] = hash;
+      entries[entry + START] = start;
+      entries[entry + LENGTH] = length;
+      entries[entry + NODE] = node;
+   }
+
+   private void grow(){
+      int[] oldEntries = entries;
+      allocate(capacity << 1);
+      for(int entry = 0; entry < oldEntries.length; entry += ENTRY_SIZE){
+         if(oldEntries[entry + LENGTH] != 0){
+            put(oldEntries[entry + HASH], oldEntries[entry + START], oldEntries[entry + LENGTH], oldEntries[entry + NODE]);
+         }
+      }
+   }
+
+   private void allocate(int capacity){
+      this.entries = new int[capacity * ENTRY_SIZE];
+      this.capacity = capacity;
+      this.size = 0;
+   }
+
+   private static int operandKey(CompiledSheet program, int pc){
+      if(program.opcode(pc) == Opcode.CONST){
+         return Double.hashCode(program.constant(program.operand(pc)));
+      }
+      return program.operand(pc);
+   }
+
+   private static int mix(byte opcode, int value){
+      int h = (value + opcode) * 0x9E3779B9;
+      return h ^ (h >>> 16);
+   }
+}
@@ -0,0 +1,330 @@
+/**
+ * ******************************************************************************
+ * File: TemplateRunEvaluator.java
+ * Evaluates runs of consecutive cells sharing one expression template, like a row
+ * of generated formulas where the cell Bi is Ai Ci * for every i
+ * Two programs have the same template when they have the same instructions, the
+ * same constant values and reference cells at the same slot offsets from their
+ * own cell. A run of such cells is evaluated one block at a time: every
+ * instruction of the template is run once over a whole column of operands (one
+ * element per cell of the block) instead of once per cell, so the interpreter
+ * dispatch is paid once per block and the arithmetic becomes loops over primitive
+ * arrays, which the JIT compiler vectorizes
+ * Logic : The runs are found by comparing the program of every cell with the
+ *         program of the first cell of the current run, as the programs are
+ *         compiled (CompiledSheet.getTemplateRuns) or, after an edit, by a scan of
+ *         the slots. A template which aggregates ranges, uses shared nodes or only
+ *         copies or pushes a value is left to the DFS
+ *         A run is split in chunks no longer than the smallest offset of its
+ *         references, so that no cell of a chunk references another cell of the
+ *         same chunk. The referenced cells of a chunk which are not evaluated yet
+ *         are evaluated first by the DFS (CellExpressionEvaluator.calcRPN), then
+ *         the chunk goes through the block kernel, unless some of its cells were
+ *         evaluated meanwhile or a divisor of a block is zero, in which case its
+ *         remaining cells are evaluated one by one by the DFS
+ *         The cells are not evaluated in the order of the DFS, so any exception
+ *         makes the caller leave all the cells WHITE for the sequential DFS, which
+ *         reports exactly the same exception as it would without the runs (as for
+ *         AliasResolver). The values are bit for bit those of the DFS, every cell
+ *         going through the same operations in the same order
+ * ******************************************************************************
+ */
+class TemplateRunEvaluator {
+
+   // Shortest run worth evaluating by blocks
+   static final int MIN_RUN_LENGTH = 8;
+
+   // Number of cells evaluated by one pass of the template
+   private static final int BLOCK_SIZE = 256;
+
+   /**
+    * ********************************************************
+    * Constructor is made private to prevent instantiation
+    * ********************************************************
+    */
+   private TemplateRunEvaluator(){
+
+   }
+
+   /**
+    * ****************************************************************************
+    * Evaluates the cells of all the template runs of the spreadsheet along with
+    * the cells they reference, the other cells are left WHITE
+    * @param spreadsheet
+    *         Spreadsheet whose programs are compiled, evaluated without error values
+    * @throws RuntimeException
+    *             the exception of the DFS of a cell, after which the visit states
+    *             must be reset (see Spreadsheet.evaluateSpreadSheet)
+    * ****************************************************************************
+    */
+   static void evaluate(Spreadsheet spreadsheet){
+      CompiledSheet program = spreadsheet.getCompiledSheet();
+      IntStack runs = program.getTemplateRuns();
+      if(runs == null){
+         runs = findRuns(program);
+      }
+      if(runs.isEmpty()){
+         return;
+      }
+      double[][] columns = new double[program.getMaxStackDepth()][BLOCK_SIZE];
+      for(int i = 0; i < runs.size(); i += 2){
+         int start = runs.get(i);
+         int end = runs.get(i + 1);
+         int chunkLength = Math.min(getChunkLength(program, start), end - start);
+         for(int chunk = start; chunk < end; chunk += chunkLength){
+            evaluateChunk(spreadsheet, start, chunk, Math.min(end, chunk + chunkLength), columns);
+         }
+      }
+   }
+
+   /**
+    * ****************************************************************************
+    * Runs of consecutive slots whose programs share a template which the block
+    * kernel can evaluate
+    * @return the first and the end (exclusive) slot of every run, in slot order
+    * ****************************************************************************
+    */
+   static IntStack findRuns(CompiledSheet program){
+      IntStack runs = new IntStack(16);
+      int slotCount = program.getCellCount();
+      int start = 0;
+      for(int slot = 1; slot <= slotCount; slot++){
+         if(slot < slotCount && sameTemplate(program, start, slot)){
+            continue;
+         }
+         if(isRun(program, start, slot)){
+            runs.push(start);
+            runs.push(slot);
+         }
+         start = slot;
+      }
+      return runs;
+   }
+
+   /**
+    * ****************************************************************************
+    * Checks if the slots from start to end, which share a template, are worth
+    * evaluating by blocks
+    * ****************************************************************************
+    */
+   static boolean isRun(CompiledSheet program, int start, int end){
+      return end - start >= MIN_RUN_LENGTH && hasKernel(program, start)
+              && getChunkLength(program, start) >= MIN_RUN_LENGTH;
+   }
+
+   /**
+    * ****************************************************************************
+    * Checks if the programs of two slots only differ by the slots they reference,
+    * which are at the same offsets, and only have instructions of the kernel
+    * ****************************************************************************
+    */
+   static boolean sameTemplate(CompiledSheet program, int first, int second){
+      int pc = program.getProgramStart(first);
+      int otherPc = program.getProgramStart(second);
+      for(; ; pc++, otherPc++){
+         byte opcode = program.opcode(pc);
+         if(opcode != program.opcode(otherPc)){
+            return false;
+         }
+         switch(opcode){
+            case Opcode.END:
+               return true;
+            case Opcode.REF:
+               if(program.operand(pc) - first != program.operand(otherPc) - second){
+                  return false;
+               }
+               break;
+            case Opcode.CONST:
+               if(Double.doubleToRawLongBits(program.constant(program.operand(pc)))
+                       != Double.doubleToRawLongBits(program.constant(program.operand(otherPc)))){
+                  return false;
+               }
+               break;
+            case Opcode.SHARED:
+            case Opcode.ERROR:
+               return false;
+            default:
+               if(opcode >= Opcode.SUM){
+                  return false;
+               }
+         }
+      }
+   }
+
+   /*
+    * Checks if the template only has the instructions of the kernel, with at least
+    * one operator (a cell copying a value is an alias, see AliasResolver)
+    */
+   private static boolean hasKernel(CompiledSheet program, int slot){
+      boolean operator = false;
+      for(int pc = program.getProgramStart(slot); program.opcode(pc) != Opcode.END; pc++){
+         byte opcode = program.opcode(pc);
+         if(opcode == Opcode.SHARED || opcode == Opcode.ERROR || opcode >= Opcode.SUM){
+            return false;
+         }
+         if(opcode == Opcode.REF && program.operand(pc) == slot){
+            // Left to the DFS, which reports the cycle
+            return false;
+         }
+         operator |= opcode != Opcode.REF && opcode != Opcode.CONST;
+      }
+      return operator;
+   }
+
+   /*
+    * Longest chunk of the run starting at the slot whose cells do not reference
+    * each other: the smallest distance between a cell and the cells it references
+    */
+   private static int getChunkLength(CompiledSheet program, int slot){
+      int length = Integer.MAX_VALUE;
+      for(int pc = program.getProgramStart(slot); program.opcode(pc) != Opcode.END; pc++){
+         if(program.opcode(pc) == Opcode.REF){
+            length = Math.min(length, Math.abs(program.operand(pc) - slot));
+         }
+      }
+      return length;
+   }
+
+   /*
+    * Evaluates the cells from start to end of the run whose template is the program
+    * of the slot template
+    */
+   private static void evaluateChunk(Spreadsheet spreadsheet, int template, int start, int end, double[][] columns){
+      CompiledSheet program = spreadsheet.getCompiledSheet();
+      ByteArray visitStatus = spreadsheet.getVisitStatus();
+      int programStart = program.getProgramStart(template);
+      // Referenced cells first
+      for(int pc = programStart; program.opcode(pc) != Opcode.END; pc++){
+         if(program.opcode(pc) == Opcode.REF){
+            int offset = program.operand(pc) - template;
+            for(int cell = start; cell < end; cell++){
+               if(visitStatus.get(cell + offset) == Color.WHITE){
+                  CellExpressionEvaluator.calcRPN(cell + offset, spreadsheet);
+               }
+            }
+         }
+      }
+      boolean pending = true;
+      for(int cell = start; cell < end && pending; cell++){
+         pending = visitStatus.get(cell) == Color.WHITE;
+      }
+      for(int block = start; pending && block < end; block += BLOCK_SIZE){
+         int length = Math.min(BLOCK_SIZE, end - block);
+         if(evaluateBlock(spreadsheet, template, block, length, columns)){
+            markEvaluated(spreadsheet, block, length);
+         } else {
+            pending = false;
+         }
+      }
+      // Cells the kernel did not evaluate
+      for(int cell = start; cell < end; cell++){
+         if(visitStatus.get(cell) == Color.WHITE){
+            CellExpressionEvaluator.calcRPN(cell, spreadsheet);
+         }
+      }
+   }
+
+   /*
+    * Runs the template over the cells from block to block + length, whose referenced
+    * cells are all evaluated. Returns false, leaving the values as they are, when a
+    * divisor is zero
+    */
+   private static boolean evaluateBlock(Spreadsheet spreadsheet, int template, int block, int length,
+                                        double[][] columns){
+      CompiledSheet program = spreadsheet.getCompiledSheet();
+      DoubleArray values = spreadsheet.getValues();
+      int top = 0;
+      for(int pc = program.getProgramStart(template); program.opcode(pc) != Opcode.END; pc++){
+         switch(program.opcode(pc)){
+            case Opcode.CONST: {
+               double[] result = columns[top++];
+               double constant = program.constant(program.operand(pc));
+               for(int i = 0; i < length; i++){
+                  result[i] = constant;
+               }
+               break;
+            }
+            case Opcode.REF: {
+               double[] result = columns[top++];
+               int first = block + program.operand(pc) - template;
+               for(int i = 0; i < length; i++){
+                  result[i] = values.get(first + i);
+               }
+               break;
+            }
+            case Opcode.ADD: {
+               top--;
+               double[] left = columns[top - 1];
+               double[] right = columns[top];
+               for(int i = 0; i < length; i++){
+                  left[i] = left[i] + right[i];
+               }
+               break;
+            }
+            case Opcode.SUBTRACT: {
+               top--;
+               double[] left = columns[top - 1];
+               double[] right = columns[top];
+               for(int i = 0; i < length; i++){
+                  left[i] = left[i] - right[i];
+               }
+               break;
+            }
+            case Opcode.MULTIPLY: {
+               top--;
+               double[] left = columns[top - 1];
+               double[] right = columns[top];
+               for(int i = 0; i < length; i++){
+                  left[i] = left[i] * right[i];
+               }
+               break;
+            }
+            case Opcode.DIVIDE: {
+               top--;
+               double[] left = columns[top - 1];
+               double[] right = columns[top];
+               for(int i = 0; i < length; i++){
+                  if(right[i] == 0){
+                     return false;
+                  }
+               }
+               for(int i = 0; i < length; i++){
+                  left[i] = left[i] / right[i];
+               }
+               break;
+            }
+            case Opcode.INCREMENT: {
+               double[] operand = columns[top - 1];
+               for(int i = 0; i < length; i++){
+                  operand[i] = operand[i] + 1;
+               }
+               break;
+            }
+            case Opcode.DECREMENT: {
+               double[] operand = columns[top - 1];
+               for(int i = 0; i < length; i++){
+                  operand[i] = operand[i] - 1;
+               }
+               break;
+            }
+         }
+      }
+      double[] result = columns[0];
+      for(int i = 0; i < length; i++){
+         values.set(block + i, result[i]);
+      }
+      return true;
+   }
+
+   private static void markEvaluated(Spreadsheet spreadsheet, int block, int length){
+      CompiledSheet program = spreadsheet.getCompiledSheet();
+      ByteArray visitStatus = spreadsheet.getVisitStatus();
+      EvaluationMetrics metrics = spreadsheet.getMetrics();
+      for(int cell = block; cell < block + length; cell++){
+         visitStatus.set(cell, Color.BLACK);
+         if(metrics != null){
+            metrics.cellEvaluated(program, program.getProgramStart(cell), 1);
+         }
+      }
+   }
+}
@@ -0,0 +1,142 @@
+/**
+ * *******************************************************************
+ * File: TemplateRunTestCases.java
+ * *********************************************************************
+ */
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+public class TemplateRunTestCases {
+
+   private static final int COLUMNS = 20;
+
+   // Row A holds the inputs, every cell Bj of row B is template applied to Aj
+   private static String[][] templateSheet(String template) {
+      String input[][] = new String[2][COLUMNS];
+      for(int j = 0; j < COLUMNS; j++){
+         input[0][j] = Integer.toString(j + 1);
+         input[1][j] = "A" + (j + 1) + " " + template;
+      }
+      return input;
+   }
+
+   private static void assertValue(double expected, Spreadsheet spreadsheet, int row, int column) {
+      assertEquals(Double.doubleToRawLongBits(expected), Double.doubleToRawLongBits(spreadsheet.getValue(row,column)));
+   }
+
+   @Test
+   public void runsRecordedWhenCompiled() {
+      Spreadsheet spreadsheet = new Spreadsheet(templateSheet("2 * 1 +"));
+      spreadsheet.evaluateSpreadSheet();
+      CompiledSheet program = spreadsheet.getCompiledSheet();
+      assertArrayEquals(new int[]{COLUMNS, 2 * COLUMNS}, program.getTemplateRuns().toArray());
+      assertArrayEquals(new int[]{COLUMNS, 2 * COLUMNS}, TemplateRunEvaluator.findRuns(program).toArray());
+   }
+
+   // A different constant ends the run, a copy of a cell is no run
+   @Test
+   public void templatesCompared() {
+      String input[][] = templateSheet("3 /");
+      input[1][12] = "A13 4 /";
+      Spreadsheet spreadsheet = new Spreadsheet(input);
+      spreadsheet.evaluateSpreadSheet();
+      assertArrayEquals(new int[]{COLUMNS, COLUMNS + 12}, spreadsheet.getCompiledSheet().getTemplateRuns().toArray());
+      Spreadsheet copies = new Spreadsheet(templateSheet(""));
+      copies.evaluateSpreadSheet();
+      assertEquals(0, TemplateRunEvaluator.findRuns(copies.getCompiledSheet()).size());
+   }
+
+   @Test
+   public void valuesOfTheDfs() {
+      Spreadsheet spreadsheet = new Spreadsheet(templateSheet("3 / 1.5 - 2 * ++"));
+      spreadsheet.evaluateSpreadSheet();
+      for(int j = 0; j < COLUMNS; j++){
+         assertValue(((j + 1) / 3.0 - 1.5) * 2 + 1, spreadsheet, 1, j);
+      }
+   }
+
+   // The cells of a run referencing the same run are evaluated by chunks
+   @Test
+   public void runReferencingItself() {
+      String input[][] = new String[1][40];
+      for(int j = 0; j < 40; j++){
+         input[0][j] = j < 10 ? Integer.toString(j) : "A" + (j - 9) + " 10 +";
+      }
+      Spreadsheet spreadsheet = new Spreadsheet(input);
+      spreadsheet.evaluateSpreadSheet();
+      assertArrayEquals(new int[]{10, 40}, spreadsheet.getCompiledSheet().getTemplateRuns().toArray());
+      for(int j = 0; j < 40; j++){
+         assertValue(j, spreadsheet, 0, j);
+      }
+   }
+
+   // The exception is the one of the DFS without the runs
+   @Test
+   public void divisionByZeroReported() {
+      String input[][] = templateSheet("");
+      for(int j = 0; j < COLUMNS; j++){
+         input[1][j] = "1 A" + (j + 1) + " /";
+      }
+      input[0][4] = "0";
+      input[0][11] = "0";
+      try{
+         new Spreadsheet(input).evaluateSpreadSheet();
+         fail("Division by zero not reported");
+      } catch(RPNDivideByZeroException e){
+         assertEquals("The RPN equation 1 A5 / at cell B5 attempted to divide by zero", e.getMessage());
+      }
+   }
+
+   @Test
+   public void cycleReported() {
+      String input[][] = templateSheet("2 *");
+      input[0][7] = "B8 1 +";
+      try{
+         new Spreadsheet(input).evaluateSpreadSheet();
+         fail("Cycle not reported");
+      } catch(CycleDetectedException e){
+         assertEquals("Cycle detected at cell A8", e.getMessage());
+      }
+   }
+
+   // A run edited after it was compiled is found again by a scan
+   @Test
+   public void editedRunFoundAgain() throws IOException {
+      StringBuilder input = new StringBuilder(COLUMNS + " 2\n");
+      for(String[] row : templateSheet("2 *")){
+         for(String expression : row){
+            input.append(expression).append('\n');
+         }
+      }
+      SpreadsheetReader reader = new SpreadsheetReader(Channels.newChannel(
+              new ByteArrayInputStream(input.toString().getBytes(StandardCharsets.UTF_8))));
+      reader.readLine();
+      Spreadsheet spreadsheet = reader.readSpreadsheet(2, COLUMNS);
+      spreadsheet.setCell("B3", "A3 3 *");
+      spreadsheet.evaluateSpreadSheet();
+      CompiledSheet program = spreadsheet.getCompiledSheet();
+      assertNull(program.getTemplateRuns());
+      assertArrayEquals(new int[]{COLUMNS + 3, 2 * COLUMNS}, TemplateRunEvaluator.findRuns(program).toArray());
+      assertValue(9, spreadsheet, 1, 2);
+      assertValue(40, spreadsheet, 1, COLUMNS - 1);
+   }
+
+   @Test
+   public void offHeapRuns() {
+      Spreadsheet spreadsheet = new Spreadsheet(templateSheet("1 - 0.5 *"), CellStorage.OFF_HEAP);
+      spreadsheet.evaluateSpreadSheet();
+      for(int j = 0; j < COLUMNS; j++){
+         assertValue(j * 0.5, spreadsheet, 1, j);
+      }
+   }
+}
@@ -38,5 +38,138 @@ public class TestRunner {
       }
       testResult = result.wasSuccessful()?"Successful":"Failed";
       System.out.println("Test result for entire spreadsheet evaluation : " + testResult);
+
+      result = JUnitCore.runClasses(ParallelEvaluationTestCases.class);
+      for (Failure failure : result.getFailures()) {
+         System.out.println(failure.toString());
+      }
+      testResult = result.wasSuccessful()?"Successful":"Failed";
+      System.out.println("Test result for parallel spreadsheet evaluation : " + testResult);
+
+      result = JUnitCore.runClasses(IncrementalRecalculationTestCases.class);
+      for (Failure failure : result.getFailures()) {
+         System.out.println(failure.toString());
+      }
+      testResult = result.wasSuccessful()?"Successful":"Failed";
+      System.out.println("Test result for incremental recalculation : " + testResult);
+
+      result = JUnitCore.runClasses(SpreadsheetReaderTestCases.class);
+      for (Failure failure : result.getFailures()) {
+         System.out.println(failure.toString());
+      }
+      testResult = result.wasSuccessful()?"Successful":"Failed";
+      System.out.println("Test result for streaming spreadsheet loading : " + testResult);
+
+      result = JUnitCore.runClasses(SpreadsheetWriterTestCases.class);
+      for (Failure failure : result.getFailures()) {
+         System.out.println(failure.toString());
+      }
+      testResult = result.wasSuccessful()?"Successful":"Failed";
+      System.out.println("Test result for buffered spreadsheet output : " + testResult);
+
+      result = JUnitCore.runClasses(AliasResolverTestCases.class);
+      for (Failure failure : result.getFailures()) {
+         System.out.println(failure.toString());
+      }
+      testResult = result.wasSuccessful()?"Successful":"Failed";
+      System.out.println("Test result for alias chain resolution : " + testResult);
+
+      result = JUnitCore.runClasses(SparseSpreadsheetTestCases.class);
+      for (Failure failure : result.getFailures()) {
+         System.out.println(failure.toString());
+      }
+      testResult = result.wasSuccessful()?"Successful":"Failed";
+      System.out.println("Test result for sparse spreadsheet storage : " + testResult);
+
+      result = JUnitCore.runClasses(RangeAggregateTestCases.class);
+      for (Failure failure : result.getFailures()) {
+         System.out.println(failure.toString());
+      }
+      testResult = result.wasSuccessful()?"Successful":"Failed";
+      System.out.println("Test result for range aggregates : " + testResult);
+
+      result = JUnitCore.runClasses(SharedSubexpressionTestCases.class);
+      for (Failure failure : result.getFailures()) {
+         System.out.println(failure.toString());
+      }
+      testResult = result.wasSuccessful()?"Successful":"Failed";
+      System.out.println("Test result for shared subexpressions : " + testResult);
+
+      result = JUnitCore.runClasses(ErrorValueTestCases.class);
+      for (Failure failure : result.getFailures()) {
+         System.out.println(failure.toString());
+      }
+      testResult = result.wasSuccessful()?"Successful":"Failed";
+      System.out.println("Test result for error values : " + testResult);
+
+      result = JUnitCore.runClasses(LazyQueryTestCases.class);
+      for (Failure failure : result.getFailures()) {
+         System.out.println(failure.toString());
+      }
+      testResult = result.wasSuccessful()?"Successful":"Failed";
+      System.out.println("Test result for on-demand queries : " + testResult);
+
+      result = JUnitCore.runClasses(SpreadsheetServerTestCases.class);
+      for (Failure failure : result.getFailures()) {
+         System.out.println(failure.toString());
+      }
+      testResult = result.wasSuccessful()?"Successful":"Failed";
+      System.out.println("Test result for evaluation server : " + testResult);
+
+      result = JUnitCore.runClasses(EvaluationMetricsTestCases.class);
+      for (Failure failure : result.getFailures()) {
+         System.out.println(failure.toString());
+      }
+      testResult = result.wasSuccessful()?"Successful":"Failed";
+      System.out.println("Test result for evaluation metrics : " + testResult);
+
+      result = JUnitCore.runClasses(CellStorageTestCases.class);
+      for (Failure failure : result.getFailures()) {
+         System.out.println(failure.toString());
+      }
+      testResult = result.wasSuccessful()?"Successful":"Failed";
+      System.out.println("Test result for off heap storage : " + testResult);
+
+      result = JUnitCore.runClasses(TemplateRunTestCases.class);
+      for (Failure failure : result.getFailures()) {
+         System.out.println(failure.toString());
+      }
+      testResult = result.wasSuccessful()?"Successful":"Failed";
+      System.out.println("Test result for template runs : " + testResult);
+
+      result = JUnitCore.runClasses(ScenarioTestCases.class);
+      for (Failure failure : result.getFailures()) {
+         System.out.println(failure.toString());
+      }
+      testResult = result.wasSuccessful()?"Successful":"Failed";
+      System.out.println("Test result for what-if scenarios : " + testResult);
+
+      result = JUnitCore.runClasses(SpreadsheetSnapshotTestCases.class);
+      for (Failure failure : result.getFailures()) {
+         System.out.println(failure.toString());
+      }
+      testResult = result.wasSuccessful()?"Successful":"Failed";
+      System.out.println("Test result for snapshots : " + testResult);
+
+      result = JUnitCore.runClasses(ParallelSpreadsheetReaderTestCases.class);
+      for (Failure failure : result.getFailures()) {
+         System.out.println(failure.toString());
+      }
+      testResult = result.wasSuccessful()?"Successful":"Failed";
+      System.out.println("Test result for parallel reading : " + testResult);
+
+      result = JUnitCore.runClasses(PipelinedEvaluatorTestCases.class);
+      for (Failure failure : result.getFailures()) {
+         System.out.println(failure.toString());
+      }
+      testResult = result.wasSuccessful()?"Successful":"Failed";
+      System.out.println("Test result for pipelined evaluation : " + testResult);
+
+      result = JUnitCore.runClasses(AdaptiveEvaluationTestCases.class);
+      for (Failure failure : result.getFailures()) {
+         System.out.println(failure.toString());
+      }
+      testResult = result.wasSuccessful()?"Successful":"Failed";
+      System.out.println("Test result for adaptive evaluation : " + testResult);
    }
 }
@@ -0,0 +1,161 @@
+import java.util.concurrent.CountedCompleter;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * ******************************************************************************
+ * File: WorkStealingEvaluator.java
+ * Evaluates a compiled spreadsheet in dependency order on a ForkJoinPool without
+ * waiting for the cells of a level before starting the next level
+ * Logic : As in ParallelEvaluator, a cell is ready once all the cells it references
+ *         are evaluated, the cells which do not reference any cell being ready
+ *         first. A task evaluates the ready cells of its own stack, and evaluating
+ *         a cell pushes the dependents it makes ready, so a chain is followed on
+ *         the same thread like the DFS would. When the stack holds more than
+ *         SPLIT_SIZE cells, half of them are forked as a new task for the idle
+ *         threads to steal. The evaluation ends once every task has completed
+ *         (CountedCompleter), there is no barrier between the levels, so a deep
+ *         graph keeps the threads busy as long as it has enough ready cells
+ *         Cells which are part of a cycle, depend on a cycle or fail to evaluate
+ *         are left WHITE, so that the sequential DFS run afterwards on the remaining
+ *         cells reports exactly the same exception as a fully sequential evaluation
+ * ******************************************************************************
+ */
+class WorkStealingEvaluator {
+
+   // Number of initially ready cells of a task
+   private static final int BATCH_SIZE = 1024;
+
+   // Number of ready cells of a task above which half of them are forked
+   private static final int SPLIT_SIZE = 64;
+
+   /**
+    * ********************************************************
+    * Constructor is made private to prevent instantiation
+    * ********************************************************
+    */
+   private WorkStealingEvaluator(){
+
+   }
+
+   /**
+    * ****************************************************************************
+    * Evaluates all the cells of the spreadsheet whose dependency cone is free of
+    * cycles and errors, marking them BLACK
+    * @param spreadsheet
+    *         Spreadsheet whose programs are compiled and whose cells are all WHITE
+    * @param pool
+    *         The pool on which the cells are evaluated
+    * ****************************************************************************
+    */
+   static void evaluate(Spreadsheet spreadsheet, ForkJoinPool pool){
+      CompiledSheet program = spreadsheet.getCompiledSheet();
+      DependencyGraph graph = spreadsheet.getDependencyGraph();
+      int cellCount = graph.getCellCount();
+
+      AtomicIntegerArray remaining = new AtomicIntegerArray(cellCount);
+      int[] ready = new int[cellCount];
+      int readyCount = 0;
+      for(int cell = 0; cell < cellCount; cell++){
+         int count = graph.getReferenceCount(cell);
+         if(count == 0){
+            ready[readyCount++] = cell;
+         } else {
+            remaining.set(cell, count);
+         }
+      }
+
+      // The results of the shared nodes are not published safely between threads
+      program.newEpoch(false);
+      pool.invoke(new CellTask(null, spreadsheet, graph, remaining, ready, 0, readyCount));
+      program.newEpoch(true);
+   }
+
+   /**
+    * ****************************************************************************
+    * Evaluates the ready cells cells[from] .. cells[to - 1] and the cells they
+    * make ready, forking part of them to other tasks
+    * ****************************************************************************
+    */
+   private static class CellTask extends CountedCompleter<Void> {
+      private static final long serialVersionUID = 1L;
+
+      private final Spreadsheet spreadsheet;
+      private final DependencyGraph graph;
+      private final AtomicIntegerArray remaining;
+      private final int[] cells;
+      private final int from;
+      private int to;
+
+      CellTask(CountedCompleter<?> completer, Spreadsheet spreadsheet, DependencyGraph graph,
+               AtomicIntegerArray remaining, int[] cells, int from, int to){
+         super(completer);
+         this.spreadsheet = spreadsheet;
+         this.graph = graph;
+         this.remaining = remaining;
+         this.cells = cells;
+         this.from = from;
+         this.to = to;
+      }
+
+      @Override
+      public void compute(){
+         while(to - from > BATCH_SIZE){
+            int middle = (from + to) >>> 1;
+            addToPendingCount(1);
+            new CellTask(this, spreadsheet, graph, remaining, cells, middle, to).fork();
+            to = middle;
+         }
+         CompiledSheet program = spreadsheet.getCompiledSheet();
+         DoubleArray values = spreadsheet.getValues();
+         ByteArray visitStatus = spreadsheet.getVisitStatus();
+         double[] operandStack = CellExpressionEvaluator.getOperandStack(program.getMaxStackDepth());
+         // Counted apart and added once, the tasks run concurrently
+         EvaluationMetrics metrics = spreadsheet.getMetrics() == null ? null : new EvaluationMetrics();
+
+         IntStack ready = new IntStack(Math.max(16, to - from));
+         for(int i = to - 1; i >= from; i--){
+            ready.push(cells[i]);
+         }
+         while(!ready.isEmpty()){
+            int cell = ready.pop();
+            double value;
+            try{
+               value = CellExpressionEvaluator.execute(program, program.getProgramStart(cell), values,
+                       operandStack, cell, spreadsheet);
+            } catch(IllegalArgumentException e){
+               // Left WHITE, the sequential pass reports the error
+               continue;
+            }
+            if(CellExpressionEvaluator.isErrorValue(value)){
+               // Left WHITE, the sequential pass records the error state
+               continue;
+            }
+            values.set(cell, value);
+            visitStatus.set(cell, Color.BLACK);
+            if(metrics != null){
+               metrics.cellEvaluated(program, program.getProgramStart(cell), 1);
+            }
+            for(int d = graph.getDependentStart(cell); d < graph.getDependentEnd(cell); d++){
+               int dependent = graph.getDependent(d);
+               if(remaining.decrementAndGet(dependent) == 0){
+                  ready.push(dependent);
+               }
+            }
+            if(ready.size() > SPLIT_SIZE){
+               int[] forked = new int[ready.size() / 2];
+               for(int i = forked.length - 1; i >= 0; i--){
+                  forked[i] = ready.pop();
+               }
+               addToPendingCount(1);
+               new CellTask(this, spreadsheet, graph, remaining, forked, 0, forked.length).fork();
+            }
+         }
+
+         if(metrics != null){
+            spreadsheet.getMetrics().add(metrics);
+         }
+         tryComplete();
+      }
+   }
+}